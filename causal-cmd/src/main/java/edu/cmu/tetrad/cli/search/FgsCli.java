@@ -80,6 +80,7 @@ public class FgsCli {
         // run options
         MAIN_OPTIONS.addOption(null, "verbose", false, "Print additional information.");
         MAIN_OPTIONS.addOption(null, "thread", true, "Number of threads.");
+        MAIN_OPTIONS.addOption(null, "cov-cache", true, "Memory in megabytes for caching covariances. Default is 0 (no caching).");
 
         // algorithm parameters
         MAIN_OPTIONS.addOption(null, "penalty-discount", true, "Penalty discount. Default is 4.0");
@@ -121,6 +122,7 @@ public class FgsCli {
     private static boolean isSerializeJson;
     private static boolean verbose;
     private static int numOfThreads;
+    private static int covCacheSize;
 
     private static Path dirOut;
     private static String outputPrefix;
@@ -235,7 +237,10 @@ public class FgsCli {
     }
 
     private static Graph runFgs(DataSet dataSet, PrintStream writer) throws IOException {
-        SemBicScore score = new SemBicScore(new CovarianceMatrixOnTheFly(dataSet));
+        CovarianceMatrixOnTheFly cov = new CovarianceMatrixOnTheFly(dataSet);
+        cov.setMaxCacheBytes(covCacheSize * 1024L * 1024L);
+
+        SemBicScore score = new SemBicScore(cov);
         score.setPenaltyDiscount(penaltyDiscount);
 
         FgsOld fgs = new FgsOld(score);
@@ -265,6 +270,7 @@ public class FgsCli {
         fmt.format("Runtime Parameters:%n");
         fmt.format("verbose = %s%n", verbose);
         fmt.format("number of threads = %s%n", numOfThreads);
+        fmt.format("covariance cache (MB) = %d%n", covCacheSize);
         fmt.format("%n");
 
         fmt.format("Dataset:%n");
@@ -382,6 +388,7 @@ public class FgsCli {
         fmt.format("delimiter = %s%n", Args.getDelimiterName(delimiter));
         fmt.format("verbose = %s%n", verbose);
         fmt.format("thread = %s%n", numOfThreads);
+        fmt.format("cov-cache = %d%n", covCacheSize);
         fmt.format("penalty-discount = %f%n", penaltyDiscount);
         fmt.format("ignore-linear-dependence = %s%n", ignoreLinearDependence);
         fmt.format("depth = %d%n", depth);
@@ -414,6 +421,7 @@ public class FgsCli {
             isSerializeJson = cmd.hasOption("json");
             verbose = cmd.hasOption("verbose");
             numOfThreads = Args.getInteger(cmd.getOptionValue("thread", Integer.toString(Runtime.getRuntime().availableProcessors())));
+            covCacheSize = Args.getIntegerMin(cmd.getOptionValue("cov-cache", "0"), 0);
             dirOut = Args.getPathDir(cmd.getOptionValue("out", "."), false);
             outputPrefix = cmd.getOptionValue("output-prefix", String.format("fgs_%s_%d", dataFile.getFileName(), System.currentTimeMillis()));
             validationOutput = !cmd.hasOption("no-validation-output");
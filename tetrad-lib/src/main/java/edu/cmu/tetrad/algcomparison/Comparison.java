@@ -31,6 +31,7 @@ import edu.cmu.tetrad.algcomparison.score.ScoreWrapper;
 import edu.cmu.tetrad.algcomparison.simulation.LoadContinuousDataAndGraphs;
 import edu.cmu.tetrad.algcomparison.simulation.Simulation;
 import edu.cmu.tetrad.algcomparison.simulation.Simulations;
+import edu.cmu.tetrad.algcomparison.statistic.ElapsedCpuTime;
 import edu.cmu.tetrad.algcomparison.statistic.ElapsedTime;
 import edu.cmu.tetrad.algcomparison.statistic.ParameterColumn;
 import edu.cmu.tetrad.algcomparison.statistic.Statistic;
@@ -49,6 +50,8 @@ import java.lang.reflect.Constructor;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveTask;
 
 /**
@@ -69,6 +72,11 @@ public class Comparison {
     private boolean sortByUtility = false;
     private String filePath = null;
     private boolean parallelized = true;
+    private int runThreads = Runtime.getRuntime().availableProcessors();
+    private int algorithmThreads = 0;
+    private int algorithmThreadsInUse = 1;
+    private boolean resumable = false;
+    private ResultsStore store = null;
 
     /**
      * Compares algorithms.
@@ -121,6 +129,9 @@ public class Comparison {
 
         out.println(new Date());
 
+        // Results of earlier, unfinished attempts at this comparison are picked up from here.
+        store = resumable ? new ResultsStore(new File(filePath, "results")) : null;
+
         // Set up simulations--create data and graphs, read in parameters. The parameters
         // are set in the parameters object.
         List<SimulationWrapper> simulationWrappers = new ArrayList<>();
@@ -131,7 +142,7 @@ public class Comparison {
             List<SimulationWrapper> wrappers = getSimulationWrappers(simulation, parameters);
 
             for (SimulationWrapper wrapper : wrappers) {
-                wrapper.createData(wrapper.getSimulationSpecificParameters());
+                createData(wrapper);
 
                 int _numRuns = wrapper.getSimulationSpecificParameters().getInt("numRuns");
 
@@ -693,7 +704,7 @@ public class Comparison {
 
         double[][][][] allStats = new double[4][algorithmSimulationWrappers.size()][statistics.size() + 1][numRuns];
 
-        List<AlgorithmTask> tasks = new ArrayList<>();
+        final List<AlgorithmTask> tasks = new ArrayList<>();
         int index = 0;
 
         for (int algSimIndex = 0; algSimIndex < algorithmSimulationWrappers.size(); algSimIndex++) {
@@ -705,50 +716,30 @@ public class Comparison {
             }
         }
 
-        if (!isParallelized()) {
+        // Runs are done at most runThreads at a time; each gets a pool of its own with
+        // algorithmThreads threads for whatever the algorithm forks.
+        int outer = isParallelized() ? Math.max(1, Math.min(runThreads, tasks.size())) : 1;
+        int cores = Runtime.getRuntime().availableProcessors();
+        algorithmThreadsInUse = algorithmThreads > 0 ? algorithmThreads : Math.max(1, cores / outer);
+
+        if (outer == 1) {
             for (AlgorithmTask task : tasks) {
                 task.compute();
             }
         } else {
-            class Task extends RecursiveTask<Boolean> {
-                List<AlgorithmTask> tasks;
-
-                public Task(List<AlgorithmTask> tasks) {
-                    this.tasks = tasks;
-                }
-
-                @Override
-                protected Boolean compute() {
-                    Queue<AlgorithmTask> tasks = new ArrayDeque<>();
-
-                    for (AlgorithmTask task : this.tasks) {
-                        tasks.add(task);
-                        task.fork();
-
-                        for (AlgorithmTask _task : new ArrayList<>(tasks)) {
-                            if (_task.isDone()) {
-                                _task.join();
-                                tasks.remove(_task);
-                            }
-                        }
-
-                        while (tasks.size() > Runtime.getRuntime().availableProcessors()) {
-                            AlgorithmTask _task = tasks.poll();
-                            _task.join();
-                        }
-                    }
-
-                    for (AlgorithmTask task : tasks) {
-                        task.join();
+            ForkJoinPool pool = new ForkJoinPool(outer);
+
+            try {
+                pool.invoke(new RecursiveTask<Boolean>() {
+                    @Override
+                    protected Boolean compute() {
+                        ForkJoinTask.invokeAll(tasks);
+                        return true;
                     }
-
-                    return true;
-                }
+                });
+            } finally {
+                pool.shutdown();
             }
-
-            Task task = new Task(tasks);
-
-            ForkJoinPoolInstance.getInstance().getPool().invoke(task);
         }
 
         return allStats;
@@ -811,6 +802,90 @@ public class Comparison {
         this.parallelized = parallelized;
     }
 
+    /**
+     * @return The maximum number of runs done at once, if parallelized.
+     */
+    public int getRunThreads() {
+        return runThreads;
+    }
+
+    /**
+     * @param runThreads The maximum number of runs done at once, if parallelized. By default, the
+     *                   number of processors.
+     */
+    public void setRunThreads(int runThreads) {
+        if (runThreads < 1) throw new IllegalArgumentException("Need at least one run thread: " + runThreads);
+        this.runThreads = runThreads;
+    }
+
+    /**
+     * @return The number of threads given to each run for the algorithm to use, or 0 if this is
+     * chosen automatically.
+     */
+    public int getAlgorithmThreads() {
+        return algorithmThreads;
+    }
+
+    /**
+     * @param algorithmThreads The number of threads given to each run for the algorithm to use. If 0
+     *                         (the default), the processors are divided among the runs done at once.
+     */
+    public void setAlgorithmThreads(int algorithmThreads) {
+        if (algorithmThreads < 0) throw new IllegalArgumentException("Threads must be >= 0: " + algorithmThreads);
+        this.algorithmThreads = algorithmThreads;
+    }
+
+    /**
+     * @return True iff results are kept as they come in, so that a comparison can be resumed.
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * @param resumable True iff each run's graph and statistics should be recorded as soon as it
+     *                  finishes, along with the simulated data, in a "results" directory under the
+     *                  comparison's path. Doing the same comparison again then skips the runs that
+     *                  are already recorded and reuses the data. By default, false.
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    private void createData(SimulationWrapper wrapper) {
+        Simulation simulation = wrapper.getSimulation();
+
+        // Knowledge is made along with the data, so it can't be restored without it.
+        if (store == null || simulation instanceof HasKnowledge) {
+            wrapper.createData(wrapper.getSimulationSpecificParameters());
+            return;
+        }
+
+        String key = wrapper.getKey();
+        List<Graph> graphs = new ArrayList<>();
+        List<DataSet> dataSets = new ArrayList<>();
+
+        if (store.loadSimulation(key, graphs, dataSets)) {
+            System.out.println("Using saved data for " + wrapper.getDescription());
+            wrapper.setData(graphs, dataSets);
+        } else {
+            wrapper.createData(wrapper.getSimulationSpecificParameters());
+            store.saveSimulation(key, wrapper.graphs, wrapper.dataSets);
+        }
+    }
+
+    private static String getKey(String description, List<String> names, Parameters parameters) {
+        StringBuilder key = new StringBuilder(description);
+
+        for (String name : names) {
+            Object[] values = parameters.getValues(name);
+            key.append(", ").append(name).append(" = ");
+            key.append(values == null || values.length == 0 ? null : values[0]);
+        }
+
+        return key.toString();
+    }
+
     private class AlgorithmTask extends RecursiveTask<Boolean> {
         private List<AlgorithmSimulationWrapper> algorithmSimulationWrappers;
         private Statistics statistics;
@@ -849,7 +924,27 @@ public class Comparison {
         System.out.println((run.getAlgSimIndex() + 1) + ". " + algorithmWrapper.getDescription()
                 + " simulationWrapper: " + simulationWrapper.getDescription());
 
+        String key = null;
+
+        if (store != null) {
+            // Runs on data that has since been simulated again don't match.
+            key = algorithmSimulationWrapper.getKey() + ", run " + (run.getRunIndex() + 1)
+                    + ", data " + simulationWrapper.getFingerprint(run.getRunIndex());
+            ResultsStore.RunResult result = store.getResult(key);
+
+            if (result != null && result.hasStatistics(statistics)) {
+                System.out.println("Using saved result");
+                recordStatistics(result, statistics, allStats, run);
+                return;
+            }
+        }
+
+        CpuTimeForkJoinPool pool = new CpuTimeForkJoinPool(algorithmThreadsInUse);
+        ForkJoinPoolInstance.getInstance().setPoolForCurrentThread(pool);
+
         long start = System.currentTimeMillis();
+        long cpuStart = CpuTimeForkJoinPool.getCurrentThreadCpuTime();
+        long cpuTime;
         Graph out;
 
         try {
@@ -862,7 +957,7 @@ public class Comparison {
 
             if (algorithm instanceof MultiDataSetAlgorithm) {
                 List<Integer> indices = new ArrayList<>();
-                int numDataSets = simulationWrapper.getSimulation().getNumDataSets();
+                int numDataSets = simulationWrapper.getNumDataSets();
                 for (int i = 0; i < numDataSets; i++) indices.add(i);
                 Collections.shuffle(indices);
 
@@ -870,7 +965,7 @@ public class Comparison {
                 int randomSelection = algorithmWrapper.getAlgorithmSpecificParameters().getInt(
                         "randomSelection");
                 for (int i = 0; i < Math.min(numDataSets, randomSelection); i++) {
-                    dataSets.add(simulationWrapper.getSimulation().getDataSet(indices.get(i)));
+                    dataSets.add(simulationWrapper.getDataSet(indices.get(i)));
                 }
 
                 Parameters _params = algorithmWrapper.getAlgorithmSpecificParameters();
@@ -884,6 +979,13 @@ public class Comparison {
             System.out.println("Could not run " + algorithmWrapper.getDescription());
             e.printStackTrace();
             return;
+        } finally {
+            long cpuStop = CpuTimeForkJoinPool.getCurrentThreadCpuTime();
+            long poolCpuTime = pool.getCpuTime();
+            cpuTime = cpuStart < 0 || poolCpuTime < 0 ? -1 : cpuStop - cpuStart + poolCpuTime;
+
+            ForkJoinPoolInstance.getInstance().setPoolForCurrentThread(null);
+            pool.shutdown();
         }
 
         String path = null;
@@ -907,16 +1009,11 @@ public class Comparison {
         Graph comparisonGraph = trueGraph == null ? null : algorithmSimulationWrapper.getComparisonGraph(trueGraph);
 
         est[0] = out;
-        graphTypeUsed[0] = true;
 
         if (data.isMixed()) {
             est[1] = getSubgraph(out, true, true, data);
             est[2] = getSubgraph(out, true, false, data);
             est[3] = getSubgraph(out, false, false, data);
-
-            graphTypeUsed[1] = true;
-            graphTypeUsed[2] = true;
-            graphTypeUsed[3] = true;
         }
 
         Graph[] truth = new Graph[numGraphTypes];
@@ -929,29 +1026,61 @@ public class Comparison {
             truth[3] = getSubgraph(comparisonGraph, false, false, data);
         }
 
+        ResultsStore.RunResult result = new ResultsStore.RunResult(out, numGraphTypes, comparisonGraph != null);
+
+        for (int u = 0; u < numGraphTypes; u++) {
+            if (est[u] != null) result.setGraphTypeUsed(u);
+        }
+
         if (comparisonGraph != null) {
             for (int u = 0; u < numGraphTypes; u++) {
-                if (!graphTypeUsed[u]) continue;
-
-                int statIndex = -1;
+                if (!result.isGraphTypeUsed(u)) continue;
 
                 for (Statistic _stat : statistics.getStatistics()) {
-                    statIndex++;
-
                     if (_stat instanceof ParameterColumn) continue;
 
                     double stat;
 
                     if (_stat instanceof ElapsedTime) {
                         stat = elapsed / 1000.0;
+                    } else if (_stat instanceof ElapsedCpuTime) {
+                        stat = cpuTime < 0 ? Double.NaN : cpuTime / 1e9;
                     } else {
                         stat = _stat.getValue(truth[u], est[u]);
                     }
 
-                    allStats[u][run.getAlgSimIndex()][statIndex][run.getRunIndex()] = stat;
+                    result.setStatistic(u, _stat.getAbbreviation(), stat);
                 }
             }
         }
+
+        if (store != null) {
+            store.putResult(key, result);
+        }
+
+        recordStatistics(result, statistics, allStats, run);
+    }
+
+    private void recordStatistics(ResultsStore.RunResult result, Statistics statistics,
+                                  double[][][][] allStats, Run run) {
+        for (int u = 0; u < result.getNumGraphTypes(); u++) {
+            if (!result.isGraphTypeUsed(u)) continue;
+
+            graphTypeUsed[u] = true;
+
+            if (!result.hasTruth()) continue;
+
+            int statIndex = -1;
+
+            for (Statistic _stat : statistics.getStatistics()) {
+                statIndex++;
+
+                if (_stat instanceof ParameterColumn) continue;
+
+                allStats[u][run.getAlgSimIndex()][statIndex][run.getRunIndex()]
+                        = result.getStatistic(u, _stat.getAbbreviation());
+            }
+        }
     }
 
     private void printGraph(String path, Graph graph, int i, AlgorithmWrapper algorithmWrapper) {
@@ -1353,6 +1482,10 @@ public class Comparison {
         public Parameters getAlgorithmSpecificParameters() {
             return this.parameters;
         }
+
+        public String getKey() {
+            return Comparison.getKey(getDescription(), getParameters(), parameters);
+        }
     }
 
     private class AlgorithmSimulationWrapper implements Algorithm {
@@ -1402,6 +1535,10 @@ public class Comparison {
         public AlgorithmWrapper getAlgorithmWrapper() {
             return algorithmWrapper;
         }
+
+        public String getKey() {
+            return simulationWrapper.getKey() + " | " + algorithmWrapper.getKey();
+        }
     }
 
     private class SimulationWrapper implements Simulation {
@@ -1409,6 +1546,7 @@ public class Comparison {
         private Simulation simulation;
         private List<Graph> graphs;
         private List<DataSet> dataSets;
+        private String[] fingerprints;
         private Parameters parameters;
 
         public SimulationWrapper(Simulation simulation, Parameters parameters) {
@@ -1425,6 +1563,7 @@ public class Comparison {
                 this.graphs.add(simulation.getTrueGraph(i));
                 this.dataSets.add(simulation.getDataSet(i));
             }
+            this.fingerprints = new String[dataSets.size()];
         }
 
         @Override
@@ -1487,6 +1626,24 @@ public class Comparison {
         public Parameters getSimulationSpecificParameters() {
             return parameters;
         }
+
+        public void setData(List<Graph> graphs, List<DataSet> dataSets) {
+            this.graphs = new ArrayList<>(graphs);
+            this.dataSets = new ArrayList<>(dataSets);
+            this.fingerprints = new String[dataSets.size()];
+        }
+
+        public synchronized String getFingerprint(int index) {
+            if (fingerprints[index] == null) {
+                fingerprints[index] = ResultsStore.fingerprint(dataSets.get(index));
+            }
+
+            return fingerprints[index];
+        }
+
+        public String getKey() {
+            return Comparison.getKey(getDescription(), getParameters(), parameters);
+        }
     }
 
     private class Run {
@@ -0,0 +1,387 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.algcomparison;
+
+import edu.cmu.tetrad.algcomparison.statistic.ParameterColumn;
+import edu.cmu.tetrad.algcomparison.statistic.Statistic;
+import edu.cmu.tetrad.algcomparison.statistic.Statistics;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.data.DiscreteVariable;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.GraphUtils;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps the results of a comparison on disk as they come in, so that a comparison that is stopped
+ * part way through can be picked up again where it left off.
+ * <p>
+ * Each finished run is appended to runs.txt in the store's directory as a record giving its key,
+ * the statistics calculated for it, and the graph the algorithm returned. A record is only used
+ * once its closing line has been written, so a run cut off in the middle is simply done again. If
+ * the same key is written more than once, the last record wins. Run keys should include the
+ * fingerprint of the data the run was on, so that runs on data that has since been simulated
+ * again are not used.
+ * <p>
+ * Simulated graphs and data sets are serialized under simulations/, one directory per simulation
+ * key, so that adding an algorithm to a comparison does not mean simulating everything again.
+ */
+public final class ResultsStore {
+
+    /**
+     * The directory of the store.
+     */
+    private final File dir;
+
+    /**
+     * The append-only file of run records.
+     */
+    private final File runsFile;
+
+    /**
+     * The runs read from or written to the store, by key.
+     */
+    private final Map<String, RunResult> results = new HashMap<>();
+
+    /**
+     * Opens the store in the given directory, creating the directory if need be and reading
+     * in whatever runs have already been recorded there.
+     *
+     * @param dir The directory of the store.
+     */
+    public ResultsStore(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Could not create " + dir.getAbsolutePath());
+        }
+
+        this.dir = dir;
+        this.runsFile = new File(dir, "runs.txt");
+
+        if (runsFile.exists()) {
+            try {
+                readRuns();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read " + runsFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    //=========================PUBLIC METHODS===========================//
+
+    /**
+     * @return The run recorded under the given key, or null if there is none.
+     */
+    public synchronized RunResult getResult(String key) {
+        return results.get(clean(key));
+    }
+
+    /**
+     * @return The number of runs recorded.
+     */
+    public synchronized int getNumResults() {
+        return results.size();
+    }
+
+    /**
+     * Appends a run to the store.
+     *
+     * @param key    A key identifying the simulation, algorithm and run index.
+     * @param result The result of the run.
+     */
+    public synchronized void putResult(String key, RunResult result) {
+        key = clean(key);
+
+        StringBuilder buf = new StringBuilder();
+        buf.append("run\t").append(key).append("\n");
+        buf.append("truth\t").append(result.hasTruth()).append("\n");
+
+        for (int u = 0; u < result.getNumGraphTypes(); u++) {
+            if (!result.isGraphTypeUsed(u)) continue;
+
+            buf.append("type\t").append(u).append("\n");
+
+            for (Map.Entry<String, Double> entry : result.statistics.get(u).entrySet()) {
+                buf.append("stat\t").append(u).append("\t").append(clean(entry.getKey()))
+                        .append("\t").append(entry.getValue()).append("\n");
+            }
+        }
+
+        if (result.getGraph() != null) {
+            for (String line : GraphUtils.graphToText(result.getGraph()).split("\\r?\\n")) {
+                buf.append("graph\t").append(line).append("\n");
+            }
+        }
+
+        buf.append("end\n");
+
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(runsFile, true), "UTF-8");
+            out.write(buf.toString());
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write to " + runsFile.getAbsolutePath(), e);
+        }
+
+        results.put(key, result);
+    }
+
+    /**
+     * Fills in the graphs and data sets of a simulation saved under the given key.
+     *
+     * @return True if the simulation was found, false if not, in which case the lists are left
+     * empty.
+     */
+    public synchronized boolean loadSimulation(String key, List<Graph> graphs, List<DataSet> dataSets) {
+        File simulationDir = getSimulationDir(key);
+        File keyFile = new File(simulationDir, "key.txt");
+        File dataFile = new File(simulationDir, "data.ser");
+
+        if (!keyFile.exists() || !dataFile.exists()) return false;
+
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(keyFile), "UTF-8"));
+            String savedKey = in.readLine();
+            in.close();
+
+            if (!clean(key).equals(savedKey)) return false;
+
+            ObjectInputStream objIn = new ObjectInputStream(new BufferedInputStream(new FileInputStream(dataFile)));
+            List<Graph> _graphs = (List<Graph>) objIn.readObject();
+            List<DataSet> _dataSets = (List<DataSet>) objIn.readObject();
+            objIn.close();
+
+            graphs.addAll(_graphs);
+            dataSets.addAll(_dataSets);
+            return true;
+        } catch (Exception e) {
+            // Treated as missing; the simulation is just done again.
+            e.printStackTrace();
+            graphs.clear();
+            dataSets.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Saves the graphs and data sets of a simulation under the given key.
+     */
+    public synchronized void saveSimulation(String key, List<Graph> graphs, List<DataSet> dataSets) {
+        File simulationDir = getSimulationDir(key);
+        simulationDir.mkdirs();
+
+        File keyFile = new File(simulationDir, "key.txt");
+        File dataFile = new File(simulationDir, "data.ser");
+        File tempFile = new File(simulationDir, "data.ser.tmp");
+
+        try {
+            ObjectOutputStream objOut = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            objOut.writeObject(new ArrayList<>(graphs));
+            objOut.writeObject(new ArrayList<>(dataSets));
+            objOut.close();
+
+            Writer out = new OutputStreamWriter(new FileOutputStream(keyFile), "UTF-8");
+            out.write(clean(key) + "\n");
+            out.close();
+
+            // Only a completely written file is ever seen under its real name.
+            dataFile.delete();
+
+            if (!tempFile.renameTo(dataFile)) {
+                throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            // The comparison can go on without it; it will just be simulated again next time.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return A hash of the variable names and values of the given data set, as a hex string, to
+     * put in run keys.
+     */
+    public static String fingerprint(DataSet dataSet) {
+        long hash = 17;
+        List<Node> variables = dataSet.getVariables();
+
+        for (Node variable : variables) {
+            hash = 31 * hash + variable.getName().hashCode();
+        }
+
+        for (int j = 0; j < variables.size(); j++) {
+            boolean discrete = variables.get(j) instanceof DiscreteVariable;
+
+            for (int i = 0; i < dataSet.getNumRows(); i++) {
+                long value = discrete ? dataSet.getInt(i, j)
+                        : Double.doubleToLongBits(dataSet.getDouble(i, j));
+                hash = 31 * hash + value;
+            }
+        }
+
+        hash = 31 * hash + dataSet.getNumRows();
+        return String.format("%016x", hash);
+    }
+
+    /**
+     * @return The directory of the store.
+     */
+    public File getDir() {
+        return dir;
+    }
+
+    //=========================PRIVATE METHODS===========================//
+
+    private void readRuns() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(runsFile), "UTF-8"));
+
+        String key = null;
+        RunResult result = null;
+        StringBuilder graphText = null;
+        String line;
+
+        while ((line = in.readLine()) != null) {
+            String[] tokens = line.split("\t", -1);
+
+            try {
+                if (tokens[0].equals("run")) {
+                    key = tokens[1];
+                    result = new RunResult(null, 4, false);
+                    graphText = null;
+                } else if (result == null) {
+                    continue;
+                } else if (tokens[0].equals("truth")) {
+                    result.truth = Boolean.parseBoolean(tokens[1]);
+                } else if (tokens[0].equals("type")) {
+                    result.setGraphTypeUsed(Integer.parseInt(tokens[1]));
+                } else if (tokens[0].equals("stat")) {
+                    result.setStatistic(Integer.parseInt(tokens[1]), tokens[2], Double.parseDouble(tokens[3]));
+                } else if (tokens[0].equals("graph")) {
+                    if (graphText == null) graphText = new StringBuilder();
+                    graphText.append(tokens[1]).append("\n");
+                } else if (tokens[0].equals("end")) {
+                    if (graphText != null) {
+                        result.graph = GraphUtils.readerToGraphTxt(graphText.toString());
+                    }
+
+                    results.put(key, result);
+                    result = null;
+                }
+            } catch (RuntimeException e) {
+                // A damaged record; skip to the next one.
+                result = null;
+            }
+        }
+
+        in.close();
+    }
+
+    private File getSimulationDir(String key) {
+        return new File(new File(dir, "simulations"), String.format("%08x", clean(key).hashCode()));
+    }
+
+    private static String clean(String s) {
+        return s.replaceAll("[\\t\\r\\n]", " ");
+    }
+
+    //=========================MEMBER CLASSES===========================//
+
+    /**
+     * The result of one run of an algorithm on one simulated data set: the graph the algorithm
+     * returned and the statistics calculated from it for each type of graph compared.
+     */
+    public static final class RunResult {
+        private Graph graph;
+        private boolean truth;
+        private final boolean[] graphTypesUsed;
+        private final List<Map<String, Double>> statistics = new ArrayList<>();
+
+        /**
+         * @param graph         The graph the algorithm returned.
+         * @param numGraphTypes The number of types of graph compared.
+         * @param truth         True if there was a true graph to calculate statistics against.
+         */
+        public RunResult(Graph graph, int numGraphTypes, boolean truth) {
+            this.graph = graph;
+            this.truth = truth;
+            this.graphTypesUsed = new boolean[numGraphTypes];
+
+            for (int u = 0; u < numGraphTypes; u++) {
+                statistics.add(new LinkedHashMap<String, Double>());
+            }
+        }
+
+        public Graph getGraph() {
+            return graph;
+        }
+
+        public boolean hasTruth() {
+            return truth;
+        }
+
+        public int getNumGraphTypes() {
+            return graphTypesUsed.length;
+        }
+
+        public boolean isGraphTypeUsed(int u) {
+            return graphTypesUsed[u];
+        }
+
+        public void setGraphTypeUsed(int u) {
+            graphTypesUsed[u] = true;
+        }
+
+        public void setStatistic(int u, String abbreviation, double value) {
+            setGraphTypeUsed(u);
+            statistics.get(u).put(abbreviation, value);
+        }
+
+        /**
+         * @return The value of the statistic with the given abbreviation for graph type u, or NaN
+         * if it was not recorded.
+         */
+        public double getStatistic(int u, String abbreviation) {
+            Double value = statistics.get(u).get(abbreviation);
+            return value == null ? Double.NaN : value;
+        }
+
+        /**
+         * @return True if every one of the given statistics was recorded for every graph type
+         * used, so that the run need not be done again.
+         */
+        public boolean hasStatistics(Statistics statistics) {
+            if (!truth) return true;
+
+            for (int u = 0; u < graphTypesUsed.length; u++) {
+                if (!graphTypesUsed[u]) continue;
+
+                for (Statistic statistic : statistics.getStatistics()) {
+                    if (statistic instanceof ParameterColumn) continue;
+                    if (!this.statistics.get(u).containsKey(statistic.getAbbreviation())) return false;
+                }
+            }
+
+            return graphTypesUsed.length > 0 && graphTypesUsed[0];
+        }
+    }
+}
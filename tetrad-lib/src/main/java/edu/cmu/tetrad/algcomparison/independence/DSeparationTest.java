@@ -29,7 +29,9 @@ public class DSeparationTest implements IndependenceWrapper {
     @Override
     public IndependenceTest getTest(DataSet dataSet, Parameters parameters) {
         if (dataSet == null) {
-            return new IndTestDSep(randomGraph.createGraph(parameters));
+            IndTestDSep test = new IndTestDSep(randomGraph.createGraph(parameters));
+            test.setUseOracle(parameters.getBoolean("useDSeparationOracle"));
+            return test;
         } else {
             throw new IllegalArgumentException("Expecting no data for a d-separation test.");
         }
@@ -47,6 +49,8 @@ public class DSeparationTest implements IndependenceWrapper {
 
     @Override
     public List<String> getParameters() {
-        return new ArrayList<>();
+        List<String> parameters = new ArrayList<>();
+        parameters.add("useDSeparationOracle");
+        return parameters;
     }
 }
@@ -26,7 +26,9 @@ public class DseparationScore implements ScoreWrapper {
     @Override
     public Score getScore(DataSet dataSet, Parameters parameters) {
         if (dataSet == null) {
-            return new GraphScore(randomGraph.createGraph(parameters));
+            GraphScore score = new GraphScore(randomGraph.createGraph(parameters));
+            score.setUseOracle(parameters.getBoolean("useDSeparationOracle"));
+            return score;
         } else {
             throw new IllegalArgumentException("Expecting no data for a d-separation test.");
         }
@@ -44,7 +46,9 @@ public class DseparationScore implements ScoreWrapper {
 
     @Override
     public List<String> getParameters() {
-        return new ArrayList<>();
+        List<String> parameters = new ArrayList<>();
+        parameters.add("useDSeparationOracle");
+        return parameters;
     }
 
 }
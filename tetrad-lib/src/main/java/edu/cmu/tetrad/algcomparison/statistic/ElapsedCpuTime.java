@@ -0,0 +1,32 @@
+package edu.cmu.tetrad.algcomparison.statistic;
+
+import edu.cmu.tetrad.graph.Graph;
+
+/**
+ * Records the CPU time used by the algorithm, in seconds, summed over all of the threads it
+ * ran in. Like ElapsedTime, this is a placeholder; the CPU time is measured by the comparison
+ * class and recorded if this statistic is used.
+ */
+public class ElapsedCpuTime implements Statistic {
+    static final long serialVersionUID = 23L;
+
+    @Override
+    public String getAbbreviation() {
+        return "CPU";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Elapsed CPU Time in Seconds";
+    }
+
+    @Override
+    public double getValue(Graph trueGraph, Graph estGraph) {
+        return Double.NaN; // This has to be handled separately.
+    }
+
+    @Override
+    public double getNormValue(double value) {
+        return 1 - Math.tanh(0.001 * value);
+    }
+}
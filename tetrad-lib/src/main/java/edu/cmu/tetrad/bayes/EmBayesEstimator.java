@@ -29,10 +29,10 @@ import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.graph.NodeType;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
+
+import java.util.*;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Estimates parameters of the given Bayes net from the given data using maximum
@@ -89,6 +89,28 @@ public final class EmBayesEstimator {
      */
     private double[][][] condProbs;
 
+    /**
+     * The number of patterns handled together, with one junction tree, in the
+     * expectation step.
+     */
+    private static final int PATTERN_BLOCK = 256;
+
+    /**
+     * The distinct rows of mixedData, with values indexed by node in the
+     * estimated IM, and the number of rows with each.
+     */
+    private int[][] patterns;
+    private double[] patternCounts;
+
+    /**
+     * The log likelihood of the data under the parameters used in each
+     * expectation step.
+     */
+    private final List<Double> logLikelihoods = new ArrayList<>();
+
+    private int maxIterations = 1000;
+    private double logLikelihoodTolerance = 1e-10;
+
 //    /**
 //     * In case the constructor whose argument list includes a Bayes IM is used
 //     * this member variable will be set to that and will not be null.
@@ -225,6 +247,7 @@ public final class EmBayesEstimator {
         //Find the bayes net which is parameterized using mixedData or set randomly when that's
         //not possible.
         estimateIM(bayesPm, mixedData);
+        findPatterns();
 
         //The following DEBUG section tests a case specified by P. Spirtes
         //DEBUG TAIL:   For use with embayes_l1x1x2x3V3.dat
@@ -295,334 +318,288 @@ public final class EmBayesEstimator {
     }
 
     /**
-     * This method takes an instantiated Bayes net (BayesIm) whose graph include
-     * all the variables (observed and latent) and computes estimated counts
-     * using the data in the DataSet mixedData. </p> The counts that are
-     * estimated correspond to cells in the conditional probability tables of
-     * the Bayes net.  The outermost loop (indexed by j) is over the set of
-     * variables.  If the variable has no parents, each case in the dataset is
-     * examined and the count for the observed value of the variables is
-     * increased by 1.0; if the value of the variable is missing the marginal
-     * probabilities its values given the values of the variables that are
-     * available for that case are used to increment the corresponding estimated
-     * counts. </p> If a variable has parents then there is a loop which steps
-     * through all possible sets of values of its parents.  This loop is indexed
-     * by the variable "row".  Each case in the dataset is examined.  It the
-     * variable and all its parents have values in the case the corresponding
-     * estimated counts are incremented by 1.0.  If the variable or any of its
-     * parents have missing values, the joint marginal is computed for the
-     * variable and the set of values of its parents corresponding to "row" and
-     * the corresponding estimated counts are incremented by the appropriate
-     * probability. </p> The estimated counts are stored in the double[][][]
-     * array estimatedCounts.  The count (possibly fractional) of the number of
-     * times each combination of parent values occurs is stored in the
-     * double[][] array estimatedCountsDenom.  These two arrays are used to
-     * compute the estimated conditional probabilities of the output Bayes net.
+     * Computes the expected counts for the cells of the conditional probability tables of the Bayes net, given the
+     * data and the current parameters in <code>inputBayesIm</code>, and from them the next estimate of the
+     * parameters, which becomes the estimated IM. </p> The rows of mixedData are grouped into distinct patterns of
+     * observed values when the estimator is constructed, and each pattern is handled once, weighted by the number of
+     * rows that have it. For a pattern with no missing values, the count for each family's observed values goes up
+     * by that weight. Otherwise the posterior over each family with a missing member is found by propagating the
+     * pattern's observed values through a junction tree for <code>inputBayesIm</code>, and spread over the cells of
+     * the family's table. </p> The patterns are split into blocks of PATTERN_BLOCK patterns that are handled in
+     * parallel, each with its own junction tree and count tables; the tables are added up in block order, so the
+     * result doesn't depend on the number of threads. The estimated counts are stored in estimatedCounts and the
+     * expected number of times each combination of parent values occurs in estimatedCountsDenom. The log likelihood
+     * of the data under <code>inputBayesIm</code> is added to the list of log likelihoods. </p> Rows of a table
+     * whose parent values have no expected occurrences keep the probabilities they have in
+     * <code>inputBayesIm</code>.
      */
-    private void expectation(BayesIm inputBayesIm) {
-        //System.out.println("Entered method expectation.");
-
-        int numCases = mixedData.getNumRows();
-        //StoredCellEstCounts estCounts = new StoredCellEstCounts(variables);
-
-        int numVariables = allVariables.size();
-        RowSummingExactUpdater rseu = new RowSummingExactUpdater(inputBayesIm);
-
-        for (int j = 0; j < numVariables; j++) {
-            DiscreteVariable var = (DiscreteVariable) allVariables.get(j);
-            String varName = var.getName();
-            Node varNode = graph.getNode(varName);
-            int varIndex = inputBayesIm.getNodeIndex(varNode);
-            int[] parentVarIndices = inputBayesIm.getParents(varIndex);
-            //System.out.println("graph = " + graph);
-
-            //for(int col = 0; col < ar.getNumSplits(); col++)
-            //    System.out.println("Category " + col + " = " + ar.getCategory(col));
-
-            //System.out.println("Updating estimated counts for node " + varName);
-            //This segment is for variables with no parents:
-            if (parentVarIndices.length == 0) {
-                //System.out.println("No parents");
-                for (int col = 0; col < var.getNumCategories(); col++) {
-                    estimatedCounts[j][0][col] = 0.0;
+    private void expectation(final BayesIm inputBayesIm) {
+        int numBlocks = (patterns.length + PATTERN_BLOCK - 1) / PATTERN_BLOCK;
+        final double[][][][] blockCounts = new double[numBlocks][][][];
+        final double[] blockLogLikelihoods = new double[numBlocks];
+
+        class ExpectationTask extends RecursiveAction {
+            private final int from;
+            private final int to;
+
+            private ExpectationTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    blockCounts[from] = emptyCounts(inputBayesIm);
+                    blockLogLikelihoods[from] = expectedCounts(inputBayesIm, from * PATTERN_BLOCK,
+                            Math.min(patterns.length, (from + 1) * PATTERN_BLOCK), blockCounts[from]);
+                } else {
+                    int mid = (to + from) / 2;
+                    invokeAll(new ExpectationTask(from, mid), new ExpectationTask(mid, to));
                 }
+            }
+        }
 
-                for (int i = 0; i < numCases; i++) {
-                    //System.out.println("Case " + i);
-                    //If this case has a value for ar
-                    if (mixedData.getInt(i, j) != -99) {
-                        estimatedCounts[j][0][mixedData.getInt(i, j)] += 1.0;
-                        //System.out.println("Adding 1.0 to " + varName +
-                        //        " row 0 category " + mixedData[j][i]);
-                    } else {
-                        //find marginal probability, given obs data in this case, p(v=0)
-                        Evidence evidenceThisCase = Evidence.tautology(inputBayesIm);
-                        boolean existsEvidence = false;
-
-                        //Define evidence for updating by using the values of the other vars.
-                        for (int k = 0; k < numVariables; k++) {
-                            if (k == j) {
-                                continue;
-                            }
-                            Node otherVar = allVariables.get(k);
-                            if (mixedData.getInt(i, k) == -99) {
-                                continue;
-                            }
-                            existsEvidence = true;
-                            String otherVarName = otherVar.getName();
-                            Node otherNode = graph.getNode(otherVarName);
-                            int otherIndex =
-                                    inputBayesIm.getNodeIndex(otherNode);
-
-                            evidenceThisCase.getProposition().setCategory(
-                                    otherIndex, mixedData.getInt(i, k));
-                        }
-
-                        if (!existsEvidence) {
-                            continue; //No other variable contained useful data
-                        }
-
-                        rseu.setEvidence(evidenceThisCase);
-
-                        for (int m = 0; m < var.getNumCategories(); m++) {
-                            estimatedCounts[j][0][m] +=
-                                    rseu.getMarginal(varIndex, m);
-                            //System.out.println("Adding " + p + " to " + varName +
-                            //        " row 0 category " + m);
-
-                            //find marginal probability, given obs data in this case, p(v=1)
-                            //estimatedCounts[j][0][1] += 0.5;
-                        }
+        if (numBlocks > 0) {
+            ForkJoinPoolInstance.getInstance().getPool().invoke(new ExpectationTask(0, numBlocks));
+        }
+
+        double logLikelihood = 0.0;
+
+        for (int i = 0; i < inputBayesIm.getNumNodes(); i++) {
+            for (int row = 0; row < inputBayesIm.getNumRows(i); row++) {
+                Arrays.fill(estimatedCounts[i][row], 0.0);
+            }
+        }
+
+        for (int b = 0; b < numBlocks; b++) {
+            logLikelihood += blockLogLikelihoods[b];
+
+            for (int i = 0; i < inputBayesIm.getNumNodes(); i++) {
+                for (int row = 0; row < inputBayesIm.getNumRows(i); row++) {
+                    for (int col = 0; col < inputBayesIm.getNumColumns(i); col++) {
+                        estimatedCounts[i][row][col] += blockCounts[b][i][row][col];
                     }
                 }
+            }
+        }
 
-                //Print estimated counts:
-                //System.out.println("Estimated counts:  ");
-
-                //Print counts for each value of this variable with no parents.
-                //for(int m = 0; m < ar.getNumSplits(); m++)
-                //    System.out.print("    " + m + " " + estimatedCounts[j][0][m]);
-                //System.out.println();
-            } else {    //For variables with parents:
-                int numRows = inputBayesIm.getNumRows(varIndex);
-                for (int row = 0; row < numRows; row++) {
-                    int[] parValues =
-                            inputBayesIm.getParentValues(varIndex, row);
-                    estimatedCountsDenom[varIndex][row] = 0.0;
-                    for (int col = 0; col < var.getNumCategories(); col++) {
-                        estimatedCounts[varIndex][row][col] = 0.0;
-                    }
+        logLikelihoods.add(logLikelihood);
 
-                    for (int i = 0; i < numCases; i++) {
-                        //for a case where the parent values = parValues increment the estCount
-
-                        boolean parentMatch = true;
-
-                        for (int p = 0; p < parentVarIndices.length; p++) {
-                            if (parValues[p] !=
-                                    mixedData.getInt(i, parentVarIndices[p]) &&
-                                    mixedData.getInt(i, parentVarIndices[p]) !=
-                                            -99) {
-                                parentMatch = false;
-                                break;
-                            }
-                        }
-
-                        if (!parentMatch) {
-                            continue;  //Not a matching case; go to next.
-                        }
-
-                        boolean parentMissing = false;
-                        for (int parentVarIndice : parentVarIndices) {
-                            if (mixedData.getInt(i, parentVarIndice) == -99) {
-                                parentMissing = true;
-                                break;
-                            }
-                        }
-
-
-                        if (mixedData.getInt(i, j) != -99 && !parentMissing) {
-                            estimatedCounts[j][row][mixedData.getInt(i, j)] +=
-                                    1.0;
-                            estimatedCountsDenom[j][row] += 1.0;
-                            continue;    //Next case
-                        }
-
-                        //for a case with missing data (either ar or one of its parents)
-                        //compute the joint marginal
-                        //distribution for ar & this combination of values of its parents
-                        //and update the estCounts accordingly
-
-                        //To compute marginals create the evidence
-                        boolean existsEvidence = false;
-
-                        Evidence evidenceThisCase = Evidence.tautology(inputBayesIm);
-
-                        // "evidenceVars" not used.
-//                        List<String> evidenceVars = new LinkedList<String>();
-//                        for (int k = 0; k < numVariables; k++) {
-//                            //if(k == j) continue;
-//                            Variable otherVar = allVariables.get(k);
-//                            if (mixedData.getInt(i, k) == -99) {
-//                                continue;
-//                            }
-//                            existsEvidence = true;
-//                            String otherVarName = otherVar.getNode();
-//                            Node otherNode = graph.getNode(otherVarName);
-//                            int otherIndex = inputBayesIm.getNodeIndex(
-//                                    otherNode);
-//                            evidenceThisCase.getProposition().setCategory(
-//                                    otherIndex, mixedData.getInt(i, k));
-//                            evidenceVars.add(otherVarName);
-//                        }
-
-                        if (!existsEvidence) {
-                            continue;
-                        }
-
-                        rseu.setEvidence(evidenceThisCase);
-
-                        estimatedCountsDenom[j][row] += rseu.getJointMarginal(
-                                parentVarIndices, parValues);
-
-                        int[] parPlusChildIndices =
-                                new int[parentVarIndices.length + 1];
-                        int[] parPlusChildValues =
-                                new int[parentVarIndices.length + 1];
-
-                        parPlusChildIndices[0] = varIndex;
-                        for (int pc = 1; pc < parPlusChildIndices.length; pc++) {
-                            parPlusChildIndices[pc] = parentVarIndices[pc - 1];
-                            parPlusChildValues[pc] = parValues[pc - 1];
-                        }
-
-                        for (int m = 0; m < var.getNumCategories(); m++) {
-
-                            parPlusChildValues[0] = m;
-
-                            /*
-                            if(varName.equals("X1") && i == 0 ) {
-                                System.out.println("Calling getJointMarginal with parvalues");
-                                for(int k = 0; k < parPlusChildIndices.length; k++) {
-                                    int pIndex = parPlusChildIndices[k];
-                                    Node pNode = inputBayesIm.getIndex(pIndex);
-                                    String pName = pNode.getNode();
-                                    System.out.println(pName + " " + parPlusChildValues[k]);
-                                }
-                            }
-                            */
-
-                            /*
-                            if(varName.equals("X1") && i == 0 ) {
-                                System.out.println("Evidence = " + evidenceThisCase);
-                                //int[] vars = {l1Index, x1Index};
-                                Node nodex1 = inputBayesIm.getIndex("X1");
-                                int x1Index = inputBayesIm.getNodeIndex(nodex1);
-                                Node nodel1 = inputBayesIm.getIndex("L1");
-                                int l1Index = inputBayesIm.getNodeIndex(nodel1);
-
-                                int[] vars = {l1Index, x1Index};
-                                int[] vals = {0, 0};
-                                double ptest = rseu.getJointMarginal(vars, vals);
-                                System.out.println("Joint marginal (X1=0, L1 = 0) = " + p);
-                            }
-                            */
-
-                            estimatedCounts[j][row][m] += rseu.getJointMarginal(
-                                    parPlusChildIndices, parPlusChildValues);
-
-                            //System.out.println("Case " + i + " parent values ");
-                            //for (int pp = 0; pp < parentVarIndices.length; pp++) {
-                            //    Variable par = (Variable) allVariables.get(parentVarIndices[pp]);
-                            //    System.out.print("    " + par.getNode() + " " + parValues[pp]);
-                            //}
-
-                            //System.out.println();
-                            //System.out.println("Adding " + p + " to " + varName +
-                            //        " row " + row + " category " + m);
-
-                        }
-                        //}
+        BayesIm outputBayesIm = new MlBayesIm(bayesPm);
+
+        for (int i = 0; i < inputBayesIm.getNumNodes(); i++) {
+            for (int row = 0; row < inputBayesIm.getNumRows(i); row++) {
+                double sum = 0.0;
+
+                for (int col = 0; col < inputBayesIm.getNumColumns(i); col++) {
+                    sum += estimatedCounts[i][row][col];
+                }
+
+                estimatedCountsDenom[i][row] = sum;
+
+                for (int col = 0; col < inputBayesIm.getNumColumns(i); col++) {
+                    if (sum > 0.0) {
+                        condProbs[i][row][col] = estimatedCounts[i][row][col] / sum;
+                    } else {
+                        condProbs[i][row][col] = inputBayesIm.getProbability(i, row, col);
                     }
 
-                    //Print estimated counts:
-                    //System.out.println("Estimated counts:  ");
-                    //System.out.println("    Parent values:  ");
-                    //for (int i = 0; i < parentVarIndices.length; i++) {
-                    //    Variable par = (Variable) allVariables.get(parentVarIndices[i]);
-                    //    System.out.print("    " + par.getNode() + " " + parValues[i] + "    ");
-                    //}
-                    //System.out.println();
+                    outputBayesIm.setProbability(i, row, col, condProbs[i][row][col]);
+                }
+            }
+        }
+
+        estimatedIm = outputBayesIm;
+    }
+
+    /**
+     * Adds the expected counts for patterns from..to-1 to <code>counts</code>.
+     *
+     * @return the log likelihood of the rows with those patterns.
+     */
+    private double expectedCounts(BayesIm bayesIm, int from, int to, double[][][] counts) {
+        int numNodes = bayesIm.getNumNodes();
+        JunctionTree tree = null;
+        double logLikelihood = 0.0;
+
+        boolean[][] all = new boolean[numNodes][];
+        boolean[][][] single = new boolean[numNodes][][];
+
+        for (int i = 0; i < numNodes; i++) {
+            int numCategories = bayesIm.getNumColumns(i);
+            all[i] = new boolean[numCategories];
+            Arrays.fill(all[i], true);
+            single[i] = new boolean[numCategories][numCategories];
+
+            for (int k = 0; k < numCategories; k++) {
+                single[i][k][k] = true;
+            }
+        }
 
-                    //for(int m = 0; m < ar.getNumSplits(); m++)
-                    //    System.out.print("    " + m + " " + estimatedCounts[j][row][m]);
-                    //System.out.println();
+        for (int p = from; p < to; p++) {
+            int[] pattern = patterns[p];
+            double weight = patternCounts[p];
+            boolean complete = true;
 
+            for (int value : pattern) {
+                if (value == DiscreteVariable.MISSING_VALUE) {
+                    complete = false;
+                    break;
                 }
+            }
 
+            if (complete) {
+                for (int i = 0; i < numNodes; i++) {
+                    int row = rowIndex(bayesIm, i, pattern);
+                    counts[i][row][pattern[i]] += weight;
+                    logLikelihood += weight * Math.log(bayesIm.getProbability(i, row, pattern[i]));
+                }
 
-            }        //else
-        }      // j < numVariables
+                continue;
+            }
 
-        BayesIm outputBayesIm = new MlBayesIm(bayesPm);
+            if (tree == null) {
+                tree = new JunctionTree(bayesIm);
+            }
 
-        for (int j = 0; j < nodes.length; j++) {
+            for (int i = 0; i < numNodes; i++) {
+                int value = pattern[i];
+                tree.setEvidence(i, value == DiscreteVariable.MISSING_VALUE ? all[i] : single[i][value], false);
+            }
+
+            double logP = tree.logProbabilityOfEvidence(0);
+            logLikelihood += weight * logP;
+
+            if (Double.isNaN(logP) || Double.isInfinite(logP)) {
+                continue;
+            }
 
-            DiscreteVariable var = (DiscreteVariable) allVariables.get(j);
-            String varName = var.getName();
-            Node varNode = graph.getNode(varName);
-            int varIndex = inputBayesIm.getNodeIndex(varNode);
-//            int[] parentVarIndices = inputBayesIm.getParents(varIndex);
+            for (int i = 0; i < numNodes; i++) {
+                int[] parents = bayesIm.getParents(i);
+                boolean familyObserved = pattern[i] != DiscreteVariable.MISSING_VALUE;
 
-            int numRows = inputBayesIm.getNumRows(j);
-            //System.out.println("Conditional probabilities for variable " + varName);
+                for (int parent : parents) {
+                    if (pattern[parent] == DiscreteVariable.MISSING_VALUE) {
+                        familyObserved = false;
+                        break;
+                    }
+                }
+
+                if (familyObserved) {
+                    counts[i][rowIndex(bayesIm, i, pattern)][pattern[i]] += weight;
+                    continue;
+                }
 
-            int numCols = inputBayesIm.getNumColumns(j);
-            if (numRows == 1) {
+                // Parents first, so the table is laid out by row of the conditional probability table.
+                int[] family = Arrays.copyOf(parents, parents.length + 1);
+                family[parents.length] = i;
+                double[] joint = tree.jointMarginal(family);
                 double sum = 0.0;
-                for (int m = 0; m < numCols; m++) {
-                    sum += estimatedCounts[j][0][m];
+
+                for (double v : joint) {
+                    sum += v;
                 }
 
-                for (int m = 0; m < numCols; m++) {
-                    condProbs[j][0][m] = estimatedCounts[j][0][m] / sum;
-                    //System.out.print("  " + condProbs[j][0][m]);
-                    outputBayesIm.setProbability(varIndex, 0, m,
-                            condProbs[j][0][m]);
+                int numColumns = bayesIm.getNumColumns(i);
+
+                for (int e = 0; e < joint.length; e++) {
+                    counts[i][e / numColumns][e % numColumns] += weight * joint[e] / sum;
                 }
-                //System.out.println();
-            } else {
+            }
+        }
 
-                for (int row = 0; row < numRows; row++) {
-//                    int[] parValues = inputBayesIm.getParentValues(varIndex,
-//                            row);
-                    //int numCols = inputBayesIm.getNumColumns(j);
-
-                    //for (int p = 0; p < parentVarIndices.length; p++) {
-                    //    Variable par = (Variable) allVariables.get(parentVarIndices[p]);
-                    //    System.out.print("    " + par.getNode() + " " + parValues[p]);
-                    //}
-
-                    //double sum = 0.0;
-                    //for(int m = 0; m < numCols; m++)
-                    //    sum += estimatedCounts[j][row][m];
-
-                    for (int m = 0; m < numCols; m++) {
-                        if (estimatedCountsDenom[j][row] != 0.0) {
-                            condProbs[j][row][m] = estimatedCounts[j][row][m] /
-                                    estimatedCountsDenom[j][row];
-                        } else {
-                            condProbs[j][row][m] = Double.NaN;
-                        }
-                        //System.out.print("  " + condProbs[j][row][m]);
-                        outputBayesIm.setProbability(varIndex, row, m,
-                                condProbs[j][row][m]);
-                    }
-                    //System.out.println();
+        return logLikelihood;
+    }
+
+    private static int rowIndex(BayesIm bayesIm, int node, int[] values) {
+        int[] parents = bayesIm.getParents(node);
+        int rowIndex = 0;
 
+        for (int k = 0; k < parents.length; k++) {
+            rowIndex *= bayesIm.getParentDim(node, k);
+            rowIndex += values[parents[k]];
+        }
+
+        return rowIndex;
+    }
+
+    private static double[][][] emptyCounts(BayesIm bayesIm) {
+        double[][][] counts = new double[bayesIm.getNumNodes()][][];
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new double[bayesIm.getNumRows(i)][bayesIm.getNumColumns(i)];
+        }
+
+        return counts;
+    }
+
+    /**
+     * Groups the rows of mixedData by their values, indexed by node in the estimated IM.
+     */
+    private void findPatterns() {
+        int numNodes = estimatedIm.getNumNodes();
+        int[] columns = new int[numNodes];
+
+        for (int i = 0; i < numNodes; i++) {
+            columns[i] = mixedData.getColumn(mixedData.getVariable(estimatedIm.getNode(i).getName()));
+        }
+
+        Map<Pattern, Integer> counts = new HashMap<>();
+
+        for (int row = 0; row < mixedData.getNumRows(); row++) {
+            int[] values = new int[numNodes];
+
+            for (int i = 0; i < numNodes; i++) {
+                values[i] = mixedData.getInt(row, columns[i]);
+            }
+
+            Pattern pattern = new Pattern(values);
+            Integer count = counts.get(pattern);
+            counts.put(pattern, count == null ? 1 : count + 1);
+        }
+
+        // Sorted, so that successive patterns tend to share evidence in the junction tree.
+        List<Pattern> sorted = new ArrayList<>(counts.keySet());
+        Collections.sort(sorted);
+
+        patterns = new int[sorted.size()][];
+        patternCounts = new double[sorted.size()];
+
+        for (int p = 0; p < sorted.size(); p++) {
+            patterns[p] = sorted.get(p).values;
+            patternCounts[p] = counts.get(sorted.get(p));
+        }
+    }
+
+    /**
+     * The values of a row of data, as a map key.
+     */
+    private static final class Pattern implements Comparable<Pattern> {
+        private final int[] values;
+        private final int hashCode;
+
+        Pattern(int[] values) {
+            this.values = values;
+            this.hashCode = Arrays.hashCode(values);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Pattern && Arrays.equals(values, ((Pattern) o).values);
+        }
+
+        public int compareTo(Pattern pattern) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != pattern.values[i]) {
+                    return values[i] < pattern.values[i] ? -1 : 1;
                 }
             }
 
+            return 0;
         }
     }
 
@@ -643,24 +620,89 @@ public final class EmBayesEstimator {
      * change is less than the threshhold, the process is considered to have
      * converged.  The distance between successive Bayes nets is the Euclidean
      * distance between vectors of sequences of their parameters.  See the
-     * BayesImDistanceFunction class for details.
+     * BayesImDistanceFunction class for details. The process also stops when
+     * the log likelihood goes up by no more than the log likelihood tolerance
+     * times its absolute value, or after the maximum number of iterations.
      */
     public BayesIm maximization(double threshhold) {
         double distance = Double.MAX_VALUE;
         BayesIm oldBayesIm = estimatedIm;
         BayesIm newBayesIm = null;
 
-        while (Double.isNaN(distance) || distance > threshhold) {
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
             expectation(oldBayesIm);
             newBayesIm = getEstimatedIm();
 
             distance = BayesImDistanceFunction.distance(newBayesIm, oldBayesIm);
 
             oldBayesIm = newBayesIm;
+
+            if (!Double.isNaN(distance) && distance <= threshhold) {
+                break;
+            }
+
+            int size = logLikelihoods.size();
+
+            if (size > 1) {
+                double change = logLikelihoods.get(size - 1) - logLikelihoods.get(size - 2);
+
+                if (Math.abs(change) <= logLikelihoodTolerance * Math.abs(logLikelihoods.get(size - 2))) {
+                    break;
+                }
+            }
         }
+
         return newBayesIm;
     }
 
+    /**
+     * @return the log likelihood of the data under the parameters used in each
+     * expectation step so far, in order.
+     */
+    public List<Double> getLogLikelihoods() {
+        return new ArrayList<>(logLikelihoods);
+    }
+
+    /**
+     * @return the log likelihood of the data under the parameters used in the
+     * last expectation step, or NaN if there hasn't been one.
+     */
+    public double getLogLikelihood() {
+        if (logLikelihoods.isEmpty()) return Double.NaN;
+        return logLikelihoods.get(logLikelihoods.size() - 1);
+    }
+
+    /**
+     * @return the number of distinct patterns of values in the data.
+     */
+    public int getNumPatterns() {
+        return patterns.length;
+    }
+
+    /**
+     * @param maxIterations The maximum number of iterations for maximization().
+     */
+    public void setMaxIterations(int maxIterations) {
+        if (maxIterations < 1) {
+            throw new IllegalArgumentException("Max iterations must be at least 1: " + maxIterations);
+        }
+
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * @param logLikelihoodTolerance maximization() stops when the log likelihood
+     *                               changes by no more than this times its
+     *                               absolute value; zero to turn this off.
+     */
+    public void setLogLikelihoodTolerance(double logLikelihoodTolerance) {
+        if (!(logLikelihoodTolerance >= 0)) {
+            throw new IllegalArgumentException("Tolerance must be nonnegative: " + logLikelihoodTolerance);
+        }
+
+        this.logLikelihoodTolerance = logLikelihoodTolerance;
+    }
+
     private void findBayesNetObserved() {
 
         Dag dagObs = new Dag(graph);
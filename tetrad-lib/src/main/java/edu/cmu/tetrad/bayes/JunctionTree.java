@@ -0,0 +1,718 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.bayes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A junction tree compiled from the conditional probability tables of a Bayes IM, for exact updating.
+ * <p>
+ * The moral graph of the DAG is triangulated by greedily eliminating the variable whose elimination clique has the
+ * smallest table, the maximal elimination cliques are joined by a maximum weight spanning tree on separator size, and
+ * each conditional probability table is multiplied into the smallest clique containing its family. Potentials are
+ * flat double[] tables with the first variable of a clique varying fastest.
+ * <p>
+ * Messages are passed Shafer-Shenoy style, on demand, and kept. A change of evidence or manipulation changes the
+ * potentials of the cliques it touches, and invalidates just the messages directed away from those cliques, so
+ * that the next query recalculates only those. Messages are normalized as they are calculated, and their log
+ * scales carried along, so that the probability of the evidence doesn't underflow.
+ */
+final class JunctionTree {
+
+    /**
+     * The largest clique table allowed.
+     */
+    private static final long MAX_TABLE_SIZE = 1 << 24;
+
+    private final BayesIm bayesIm;
+    private final int numNodes;
+    private final int[] dims;
+
+    /**
+     * The variables of each clique, in increasing order.
+     */
+    private final int[][] cliques;
+
+    /**
+     * The strides of the variables of each clique in its table, in clique order.
+     */
+    private final int[][] strides;
+
+    /**
+     * The neighbors of each clique in the tree.
+     */
+    private final int[][] neighbors;
+
+    /**
+     * For each clique and each of its neighbors, the index in the separator table of each entry of the clique table.
+     */
+    private final int[][][] separatorMaps;
+
+    /**
+     * For each clique and each of its neighbors, the index of the clique among the neighbor's neighbors.
+     */
+    private final int[][] reverse;
+
+    /**
+     * The clique containing each variable's family, into which its table is multiplied.
+     */
+    private final int[] familyCliques;
+
+    /**
+     * The smallest clique containing each variable, into which evidence on it is multiplied.
+     */
+    private final int[] homeCliques;
+
+    /**
+     * The variables whose families are in each clique, and those whose home is each clique.
+     */
+    private final int[][] families;
+    private final int[][] homes;
+
+    private final double[][] potentials;
+    private final double[][][] messages;
+    private final double[][] messageLogScales;
+    private final boolean[][] valid;
+
+    /**
+     * For each variable, which of its categories are allowed by the evidence, and whether it is manipulated.
+     */
+    private final boolean[][] allowed;
+    private final boolean[] manipulated;
+
+    /**
+     * Marginals calculated since the evidence last changed, or null.
+     */
+    private final double[][] marginals;
+
+    //==============================CONSTRUCTORS===========================//
+
+    JunctionTree(BayesIm bayesIm) {
+        this.bayesIm = bayesIm;
+        this.numNodes = bayesIm.getNumNodes();
+        this.dims = new int[numNodes];
+
+        for (int i = 0; i < numNodes; i++) {
+            dims[i] = bayesIm.getNumColumns(i);
+        }
+
+        this.cliques = triangulate(moralize());
+
+        int numCliques = cliques.length;
+        this.strides = new int[numCliques][];
+
+        for (int c = 0; c < numCliques; c++) {
+            strides[c] = new int[cliques[c].length];
+            long stride = 1;
+
+            for (int k = 0; k < cliques[c].length; k++) {
+                strides[c][k] = (int) stride;
+                stride *= dims[cliques[c][k]];
+            }
+
+            if (stride > MAX_TABLE_SIZE) {
+                throw new IllegalArgumentException("The junction tree for this Bayes IM would have a clique of "
+                        + cliques[c].length + " variables with a table of " + stride + " entries, which is too large "
+                        + "for exact updating.");
+            }
+        }
+
+        this.neighbors = spanningTree();
+        this.separatorMaps = new int[numCliques][][];
+        this.reverse = new int[numCliques][];
+
+        for (int c = 0; c < numCliques; c++) {
+            separatorMaps[c] = new int[neighbors[c].length][];
+            reverse[c] = new int[neighbors[c].length];
+
+            for (int k = 0; k < neighbors[c].length; k++) {
+                int d = neighbors[c][k];
+                separatorMaps[c][k] = indexMap(c, intersection(cliques[c], cliques[d]));
+
+                for (int l = 0; l < neighbors[d].length; l++) {
+                    if (neighbors[d][l] == c) reverse[c][k] = l;
+                }
+            }
+        }
+
+        this.familyCliques = new int[numNodes];
+        this.homeCliques = new int[numNodes];
+
+        for (int v = 0; v < numNodes; v++) {
+            int[] parents = bayesIm.getParents(v);
+            int[] family = Arrays.copyOf(parents, parents.length + 1);
+            family[parents.length] = v;
+            familyCliques[v] = smallestCliqueContaining(family);
+            homeCliques[v] = smallestCliqueContaining(new int[]{v});
+        }
+
+        this.families = invert(familyCliques, numCliques);
+        this.homes = invert(homeCliques, numCliques);
+
+        this.potentials = new double[numCliques][];
+        this.messages = new double[numCliques][][];
+        this.messageLogScales = new double[numCliques][];
+        this.valid = new boolean[numCliques][];
+
+        for (int c = 0; c < numCliques; c++) {
+            messages[c] = new double[neighbors[c].length][];
+            messageLogScales[c] = new double[neighbors[c].length];
+            valid[c] = new boolean[neighbors[c].length];
+        }
+
+        this.allowed = new boolean[numNodes][];
+        this.manipulated = new boolean[numNodes];
+
+        for (int v = 0; v < numNodes; v++) {
+            allowed[v] = new boolean[dims[v]];
+            Arrays.fill(allowed[v], true);
+        }
+
+        for (int c = 0; c < numCliques; c++) {
+            calculatePotential(c);
+        }
+
+        this.marginals = new double[numNodes][];
+    }
+
+    //============================PUBLIC METHODS==========================//
+
+    /**
+     * Sets the categories of the given variable allowed by the evidence, and whether it is manipulated. A manipulated
+     * variable's table is left out, so that it has no parents and is uniform over its allowed categories.
+     */
+    void setEvidence(int variable, boolean[] allowed, boolean manipulated) {
+        if (manipulated != this.manipulated[variable]) {
+            this.manipulated[variable] = manipulated;
+            changed(familyCliques[variable]);
+        }
+
+        if (!Arrays.equals(allowed, this.allowed[variable])) {
+            this.allowed[variable] = Arrays.copyOf(allowed, allowed.length);
+            changed(homeCliques[variable]);
+        }
+    }
+
+    /**
+     * @return the categories of the given variable currently allowed by the evidence.
+     */
+    boolean[] getAllowed(int variable) {
+        return Arrays.copyOf(allowed[variable], allowed[variable].length);
+    }
+
+    /**
+     * @return P(variable = category | evidence) for each category, or NaNs if the evidence has probability zero.
+     */
+    double[] getMarginals(int variable) {
+        if (marginals[variable] == null) {
+            int c = homeCliques[variable];
+            double[] joint = jointMarginal(c, new int[]{variable});
+            marginals[variable] = normalize(joint);
+        }
+
+        return marginals[variable];
+    }
+
+    /**
+     * @return the log of the probability of the evidence.
+     */
+    double logProbabilityOfEvidence(int clique) {
+        double[] belief = belief(clique);
+        double sum = 0.0;
+
+        for (double b : belief) {
+            sum += b;
+        }
+
+        return Math.log(sum) + incomingLogScale(clique);
+    }
+
+    /**
+     * @return P(vars = values, evidence) / P(evidence) for each combination of values of the given variables, which
+     * must all be in one clique, with the first variable varying slowest; unnormalized.
+     */
+    double[] jointMarginal(int[] vars) {
+        return jointMarginal(smallestCliqueContaining(vars), vars);
+    }
+
+    int getHomeClique(int variable) {
+        return homeCliques[variable];
+    }
+
+    int getFamilyClique(int variable) {
+        return familyCliques[variable];
+    }
+
+    int getNumCliques() {
+        return cliques.length;
+    }
+
+    int getMaxCliqueSize() {
+        int max = 0;
+
+        for (double[] potential : potentials) {
+            max = Math.max(max, potential.length);
+        }
+
+        return max;
+    }
+
+    //==============================PRIVATE METHODS=======================//
+
+    private boolean[][] moralize() {
+        boolean[][] adjacent = new boolean[numNodes][numNodes];
+
+        for (int v = 0; v < numNodes; v++) {
+            int[] parents = bayesIm.getParents(v);
+
+            for (int i = 0; i < parents.length; i++) {
+                adjacent[v][parents[i]] = adjacent[parents[i]][v] = true;
+
+                for (int j = i + 1; j < parents.length; j++) {
+                    adjacent[parents[i]][parents[j]] = adjacent[parents[j]][parents[i]] = true;
+                }
+            }
+        }
+
+        return adjacent;
+    }
+
+    /**
+     * Eliminates variables one at a time, each time the one whose elimination clique has the smallest table, ties
+     * going to the one needing the fewest fill-in edges, and returns the maximal elimination cliques.
+     */
+    private int[][] triangulate(boolean[][] adjacent) {
+        boolean[] eliminated = new boolean[numNodes];
+        List<int[]> cliques = new ArrayList<>();
+
+        for (int step = 0; step < numNodes; step++) {
+            int best = -1;
+            double bestWeight = Double.POSITIVE_INFINITY;
+            int bestFill = Integer.MAX_VALUE;
+
+            for (int v = 0; v < numNodes; v++) {
+                if (eliminated[v]) continue;
+
+                double weight = dims[v];
+
+                for (int w = 0; w < numNodes; w++) {
+                    if (!eliminated[w] && adjacent[v][w]) weight *= dims[w];
+                }
+
+                if (weight > bestWeight) continue;
+
+                int fill = fill(v, adjacent, eliminated);
+
+                if (weight < bestWeight || fill < bestFill) {
+                    best = v;
+                    bestWeight = weight;
+                    bestFill = fill;
+                }
+            }
+
+            List<Integer> clique = new ArrayList<>();
+
+            for (int w = 0; w < numNodes; w++) {
+                if (w == best || (!eliminated[w] && adjacent[best][w])) clique.add(w);
+            }
+
+            for (int w : clique) {
+                for (int u : clique) {
+                    if (w != u) adjacent[w][u] = true;
+                }
+            }
+
+            eliminated[best] = true;
+
+            int[] _clique = new int[clique.size()];
+            for (int k = 0; k < _clique.length; k++) _clique[k] = clique.get(k);
+
+            boolean contained = false;
+
+            for (int[] other : cliques) {
+                if (intersection(_clique, other).length == _clique.length) {
+                    contained = true;
+                    break;
+                }
+            }
+
+            if (!contained) {
+                cliques.add(_clique);
+            }
+        }
+
+        return cliques.toArray(new int[cliques.size()][]);
+    }
+
+    /**
+     * @return the number of edges that eliminating v would add.
+     */
+    private int fill(int v, boolean[][] adjacent, boolean[] eliminated) {
+        List<Integer> neighbors = new ArrayList<>();
+
+        for (int w = 0; w < numNodes; w++) {
+            if (!eliminated[w] && adjacent[v][w]) neighbors.add(w);
+        }
+
+        int fill = 0;
+
+        for (int i = 0; i < neighbors.size(); i++) {
+            for (int j = i + 1; j < neighbors.size(); j++) {
+                if (!adjacent[neighbors.get(i)][neighbors.get(j)]) fill++;
+            }
+        }
+
+        return fill;
+    }
+
+    /**
+     * Joins the cliques by a maximum weight spanning tree, the weight of an edge being the size of the separator.
+     * Cliques of disconnected parts of the graph are joined by empty separators.
+     */
+    private int[][] spanningTree() {
+        int n = cliques.length;
+        boolean[] inTree = new boolean[n];
+        int[] bestWeight = new int[n];
+        int[] bestNeighbor = new int[n];
+        Arrays.fill(bestWeight, -1);
+        List<List<Integer>> adjacencies = new ArrayList<>();
+
+        for (int c = 0; c < n; c++) {
+            adjacencies.add(new ArrayList<Integer>());
+        }
+
+        int current = 0;
+        inTree[0] = true;
+
+        for (int added = 1; added < n; added++) {
+            for (int c = 0; c < n; c++) {
+                if (inTree[c]) continue;
+                int weight = intersection(cliques[current], cliques[c]).length;
+
+                if (weight > bestWeight[c]) {
+                    bestWeight[c] = weight;
+                    bestNeighbor[c] = current;
+                }
+            }
+
+            int next = -1;
+
+            for (int c = 0; c < n; c++) {
+                if (!inTree[c] && (next == -1 || bestWeight[c] > bestWeight[next])) next = c;
+            }
+
+            inTree[next] = true;
+            adjacencies.get(next).add(bestNeighbor[next]);
+            adjacencies.get(bestNeighbor[next]).add(next);
+            current = next;
+        }
+
+        int[][] neighbors = new int[n][];
+
+        for (int c = 0; c < n; c++) {
+            neighbors[c] = new int[adjacencies.get(c).size()];
+            for (int k = 0; k < neighbors[c].length; k++) neighbors[c][k] = adjacencies.get(c).get(k);
+        }
+
+        return neighbors;
+    }
+
+    /**
+     * @return for each entry of the table of clique c, the index in the table over vars, a subset of the clique,
+     * with the first of vars varying fastest.
+     */
+    private int[] indexMap(int c, int[] vars) {
+        int[] clique = cliques[c];
+        int[] subStrides = new int[clique.length];
+        int stride = 1;
+
+        for (int var : vars) {
+            int k = Arrays.binarySearch(clique, var);
+            subStrides[k] = stride;
+            stride *= dims[var];
+        }
+
+        int size = size(c);
+        int[] map = new int[size];
+        int[] values = new int[clique.length];
+        int index = 0;
+
+        for (int e = 0; e < size; e++) {
+            map[e] = index;
+
+            for (int k = 0; k < clique.length; k++) {
+                if (++values[k] < dims[clique[k]]) {
+                    index += subStrides[k];
+                    break;
+                }
+
+                index -= (values[k] - 1) * subStrides[k];
+                values[k] = 0;
+            }
+        }
+
+        return map;
+    }
+
+    private int size(int c) {
+        int size = 1;
+        for (int v : cliques[c]) size *= dims[v];
+        return size;
+    }
+
+    private int smallestCliqueContaining(int[] vars) {
+        int[] sorted = Arrays.copyOf(vars, vars.length);
+        Arrays.sort(sorted);
+        int best = -1;
+
+        for (int c = 0; c < cliques.length; c++) {
+            if (intersection(sorted, cliques[c]).length == sorted.length
+                    && (best == -1 || size(c) < size(best))) {
+                best = c;
+            }
+        }
+
+        if (best == -1) {
+            throw new IllegalArgumentException("Variables not in one clique: " + Arrays.toString(vars));
+        }
+
+        return best;
+    }
+
+    private static int[][] invert(int[] cliqueOf, int numCliques) {
+        List<List<Integer>> members = new ArrayList<>();
+
+        for (int c = 0; c < numCliques; c++) {
+            members.add(new ArrayList<Integer>());
+        }
+
+        for (int v = 0; v < cliqueOf.length; v++) {
+            members.get(cliqueOf[v]).add(v);
+        }
+
+        int[][] inverse = new int[numCliques][];
+
+        for (int c = 0; c < numCliques; c++) {
+            inverse[c] = new int[members.get(c).size()];
+            for (int k = 0; k < inverse[c].length; k++) inverse[c][k] = members.get(c).get(k);
+        }
+
+        return inverse;
+    }
+
+    /**
+     * @return the elements of sorted array a that are in sorted array b.
+     */
+    private static int[] intersection(int[] a, int[] b) {
+        int[] common = new int[Math.min(a.length, b.length)];
+        int n = 0;
+
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                common[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(common, n);
+    }
+
+    /**
+     * Recalculates the potential of clique c as the product of the tables of the unmanipulated variables assigned to
+     * it and the evidence on the variables whose home it is.
+     */
+    private void calculatePotential(int c) {
+        double[] potential = new double[size(c)];
+        Arrays.fill(potential, 1.0);
+
+        for (int v : families[c]) {
+            if (manipulated[v]) continue;
+
+            int[] parents = bayesIm.getParents(v);
+            int[] family = Arrays.copyOf(parents, parents.length + 1);
+            family[parents.length] = v;
+
+            // Table index row * dims[v] + col, with the first parent varying slowest.
+            int[] reversed = new int[family.length];
+            for (int k = 0; k < family.length; k++) reversed[k] = family[family.length - 1 - k];
+            int[] map = indexMap(c, reversed);
+
+            int numRows = bayesIm.getNumRows(v);
+            double[] table = new double[numRows * dims[v]];
+
+            for (int row = 0; row < numRows; row++) {
+                for (int col = 0; col < dims[v]; col++) {
+                    table[row * dims[v] + col] = bayesIm.getProbability(v, row, col);
+                }
+            }
+
+            for (int e = 0; e < potential.length; e++) {
+                potential[e] *= table[map[e]];
+            }
+        }
+
+        for (int v : homes[c]) {
+            int k = Arrays.binarySearch(cliques[c], v);
+            int stride = strides[c][k];
+
+            for (int e = 0; e < potential.length; e++) {
+                if (!allowed[v][(e / stride) % dims[v]]) potential[e] = 0.0;
+            }
+        }
+
+        potentials[c] = potential;
+    }
+
+    /**
+     * Recalculates the potential of clique c and invalidates the messages directed away from it.
+     */
+    private void changed(int c) {
+        calculatePotential(c);
+        Arrays.fill(marginals, null);
+
+        for (int k = 0; k < neighbors[c].length; k++) {
+            invalidate(c, k);
+        }
+    }
+
+    private void invalidate(int c, int k) {
+        if (!valid[c][k]) return;
+        valid[c][k] = false;
+
+        int d = neighbors[c][k];
+
+        for (int l = 0; l < neighbors[d].length; l++) {
+            if (neighbors[d][l] != c) invalidate(d, l);
+        }
+    }
+
+    /**
+     * @return the message from clique c to its k'th neighbor, calculated if necessary.
+     */
+    private double[] message(int c, int k) {
+        if (!valid[c][k]) {
+            double[] product = potentials[c].clone();
+            double logScale = 0.0;
+
+            for (int l = 0; l < neighbors[c].length; l++) {
+                if (l == k) continue;
+
+                int d = neighbors[c][l];
+                int r = reverse[c][l];
+                double[] incoming = message(d, r);
+                int[] map = separatorMaps[c][l];
+
+                for (int e = 0; e < product.length; e++) {
+                    product[e] *= incoming[map[e]];
+                }
+
+                logScale += messageLogScales[d][r];
+            }
+
+            int[] map = separatorMaps[c][k];
+            int size = 1;
+            for (int v : intersection(cliques[c], cliques[neighbors[c][k]])) size *= dims[v];
+            double[] message = new double[size];
+
+            for (int e = 0; e < product.length; e++) {
+                message[map[e]] += product[e];
+            }
+
+            double sum = 0.0;
+            for (double m : message) sum += m;
+
+            if (sum > 0) {
+                for (int i = 0; i < message.length; i++) message[i] /= sum;
+            }
+
+            messages[c][k] = message;
+            messageLogScales[c][k] = logScale + Math.log(sum);
+            valid[c][k] = true;
+        }
+
+        return messages[c][k];
+    }
+
+    /**
+     * @return the potential of clique c times all of the messages into it, up to the incoming log scale.
+     */
+    private double[] belief(int c) {
+        double[] belief = potentials[c].clone();
+
+        for (int l = 0; l < neighbors[c].length; l++) {
+            double[] incoming = message(neighbors[c][l], reverse[c][l]);
+            int[] map = separatorMaps[c][l];
+
+            for (int e = 0; e < belief.length; e++) {
+                belief[e] *= incoming[map[e]];
+            }
+        }
+
+        return belief;
+    }
+
+    private double incomingLogScale(int c) {
+        double logScale = 0.0;
+
+        for (int l = 0; l < neighbors[c].length; l++) {
+            logScale += messageLogScales[neighbors[c][l]][reverse[c][l]];
+        }
+
+        return logScale;
+    }
+
+    private double[] jointMarginal(int c, int[] vars) {
+        int[] reversed = new int[vars.length];
+        for (int k = 0; k < vars.length; k++) reversed[k] = vars[vars.length - 1 - k];
+
+        int[] map = indexMap(c, reversed);
+        double[] belief = belief(c);
+        int size = 1;
+        for (int v : vars) size *= dims[v];
+        double[] joint = new double[size];
+
+        for (int e = 0; e < belief.length; e++) {
+            joint[map[e]] += belief[e];
+        }
+
+        return joint;
+    }
+
+    private static double[] normalize(double[] p) {
+        double sum = 0.0;
+        for (double v : p) sum += v;
+
+        double[] normalized = new double[p.length];
+
+        for (int i = 0; i < p.length; i++) {
+            normalized[i] = sum > 0 ? p[i] / sum : Double.NaN;
+        }
+
+        return normalized;
+    }
+}
@@ -0,0 +1,360 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.bayes;
+
+import edu.cmu.tetrad.graph.Dag;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.Node;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.List;
+
+/**
+ * Performs exact updating on a BayesIm by message passing in a junction tree compiled from its conditional
+ * probability tables. The cost of a query grows with the size of the largest clique of the triangulated moral graph
+ * rather than with the number of unobserved variables, so sparse networks of hundreds of variables can be updated
+ * in milliseconds. The tree is compiled once per updater; after that, a change of evidence recalculates only the
+ * messages that depend on the variables whose evidence changed.
+ * <p>
+ * A manipulated variable has its conditional probability table left out, so that it has no parents and is uniform
+ * over the categories allowed by the evidence.
+ */
+public final class JunctionTreeUpdater implements ManipulatingBayesUpdater {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The BayesIm which this updater modifies.
+     *
+     * @serial Cannot be null.
+     */
+    private BayesIm bayesIm;
+
+    /**
+     * Stores evidence for all variables.
+     *
+     * @serial Cannot be null.
+     */
+    private Evidence evidence;
+
+    /**
+     * The manipulated BayesIm, if this was calculated.
+     *
+     * @serial Can be null.
+     */
+    private BayesIm manipulatedBayesIm;
+
+    /**
+     * The BayesIm after update, if this was calculated.
+     *
+     * @serial Can be null.
+     */
+    private BayesIm updatedBayesIm;
+
+    /**
+     * The junction tree, compiled when first needed.
+     */
+    private transient JunctionTree junctionTree;
+
+    //==============================CONSTRUCTORS===========================//
+
+    /**
+     * Constructs a new updater for the given Bayes net.
+     */
+    public JunctionTreeUpdater(BayesIm bayesIm) {
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        this.bayesIm = bayesIm;
+        setEvidence(Evidence.tautology(bayesIm));
+    }
+
+    /**
+     * Constructs a new updater for the given Bayes net.
+     */
+    public JunctionTreeUpdater(BayesIm bayesIm, Evidence evidence) {
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        this.bayesIm = bayesIm;
+        setEvidence(evidence);
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static JunctionTreeUpdater serializableInstance() {
+        return new JunctionTreeUpdater(MlBayesIm.serializableInstance());
+    }
+
+    //============================PUBLIC METHODS==========================//
+
+    public BayesIm getBayesIm() {
+        return bayesIm;
+    }
+
+    public BayesIm getManipulatedBayesIm() {
+        if (manipulatedBayesIm == null) {
+            Dag manipulatedGraph = createManipulatedGraph(bayesIm.getBayesPm().getDag());
+            BayesPm manipulatedPm = new BayesPm(manipulatedGraph, bayesIm.getBayesPm());
+
+            // Switching this to MANUAL since the initial values don't matter.
+            manipulatedBayesIm = new MlBayesIm(manipulatedPm, bayesIm, MlBayesIm.MANUAL);
+        }
+
+        return manipulatedBayesIm;
+    }
+
+    public Graph getManipulatedGraph() {
+        return getManipulatedBayesIm().getDag();
+    }
+
+    /**
+     * The updated BayesIm, over the manipulated graph, in which each conditional probability is conditional on the
+     * evidence as well. This is a different object from the source BayesIm.
+     */
+    public BayesIm getUpdatedBayesIm() {
+        if (updatedBayesIm == null) {
+            updateAll();
+        }
+
+        return updatedBayesIm;
+    }
+
+    /**
+     * @return a defensive copy of the evidence.
+     */
+    public Evidence getEvidence() {
+        return new Evidence(this.evidence);
+    }
+
+    public final void setEvidence(Evidence evidence) {
+        if (evidence == null) {
+            throw new NullPointerException();
+        }
+
+        if (evidence.isIncompatibleWith(bayesIm)) {
+            throw new IllegalArgumentException("The variable list for the " +
+                    "given bayesIm must be compatible with the variable list " +
+                    "for this evidence.");
+        }
+
+        this.evidence = new Evidence(evidence);
+        this.manipulatedBayesIm = null;
+        this.updatedBayesIm = null;
+
+        if (junctionTree != null) {
+            enterEvidence(junctionTree);
+        }
+    }
+
+    public boolean isJointMarginalSupported() {
+        return true;
+    }
+
+    /**
+     * @return P&lpar;variables[i] &equals; values[i] &vert; evidence&rpar;, calculated as the ratio of the
+     * probabilities of the evidence with and without the extra assertion, or NaN if the evidence has probability zero.
+     */
+    public double getJointMarginal(int[] variables, int[] values) {
+        if (variables.length != values.length) {
+            throw new IllegalArgumentException("Values must match variables.");
+        }
+
+        if (variables.length == 0) {
+            return 1.0;
+        }
+
+        JunctionTree tree = junctionTree();
+        int clique = tree.getHomeClique(variables[0]);
+        double logP = tree.logProbabilityOfEvidence(clique);
+
+        if (Double.isInfinite(logP)) {
+            return Double.NaN;
+        }
+
+        boolean[][] saved = new boolean[variables.length][];
+
+        for (int i = 0; i < variables.length; i++) {
+            saved[i] = tree.getAllowed(variables[i]);
+            boolean[] allowed = new boolean[saved[i].length];
+            allowed[values[i]] = saved[i][values[i]];
+            tree.setEvidence(variables[i], allowed, evidence.isManipulated(variables[i]));
+        }
+
+        double logPJoint = tree.logProbabilityOfEvidence(clique);
+
+        for (int i = variables.length - 1; i >= 0; i--) {
+            tree.setEvidence(variables[i], saved[i], evidence.isManipulated(variables[i]));
+        }
+
+        return Math.exp(logPJoint - logP);
+    }
+
+    /**
+     * @return P&lpar;variable&equals;value &vert; evidence&rpar; where evidence is getEvidence(), or NaN if the
+     * evidence has probability zero.
+     */
+    public double getMarginal(int variable, int value) {
+        return junctionTree().getMarginals(variable)[value];
+    }
+
+    public double[] calculatePriorMarginals(int nodeIndex) {
+        Evidence evidence = getEvidence();
+        setEvidence(Evidence.tautology(evidence.getVariableSource()));
+
+        double[] marginals = new double[evidence.getNumCategories(nodeIndex)];
+
+        for (int i = 0; i < getBayesIm().getNumColumns(nodeIndex); i++) {
+            marginals[i] = getMarginal(nodeIndex, i);
+        }
+
+        setEvidence(evidence);
+        return marginals;
+    }
+
+    public double[] calculateUpdatedMarginals(int nodeIndex) {
+        double[] marginals = new double[evidence.getNumCategories(nodeIndex)];
+
+        for (int i = 0; i < getBayesIm().getNumColumns(nodeIndex); i++) {
+            marginals[i] = getMarginal(nodeIndex, i);
+        }
+
+        return marginals;
+    }
+
+    /**
+     * Prints out the most recent marginal.
+     */
+    public String toString() {
+        return "Junction tree updater, evidence = " + evidence;
+    }
+
+    //==============================PRIVATE METHODS=======================//
+
+    private JunctionTree junctionTree() {
+        if (junctionTree == null) {
+            JunctionTree tree = new JunctionTree(bayesIm);
+            enterEvidence(tree);
+            junctionTree = tree;
+        }
+
+        return junctionTree;
+    }
+
+    private void enterEvidence(JunctionTree tree) {
+        Proposition proposition = evidence.getProposition();
+
+        for (int i = 0; i < bayesIm.getNumNodes(); i++) {
+            boolean[] allowed = new boolean[bayesIm.getNumColumns(i)];
+
+            for (int j = 0; j < allowed.length; j++) {
+                allowed[j] = proposition.isAllowed(i, j);
+            }
+
+            tree.setEvidence(i, allowed, evidence.isManipulated(i));
+        }
+    }
+
+    private void updateAll() {
+        BayesIm manipulatedBayesIm = getManipulatedBayesIm();
+        BayesIm updatedBayesIm = new MlBayesIm(manipulatedBayesIm);
+        JunctionTree tree = junctionTree();
+
+        for (int node = 0; node < manipulatedBayesIm.getNumNodes(); node++) {
+            int[] parents = manipulatedBayesIm.getParents(node);
+            int[] family = new int[parents.length + 1];
+
+            for (int k = 0; k < parents.length; k++) {
+                family[k] = bayesIm.getNodeIndex(bayesIm.getNode(manipulatedBayesIm.getNode(parents[k]).getName()));
+            }
+
+            family[parents.length] = bayesIm.getNodeIndex(bayesIm.getNode(manipulatedBayesIm.getNode(node).getName()));
+
+            // Rows are combinations of parent values with the first parent varying slowest, as in the IM.
+            double[] joint = tree.jointMarginal(family);
+            int numCols = manipulatedBayesIm.getNumColumns(node);
+
+            for (int row = 0; row < manipulatedBayesIm.getNumRows(node); row++) {
+                double sum = 0.0;
+
+                for (int col = 0; col < numCols; col++) {
+                    sum += joint[row * numCols + col];
+                }
+
+                for (int col = 0; col < numCols; col++) {
+                    updatedBayesIm.setProbability(node, row, col,
+                            sum > 0 ? joint[row * numCols + col] / sum : Double.NaN);
+                }
+            }
+        }
+
+        this.updatedBayesIm = updatedBayesIm;
+    }
+
+    private Dag createManipulatedGraph(Graph graph) {
+        Dag updatedGraph = new Dag(graph);
+
+        // alters graph for manipulated evidenceItems
+        for (int i = 0; i < evidence.getNumNodes(); ++i) {
+            if (evidence.isManipulated(i)) {
+                Node node = updatedGraph.getNode(evidence.getNode(i).getName());
+                List<Node> parents = updatedGraph.getParents(node);
+
+                for (Node parent : parents) {
+                    updatedGraph.removeEdge(node, parent);
+                }
+            }
+        }
+
+        return updatedGraph;
+    }
+
+    /**
+     * Adds semantic checks to the default deserialization method. This method
+     * must have the standard signature for a readObject method, and the body of
+     * the method must begin with "s.defaultReadObject();". Other than that, any
+     * semantic checks can be specified and do not need to stay the same from
+     * version to version. A readObject method of this form may be added to any
+     * class, even if Tetrad sessions were previously saved out using a version
+     * of the class that didn't include it. (That's what the
+     * "s.defaultReadObject();" is for. See J. Bloch, Effective Java, for help.
+     *
+     * @throws java.io.IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream s)
+            throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+
+        if (bayesIm == null) {
+            throw new NullPointerException();
+        }
+
+        if (evidence == null) {
+            throw new NullPointerException();
+        }
+    }
+}
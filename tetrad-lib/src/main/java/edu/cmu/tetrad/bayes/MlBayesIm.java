@@ -24,7 +24,9 @@ package edu.cmu.tetrad.bayes;
 import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.graph.NodeType;
 import edu.cmu.tetrad.graph.TimeLagGraph;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
 import edu.cmu.tetrad.util.NumberFormatUtil;
 import edu.cmu.tetrad.util.RandomUtil;
 import org.apache.commons.math3.distribution.ChiSquaredDistribution;
@@ -33,6 +35,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
 
 import static java.lang.Math.abs;
 import static java.lang.Math.pow;
@@ -75,6 +78,11 @@ public final class MlBayesIm implements BayesIm {
     static final long serialVersionUID = 23L;
     private static final double ALLOWABLE_DIFFERENCE = 1.0e-3;
 
+    /**
+     * The number of rows simulated together from one random stream.
+     */
+    private static final int SAMPLE_BLOCK = 4096;
+
     /**
      * Inidicates that new rows in this BayesIm should be initialized as
      * unknowns, forcing them to be specified manually. This is the default.
@@ -1085,8 +1093,6 @@ public final class MlBayesIm implements BayesIm {
      * @return the simulated sample as a DataSet.
      */
     private DataSet simulateDataHelper(int sampleSize, boolean latentDataSaved, int[] tiers) {
-        int numMeasured = 0;
-        int[] map = new int[nodes.length];
         List<Node> variables = new LinkedList<>();
 
         for (int j = 0; j < nodes.length; j++) {
@@ -1105,15 +1111,14 @@ public final class MlBayesIm implements BayesIm {
                     new DiscreteVariable(nodes[j].getName(), categories);
             var.setNodeType(nodes[j].getNodeType());
             variables.add(var);
-            int index = ++numMeasured - 1;
-            map[index] = j;
         }
 
 
         DataSet dataSet = new BoxDataSet(new VerticalIntDataBox(sampleSize, variables.size()), variables);
-        constructSample(sampleSize, dataSet, map, tiers);
+        constructSample(sampleSize, dataSet, tiers);
 
-        if (!latentDataSaved) {
+        // If every variable is measured there is nothing to drop, so the sample isn't copied.
+        if (!latentDataSaved && dataSet.getNumColumns() != numMeasured(variables)) {
             dataSet = DataUtils.restrictToMeasured(dataSet);
         }
 
@@ -1133,8 +1138,6 @@ public final class MlBayesIm implements BayesIm {
 
         int sampleSize = dataSet.getNumRows();
 
-        int numVars = 0;
-        int[] map = new int[nodes.length];
         List<Node> variables = new LinkedList<>();
 
         for (int j = 0; j < nodes.length; j++) {
@@ -1153,8 +1156,6 @@ public final class MlBayesIm implements BayesIm {
                     new DiscreteVariable(nodes[j].getName(), categories);
             var.setNodeType(nodes[j].getNodeType());
             variables.add(var);
-            int index = ++numVars - 1;
-            map[index] = j;
         }
 
         for (int i = 0; i < variables.size(); i++) {
@@ -1163,7 +1164,7 @@ public final class MlBayesIm implements BayesIm {
             dataSet.changeVariable(node, _node);
         }
 
-        constructSample(sampleSize, dataSet, map, tiers);
+        constructSample(sampleSize, dataSet, tiers);
 
         if (latentDataSaved) {
             return dataSet;
@@ -1172,108 +1173,147 @@ public final class MlBayesIm implements BayesIm {
         }
     }
 
-    final long[] seed = new long[]{new Date().getTime()};
+    /**
+     * Fills in the sample, splitting the rows into blocks of SAMPLE_BLOCK rows that are simulated in parallel.
+     * Each block draws from its own random stream, derived from one seed taken from RandomUtil and the index of
+     * the block, so for a given seed the sample is the same whatever the number of threads. Values are written
+     * straight into the columns of a VerticalIntDataBox where the data set has one.
+     */
+    private void constructSample(final int sampleSize, DataSet dataSet, final int[] tiers) {
+        final int[][] strides = new int[nodes.length][];
+        final double[][] cumulative = new double[nodes.length][];
+        final int[] numColumns = new int[nodes.length];
+
+        // Row index offsets for the parent values, and cumulative probabilities for each row, so that a
+        // draw is a few multiplications and a binary search.
+        for (int t = 0; t < nodes.length; t++) {
+            int[] dims = parentDims[t];
+            strides[t] = new int[dims.length];
+            int stride = 1;
+
+            for (int k = dims.length - 1; k >= 0; k--) {
+                strides[t][k] = stride;
+                stride *= dims[k];
+            }
 
-    private void constructSample(int sampleSize, DataSet dataSet, int[] map, int[] tiers) {
+            numColumns[t] = getNumColumns(t);
+            cumulative[t] = new double[getNumRows(t) * numColumns[t]];
 
-//        //Do the simulation.
-//        class SimulationTask extends RecursiveTask<Boolean> {
-//            private int chunk;
-//            private int from;
-//            private int to;
-//            private int[] tiers;
-//            private DataSet dataSet;
-//            private int[] map;
-//
-//            public SimulationTask(int chunk, int from, int to, int[] tiers, DataSet dataSet, int[] map) {
-//                this.chunk = chunk;
-//                this.from = from;
-//                this.to = to;
-//                this.tiers = tiers;
-//                this.dataSet = dataSet;
-//                this.map = map;
-//            }
-//
-//            @Override
-//            protected Boolean compute() {
-//                if (to - from <= chunk) {
-//                    RandomGenerator randomGenerator = new Well1024a(++seed[0]);
-//
-//                    for (int row = from; row < to; row++) {
-//                        for (int t : tiers) {
-//                            int[] parentValues = new int[parents[t].length];
-//
-//                            for (int k = 0; k < parentValues.length; k++) {
-//                                parentValues[k] = dataSet.getInt(row, parents[t][k]);
-//                            }
-//
-//                            int rowIndex = getRowIndex(t, parentValues);
-//                            double sum = 0.0;
-//                            double r;
-//
-//                            r = randomGenerator.nextDouble();
-//
-//                            for (int k = 0; k < getNumColumns(t); k++) {
-//                                double probability = getProbability(t, rowIndex, k);
-//                                sum += probability;
-//
-//                                if (sum >= r) {
-//                                    dataSet.setInt(row, map[t], k);
-//                                    break;
-//                                }
-//                            }
-//                        }
-//                    }
-//
-//                    return true;
-//                } else {
-//                    int mid = (to + from) / 2;
-//                    SimulationTask left = new SimulationTask(chunk, from, mid, tiers, dataSet, map);
-//                    SimulationTask right = new SimulationTask(chunk, mid, to, tiers, dataSet, map);
-//
-//                    left.fork();
-//                    right.compute();
-//                    left.join();
-//
-//                    return true;
-//                }
-//            }
-//        }
-//
-//        int chunk = 25;
-//
-//        ForkJoinPool pool = ForkJoinPoolInstance.getInstance().getPool();
-//        SimulationTask task = new SimulationTask(chunk, 0, sampleSize, tiers, dataSet, map);
-//        pool.invoke(task);
+            for (int row = 0; row < getNumRows(t); row++) {
+                double sum = 0.0;
 
+                for (int k = 0; k < numColumns[t]; k++) {
+                    double probability = probs[t][row][k];
 
-        // Construct the sample.
-        for (int i = 0; i < sampleSize; i++) {
-            for (int t : tiers) {
-                int[] parentValues = new int[parents[t].length];
+                    if (Double.isNaN(probability)) {
+                        throw new IllegalStateException("Some probability " +
+                                "values in the BayesIm are not filled in; " +
+                                "cannot simulate data.");
+                    }
 
-                for (int k = 0; k < parentValues.length; k++) {
-                    parentValues[k] = dataSet.getInt(i, parents[t][k]);
+                    sum += probability;
+                    cumulative[t][row * numColumns[t] + k] = sum;
                 }
+            }
+        }
 
-                int rowIndex = getRowIndex(t, parentValues);
-                double sum = 0.0;
+        final int[][] columns;
+        boolean direct = dataSet instanceof BoxDataSet
+                && ((BoxDataSet) dataSet).getDataBox() instanceof VerticalIntDataBox;
 
-                double r = RandomUtil.getInstance().nextDouble();
+        if (direct) {
+            columns = ((VerticalIntDataBox) ((BoxDataSet) dataSet).getDataBox()).getVariableVectors();
+        } else {
+            columns = new int[nodes.length][sampleSize];
+        }
 
-                for (int k = 0; k < getNumColumns(t); k++) {
-                    double probability = getProbability(t, rowIndex, k);
-                    sum += probability;
+        final long seed = RandomUtil.getInstance().nextLong();
 
-                    if (sum >= r) {
-                        dataSet.setInt(i, map[t], k);
-                        break;
+        class SimulationTask extends RecursiveAction {
+            private final int from;
+            private final int to;
+
+            private SimulationTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    simulateBlock(from);
+                } else {
+                    int mid = (to + from) / 2;
+                    invokeAll(new SimulationTask(from, mid), new SimulationTask(mid, to));
+                }
+            }
+
+            private void simulateBlock(int block) {
+                long state = mix(seed + (block + 1) * 0x9E3779B97F4A7C15L);
+                int last = Math.min(sampleSize, (block + 1) * SAMPLE_BLOCK);
+
+                int first = block * SAMPLE_BLOCK;
+
+                // Column by column, so that reads and writes run along the column arrays.
+                for (int t : tiers) {
+                    int[] _parents = parents[t];
+                    int[] _strides = strides[t];
+                    double[] _cumulative = cumulative[t];
+                    int _numColumns = numColumns[t];
+                    int[] column = columns[t];
+
+                    for (int i = first; i < last; i++) {
+                        int rowIndex = 0;
+
+                        for (int k = 0; k < _parents.length; k++) {
+                            rowIndex += columns[_parents[k]][i] * _strides[k];
+                        }
+
+                        state += 0x9E3779B97F4A7C15L;
+                        double r = (mix(state) >>> 11) * 0x1.0p-53;
+
+                        int offset = rowIndex * _numColumns;
+                        int low = 0;
+                        int high = _numColumns - 1;
+
+                        while (low < high) {
+                            int k = (low + high) >>> 1;
+
+                            if (_cumulative[offset + k] > r) {
+                                high = k;
+                            } else {
+                                low = k + 1;
+                            }
+                        }
+
+                        column[i] = low;
                     }
                 }
             }
         }
 
-//        System.out.println(dataSet);
+        int numBlocks = (sampleSize + SAMPLE_BLOCK - 1) / SAMPLE_BLOCK;
+
+        if (numBlocks > 0) {
+            ForkJoinPoolInstance.getInstance().getPool().invoke(new SimulationTask(0, numBlocks));
+        }
+
+        if (!direct) {
+            for (int j = 0; j < nodes.length; j++) {
+                for (int i = 0; i < sampleSize; i++) {
+                    dataSet.setInt(i, j, columns[j][i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The SplitMix64 finalizer; scrambles the bits of a counter into a well-mixed 64-bit value.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 
     public boolean equals(Object o) {
@@ -1371,6 +1411,18 @@ public final class MlBayesIm implements BayesIm {
 
     //=============================PRIVATE METHODS=======================//
 
+    private static int numMeasured(List<Node> variables) {
+        int numMeasured = 0;
+
+        for (Node variable : variables) {
+            if (variable.getNodeType() == NodeType.MEASURED) {
+                numMeasured++;
+            }
+        }
+
+        return numMeasured;
+    }
+
     /**
      * This method initializes the probability tables for all of the nodes in
      * the Bayes net.
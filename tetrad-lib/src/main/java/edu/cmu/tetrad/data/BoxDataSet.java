@@ -365,6 +365,8 @@ public final class BoxDataSet implements DataSet, TetradSerializable {
 
         if (dataBox instanceof  MixedDataBox) {
             ((MixedDataBox) dataBox).addVariable(variable);
+        } else if (dataBox instanceof MappedDataBox) {
+            ((MappedDataBox) dataBox).addVariable(variable);
         } else {
             resize(dataBox.numRows(), variables.size());
             int col = dataBox.numCols() - 1;
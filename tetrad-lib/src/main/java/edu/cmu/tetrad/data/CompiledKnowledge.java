@@ -0,0 +1,538 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.data;
+
+import edu.cmu.tetrad.graph.Edge;
+import edu.cmu.tetrad.graph.Edges;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.Node;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable snapshot of some knowledge, compiled for a fixed list of
+ * variables so that asking whether an edge is forbidden or required costs a
+ * name lookup and a bit test, however many (wildcard) rules the knowledge has.
+ * For each variable, the variables it is forbidden or required to point to are
+ * kept in bitsets, and the tier of each variable is kept in an array; these can
+ * also be queried by variable index. Searches should compile their knowledge
+ * once when they start and use the result in their inner loops.
+ * <p>
+ * Rows of the bitsets are only allocated for variables that have a forbidden
+ * or required edge, and nothing is allocated for them if the knowledge is
+ * empty, so compiling empty knowledge for many variables is cheap.
+ * <p>
+ * Questions about variables not in the list, and questions the bitsets don't
+ * answer (iterators, tier contents, toString), go to a copy of the original
+ * knowledge. Methods that would change the knowledge throw
+ * UnsupportedOperationException.
+ */
+public final class CompiledKnowledge implements IKnowledge {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * A copy of the knowledge that was compiled.
+     *
+     * @serial Cannot be null.
+     */
+    private final IKnowledge knowledge;
+
+    /**
+     * The names of the variables, in index order.
+     *
+     * @serial Cannot be null.
+     */
+    private final List<String> names;
+
+    /**
+     * Map from variable names to indices.
+     *
+     * @serial Cannot be null.
+     */
+    private final Map<String, Integer> indices;
+
+    /**
+     * Bit j of forbidden[i] is set iff i --> j is forbidden; likewise for the
+     * others. A row is null if no bit in it is set.
+     *
+     * @serial Null if the knowledge is empty, or for the group bitsets, if it
+     * has no groups of that type.
+     */
+    private final long[][] forbidden;
+    private final long[][] required;
+    private final long[][] forbiddenByGroups;
+    private final long[][] requiredByGroups;
+
+    /**
+     * The tier of each variable, or -1 if it is not in a tier.
+     *
+     * @serial Null if the knowledge is empty.
+     */
+    private final int[] tiers;
+
+    /**
+     * Whether edges within each tier are forbidden.
+     *
+     * @serial Cannot be null.
+     */
+    private final boolean[] tierForbiddenWithin;
+
+    /**
+     * True if the knowledge was empty.
+     */
+    private final boolean empty;
+
+    //================================CONSTRUCTORS========================//
+
+    /**
+     * Compiles the given knowledge for the given variables, in order.
+     */
+    public CompiledKnowledge(IKnowledge knowledge, List<Node> variables) {
+        if (knowledge == null) throw new NullPointerException();
+
+        this.knowledge = knowledge.copy();
+        this.empty = knowledge.isEmpty();
+
+        int numVars = variables.size();
+        this.names = new ArrayList<>();
+        this.indices = new HashMap<>();
+
+        for (int i = 0; i < numVars; i++) {
+            String name = variables.get(i).getName();
+            names.add(name);
+            if (!indices.containsKey(name)) indices.put(name, i);
+        }
+
+        this.tierForbiddenWithin = new boolean[knowledge.getNumTiers()];
+
+        if (empty) {
+            this.forbidden = null;
+            this.required = null;
+            this.forbiddenByGroups = null;
+            this.requiredByGroups = null;
+            this.tiers = null;
+            return;
+        }
+
+        this.tiers = new int[numVars];
+        Arrays.fill(tiers, -1);
+
+        for (int t = 0; t < knowledge.getNumTiers(); t++) {
+            tierForbiddenWithin[t] = knowledge.isTierForbiddenWithin(t);
+
+            for (String name : knowledge.getTier(t)) {
+                Integer i = indices.get(name);
+                if (i != null && tiers[i] == -1) tiers[i] = t;
+            }
+        }
+
+        this.forbidden = new long[numVars][];
+        this.required = new long[numVars][];
+
+        if (knowledge instanceof Knowledge2) {
+
+            // Knowledge2 expands its rules, wildcards and tiers included, into these edges,
+            // which are exactly the pairs it reports as forbidden or required.
+            setAll(forbidden, knowledge.forbiddenEdgesIterator());
+            setAll(required, knowledge.requiredEdgesIterator());
+
+            long[][] forbiddenByGroups = null;
+            long[][] requiredByGroups = null;
+
+            // Group rules only apply to variables the knowledge has.
+            Set<String> known = new HashSet<>(knowledge.getVariables());
+
+            for (KnowledgeGroup group : knowledge.getKnowledgeGroups()) {
+                long[][] bits;
+
+                if (group.getType() == KnowledgeGroup.FORBIDDEN) {
+                    if (forbiddenByGroups == null) forbiddenByGroups = new long[numVars][];
+                    bits = forbiddenByGroups;
+                } else if (group.getType() == KnowledgeGroup.REQUIRED) {
+                    if (requiredByGroups == null) requiredByGroups = new long[numVars][];
+                    bits = requiredByGroups;
+                } else {
+                    continue;
+                }
+
+                for (int i : extent(group.getFromVariables(), known)) {
+                    for (int j : extent(group.getToVariables(), known)) {
+                        set(bits, i, j);
+                    }
+                }
+            }
+
+            this.forbiddenByGroups = forbiddenByGroups;
+            this.requiredByGroups = requiredByGroups;
+        } else {
+            this.forbiddenByGroups = new long[numVars][];
+            this.requiredByGroups = new long[numVars][];
+
+            for (int i = 0; i < numVars; i++) {
+                for (int j = 0; j < numVars; j++) {
+                    String x = names.get(i);
+                    String y = names.get(j);
+                    if (knowledge.isForbidden(x, y)) set(forbidden, i, j);
+                    if (knowledge.isRequired(x, y)) set(required, i, j);
+                    if (knowledge.isForbiddenByGroups(x, y)) set(forbiddenByGroups, i, j);
+                    if (knowledge.isRequiredByGroups(x, y)) set(requiredByGroups, i, j);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the given knowledge compiled for the given variables, or the
+     * knowledge itself if it has already been compiled for them.
+     */
+    public static CompiledKnowledge compile(IKnowledge knowledge, List<Node> variables) {
+        if (knowledge instanceof CompiledKnowledge) {
+            CompiledKnowledge compiled = (CompiledKnowledge) knowledge;
+
+            if (compiled.names.size() == variables.size()) {
+                boolean same = true;
+
+                for (int i = 0; i < variables.size(); i++) {
+                    if (!compiled.names.get(i).equals(variables.get(i).getName())) {
+                        same = false;
+                        break;
+                    }
+                }
+
+                if (same) return compiled;
+            }
+        }
+
+        return new CompiledKnowledge(knowledge, variables);
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static CompiledKnowledge serializableInstance() {
+        return new CompiledKnowledge(new Knowledge2(), new ArrayList<Node>());
+    }
+
+    //===============================PUBLIC METHODS=======================//
+
+    /**
+     * @return the index of the variable with the given name, or -1 if it
+     * isn't one of the compiled variables.
+     */
+    public int indexOf(String name) {
+        Integer i = indices.get(name);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * @return true iff the edge from --> to is forbidden, by index.
+     */
+    public boolean isForbidden(int from, int to) {
+        return get(forbidden, from, to);
+    }
+
+    /**
+     * @return true iff the edge from --> to is required, by index.
+     */
+    public boolean isRequired(int from, int to) {
+        return get(required, from, to);
+    }
+
+    /**
+     * @return the tier of the variable at the given index, or -1 if it is not
+     * in a tier.
+     */
+    public int tierOf(int index) {
+        if (tiers == null) return -1;
+        return tiers[index];
+    }
+
+    /**
+     * @return true iff the edge from --> to is forbidden.
+     */
+    public boolean isForbidden(Node from, Node to) {
+        return isForbidden(from.getName(), to.getName());
+    }
+
+    /**
+     * @return true iff the edge from --> to is required.
+     */
+    public boolean isRequired(Node from, Node to) {
+        return isRequired(from.getName(), to.getName());
+    }
+
+    public boolean isForbidden(String var1, String var2) {
+        if (empty) return false;
+        int i = indexOf(var1), j = indexOf(var2);
+        if (i == -1 || j == -1) return knowledge.isForbidden(var1, var2);
+        return get(forbidden, i, j);
+    }
+
+    public boolean isRequired(String var1, String var2) {
+        if (empty) return false;
+        int i = indexOf(var1), j = indexOf(var2);
+        if (i == -1 || j == -1) return knowledge.isRequired(var1, var2);
+        return get(required, i, j);
+    }
+
+    public boolean isForbiddenByGroups(String var1, String var2) {
+        int i = indexOf(var1), j = indexOf(var2);
+        if (i == -1 || j == -1) return knowledge.isForbiddenByGroups(var1, var2);
+        return get(forbiddenByGroups, i, j);
+    }
+
+    public boolean isRequiredByGroups(String var1, String var2) {
+        int i = indexOf(var1), j = indexOf(var2);
+        if (i == -1 || j == -1) return knowledge.isRequiredByGroups(var1, var2);
+        return get(requiredByGroups, i, j);
+    }
+
+    public boolean isForbiddenByTiers(String var1, String var2) {
+        int i = indexOf(var1), j = indexOf(var2);
+        if (i == -1 || j == -1) return knowledge.isForbiddenByTiers(var1, var2);
+        if (tiers == null) return false;
+        int ti = tiers[i], tj = tiers[j];
+        if (ti == -1 || tj == -1) return false;
+        return ti > tj || (ti == tj && tierForbiddenWithin[ti]);
+    }
+
+    public boolean noEdgeRequired(String x, String y) {
+        return !(isRequired(x, y) || isRequired(y, x));
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public boolean isTierForbiddenWithin(int tier) {
+        return tier >= 0 && tier < tierForbiddenWithin.length && tierForbiddenWithin[tier];
+    }
+
+    public int getMaxTierForbiddenWithin() {
+        for (int tier = tierForbiddenWithin.length - 1; tier >= 0; tier--) {
+            if (tierForbiddenWithin[tier]) return tier;
+        }
+
+        return -1;
+    }
+
+    public int getNumTiers() {
+        return tierForbiddenWithin.length;
+    }
+
+    public int isInWhichTier(Node node) {
+        int i = indexOf(node.getName());
+        if (i == -1) return knowledge.isInWhichTier(node);
+        return tierOf(i);
+    }
+
+    public boolean isViolatedBy(Graph graph) {
+        for (Edge edge : graph.getEdges()) {
+            if (!edge.isDirected()) {
+                continue;
+            }
+
+            Node from = Edges.getDirectedEdgeTail(edge);
+            Node to = Edges.getDirectedEdgeHead(edge);
+
+            if (isForbidden(from.getName(), to.getName())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public Iterator<KnowledgeEdge> explicitlyForbiddenEdgesIterator() {
+        return knowledge.explicitlyForbiddenEdgesIterator();
+    }
+
+    public Iterator<KnowledgeEdge> explicitlyRequiredEdgesIterator() {
+        return knowledge.explicitlyRequiredEdgesIterator();
+    }
+
+    public Iterator<KnowledgeEdge> forbiddenEdgesIterator() {
+        return knowledge.forbiddenEdgesIterator();
+    }
+
+    public Iterator<KnowledgeEdge> requiredEdgesIterator() {
+        return knowledge.requiredEdgesIterator();
+    }
+
+    public List<KnowledgeGroup> getKnowledgeGroups() {
+        return knowledge.getKnowledgeGroups();
+    }
+
+    public List<String> getVariables() {
+        return knowledge.getVariables();
+    }
+
+    public List<String> getVariablesNotInTiers() {
+        return knowledge.getVariablesNotInTiers();
+    }
+
+    public List<String> getTier(int tier) {
+        if (tier >= getNumTiers()) return new ArrayList<>();
+        return knowledge.getTier(tier);
+    }
+
+    public boolean isDefaultToKnowledgeLayout() {
+        return knowledge.isDefaultToKnowledgeLayout();
+    }
+
+    /**
+     * The snapshot is immutable, so it is its own copy.
+     */
+    public IKnowledge copy() {
+        return this;
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof CompiledKnowledge)) return false;
+        CompiledKnowledge that = (CompiledKnowledge) o;
+        return names.equals(that.names) && knowledge.equals(that.knowledge);
+    }
+
+    public int hashCode() {
+        return 17 * names.hashCode() + knowledge.hashCode();
+    }
+
+    public String toString() {
+        return knowledge.toString();
+    }
+
+    public void addToTier(int tier, String var) {
+        throw immutable();
+    }
+
+    public void addToTiersByVarNames(List<String> varNames) {
+        throw immutable();
+    }
+
+    public void addKnowledgeGroup(KnowledgeGroup group) {
+        throw immutable();
+    }
+
+    public void addVariable(String varName) {
+        throw immutable();
+    }
+
+    public void clear() {
+        throw immutable();
+    }
+
+    public void removeFromTiers(String var) {
+        throw immutable();
+    }
+
+    public void removeKnowledgeGroup(int index) {
+        throw immutable();
+    }
+
+    public void removeVariable(String varName) {
+        throw immutable();
+    }
+
+    public void setForbidden(String var1, String var2) {
+        throw immutable();
+    }
+
+    public void removeForbidden(String spec1, String spec2) {
+        throw immutable();
+    }
+
+    public void setRequired(String var1, String var2) {
+        throw immutable();
+    }
+
+    public void removeRequired(String var1, String var2) {
+        throw immutable();
+    }
+
+    public void setKnowledgeGroup(int index, KnowledgeGroup group) {
+        throw immutable();
+    }
+
+    public void setTier(int tier, List<String> vars) {
+        throw immutable();
+    }
+
+    public void setTierForbiddenWithin(int tier, boolean forbidden) {
+        throw immutable();
+    }
+
+    public void setDefaultToKnowledgeLayout(boolean defaultToKnowledgeLayout) {
+        throw immutable();
+    }
+
+    //=====================================PRIVATE METHODS============================//
+
+    private static UnsupportedOperationException immutable() {
+        return new UnsupportedOperationException("Compiled knowledge can't be changed; " +
+                "change the original and compile it again.");
+    }
+
+    private static boolean get(long[][] bits, int i, int j) {
+        if (bits == null || bits[i] == null) return false;
+        return (bits[i][j >> 6] & (1L << j)) != 0;
+    }
+
+    private void set(long[][] bits, int i, int j) {
+        if (bits[i] == null) bits[i] = new long[(names.size() + 63) / 64];
+        bits[i][j >> 6] |= 1L << j;
+    }
+
+    private void setAll(long[][] bits, Iterator<KnowledgeEdge> edges) {
+        while (edges.hasNext()) {
+            KnowledgeEdge edge = edges.next();
+            Integer i = indices.get(edge.getFrom());
+            Integer j = indices.get(edge.getTo());
+            if (i != null && j != null) set(bits, i, j);
+        }
+    }
+
+    /**
+     * The indices of the given known variables matched by the given specs, as Knowledge2 matches
+     * the specs of knowledge groups: each comma-separated token is a regular expression in which
+     * '*' stands for '.*', so that '.' matches any character.
+     */
+    private Set<Integer> extent(Set<String> specs, Set<String> known) {
+        Set<Integer> extent = new HashSet<>();
+
+        for (String spec : specs) {
+            for (String token : spec.split(",")) {
+                if (token.trim().isEmpty()) continue;
+                Pattern pattern = Pattern.compile(token.replace("*", ".*"));
+
+                for (int i = 0; i < names.size(); i++) {
+                    String name = names.get(i);
+                    if (known.contains(name) && pattern.matcher(name).matches()) extent.add(i);
+                }
+            }
+        }
+
+        return extent;
+    }
+}
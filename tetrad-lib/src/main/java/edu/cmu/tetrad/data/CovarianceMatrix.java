@@ -114,16 +114,25 @@ public class CovarianceMatrix implements ICovarianceMatrix {
 
         if (dataSet instanceof BoxDataSet) {
 
-            DataBox box = ((BoxDataSet) dataSet).getDataBox().copy();
+            DataBox box = ((BoxDataSet) dataSet).getDataBox();
 
-            if (box instanceof VerticalDoubleDataBox) {
-                if (!dataSet.getVariables().equals(variables)) throw new IllegalArgumentException();
+            if (box instanceof MappedDataBox) {
 
-                vectors = ((VerticalDoubleDataBox) box).getVariableVectors();
+                // The columns are read in bulk into new arrays, so there's no need to copy the box.
+                vectors = ((MappedDataBox) box).getDoubleColumns();
+                DataUtils.demean(vectors, DataUtils.means(vectors));
+            } else {
+                box = box.copy();
 
-//                final TetradMatrix doubleData = dataSet.getDoubleData();
+                if (box instanceof VerticalDoubleDataBox) {
+                    if (!dataSet.getVariables().equals(variables)) throw new IllegalArgumentException();
 
-//                DataUtils.remean(doubleData, means);
+                    vectors = ((VerticalDoubleDataBox) box).getVariableVectors();
+
+//                    final TetradMatrix doubleData = dataSet.getDoubleData();
+
+//                    DataUtils.remean(doubleData, means);
+                }
             }
 
         }
@@ -31,6 +31,9 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.RecursiveTask;
 
 /**
@@ -101,6 +104,16 @@ public class CovarianceMatrixOnTheFly implements ICovarianceMatrix {
 
     private double[] variances;
 
+    /**
+     * True for columns with no missing values, whose dot products can skip the NaN checks.
+     */
+    private boolean[] complete;
+
+    /**
+     * Cache of computed covariances, or null if off-diagonal values are computed on every call.
+     */
+    private transient TileCache cache = null;
+
 
     //=============================CONSTRUCTORS=========================//
 
@@ -171,6 +184,19 @@ public class CovarianceMatrixOnTheFly implements ICovarianceMatrix {
                     System.out.println("Calculating means");
                 }
 
+                TetradVector means = DataUtils.means(vectors);
+                DataUtils.demean(vectors, means);
+            } else if (box instanceof MappedDataBox) {
+                if (verbose) {
+                    System.out.println("Getting vectors from MappedDataBox");
+                }
+
+                vectors = ((MappedDataBox) box).getDoubleColumns();
+
+                if (verbose) {
+                    System.out.println("Calculating means");
+                }
+
                 TetradVector means = DataUtils.means(vectors);
                 DataUtils.demean(vectors, means);
             }
@@ -215,6 +241,7 @@ public class CovarianceMatrixOnTheFly implements ICovarianceMatrix {
         }
 
         this.variances = new double[variables.size()];
+        this.complete = new boolean[variables.size()];
 
         class VarianceTask extends RecursiveTask<Boolean> {
             private int chunk;
@@ -251,6 +278,7 @@ public class CovarianceMatrixOnTheFly implements ICovarianceMatrix {
                         v /= (count - 1);
 
                         variances[i] = v;
+                        complete[i] = count == sampleSize;
 
                         if (v == 0) {
                             System.out.println("Zero variance! " + variables.get(i));
@@ -430,10 +458,71 @@ public class CovarianceMatrixOnTheFly implements ICovarianceMatrix {
             return variances[i];
         }
 
-        double d = 0.0D;
+        TileCache cache = this.cache;
+
+        if (cache == null) {
+            return covariance(i, j);
+        }
 
+        long[] tile = cache.getTile(i, j);
+        int offset = cache.getOffset(i, j);
+        long bits = tile[offset];
+
+        if (bits == TileCache.EMPTY) {
+            double v = covariance(i, j);
+            tile[offset] = Double.doubleToLongBits(v);
+            return v;
+        }
+
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Sets the amount of memory to be used to cache computed covariances, so that entries
+     * requested repeatedly (as by FGS) are only calculated once. The matrix is cached in
+     * square tiles, allocated as entries in them are requested; once the budget is used up,
+     * tiles that haven't been used recently are dropped. Zero turns caching off, which is the
+     * default.
+     *
+     * @param maxCacheBytes The maximum number of bytes of covariances to hold in memory.
+     */
+    public void setMaxCacheBytes(long maxCacheBytes) {
+        if (maxCacheBytes < 0) {
+            throw new IllegalArgumentException("Cache size must be >= 0: " + maxCacheBytes);
+        }
+
+        this.cache = maxCacheBytes == 0 ? null : new TileCache(maxCacheBytes);
+    }
+
+    /**
+     * @return the covariance of columns i and j, calculated from the data.
+     */
+    private double covariance(int i, int j) {
         double[] v1 = vectors[i];
         double[] v2 = vectors[j];
+
+        if (complete[i] && complete[j]) {
+
+            // No missing values, so no NaN checks; four independent sums keep the pipeline full.
+            double d0 = 0.0, d1 = 0.0, d2 = 0.0, d3 = 0.0;
+            int n = sampleSize - sampleSize % 4;
+            int k = 0;
+
+            for (; k < n; k += 4) {
+                d0 += v1[k] * v2[k];
+                d1 += v1[k + 1] * v2[k + 1];
+                d2 += v1[k + 2] * v2[k + 2];
+                d3 += v1[k + 3] * v2[k + 3];
+            }
+
+            for (; k < sampleSize; k++) {
+                d0 += v1[k] * v2[k];
+            }
+
+            return ((d0 + d1) + (d2 + d3)) / (sampleSize - 1);
+        }
+
+        double d = 0.0D;
         int count = 0;
 
         for (int k = 0; k < sampleSize; k++) {
@@ -573,6 +662,82 @@ public class CovarianceMatrixOnTheFly implements ICovarianceMatrix {
         this.verbose = verbose;
     }
 
+    /**
+     * A bounded cache of the upper triangle of the covariance matrix, held as square tiles
+     * that are filled in entry by entry as they are requested. Entries are kept as the bits of
+     * their values, so that a covariance that is NaN is distinguished from an entry not yet
+     * calculated, which is EMPTY. Once the maximum number of tiles is exceeded, tiles are
+     * dropped by the clock algorithm: in order of allocation, skipping (and clearing) those
+     * used since they were last passed over, so that tiles in use stay in memory.
+     */
+    private static class TileCache {
+        private static final int TILE_SIZE = 64;
+
+        // A NaN that doubleToLongBits never gives, since it gives every NaN as Double.NaN.
+        static final long EMPTY = 0x7ff0000000000001L;
+
+        private final int maxTiles;
+        private final ConcurrentMap<Long, Tile> tiles = new ConcurrentHashMap<>();
+
+        // The keys of the tiles, in the order in which the clock passes over them.
+        private final Queue<Long> clock = new ConcurrentLinkedQueue<>();
+
+        public TileCache(long maxBytes) {
+            long tileBytes = 8L * TILE_SIZE * TILE_SIZE;
+            this.maxTiles = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / tileBytes));
+        }
+
+        public long[] getTile(int i, int j) {
+            long key = ((long) (Math.min(i, j) / TILE_SIZE) << 32) | (Math.max(i, j) / TILE_SIZE);
+            Tile tile = tiles.get(key);
+
+            if (tile != null) {
+                if (!tile.used) tile.used = true;
+                return tile.values;
+            }
+
+            Tile newTile = new Tile();
+            tile = tiles.putIfAbsent(key, newTile);
+
+            if (tile != null) {
+                return tile.values;
+            }
+
+            clock.add(key);
+
+            while (tiles.size() > maxTiles) {
+                Long next = clock.poll();
+                if (next == null) break;
+                Tile candidate = tiles.get(next);
+
+                if (candidate != null && candidate.used) {
+                    candidate.used = false;
+                    clock.add(next);
+                } else {
+                    tiles.remove(next);
+                }
+            }
+
+            return newTile.values;
+        }
+
+        public int getOffset(int i, int j) {
+            return (Math.min(i, j) % TILE_SIZE) * TILE_SIZE + Math.max(i, j) % TILE_SIZE;
+        }
+
+        private static class Tile {
+            private final long[] values = new long[TILE_SIZE * TILE_SIZE];
+
+            // True if the tile has been used since the clock last passed over it, or since it
+            // was allocated.
+            private volatile boolean used = true;
+
+            public Tile() {
+                Arrays.fill(values, EMPTY);
+            }
+        }
+    }
+
     private class IntPair {
         private final int x;
         private final int y;
@@ -718,6 +883,10 @@ public class CovarianceMatrixOnTheFly implements ICovarianceMatrix {
         if (selectedVariables == null) {
             selectedVariables = new HashSet<>();
         }
+
+        if (complete == null && variances != null) {
+            complete = new boolean[variances.length];
+        }
     }
 }
 
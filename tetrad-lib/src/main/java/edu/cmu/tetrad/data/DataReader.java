@@ -29,7 +29,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -564,6 +572,85 @@ public final class DataReader {
         return dataSet;
     }
 
+    /**
+     * Loads a data set written by DataWriter.writeBinaryData. The columns
+     * are memory-mapped read-only and wrapped in a MappedDataBox, so no data
+     * is read or copied until it is used; the other settings of this reader
+     * are ignored.
+     *
+     * @throws IOException if the file cannot be read or is not in the binary
+     *                     format.
+     */
+    public DataSet parseBinary(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(size, Integer.MAX_VALUE)).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (size < 16 || header.getInt() != DataWriter.BINARY_MAGIC) {
+                throw new IOException("Not a binary data file: " + file);
+            }
+
+            int version = header.getInt();
+
+            if (version != DataWriter.BINARY_VERSION) {
+                throw new IOException("Unsupported binary data version " + version + ": " + file);
+            }
+
+            int numRows = header.getInt();
+            int numCols = header.getInt();
+
+            List<Node> variables = new ArrayList<>();
+            DoubleBuffer[] continuousData = new DoubleBuffer[numCols];
+            IntBuffer[] discreteData = new IntBuffer[numCols];
+            LongBuffer[] missing = new LongBuffer[numCols];
+
+            for (int j = 0; j < numCols; j++) {
+                byte type = header.get();
+                String name = getString(header);
+
+                if (type == DataWriter.BINARY_DISCRETE) {
+                    int numCategories = header.getInt();
+                    List<String> categories = new ArrayList<>();
+
+                    for (int k = 0; k < numCategories; k++) {
+                        categories.add(getString(header));
+                    }
+
+                    variables.add(new DiscreteVariable(name, categories));
+                    discreteData[j] = map(channel, header.getLong(), 4L * numRows).asIntBuffer();
+                } else if (type == DataWriter.BINARY_CONTINUOUS) {
+                    variables.add(new ContinuousVariable(name));
+                    continuousData[j] = map(channel, header.getLong(), 8L * numRows).asDoubleBuffer();
+                } else {
+                    throw new IOException("Unknown column type " + type + " in " + file);
+                }
+
+                long missingOffset = header.getLong();
+
+                if (missingOffset != -1) {
+                    missing[j] = map(channel, missingOffset,
+                            8L * MappedDataBox.bitmapLength(numRows)).asLongBuffer();
+                }
+            }
+
+            DataBox box = new MappedDataBox(variables, numRows, continuousData, discreteData, missing);
+            DataSet dataSet = new BoxDataSet(box, variables);
+            dataSet.setName(file.getName());
+
+            this.logger.log("info", "\nData set loaded!");
+            this.logger.reset();
+            return dataSet;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated binary data file: " + file, e);
+        } finally {
+            raf.close();
+        }
+    }
+
     /**
      * Parses the given files for a tabular data set, returning a
      * RectangularDataSet if successful.
@@ -1274,4 +1361,19 @@ public final class DataReader {
 //
 //        return writer.toCharArray();
 //    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Column too large to map: " + length + " bytes.");
+        }
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, DataWriter.UTF8);
+    }
 }
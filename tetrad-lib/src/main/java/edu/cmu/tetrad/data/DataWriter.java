@@ -24,10 +24,17 @@ package edu.cmu.tetrad.data;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.util.NumberFormatUtil;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.text.NumberFormat;
+import java.util.List;
 
 /**
  * Provides static methods for saving data to files.
@@ -36,6 +43,21 @@ import java.text.NumberFormat;
  */
 public final class DataWriter {
 
+    /**
+     * The first four bytes of a binary data file, "TDBC".
+     */
+    static final int BINARY_MAGIC = 0x43424454;
+
+    /**
+     * The version of the binary data format written by writeBinaryData.
+     */
+    static final int BINARY_VERSION = 1;
+
+    static final byte BINARY_CONTINUOUS = 0;
+    static final byte BINARY_DISCRETE = 1;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * Writes a dataset to file. The dataset may have continuous and/or discrete
      * columns. Note that <code>out</code> is not closed by this method, so
@@ -177,6 +199,162 @@ public final class DataWriter {
 //    }
 
 
+    /**
+     * Writes a dataset to file in a binary columnar format that
+     * DataReader.parseBinary can memory-map without parsing or copying. The
+     * dataset may have continuous and/or discrete columns. All numbers are
+     * little-endian. The layout is:
+     * <pre>
+     * int     magic ("TDBC"), version, numRows, numCols
+     * for each column:
+     *   byte  type (0 = continuous, 1 = discrete)
+     *   str   name
+     *   int   number of categories, followed by that many str (discrete only)
+     *   long  offset of the data block
+     *   long  offset of the missing value bitmap, or -1 if nothing is missing
+     * for each column, starting at an 8-byte boundary:
+     *   numRows doubles (continuous, NaN = missing) or ints (discrete, -99 = missing)
+     *   the bitmap, if any, at the next 8-byte boundary: ceil(numRows / 64)
+     *   longs, bit (row % 64) of long (row / 64) set iff the row is missing
+     * </pre>
+     * where str is an int byte count followed by that many bytes of UTF-8.
+     *
+     * @param dataSet The data set to save.
+     * @param file    The file to write to; it is overwritten.
+     * @throws IOException If there is some problem writing the file.
+     */
+    public static void writeBinaryData(DataSet dataSet, File file) throws IOException {
+        int numRows = dataSet.getNumRows();
+        int numCols = dataSet.getNumColumns();
+        List<Node> variables = dataSet.getVariables();
+
+        boolean[] hasMissing = new boolean[numCols];
+        int headerSize = 16;
+
+        for (int j = 0; j < numCols; j++) {
+            Node variable = variables.get(j);
+            headerSize += 1 + 4 + variable.getName().getBytes(UTF8).length + 16;
+
+            if (variable instanceof DiscreteVariable) {
+                headerSize += 4;
+
+                for (String category : ((DiscreteVariable) variable).getCategories()) {
+                    headerSize += 4 + category.getBytes(UTF8).length;
+                }
+
+                for (int i = 0; i < numRows; i++) {
+                    if (dataSet.getInt(i, j) == DiscreteVariable.MISSING_VALUE) {
+                        hasMissing[j] = true;
+                        break;
+                    }
+                }
+            } else if (variable instanceof ContinuousVariable) {
+                for (int i = 0; i < numRows; i++) {
+                    if (Double.isNaN(dataSet.getDouble(i, j))) {
+                        hasMissing[j] = true;
+                        break;
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("Only continuous and discrete variables " +
+                        "can be written in binary: " + variable);
+            }
+        }
+
+        long[] dataOffsets = new long[numCols];
+        long[] missingOffsets = new long[numCols];
+        long position = align8(headerSize);
+
+        for (int j = 0; j < numCols; j++) {
+            int width = variables.get(j) instanceof DiscreteVariable ? 4 : 8;
+            dataOffsets[j] = position;
+            position = align8(position + (long) numRows * width);
+
+            if (hasMissing[j]) {
+                missingOffsets[j] = position;
+                position += 8L * MappedDataBox.bitmapLength(numRows);
+            } else {
+                missingOffsets[j] = -1;
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate((int) align8(headerSize)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putInt(numRows).putInt(numCols);
+
+        for (int j = 0; j < numCols; j++) {
+            Node variable = variables.get(j);
+
+            if (variable instanceof DiscreteVariable) {
+                header.put(BINARY_DISCRETE);
+                putString(header, variable.getName());
+                List<String> categories = ((DiscreteVariable) variable).getCategories();
+                header.putInt(categories.size());
+
+                for (String category : categories) {
+                    putString(header, category);
+                }
+            } else {
+                header.put(BINARY_CONTINUOUS);
+                putString(header, variable.getName());
+            }
+
+            header.putLong(dataOffsets[j]).putLong(missingOffsets[j]);
+        }
+
+        header.position(header.capacity());
+        header.flip();
+
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            FileChannel channel = out.getChannel();
+            writeFully(channel, header);
+
+            ByteBuffer buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+            for (int j = 0; j < numCols; j++) {
+                boolean discrete = variables.get(j) instanceof DiscreteVariable;
+
+                for (int i = 0; i < numRows; i++) {
+                    if (buf.remaining() < 8) drain(channel, buf);
+
+                    if (discrete) {
+                        buf.putInt(dataSet.getInt(i, j));
+                    } else {
+                        buf.putDouble(dataSet.getDouble(i, j));
+                    }
+                }
+
+                if (discrete && numRows % 2 == 1) {
+                    if (buf.remaining() < 8) drain(channel, buf);
+                    buf.putInt(0);
+                }
+
+                if (hasMissing[j]) {
+                    long bits = 0;
+
+                    for (int i = 0; i < numRows; i++) {
+                        boolean isMissing = discrete
+                                ? dataSet.getInt(i, j) == DiscreteVariable.MISSING_VALUE
+                                : Double.isNaN(dataSet.getDouble(i, j));
+
+                        if (isMissing) bits |= 1L << i;
+
+                        if (i % 64 == 63 || i == numRows - 1) {
+                            if (buf.remaining() < 8) drain(channel, buf);
+                            buf.putLong(bits);
+                            bits = 0;
+                        }
+                    }
+                }
+            }
+
+            drain(channel, buf);
+        } finally {
+            out.close();
+        }
+    }
+
     /**
      * Writes the lower triangle of a covariance matrix to file.  Note that
      * <code>out</code> is not closed by this method, so the close method on
@@ -210,9 +388,26 @@ public final class DataWriter {
         out.flush();
         out.close();
     }
-}
-
 
+    private static long align8(long position) {
+        return (position + 7) & ~7L;
+    }
 
+    private static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+    }
 
+    private static void drain(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        writeFully(channel, buf);
+        buf.clear();
+    }
 
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
@@ -0,0 +1,746 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.data;
+
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
+import edu.cmu.tetrad.util.NumberFormatUtil;
+import edu.cmu.tetrad.util.TetradMatrix;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A covariance matrix kept as sufficient statistics--the number of rows, the
+ * means, and the co-moments (sums of products of deviations from the means)--
+ * so that rows can be added as they arrive without keeping them. Single rows
+ * are added with Welford's update; batches of rows are summarized on their own
+ * and then merged in using the pairwise update of Chan, Golub and LeVeque,
+ * which is also how statistics computed separately (in other threads, or on
+ * other machines and serialized) are combined with merge(). The result does
+ * not depend on how the rows were split up, up to rounding.
+ * <p>
+ * getValue returns the unbiased covariance, co-moment / (n - 1). Anything
+ * that takes an ICovarianceMatrix (SemBicScore, IndTestFisherZ, ...) can use
+ * this matrix directly, but for a search it's better to take a snapshot(),
+ * which is an ordinary CovarianceMatrix that won't change while the search
+ * runs. Missing values are not allowed.
+ */
+public class IncrementalCovarianceMatrix implements ICovarianceMatrix {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The name of the covariance matrix.
+     *
+     * @serial May be null.
+     */
+    private String name;
+
+    /**
+     * The variables (in order) for this covariance matrix.
+     *
+     * @serial Cannot be null.
+     */
+    private List<Node> variables;
+
+    /**
+     * The number of rows added so far.
+     *
+     * @serial Range >= 0.
+     */
+    private long count;
+
+    /**
+     * The means of the variables over the rows added so far.
+     *
+     * @serial Cannot be null.
+     */
+    private double[] means;
+
+    /**
+     * The co-moments, packed by rows of the lower triangle; see index(i, j).
+     *
+     * @serial Cannot be null.
+     */
+    private double[] comoments;
+
+    /**
+     * The list of selected variables.
+     *
+     * @serial Cannot be null.
+     */
+    private Set<Node> selectedVariables = new HashSet<>();
+
+    /**
+     * The knowledge for this data.
+     *
+     * @serial Cannot be null.
+     */
+    private IKnowledge knowledge = new Knowledge2();
+
+    //=============================CONSTRUCTORS=========================//
+
+    /**
+     * Constructs an empty matrix (no rows yet) over the given variables.
+     */
+    public IncrementalCovarianceMatrix(List<Node> variables) {
+        for (Node variable : variables) {
+            if (variable == null) {
+                throw new NullPointerException();
+            }
+        }
+
+        long size = (long) variables.size() * (variables.size() + 1) / 2;
+
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many variables: " + variables.size());
+        }
+
+        this.variables = Collections.unmodifiableList(new ArrayList<>(variables));
+        this.means = new double[variables.size()];
+        this.comoments = new double[(int) size];
+    }
+
+    /**
+     * Constructs a matrix over the variables of the given continuous data set
+     * and adds its rows.
+     */
+    public IncrementalCovarianceMatrix(DataSet dataSet) {
+        this(dataSet.getVariables());
+        addData(dataSet);
+    }
+
+    /**
+     * Copy constructor.
+     */
+    public IncrementalCovarianceMatrix(IncrementalCovarianceMatrix covMatrix) {
+        synchronized (covMatrix) {
+            this.name = covMatrix.name;
+            this.variables = covMatrix.variables;
+            this.count = covMatrix.count;
+            this.means = Arrays.copyOf(covMatrix.means, covMatrix.means.length);
+            this.comoments = Arrays.copyOf(covMatrix.comoments, covMatrix.comoments.length);
+            this.knowledge = covMatrix.knowledge.copy();
+        }
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static IncrementalCovarianceMatrix serializableInstance() {
+        List<Node> variables = new ArrayList<>();
+        variables.add(new ContinuousVariable("X"));
+        IncrementalCovarianceMatrix cov = new IncrementalCovarianceMatrix(variables);
+        cov.addRow(new double[]{1.0});
+        cov.addRow(new double[]{2.0});
+        return cov;
+    }
+
+    //============================PUBLIC METHODS=========================//
+
+    /**
+     * Adds one row, with Welford's update.
+     *
+     * @param row The values of the variables, in order.
+     */
+    public synchronized void addRow(double[] row) {
+        int p = variables.size();
+
+        if (row.length != p) {
+            throw new IllegalArgumentException("Expecting " + p + " values: " + row.length);
+        }
+
+        checkValues(row);
+
+        count++;
+        double[] delta = new double[p];
+
+        for (int i = 0; i < p; i++) {
+            delta[i] = row[i] - means[i];
+            means[i] += delta[i] / count;
+        }
+
+        // delta_i * (x_j - new mean_j) = delta_i * delta_j * (n - 1) / n.
+        double f = (count - 1) / (double) count;
+
+        for (int i = 0; i < p; i++) {
+            int offset = index(i, 0);
+            double di = delta[i] * f;
+
+            for (int j = 0; j <= i; j++) {
+                comoments[offset + j] += di * delta[j];
+            }
+        }
+    }
+
+    /**
+     * Adds a batch of rows. The batch is summarized on its own and merged in.
+     *
+     * @param rows The rows; rows[k] has the values of the variables, in order,
+     *             for the k'th row.
+     */
+    public void addRows(double[][] rows) {
+        int p = variables.size();
+        double[][] columns = new double[p][rows.length];
+
+        for (int k = 0; k < rows.length; k++) {
+            if (rows[k].length != p) {
+                throw new IllegalArgumentException("Expecting " + p + " values in row " + k
+                        + ": " + rows[k].length);
+            }
+
+            for (int j = 0; j < p; j++) {
+                columns[j][k] = rows[k][j];
+            }
+        }
+
+        addColumns(columns, rows.length);
+    }
+
+    /**
+     * Adds the rows of the given continuous data set, whose variables must
+     * have the same names, in the same order, as the variables of this matrix.
+     */
+    public void addData(DataSet dataSet) {
+        if (!dataSet.isContinuous()) {
+            throw new IllegalArgumentException("Not a continuous data set.");
+        }
+
+        checkNames(dataSet.getVariables());
+
+        int p = variables.size();
+        int m = dataSet.getNumRows();
+        double[][] columns;
+
+        DataBox box = dataSet instanceof BoxDataSet ? ((BoxDataSet) dataSet).getDataBox() : null;
+
+        if (box instanceof MappedDataBox) {
+            columns = ((MappedDataBox) box).getDoubleColumns();
+        } else {
+            columns = new double[p][m];
+
+            for (int j = 0; j < p; j++) {
+                for (int k = 0; k < m; k++) {
+                    columns[j][k] = dataSet.getDouble(k, j);
+                }
+            }
+        }
+
+        addColumns(columns, m);
+    }
+
+    /**
+     * Merges in statistics computed separately over the same variables (by
+     * name, in the same order). The other matrix is not changed.
+     */
+    public void merge(IncrementalCovarianceMatrix other) {
+        checkNames(other.getVariables());
+
+        long countB;
+        double[] meansB;
+        double[] comomentsB;
+
+        synchronized (other) {
+            countB = other.count;
+            meansB = Arrays.copyOf(other.means, other.means.length);
+            comomentsB = Arrays.copyOf(other.comoments, other.comoments.length);
+        }
+
+        merge(countB, meansB, comomentsB);
+    }
+
+    /**
+     * @return the number of rows added so far.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the mean of variable i over the rows added so far.
+     */
+    public synchronized double getMean(int i) {
+        return means[i];
+    }
+
+    /**
+     * @return an ordinary CovarianceMatrix with the current covariances, which
+     * later updates to this matrix won't affect.
+     */
+    public synchronized CovarianceMatrix snapshot() {
+        CovarianceMatrix cov = new CovarianceMatrix(variables, getMatrix(), getSampleSize());
+        cov.setName(name);
+        cov.setKnowledge(knowledge);
+        return cov;
+    }
+
+    /**
+     * @return the list of variables (unmodifiable).
+     */
+    public final List<Node> getVariables() {
+        return this.variables;
+    }
+
+    /**
+     * @return the variable names, in order.
+     */
+    public final List<String> getVariableNames() {
+        List<String> names = new ArrayList<>();
+
+        for (Node variable : variables) {
+            names.add(variable.getName());
+        }
+
+        return names;
+    }
+
+    /**
+     * @return the variable name at the given index.
+     */
+    public final String getVariableName(int index) {
+        if (index >= getVariables().size()) {
+            throw new IllegalArgumentException("Index out of range: " + index);
+        }
+
+        return getVariables().get(index).getName();
+    }
+
+    /**
+     * @return the dimension of the covariance matrix.
+     */
+    public final int getDimension() {
+        return variables.size();
+    }
+
+    /**
+     * @return the number of rows added so far, as an int.
+     */
+    public final synchronized int getSampleSize() {
+        return count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count;
+    }
+
+    /**
+     * Gets the name of the covariance matrix.
+     */
+    public final String getName() {
+        return this.name;
+    }
+
+    /**
+     * Sets the name of the covariance matrix.
+     */
+    public final void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the knowledge associated with this data.
+     */
+    public final IKnowledge getKnowledge() {
+        return this.knowledge.copy();
+    }
+
+    /**
+     * Associates knowledge with this data.
+     */
+    public final void setKnowledge(IKnowledge knowledge) {
+        if (knowledge == null) {
+            throw new NullPointerException();
+        }
+
+        this.knowledge = knowledge.copy();
+    }
+
+    /**
+     * @return the sufficient statistics for the given variables, in the given
+     * order; these can still be updated and merged.
+     */
+    public final synchronized IncrementalCovarianceMatrix getSubmatrix(int[] indices) {
+        List<Node> submatrixVars = new ArrayList<>();
+
+        for (int index : indices) {
+            submatrixVars.add(variables.get(index));
+        }
+
+        IncrementalCovarianceMatrix cov = new IncrementalCovarianceMatrix(submatrixVars);
+        cov.count = count;
+
+        for (int i = 0; i < indices.length; i++) {
+            cov.means[i] = means[indices[i]];
+
+            for (int j = 0; j <= i; j++) {
+                cov.comoments[index(i, j)] = comoments[index(indices[i], indices[j])];
+            }
+        }
+
+        return cov;
+    }
+
+    public final IncrementalCovarianceMatrix getSubmatrix(List<String> submatrixVarNames) {
+        return getSubmatrix(submatrixVarNames.toArray(new String[submatrixVarNames.size()]));
+    }
+
+    /**
+     * @return a submatrix of this matrix, with variables in the given
+     * order.
+     */
+    public final IncrementalCovarianceMatrix getSubmatrix(String[] submatrixVarNames) {
+        int[] indices = new int[submatrixVarNames.length];
+
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = getVariables().indexOf(getVariable(submatrixVarNames[i]));
+
+            if (indices[i] == -1) {
+                throw new IllegalArgumentException("The variables in the submatrix must be in the " +
+                        "original matrix: " + submatrixVarNames[i]);
+            }
+        }
+
+        return getSubmatrix(indices);
+    }
+
+    /**
+     * @return the covariance of variables i and j, or NaN if fewer than two
+     * rows have been added.
+     */
+    public final double getValue(int i, int j) {
+        long n = count;
+        if (n < 2) return Double.NaN;
+        return comoments[i >= j ? index(i, j) : index(j, i)] / (n - 1);
+    }
+
+    /**
+     * The covariances are computed from the statistics, so they can't be set.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void setMatrix(TetradMatrix matrix) {
+        throw new UnsupportedOperationException("The covariances are computed from the rows added; " +
+                "take a snapshot() to get a matrix that can be changed.");
+    }
+
+    /**
+     * The sample size is the number of rows added, so it can't be set.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public final void setSampleSize(int sampleSize) {
+        throw new UnsupportedOperationException("The sample size is the number of rows added; " +
+                "take a snapshot() to get a matrix that can be changed.");
+    }
+
+    /**
+     * @return the size of the square matrix.
+     */
+    public final int getSize() {
+        return variables.size();
+    }
+
+    /**
+     * @return a copy of the covariance matrix.
+     */
+    public final synchronized TetradMatrix getMatrix() {
+        int p = variables.size();
+        TetradMatrix matrix = new TetradMatrix(p, p);
+
+        for (int i = 0; i < p; i++) {
+            for (int j = 0; j <= i; j++) {
+                double value = getValue(i, j);
+                matrix.set(i, j, value);
+                matrix.set(j, i, value);
+            }
+        }
+
+        return matrix;
+    }
+
+    public final void select(Node variable) {
+        if (variables.contains(variable)) {
+            selectedVariables.add(variable);
+        }
+    }
+
+    public final void clearSelection() {
+        selectedVariables.clear();
+    }
+
+    public final boolean isSelected(Node variable) {
+        if (variable == null) {
+            throw new NullPointerException("Null variable. Try again.");
+        }
+
+        return selectedVariables.contains(variable);
+    }
+
+    public final List<String> getSelectedVariableNames() {
+        List<String> selectedVariableNames = new LinkedList<>();
+
+        for (Node variable : selectedVariables) {
+            selectedVariableNames.add(variable.getName());
+        }
+
+        return selectedVariableNames;
+    }
+
+    /**
+     * Prints out the matrix
+     */
+    public final String toString() {
+        NumberFormat nf = NumberFormatUtil.getInstance().getNumberFormat();
+
+        StringBuilder buf = new StringBuilder();
+
+        int numVars = getVariableNames().size();
+        buf.append(getSampleSize()).append("\n");
+
+        for (int i = 0; i < numVars; i++) {
+            buf.append(getVariableNames().get(i)).append("\t");
+        }
+
+        buf.append("\n");
+
+        for (int j = 0; j < numVars; j++) {
+            for (int i = 0; i <= j; i++) {
+                buf.append(nf.format(getValue(i, j))).append("\t");
+            }
+            buf.append("\n");
+        }
+
+        return buf.toString();
+    }
+
+    public Node getVariable(String name) {
+        for (Node variable : getVariables()) {
+            if (name.equals(variable.getName())) {
+                return variable;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The covariances are computed from the statistics, so they can't be set.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    @Override
+    public void setValue(int i, int j, double v) {
+        throw new UnsupportedOperationException("The covariances are computed from the rows added; " +
+                "take a snapshot() to get a matrix that can be changed.");
+    }
+
+    /**
+     * Keeps only the statistics for the given variables.
+     */
+    @Override
+    public synchronized void removeVariables(List<String> remaining) {
+        IncrementalCovarianceMatrix cov = getSubmatrix(remaining);
+        this.variables = cov.variables;
+        this.means = cov.means;
+        this.comoments = cov.comoments;
+        clearSelection();
+    }
+
+    public void setVariables(List<Node> variables) {
+        if (variables.size() != this.variables.size()) {
+            throw new IllegalArgumentException("Wrong # of variables.");
+        }
+
+        checkNames(variables);
+        this.variables = Collections.unmodifiableList(new ArrayList<>(variables));
+    }
+
+    @Override
+    public TetradMatrix getSelection(int[] rows, int[] cols) {
+        TetradMatrix m = new TetradMatrix(rows.length, cols.length);
+
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < cols.length; j++) {
+                m.set(i, j, getValue(rows[i], cols[j]));
+            }
+        }
+
+        return m;
+    }
+
+    //========================PRIVATE METHODS============================//
+
+    /**
+     * The position of (i, j), j <= i, in the packed lower triangle.
+     */
+    private static int index(int i, int j) {
+        return (int) ((long) i * (i + 1) / 2) + j;
+    }
+
+    /**
+     * Summarizes the first m entries of the given columns and merges the
+     * summary in. The columns are centered in place.
+     */
+    private void addColumns(final double[][] columns, final int m) {
+        final int p = variables.size();
+
+        if (m == 0) return;
+
+        final double[] meansB = new double[p];
+
+        for (int j = 0; j < p; j++) {
+            double[] column = columns[j];
+            checkValues(column);
+
+            double sum = 0.0;
+            for (int k = 0; k < m; k++) sum += column[k];
+            meansB[j] = sum / m;
+
+            for (int k = 0; k < m; k++) column[k] -= meansB[j];
+        }
+
+        final double[] comomentsB = new double[comoments.length];
+
+        class ComomentAction extends RecursiveAction {
+            private final int from;
+            private final int to;
+
+            private ComomentAction(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                // Row i of the triangle costs i + 1 dot products; split by work, not rows.
+                if ((long) (to - from) * (to + from) * m <= 4000000L || to - from == 1) {
+                    for (int i = from; i < to; i++) {
+                        double[] ci = columns[i];
+                        int offset = index(i, 0);
+
+                        for (int j = 0; j <= i; j++) {
+                            double[] cj = columns[j];
+                            double d = 0.0;
+
+                            for (int k = 0; k < m; k++) {
+                                d += ci[k] * cj[k];
+                            }
+
+                            comomentsB[offset + j] = d;
+                        }
+                    }
+                } else {
+                    int mid = (from + to) / 2;
+                    invokeAll(new ComomentAction(from, mid), new ComomentAction(mid, to));
+                }
+            }
+        }
+
+        ForkJoinPoolInstance.getInstance().getPool().invoke(new ComomentAction(0, p));
+
+        merge(m, meansB, comomentsB);
+    }
+
+    private synchronized void merge(long countB, double[] meansB, double[] comomentsB) {
+        if (countB == 0) return;
+
+        long countA = count;
+        long n = countA + countB;
+        int p = variables.size();
+
+        double[] delta = new double[p];
+
+        for (int i = 0; i < p; i++) {
+            delta[i] = meansB[i] - means[i];
+        }
+
+        double f = countA * (double) countB / n;
+
+        for (int i = 0; i < p; i++) {
+            int offset = index(i, 0);
+            double di = delta[i] * f;
+
+            for (int j = 0; j <= i; j++) {
+                comoments[offset + j] += comomentsB[offset + j] + di * delta[j];
+            }
+        }
+
+        for (int i = 0; i < p; i++) {
+            means[i] += delta[i] * countB / n;
+        }
+
+        count = n;
+    }
+
+    private void checkNames(List<Node> variables) {
+        if (variables.size() != this.variables.size()) {
+            throw new IllegalArgumentException("Expecting " + this.variables.size()
+                    + " variables: " + variables);
+        }
+
+        for (int i = 0; i < variables.size(); i++) {
+            if (!variables.get(i).getName().equals(this.variables.get(i).getName())) {
+                throw new IllegalArgumentException("Variable " + (i + 1) + " should be named "
+                        + this.variables.get(i).getName() + ": " + variables.get(i));
+            }
+        }
+    }
+
+    private static void checkValues(double[] values) {
+        for (double value : values) {
+            if (Double.isNaN(value)) {
+                throw new IllegalArgumentException("Please remove or impute missing values.");
+            }
+        }
+    }
+
+    /**
+     * Adds semantic checks to the default deserialization method. This method
+     * must have the standard signature for a readObject method, and the body of
+     * the method must begin with "s.defaultReadObject();". Other than that, any
+     * semantic checks can be specified and do not need to stay the same from
+     * version to version. A readObject method of this form may be added to any
+     * class, even if Tetrad sessions were previously saved out using a version
+     * of the class that didn't include it. (That's what the
+     * "s.defaultReadObject();" is for. See J. Bloch, Effective Java, for help.
+     *
+     * @throws java.io.IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream s)
+            throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+
+        if (variables == null || means == null || comoments == null || knowledge == null) {
+            throw new NullPointerException();
+        }
+
+        if (count < 0 || means.length != variables.size()
+                || comoments.length != variables.size() * (variables.size() + 1) / 2) {
+            throw new IllegalStateException();
+        }
+
+        if (selectedVariables == null) {
+            selectedVariables = new HashSet<>();
+        }
+    }
+}
@@ -0,0 +1,472 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.data;
+
+import edu.cmu.tetrad.graph.Node;
+
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores mixed data column by column in DoubleBuffers (continuous columns) and
+ * IntBuffers (discrete columns). This is the box DataReader.parseBinary
+ * produces; there the buffers are views onto read-only memory-mapped regions
+ * of the file, so nothing is copied at load time and pages are brought in by
+ * the operating system as columns are touched. A box can also be allocated
+ * off-heap with allocateDirect, for data sets larger than the heap; boxes
+ * derived from a direct box (copies, selections, columns copied on write) are
+ * direct as well.
+ * <p>
+ * A column may have a missing value bitmap, one bit per row; if it doesn't,
+ * the column has no missing values. Missing continuous values are stored as
+ * NaN and missing discrete values as -99, as in the other boxes, so the bulk
+ * column accessors return the same values as getDouble and getInt.
+ * <p>
+ * Writing to a column whose buffer is read-only first copies that column (and
+ * its bitmap), so the file itself is never modified. When serialized, the box
+ * is replaced by an equivalent MixedDataBox.
+ */
+public class MappedDataBox implements DataBox {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The variables, used to tell continuous columns from discrete ones.
+     */
+    private final List<Node> variables;
+
+    /**
+     * The number of rows.
+     */
+    private final int numRows;
+
+    /**
+     * Continuous column buffers; null for discrete columns.
+     */
+    private transient DoubleBuffer[] continuousData;
+
+    /**
+     * Discrete column buffers; null for continuous columns.
+     */
+    private transient IntBuffer[] discreteData;
+
+    /**
+     * Missing value bitmaps; null for columns with no missing values.
+     */
+    private transient LongBuffer[] missing;
+
+    /**
+     * True if new buffers for this box are allocated off-heap.
+     */
+    private final boolean direct;
+
+    /**
+     * Constructs a box over the given column buffers, each of which must have
+     * exactly numRows elements (numRows / 64 rounded up for the bitmaps). For
+     * each column, exactly one of continuousData[j] and discreteData[j] is
+     * non-null; missing[j] may be null.
+     */
+    public MappedDataBox(List<Node> variables, int numRows, DoubleBuffer[] continuousData,
+                         IntBuffer[] discreteData, LongBuffer[] missing) {
+        int numCols = variables.size();
+
+        if (continuousData.length != numCols || discreteData.length != numCols
+                || missing.length != numCols) {
+            throw new IllegalArgumentException("Expecting one buffer per variable.");
+        }
+
+        for (int j = 0; j < numCols; j++) {
+            if ((continuousData[j] == null) == (discreteData[j] == null)) {
+                throw new IllegalArgumentException("Column " + j + " must be either continuous " +
+                        "or discrete.");
+            }
+
+            int length = continuousData[j] != null ? continuousData[j].capacity()
+                    : discreteData[j].capacity();
+
+            if (length != numRows) {
+                throw new IllegalArgumentException("Column " + j + " has " + length
+                        + " rows; expecting " + numRows + ".");
+            }
+
+            if (missing[j] != null && missing[j].capacity() != bitmapLength(numRows)) {
+                throw new IllegalArgumentException("Wrong bitmap length for column " + j + ".");
+            }
+        }
+
+        this.variables = new ArrayList<>(variables);
+        this.numRows = numRows;
+        this.continuousData = continuousData;
+        this.discreteData = discreteData;
+        this.missing = missing;
+        this.direct = numCols > 0 && (continuousData[0] != null ? continuousData[0].isDirect()
+                : discreteData[0].isDirect());
+    }
+
+    /**
+     * Constructs a heap-backed box of the given dimensions consisting entirely
+     * of missing values.
+     */
+    public MappedDataBox(List<Node> variables, int numRows) {
+        this(variables, numRows, false);
+    }
+
+    private MappedDataBox(List<Node> variables, int numRows, boolean direct) {
+        int numCols = variables.size();
+
+        this.variables = new ArrayList<>(variables);
+        this.numRows = numRows;
+        this.direct = direct;
+        this.continuousData = new DoubleBuffer[numCols];
+        this.discreteData = new IntBuffer[numCols];
+        this.missing = new LongBuffer[numCols];
+
+        for (int j = 0; j < numCols; j++) {
+            addColumn(j, variables.get(j));
+        }
+    }
+
+    /**
+     * Constructs an off-heap box of the given dimensions consisting entirely
+     * of missing values. Each column is allocated separately, so a column (not
+     * the whole box) is limited to 2^31 bytes.
+     */
+    public static MappedDataBox allocateDirect(List<Node> variables, int numRows) {
+        return new MappedDataBox(variables, numRows, true);
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static BoxDataSet serializableInstance() {
+        List<Node> variables = new ArrayList<>();
+        variables.add(new ContinuousVariable("X"));
+        variables.add(new DiscreteVariable("Y", 2));
+        return new BoxDataSet(new MappedDataBox(variables, 4), variables);
+    }
+
+    /**
+     * @return the number of longs in a missing value bitmap for the given
+     * number of rows.
+     */
+    public static int bitmapLength(int numRows) {
+        return (numRows + 63) / 64;
+    }
+
+    /**
+     * @return the number of rows in this data box.
+     */
+    public int numRows() {
+        return numRows;
+    }
+
+    /**
+     * @return the number of columns in this data box.
+     */
+    public int numCols() {
+        return variables.size();
+    }
+
+    /**
+     * Sets the value at the given row/column to the given Number value, or to
+     * missing if value is null.
+     */
+    public synchronized void set(int row, int col, Number value) {
+        makeWritable(col);
+
+        if (continuousData[col] != null) {
+            continuousData[col].put(row, value == null ? Double.NaN : value.doubleValue());
+        } else {
+            discreteData[col].put(row, value == null ? -99 : value.intValue());
+        }
+
+        if (value == null) {
+            if (missing[col] == null) {
+                missing[col] = LongBuffer.wrap(new long[bitmapLength(numRows)]);
+            }
+
+            missing[col].put(row >> 6, missing[col].get(row >> 6) | (1L << row));
+        } else if (missing[col] != null) {
+            missing[col].put(row >> 6, missing[col].get(row >> 6) & ~(1L << row));
+        }
+    }
+
+    /**
+     * @return the Number value at the given row and column. If the value
+     * is missing, null is returned.
+     */
+    public Number get(int row, int col) {
+        if (isMissing(row, col)) {
+            return null;
+        }
+
+        if (continuousData[col] != null) {
+            return continuousData[col].get(row);
+        } else {
+            return discreteData[col].get(row);
+        }
+    }
+
+    /**
+     * @return true iff the value at the given row and column is missing.
+     */
+    public boolean isMissing(int row, int col) {
+        LongBuffer bits = missing[col];
+        return bits != null && (bits.get(row >> 6) & (1L << row)) != 0;
+    }
+
+    /**
+     * @return true iff the given column has a missing value bitmap. A column
+     * without one has no missing values.
+     */
+    public boolean hasMissingValues(int col) {
+        return missing[col] != null;
+    }
+
+    /**
+     * Copies the given continuous column into <code>dest</code>, which must
+     * have at least numRows() elements. Missing values are copied as NaN.
+     *
+     * @throws IllegalArgumentException if the column is discrete.
+     */
+    public void getDoubleColumn(int col, double[] dest) {
+        if (continuousData[col] == null) {
+            throw new IllegalArgumentException("Not a continuous column: " + variables.get(col));
+        }
+
+        continuousData[col].duplicate().get(dest, 0, numRows);
+    }
+
+    /**
+     * Copies the given discrete column into <code>dest</code>, which must have
+     * at least numRows() elements. Missing values are copied as -99.
+     *
+     * @throws IllegalArgumentException if the column is continuous.
+     */
+    public void getIntColumn(int col, int[] dest) {
+        if (discreteData[col] == null) {
+            throw new IllegalArgumentException("Not a discrete column: " + variables.get(col));
+        }
+
+        discreteData[col].duplicate().get(dest, 0, numRows);
+    }
+
+    /**
+     * @return the continuous columns as arrays, with null for discrete columns.
+     * The arrays are copies.
+     */
+    public double[][] getDoubleColumns() {
+        double[][] columns = new double[numCols()][];
+
+        for (int j = 0; j < numCols(); j++) {
+            if (continuousData[j] != null) {
+                columns[j] = new double[numRows];
+                getDoubleColumn(j, columns[j]);
+            }
+        }
+
+        return columns;
+    }
+
+    /**
+     * @return the discrete columns as arrays, with null for continuous columns.
+     * The arrays are copies.
+     */
+    public int[][] getIntColumns() {
+        int[][] columns = new int[numCols()][];
+
+        for (int j = 0; j < numCols(); j++) {
+            if (discreteData[j] != null) {
+                columns[j] = new int[numRows];
+                getIntColumn(j, columns[j]);
+            }
+        }
+
+        return columns;
+    }
+
+    /**
+     * Adds a column of missing values for the given variable at the end.
+     */
+    public synchronized void addVariable(Node variable) {
+        int col = variables.size();
+        variables.add(variable);
+
+        continuousData = Arrays.copyOf(continuousData, col + 1);
+        discreteData = Arrays.copyOf(discreteData, col + 1);
+        missing = Arrays.copyOf(missing, col + 1);
+
+        addColumn(col, variable);
+    }
+
+    /**
+     * @return a copy of this data box, off-heap if this box is.
+     */
+    public DataBox copy() {
+        int numCols = numCols();
+        DoubleBuffer[] continuous = new DoubleBuffer[numCols];
+        IntBuffer[] discrete = new IntBuffer[numCols];
+        LongBuffer[] bitmaps = new LongBuffer[numCols];
+
+        for (int j = 0; j < numCols; j++) {
+            copyColumn(j, continuous, discrete, bitmaps);
+        }
+
+        return new MappedDataBox(variables, numRows, continuous, discrete, bitmaps);
+    }
+
+    /**
+     * @return a box with the same variables and dimensions, all values missing,
+     * off-heap if this box is.
+     */
+    public DataBox like() {
+        return new MappedDataBox(variables, numRows, direct);
+    }
+
+    @Override
+    public DataBox viewSelection(int[] rows, int[] cols) {
+        List<Node> newVars = new ArrayList<>();
+
+        for (int c : cols) {
+            newVars.add(variables.get(c));
+        }
+
+        DataBox _dataBox = new MappedDataBox(newVars, rows.length, direct);
+
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < cols.length; j++) {
+                _dataBox.set(i, j, get(rows[i], cols[j]));
+            }
+        }
+
+        return _dataBox;
+    }
+
+    //=============================PRIVATE METHODS=======================//
+
+    /**
+     * Allocates an all-missing column for the given variable at index col.
+     */
+    private void addColumn(int col, Node variable) {
+        if (variable instanceof DiscreteVariable) {
+            discreteData[col] = newInts(numRows);
+
+            for (int i = 0; i < numRows; i++) {
+                discreteData[col].put(i, -99);
+            }
+        } else {
+            continuousData[col] = newDoubles(numRows);
+
+            for (int i = 0; i < numRows; i++) {
+                continuousData[col].put(i, Double.NaN);
+            }
+        }
+
+        missing[col] = newLongs(bitmapLength(numRows));
+
+        for (int i = 0; i < missing[col].capacity(); i++) {
+            missing[col].put(i, -1L);
+        }
+    }
+
+    /**
+     * Copies the given column if its buffer is read-only.
+     */
+    private void makeWritable(int col) {
+        boolean readOnly = continuousData[col] != null ? continuousData[col].isReadOnly()
+                : discreteData[col].isReadOnly();
+
+        if (readOnly || (missing[col] != null && missing[col].isReadOnly())) {
+            copyColumn(col, continuousData, discreteData, missing);
+        }
+    }
+
+    private void copyColumn(int col, DoubleBuffer[] continuous, IntBuffer[] discrete,
+                            LongBuffer[] bitmaps) {
+        if (continuousData[col] != null) {
+            DoubleBuffer column = newDoubles(numRows);
+            column.put(continuousData[col].duplicate()).clear();
+            continuous[col] = column;
+        } else {
+            IntBuffer column = newInts(numRows);
+            column.put(discreteData[col].duplicate()).clear();
+            discrete[col] = column;
+        }
+
+        if (missing[col] != null) {
+            LongBuffer bits = newLongs(bitmapLength(numRows));
+            bits.put(missing[col].duplicate()).clear();
+            bitmaps[col] = bits;
+        }
+    }
+
+    private DoubleBuffer newDoubles(int n) {
+        if (!direct) return DoubleBuffer.wrap(new double[n]);
+        return allocate(8L * n).asDoubleBuffer();
+    }
+
+    private IntBuffer newInts(int n) {
+        if (!direct) return IntBuffer.wrap(new int[n]);
+        return allocate(4L * n).asIntBuffer();
+    }
+
+    private LongBuffer newLongs(int n) {
+        if (!direct) return LongBuffer.wrap(new long[n]);
+        return allocate(8L * n).asLongBuffer();
+    }
+
+    private static ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Column too large for an off-heap buffer: "
+                    + bytes + " bytes.");
+        }
+
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Buffers don't serialize, so a MixedDataBox with the same contents is
+     * written instead.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        MixedDataBox box = new MixedDataBox(new ArrayList<>(variables), numRows);
+
+        for (int i = 0; i < numRows; i++) {
+            for (int j = 0; j < numCols(); j++) {
+                Number value = get(i, j);
+
+                if (value != null) {
+                    box.set(i, j, value);
+                }
+            }
+        }
+
+        return box;
+    }
+}
@@ -84,13 +84,14 @@ public class MixedDataBox implements DataBox {
 
     /**
      * Sets the value at the given row/column to the given Number value.
-     * The value used is number.doubleValue().
+     * The value used is number.doubleValue(), or the missing value marker if
+     * value is null.
      */
     public void set(int row, int col, Number value) {
         if (continuousData[col] != null) {
-            continuousData[col][row] = value.doubleValue();
+            continuousData[col][row] = value == null ? Double.NaN : value.doubleValue();
         } else if (discreteData[col] != null) {
-            discreteData[col][row] = value.intValue();
+            discreteData[col][row] = value == null ? -99 : value.intValue();
         } else {
             throw new IllegalArgumentException("Indices out of bounds or null value.");
         }
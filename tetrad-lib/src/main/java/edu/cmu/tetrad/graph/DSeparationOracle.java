@@ -0,0 +1,407 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.graph;
+
+import java.util.*;
+
+/**
+ * Answers d-separation queries for a fixed graph, compiled to int arrays.
+ * <p>
+ * The adjacencies of the graph are laid out as one array of edge slots (one slot for each
+ * direction of each edge), grouped by the node they leave, with the arrowheads at either end
+ * of each edge kept as bits. A query is a Bayes-ball search over edge slots, as in
+ * GraphUtils.isDConnectedTo: b may be passed through from a to c if a *-* b *-* c is not a
+ * collider and b is not in z, or if it is a collider and b is an ancestor of z (or in z).
+ * Ancestors of z are marked by a walk over a parents array. The marks, the visited slots and
+ * the queue are int arrays kept for each thread and reset by bumping a generation number, so
+ * a query allocates nothing and queries may be run from multiple threads at once.
+ * <p>
+ * Optionally, the set of nodes d-connected to x given z may be cached, keyed by x and z, so
+ * that later queries with the same x and z (for any y) are a lookup. Underline triples in the
+ * graph are not taken into account.
+ * <p>
+ * The graph is read once, when the oracle is constructed; later changes to it are not seen.
+ */
+public final class DSeparationOracle {
+
+    // Bits recording the endpoints at either end of an edge slot.
+    private static final byte ARROW_AT_SOURCE = 1;
+    private static final byte ARROW_AT_TARGET = 2;
+    private static final byte TAIL_AT_TARGET = 4;
+
+    // The nodes of the graph, in order.
+    private final List<Node> nodes;
+
+    // Node indices.
+    private final Map<Node, Integer> indices;
+
+    // The edge slots leaving node i are slotStart[i] to slotStart[i + 1] - 1.
+    private final int[] slotStart;
+
+    // For each edge slot, the node it leaves, the node it enters, and endpoint bits.
+    private final int[] sources;
+    private final int[] targets;
+    private final byte[] arrows;
+
+    // The parents of node i are parents[parentStart[i]] to parents[parentStart[i + 1] - 1].
+    private final int[] parentStart;
+    private final int[] parents;
+
+    // Working arrays for each thread.
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch(nodes.size(), targets.length);
+        }
+    };
+
+    // Nodes d-connected to x given z, by (x, z); null if reach sets are not cached.
+    private Map<Key, BitSet> reachCache = null;
+
+    private long numHits = 0;
+    private long numMisses = 0;
+
+    /**
+     * Compiles the given graph.
+     */
+    public DSeparationOracle(Graph graph) {
+        if (graph == null) throw new NullPointerException();
+
+        this.nodes = graph.getNodes();
+        this.indices = new HashMap<>();
+
+        for (int i = 0; i < nodes.size(); i++) {
+            indices.put(nodes.get(i), i);
+        }
+
+        int n = nodes.size();
+        List<List<Edge>> edges = new ArrayList<>(n);
+        int numSlots = 0;
+
+        for (Node node : nodes) {
+            List<Edge> _edges = graph.getEdges(node);
+            edges.add(_edges);
+            numSlots += _edges.size();
+        }
+
+        this.slotStart = new int[n + 1];
+        this.sources = new int[numSlots];
+        this.targets = new int[numSlots];
+        this.arrows = new byte[numSlots];
+
+        int[] numParents = new int[n];
+        int s = 0;
+
+        for (int i = 0; i < n; i++) {
+            Node a = nodes.get(i);
+            slotStart[i] = s;
+
+            for (Edge edge : edges.get(i)) {
+                Node b = edge.getDistalNode(a);
+                Endpoint atA = edge.getProximalEndpoint(a);
+                Endpoint atB = edge.getProximalEndpoint(b);
+
+                sources[s] = i;
+                targets[s] = indices.get(b);
+                if (atA == Endpoint.ARROW) arrows[s] |= ARROW_AT_SOURCE;
+                if (atB == Endpoint.ARROW) arrows[s] |= ARROW_AT_TARGET;
+                if (atB == Endpoint.TAIL) arrows[s] |= TAIL_AT_TARGET;
+
+                if (entersParent(s)) numParents[i]++;
+                s++;
+            }
+        }
+
+        slotStart[n] = s;
+
+        this.parentStart = new int[n + 1];
+
+        for (int i = 0; i < n; i++) {
+            parentStart[i + 1] = parentStart[i] + numParents[i];
+        }
+
+        this.parents = new int[parentStart[n]];
+        int p = 0;
+
+        for (s = 0; s < numSlots; s++) {
+            if (entersParent(s)) {
+                parents[p++] = targets[s];
+            }
+        }
+    }
+
+    //=========================PUBLIC METHODS===========================//
+
+    /**
+     * Caches, for up to the given number of (x, z) pairs, the set of nodes d-connected to x given
+     * z, discarding the least recently used when full. Zero turns caching off (the default).
+     */
+    public synchronized void setMaxCachedReachSets(final int maxSize) {
+        if (maxSize < 0) throw new IllegalArgumentException("Cache size must be >= 0: " + maxSize);
+
+        if (maxSize == 0) {
+            reachCache = null;
+        } else {
+            reachCache = new LinkedHashMap<Key, BitSet>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Key, BitSet> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+    }
+
+    /**
+     * @return true iff x and y are d-connected given z.
+     */
+    public boolean isDConnectedTo(Node x, Node y, List<Node> z) {
+        int[] _z = new int[z.size()];
+
+        for (int k = 0; k < _z.length; k++) {
+            _z[k] = indexOf(z.get(k));
+        }
+
+        return isDConnectedTo(indexOf(x), indexOf(y), _z);
+    }
+
+    /**
+     * @return true iff x and y are d-separated given z.
+     */
+    public boolean isDSeparatedFrom(Node x, Node y, List<Node> z) {
+        return !isDConnectedTo(x, y, z);
+    }
+
+    /**
+     * @param x The index of x in getNodes().
+     * @param y The index of y in getNodes().
+     * @param z The indices of the conditioning nodes.
+     * @return true iff x and y are d-connected given z.
+     */
+    public boolean isDConnectedTo(int x, int y, int[] z) {
+        if (x == y) return true;
+
+        Map<Key, BitSet> cache;
+
+        synchronized (this) {
+            cache = reachCache;
+        }
+
+        if (cache == null) {
+            return search(x, y, z, null);
+        }
+
+        Key key = new Key(x, z);
+        BitSet reached;
+
+        synchronized (this) {
+            reached = cache.get(key);
+            if (reached != null) numHits++;
+            else numMisses++;
+        }
+
+        if (reached == null) {
+            reached = new BitSet(nodes.size());
+            search(x, -1, z, reached);
+
+            synchronized (this) {
+                cache.put(key, reached);
+            }
+        }
+
+        return reached.get(y);
+    }
+
+    /**
+     * @return the index of the given node in getNodes().
+     * @throws IllegalArgumentException if the node is not in the graph.
+     */
+    public int indexOf(Node node) {
+        Integer index = indices.get(node);
+
+        if (index == null) {
+            throw new IllegalArgumentException("Not a node in the graph: " + node);
+        }
+
+        return index;
+    }
+
+    /**
+     * @return the nodes of the graph, in order.
+     */
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * @return the number of queries answered from the cache.
+     */
+    public synchronized long getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * @return the number of queries that had to be searched for with the cache on.
+     */
+    public synchronized long getNumMisses() {
+        return numMisses;
+    }
+
+    //=========================PRIVATE METHODS===========================//
+
+    /**
+     * @return true iff the edge slot leaves a child of the node it enters.
+     */
+    private boolean entersParent(int s) {
+        return (arrows[s] & ARROW_AT_SOURCE) != 0 && (arrows[s] & TAIL_AT_TARGET) != 0;
+    }
+
+    /**
+     * Bayes-ball from x. If reached is null, stops and returns true when y is reached;
+     * otherwise records every node reached and returns false.
+     */
+    private boolean search(int x, int y, int[] z, BitSet reached) {
+        Scratch w = scratch.get();
+        int generation = w.next();
+
+        int[] inZ = w.inZ;
+        int[] ancestorOfZ = w.ancestorOfZ;
+        int[] visited = w.visited;
+        int[] queue = w.queue;
+
+        // Mark z and, walking up parents, the ancestors of z.
+        int tail = 0;
+
+        for (int node : z) {
+            inZ[node] = generation;
+
+            if (ancestorOfZ[node] != generation) {
+                ancestorOfZ[node] = generation;
+                queue[tail++] = node;
+            }
+        }
+
+        for (int head = 0; head < tail; head++) {
+            int node = queue[head];
+
+            for (int p = parentStart[node]; p < parentStart[node + 1]; p++) {
+                int parent = parents[p];
+
+                if (ancestorOfZ[parent] != generation) {
+                    ancestorOfZ[parent] = generation;
+                    queue[tail++] = parent;
+                }
+            }
+        }
+
+        // The queue now holds edge slots.
+        tail = 0;
+
+        for (int s = slotStart[x]; s < slotStart[x + 1]; s++) {
+            if (targets[s] == y) return true;
+            if (reached != null) reached.set(targets[s]);
+            visited[s] = generation;
+            queue[tail++] = s;
+        }
+
+        for (int head = 0; head < tail; head++) {
+            int s1 = queue[head];
+            int a = sources[s1];
+            int b = targets[s1];
+            boolean intoB = (arrows[s1] & ARROW_AT_TARGET) != 0;
+            boolean passNoncollider = inZ[b] != generation;
+            boolean passCollider = ancestorOfZ[b] == generation;
+
+            for (int s2 = slotStart[b]; s2 < slotStart[b + 1]; s2++) {
+                int c = targets[s2];
+                if (c == a) continue;
+
+                boolean collider = intoB && (arrows[s2] & ARROW_AT_SOURCE) != 0;
+
+                if (collider ? passCollider : passNoncollider) {
+                    if (c == y) return true;
+                    if (reached != null) reached.set(c);
+
+                    if (visited[s2] != generation) {
+                        visited[s2] = generation;
+                        queue[tail++] = s2;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Marks for one thread, valid where equal to the current generation.
+     */
+    private static class Scratch {
+        private final int[] inZ;
+        private final int[] ancestorOfZ;
+        private final int[] visited;
+        private final int[] queue;
+        private int generation = 0;
+
+        Scratch(int numNodes, int numSlots) {
+            this.inZ = new int[numNodes];
+            this.ancestorOfZ = new int[numNodes];
+            this.visited = new int[numSlots];
+            this.queue = new int[Math.max(numNodes, numSlots)];
+        }
+
+        int next() {
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(inZ, 0);
+                Arrays.fill(ancestorOfZ, 0);
+                Arrays.fill(visited, 0);
+                generation = 1;
+            }
+
+            return generation;
+        }
+    }
+
+    /**
+     * A cache key: x together with z, in sorted order.
+     */
+    private static class Key {
+        private final int x;
+        private final int[] z;
+        private final int hashCode;
+
+        Key(int x, int[] z) {
+            this.x = x;
+            this.z = z.clone();
+            Arrays.sort(this.z);
+            this.hashCode = 31 * x + Arrays.hashCode(this.z);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return x == key.x && Arrays.equals(z, key.z);
+        }
+    }
+}
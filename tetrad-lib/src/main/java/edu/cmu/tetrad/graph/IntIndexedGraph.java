@@ -0,0 +1,1485 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.graph;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.*;
+
+/**
+ * <p>Stores a graph as arrays of int codes indexed by node, for large sparse graphs
+ * in search inner loops. Each node is given the index of its position in getNodes();
+ * the adjacencies of a node are kept in a sorted int array, one int per adjacent node,
+ * packing the index of the adjacent node with the endpoints at either end of the edge
+ * connecting them. Adjacency and endpoint lookups are then a binary search in a
+ * primitive array, with no Edge objects allocated; Node and Edge objects are made
+ * only when they are asked for.</p>
+ * <p>At most one edge may connect any two nodes, and edges from a node to itself are
+ * not permitted. Arrays are replaced rather than modified when edges are added or
+ * removed, so a thread reading adjacencies always sees a consistent array. Removing
+ * a node renumbers the nodes after it, which takes time linear in the size of the
+ * graph.</p>
+ * <p>Unlike EndpointMatrixGraph, memory is proportional to the number of edges, so
+ * graphs over tens of thousands of nodes are practical. Convert to and from
+ * EdgeListGraph using the copy constructors.</p>
+ *
+ * @see EdgeListGraph
+ * @see EndpointMatrixGraph
+ */
+public final class IntIndexedGraph implements Graph {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * Endpoints by code. Code 0 means no edge.
+     */
+    private static final Endpoint[] ENDPOINTS = {null, Endpoint.TAIL, Endpoint.ARROW,
+            Endpoint.CIRCLE, Endpoint.NULL};
+
+    private static final int TAIL = 1;
+    private static final int ARROW = 2;
+    private static final int CIRCLE = 3;
+
+    private static final int[] EMPTY = new int[0];
+
+    /**
+     * A list of the nodes in the graph, in the order in which they were added.
+     *
+     * @serial
+     */
+    private List<Node> nodes = new ArrayList<>();
+
+    /**
+     * Map from each node to its index in nodes.
+     *
+     * @serial
+     */
+    private Map<Node, Integer> indices = new HashMap<>();
+
+    /**
+     * For each node index, the adjacencies of that node as codes (j << 6) | (near << 3) | far,
+     * sorted by j, where j is the index of the adjacent node, near is the endpoint code at this
+     * node and far the endpoint code at node j. May be longer than nodes.
+     *
+     * @serial
+     */
+    private int[][] adjacencies = new int[4][];
+
+    /**
+     * The number of edges in the graph.
+     *
+     * @serial
+     */
+    private int numEdges = 0;
+
+    /**
+     * These are the graph constraints currently used.
+     *
+     * @serial
+     */
+    private List<GraphConstraint> graphConstraints = new LinkedList<>();
+
+    /**
+     * True iff graph constraints will be checked for future graph
+     * modifications.
+     *
+     * @serial
+     */
+    private boolean graphConstraintsChecked = true;
+
+    /**
+     * Fires property change events; null until a listener is added.
+     */
+    private transient PropertyChangeSupport pcs;
+
+    /**
+     * @serial
+     */
+    private Set<Triple> ambiguousTriples = new HashSet<>();
+
+    /**
+     * @serial
+     */
+    private Set<Triple> underLineTriples = new HashSet<>();
+
+    /**
+     * @serial
+     */
+    private Set<Triple> dottedUnderLineTriples = new HashSet<>();
+
+    /**
+     * The set of highlighted edges.
+     */
+    private Set<Edge> highlightedEdges = new HashSet<>();
+
+    /**
+     * A hash from node names to nodes;
+     */
+    private Map<String, Node> namesHash = new HashMap<>();
+
+    //==============================CONSTUCTORS===========================//
+
+    /**
+     * Constructs a new (empty) IntIndexedGraph.
+     */
+    public IntIndexedGraph() {
+    }
+
+    /**
+     * Constructs a new graph, with no edges, over the given nodes.
+     */
+    public IntIndexedGraph(List<Node> nodes) {
+        if (nodes == null) {
+            throw new NullPointerException();
+        }
+
+        for (Node node : nodes) {
+            if (!addNode(node)) {
+                throw new IllegalArgumentException();
+            }
+        }
+    }
+
+    /**
+     * Constructs an IntIndexedGraph using the nodes and edges of the given graph.
+     * Note that any graph constraints from the given graph are forgotten in the new
+     * graph.
+     *
+     * @param graph the graph from which nodes and edges are is to be
+     *              extracted.
+     * @throws IllegalArgumentException if the given graph has more than one edge
+     *                                  between two nodes or an edge from a node to itself.
+     */
+    public IntIndexedGraph(Graph graph) throws IllegalArgumentException {
+        if (graph == null) {
+            throw new NullPointerException("Graph must not be null.");
+        }
+
+        transferNodesAndEdges(graph);
+        this.ambiguousTriples = graph.getAmbiguousTriples();
+        this.underLineTriples = graph.getUnderLines();
+        this.dottedUnderLineTriples = graph.getDottedUnderlines();
+
+        for (Edge edge : graph.getEdges()) {
+            if (graph.isHighlighted(edge)) {
+                setHighlighted(edge, true);
+            }
+        }
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static IntIndexedGraph serializableInstance() {
+        return new IntIndexedGraph();
+    }
+
+    //===========================INDEXED METHODS===========================//
+
+    /**
+     * @return the index of the given node, or -1 if it is not in the graph.
+     */
+    public int getIndex(Node node) {
+        Integer index = indices.get(node);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the node at the given index.
+     */
+    public Node getNode(int index) {
+        return nodes.get(index);
+    }
+
+    /**
+     * @return the number of nodes adjacent to the node at index i.
+     */
+    public int getDegree(int i) {
+        return adjacencies[i].length;
+    }
+
+    /**
+     * @return the indices of the nodes adjacent to the node at index i, in increasing order.
+     */
+    public int[] getAdjacentIndices(int i) {
+        int[] adj = adjacencies[i];
+        int[] result = new int[adj.length];
+
+        for (int k = 0; k < adj.length; k++) {
+            result[k] = adj[k] >>> 6;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the indices of the parents of the node at index i, in increasing order.
+     */
+    public int[] getParentIndices(int i) {
+        return select(adjacencies[i], ARROW, TAIL);
+    }
+
+    /**
+     * @return the indices of the children of the node at index i, in increasing order.
+     */
+    public int[] getChildIndices(int i) {
+        return select(adjacencies[i], TAIL, ARROW);
+    }
+
+    /**
+     * @return true iff the nodes at indices i and j are adjacent.
+     */
+    public boolean isAdjacentTo(int i, int j) {
+        return find(adjacencies[i], j) >= 0;
+    }
+
+    /**
+     * @return the endpoint at node j of the edge connecting the nodes at indices i and j,
+     * or null if they are not adjacent.
+     */
+    public Endpoint getEndpoint(int i, int j) {
+        int[] adj = adjacencies[i];
+        int k = find(adj, j);
+        return k < 0 ? null : ENDPOINTS[adj[k] & 7];
+    }
+
+    /**
+     * @return true iff the node at index i is a parent of the node at index j.
+     */
+    public boolean isParentOf(int i, int j) {
+        int[] adj = adjacencies[i];
+        int k = find(adj, j);
+        return k >= 0 && near(adj[k]) == TAIL && far(adj[k]) == ARROW;
+    }
+
+    //===============================PUBLIC METHODS========================//
+
+    public boolean addGraphConstraint(GraphConstraint gc) {
+        if (!this.graphConstraints.contains(gc)) {
+            this.graphConstraints.add(gc);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    public boolean addDirectedEdge(Node node1, Node node2) {
+        return addEdge(Edges.directedEdge(node1, node2));
+    }
+
+    public boolean addUndirectedEdge(Node node1, Node node2) {
+        return addEdge(Edges.undirectedEdge(node1, node2));
+    }
+
+    public boolean addNondirectedEdge(Node node1, Node node2) {
+        return addEdge(Edges.nondirectedEdge(node1, node2));
+    }
+
+    public boolean addPartiallyOrientedEdge(Node node1, Node node2) {
+        return addEdge(Edges.partiallyOrientedEdge(node1, node2));
+    }
+
+    public boolean addBidirectedEdge(Node node1, Node node2) {
+        return addEdge(Edges.bidirectedEdge(node1, node2));
+    }
+
+    /**
+     * Adds an edge to the graph.
+     *
+     * @param edge the edge to be added
+     * @return true if the edge was added or is already in the graph, false if a
+     * different edge already connects its nodes.
+     * @throws IllegalArgumentException if the edge is from a node to itself.
+     */
+    public boolean addEdge(Edge edge) {
+        if (edge == null) throw new NullPointerException();
+
+        Integer i = indices.get(edge.getNode1());
+        Integer j = indices.get(edge.getNode2());
+
+        if (i == null || j == null) {
+            throw new NullPointerException("Can't add an edge unless both " +
+                    "nodes are in the graph: " + edge);
+        }
+
+        if (i.equals(j)) {
+            throw new IllegalArgumentException("Edges from a node to itself are not supported: " + edge);
+        }
+
+        int e1 = code(edge.getEndpoint1());
+        int e2 = code(edge.getEndpoint2());
+
+        int[] adj = adjacencies[i];
+        int k = find(adj, j);
+
+        if (k >= 0) {
+            return near(adj[k]) == e1 && far(adj[k]) == e2;
+        }
+
+        put(i, j, e1, e2);
+        put(j, i, e2, e1);
+        numEdges++;
+
+        if (pcs != null) {
+            pcs.firePropertyChange("edgeAdded", null, edge);
+        }
+
+        return true;
+    }
+
+    public void addPropertyChangeListener(PropertyChangeListener l) {
+        getPcs().addPropertyChangeListener(l);
+    }
+
+    /**
+     * Adds a node to the graph.
+     *
+     * @param node the node to be added.
+     * @return true if the the node was added or is already in the graph, false if not.
+     */
+    public boolean addNode(Node node) {
+        if (node == null) {
+            throw new NullPointerException();
+        }
+
+        if (indices.containsKey(node)) return true;
+
+        if (isGraphConstraintsChecked() && !checkAddNode(node)) {
+            return false;
+        }
+
+        int index = nodes.size();
+
+        if (index == adjacencies.length) {
+            adjacencies = Arrays.copyOf(adjacencies, 2 * index);
+        }
+
+        adjacencies[index] = EMPTY;
+        nodes.add(node);
+        indices.put(node, index);
+        namesHash.put(node.getName(), node);
+
+        if (pcs != null && node.getNodeType() != NodeType.ERROR) {
+            pcs.firePropertyChange("nodeAdded", null, node);
+        }
+
+        return true;
+    }
+
+    public void clear() {
+        if (pcs != null) {
+            for (Edge edge : getEdges()) {
+                pcs.firePropertyChange("edgeRemoved", edge, null);
+            }
+
+            for (Node node : nodes) {
+                pcs.firePropertyChange("nodeRemoved", node, null);
+            }
+        }
+
+        nodes.clear();
+        indices.clear();
+        namesHash.clear();
+        adjacencies = new int[4][];
+        numEdges = 0;
+    }
+
+    public boolean containsEdge(Edge edge) {
+        Integer i = indices.get(edge.getNode1());
+        Integer j = indices.get(edge.getNode2());
+        if (i == null || j == null) return false;
+
+        int[] adj = adjacencies[i];
+        int k = find(adj, j);
+
+        return k >= 0 && ENDPOINTS[near(adj[k])] == edge.getEndpoint1()
+                && ENDPOINTS[far(adj[k])] == edge.getEndpoint2();
+    }
+
+    public boolean containsNode(Node node) {
+        return indices.containsKey(node);
+    }
+
+    /**
+     * @return true iff there is a directed cycle, found by peeling off nodes
+     * with no parents left.
+     */
+    public boolean existsDirectedCycle() {
+        int n = nodes.size();
+        int[] indegree = new int[n];
+        int[] queue = new int[n];
+        int tail = 0;
+
+        for (int i = 0; i < n; i++) {
+            indegree[i] = getParentIndices(i).length;
+            if (indegree[i] == 0) queue[tail++] = i;
+        }
+
+        for (int head = 0; head < tail; head++) {
+            for (int child : getChildIndices(queue[head])) {
+                if (--indegree[child] == 0) queue[tail++] = child;
+            }
+        }
+
+        return tail < n;
+    }
+
+    public boolean isDirectedFromTo(Node node1, Node node2) {
+        int i = getIndex(node1);
+        int j = getIndex(node2);
+        return i != -1 && j != -1 && isParentOf(i, j);
+    }
+
+    public boolean isUndirectedFromTo(Node node1, Node node2) {
+        int[] e = endpoints(node1, node2);
+        return e != null && e[0] == TAIL && e[1] == TAIL;
+    }
+
+    /**
+     * @return true if the given edge is definitely visible (Jiji, pg 25)
+     * @throws IllegalArgumentException if the given edge is not a directed edge
+     *                                  in the graph
+     */
+    public boolean defVisible(Edge edge) {
+        if (!containsEdge(edge)) {
+            throw new IllegalArgumentException("Given edge is not in the graph.");
+        }
+
+        int a = indices.get(Edges.getDirectedEdgeTail(edge));
+        int b = indices.get(Edges.getDirectedEdgeHead(edge));
+
+        for (int code : adjacencies[a]) {
+            int c = code >>> 6;
+            if (c != b && !isAdjacentTo(c, b) && near(code) == ARROW) return true;
+        }
+
+        return false;
+    }
+
+    public boolean isDefNoncollider(Node node1, Node node2, Node node3) {
+        if (isDirectedFromTo(node2, node1) || isDirectedFromTo(node2, node3)) {
+            return true;
+        } else if (!isAdjacentTo(node1, node3)) {
+            return getEndpoint(node1, node2) == Endpoint.CIRCLE
+                    && getEndpoint(node3, node2) == Endpoint.CIRCLE;
+        } else {
+            return false;
+        }
+    }
+
+    public boolean isDefCollider(Node node1, Node node2, Node node3) {
+        return getEndpoint(node1, node2) == Endpoint.ARROW
+                && getEndpoint(node3, node2) == Endpoint.ARROW;
+    }
+
+    public boolean existsDirectedPathFromTo(Node node1, Node node2) {
+        int i = getIndex(node1);
+        int j = getIndex(node2);
+        if (i == -1 || j == -1) return false;
+
+        BitSet reached = new BitSet(nodes.size());
+        int[] queue = new int[nodes.size()];
+        int tail = 0;
+        queue[tail++] = i;
+
+        for (int head = 0; head < tail; head++) {
+            for (int child : getChildIndices(queue[head])) {
+                if (child == j) return true;
+                if (reached.get(child)) continue;
+                reached.set(child);
+                queue[tail++] = child;
+            }
+        }
+
+        return false;
+    }
+
+    public boolean existsUndirectedPathFromTo(Node node1, Node node2) {
+        int i = getIndex(node1);
+        int j = getIndex(node2);
+        if (i == -1 || j == -1) return false;
+
+        BitSet reached = new BitSet(nodes.size());
+        int[] queue = new int[nodes.size()];
+        int tail = 0;
+        queue[tail++] = i;
+        reached.set(i);
+
+        for (int head = 0; head < tail; head++) {
+            for (int code : adjacencies[queue[head]]) {
+                int c = code >>> 6;
+                if (c == j) return true;
+                if (reached.get(c)) continue;
+                reached.set(c);
+                queue[tail++] = c;
+            }
+        }
+
+        return false;
+    }
+
+    public boolean existsSemiDirectedPathFromTo(Node node1, Set<Node> nodes) {
+        int i = getIndex(node1);
+        if (i == -1) return false;
+
+        BitSet targets = toBitSet(nodes);
+        BitSet reached = new BitSet(this.nodes.size());
+        int[] queue = new int[this.nodes.size()];
+        int tail = 0;
+        queue[tail++] = i;
+        reached.set(i);
+
+        for (int head = 0; head < tail; head++) {
+            for (int code : adjacencies[queue[head]]) {
+                if (near(code) != TAIL && near(code) != CIRCLE) continue;
+                int c = code >>> 6;
+                if (targets.get(c)) return true;
+                if (reached.get(c)) continue;
+                reached.set(c);
+                queue[tail++] = c;
+            }
+        }
+
+        return false;
+    }
+
+    public boolean existsTrek(Node node1, Node node2) {
+        BitSet ancestors1 = ancestors(Collections.singletonList(node1));
+        BitSet ancestors2 = ancestors(Collections.singletonList(node2));
+        return ancestors1.intersects(ancestors2);
+    }
+
+    public List<Node> getChildren(Node node) {
+        return toNodes(getChildIndices(indices.get(node)));
+    }
+
+    public int getConnectivity() {
+        int connectivity = 0;
+
+        for (int i = 0; i < nodes.size(); i++) {
+            connectivity = Math.max(connectivity, adjacencies[i].length);
+        }
+
+        return connectivity;
+    }
+
+    public List<Node> getDescendants(List<Node> nodes) {
+        BitSet reached = toBitSet(nodes);
+        int[] queue = new int[this.nodes.size()];
+        int tail = 0;
+
+        for (int i = reached.nextSetBit(0); i >= 0; i = reached.nextSetBit(i + 1)) {
+            queue[tail++] = i;
+        }
+
+        for (int head = 0; head < tail; head++) {
+            for (int child : getChildIndices(queue[head])) {
+                if (reached.get(child)) continue;
+                reached.set(child);
+                queue[tail++] = child;
+            }
+        }
+
+        return toNodes(reached);
+    }
+
+    /**
+     * @return the edge connecting node1 and node2, or null if they are not adjacent.
+     */
+    public Edge getEdge(Node node1, Node node2) {
+        int[] e = endpoints(node1, node2);
+        if (e == null) return null;
+        return new Edge(node1, node2, ENDPOINTS[e[0]], ENDPOINTS[e[1]]);
+    }
+
+    public Edge getDirectedEdge(Node node1, Node node2) {
+        if (!isDirectedFromTo(node1, node2)) return null;
+        return Edges.directedEdge(node1, node2);
+    }
+
+    public List<Node> getParents(Node node) {
+        return toNodes(getParentIndices(indices.get(node)));
+    }
+
+    public int getIndegree(Node node) {
+        return getParentIndices(indices.get(node)).length;
+    }
+
+    public int getOutdegree(Node node) {
+        return getChildIndices(indices.get(node)).length;
+    }
+
+    public boolean isAdjacentTo(Node node1, Node node2) {
+        if (node1 == null || node2 == null) return false;
+        Integer i = indices.get(node1);
+        Integer j = indices.get(node2);
+        return i != null && j != null && isAdjacentTo(i, j);
+    }
+
+    public boolean isAncestorOf(Node node1, Node node2) {
+        return node1 == node2 || existsDirectedPathFromTo(node1, node2);
+    }
+
+    public boolean possibleAncestor(Node node1, Node node2) {
+        return existsSemiDirectedPathFromTo(node1, Collections.singleton(node2));
+    }
+
+    public List<Node> getAncestors(List<Node> nodes) {
+        return toNodes(ancestors(nodes));
+    }
+
+    public boolean isChildOf(Node node1, Node node2) {
+        return isDirectedFromTo(node2, node1);
+    }
+
+    public boolean isParentOf(Node node1, Node node2) {
+        return isDirectedFromTo(node1, node2);
+    }
+
+    public boolean isProperAncestorOf(Node node1, Node node2) {
+        return existsDirectedPathFromTo(node1, node2);
+    }
+
+    public boolean isProperDescendentOf(Node node1, Node node2) {
+        return existsDirectedPathFromTo(node2, node1);
+    }
+
+    public boolean isDescendentOf(Node node1, Node node2) {
+        return (node1 == node2) || isProperDescendentOf(node1, node2);
+    }
+
+    public boolean defNonDescendent(Node node1, Node node2) {
+        return !(possibleAncestor(node1, node2));
+    }
+
+    public boolean isDConnectedTo(Node x, Node y, List<Node> z) {
+        return GraphUtils.isDConnectedTo(x, y, z, this);
+    }
+
+    public boolean isDSeparatedFrom(Node node1, Node node2, List<Node> z) {
+        return !isDConnectedTo(node1, node2, z);
+    }
+
+    /**
+     * Searches pairs (a, b) of adjacent nodes, starting from node1, for a possibly
+     * d-connecting path to node2.
+     */
+    public boolean possDConnectedTo(Node node1, Node node2, List<Node> z) {
+        int x = getIndex(node1);
+        int y = getIndex(node2);
+        if (x == -1 || y == -1) return false;
+
+        Set<Long> visited = new HashSet<>();
+        Queue<int[]> queue = new ArrayDeque<>();
+        queue.offer(new int[]{x, x});
+        visited.add(pair(x, x));
+
+        while (!queue.isEmpty()) {
+            int[] t = queue.poll();
+            int a = t[0];
+            int b = t[1];
+
+            for (int code : adjacencies[b]) {
+                int c = code >>> 6;
+                if (c == a || visited.contains(pair(b, c))) continue;
+
+                if (a != b) {
+                    Node _a = nodes.get(a);
+                    Node _b = nodes.get(b);
+                    Node _c = nodes.get(c);
+
+                    if (!((isDefNoncollider(_a, _b, _c) && !z.contains(_b))
+                            || (isDefCollider(_a, _b, _c) && possibleAncestorSet(_b, z)))) {
+                        continue;
+                    }
+                }
+
+                if (c == y) return true;
+
+                visited.add(pair(b, c));
+                visited.add(pair(c, b));
+                queue.offer(new int[]{b, c});
+            }
+        }
+
+        return false;
+    }
+
+    public boolean existsInducingPath(Node node1, Node node2) {
+        return GraphUtils.existsInducingPath(node1, node2, this);
+    }
+
+    public void transferNodesAndEdges(Graph graph)
+            throws IllegalArgumentException {
+        if (graph == null) {
+            throw new NullPointerException("No graph was provided.");
+        }
+
+        for (Node node : graph.getNodes()) {
+            if (!addNode(node)) {
+                throw new IllegalArgumentException();
+            }
+        }
+
+        for (Edge edge : graph.getEdges()) {
+            if (!addEdge(edge)) {
+                throw new IllegalArgumentException("More than one edge between " +
+                        edge.getNode1() + " and " + edge.getNode2());
+            }
+        }
+    }
+
+    public boolean isExogenous(Node node) {
+        return getIndegree(node) == 0;
+    }
+
+    public List<Node> getAdjacentNodes(Node node) {
+        int[] adj = adjacencies[indices.get(node)];
+        List<Node> nodes = new ArrayList<>(adj.length);
+
+        for (int code : adj) {
+            nodes.add(this.nodes.get(code >>> 6));
+        }
+
+        return nodes;
+    }
+
+    public boolean removeEdge(Node node1, Node node2) {
+        return removeEdges(node1, node2);
+    }
+
+    public Endpoint getEndpoint(Node node1, Node node2) {
+        int[] e = endpoints(node1, node2);
+        return e == null ? null : ENDPOINTS[e[1]];
+    }
+
+    /**
+     * If there is currently an edge from node1 to node2, sets the endpoint at
+     * node2 to the given endpoint; if there is no such edge, adds an edge --#
+     * where # is the given endpoint.
+     */
+    public boolean setEndpoint(Node from, Node to, Endpoint endPoint)
+            throws IllegalArgumentException {
+        if (endPoint == null) {
+            throw new NullPointerException();
+        }
+
+        int[] e = endpoints(from, to);
+
+        if (e == null) {
+            return addEdge(new Edge(from, to, Endpoint.TAIL, endPoint));
+        }
+
+        int i = indices.get(from);
+        int j = indices.get(to);
+        int code = code(endPoint);
+
+        put(i, j, e[0], code);
+        put(j, i, code, e[0]);
+        return true;
+    }
+
+    public List<Node> getNodesInTo(Node node, Endpoint endpoint) {
+        List<Node> nodes = new ArrayList<>(4);
+        int code = code(endpoint);
+
+        for (int c : adjacencies[indices.get(node)]) {
+            if (near(c) == code) nodes.add(this.nodes.get(c >>> 6));
+        }
+
+        return nodes;
+    }
+
+    public List<Node> getNodesOutTo(Node node, Endpoint endpoint) {
+        List<Node> nodes = new ArrayList<>(4);
+        int code = code(endpoint);
+
+        for (int c : adjacencies[indices.get(node)]) {
+            if (far(c) == code) nodes.add(this.nodes.get(c >>> 6));
+        }
+
+        return nodes;
+    }
+
+    public Endpoint[][] getEndpointMatrix() {
+        int size = nodes.size();
+        Endpoint[][] endpoints = new Endpoint[size][size];
+
+        for (int i = 0; i < size; i++) {
+            for (int code : adjacencies[i]) {
+                endpoints[i][code >>> 6] = ENDPOINTS[far(code)];
+            }
+        }
+
+        return endpoints;
+    }
+
+    public Set<Edge> getEdges() {
+        Set<Edge> edges = new HashSet<>();
+
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int code : adjacencies[i]) {
+                if ((code >>> 6) > i) edges.add(edge(i, code));
+            }
+        }
+
+        return edges;
+    }
+
+    public List<Edge> getEdges(Node node) {
+        int i = indices.get(node);
+        int[] adj = adjacencies[i];
+        List<Edge> edges = new ArrayList<>(adj.length);
+
+        for (int code : adj) {
+            edges.add(edge(i, code));
+        }
+
+        return edges;
+    }
+
+    public List<Edge> getEdges(Node node1, Node node2) {
+        Edge edge = getEdge(node1, node2);
+        if (edge == null) return new ArrayList<>();
+        List<Edge> edges = new ArrayList<>(1);
+        edges.add(edge);
+        return edges;
+    }
+
+    public int hashCode() {
+        int hashCode = 0;
+        int sum = 0;
+
+        for (Node node : getNodes()) {
+            sum += node.hashCode();
+        }
+
+        hashCode += 23 * sum;
+        sum = 0;
+
+        for (Edge edge : getEdges()) {
+            sum += edge.hashCode();
+        }
+
+        hashCode += 41 * sum;
+
+        return hashCode;
+    }
+
+    /**
+     * @return true iff the given object is a graph that is equal to this graph,
+     * in the sense that it contains the same nodes and the edges are
+     * isomorphic.
+     */
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof Graph)) return false;
+
+        Graph graph = (Graph) o;
+
+        return new HashSet<>(graph.getNodeNames()).equals(new HashSet<>(getNodeNames()))
+                && graph.getEdges().equals(getEdges());
+    }
+
+    public void fullyConnect(Endpoint endpoint) {
+        int code = code(endpoint);
+        int n = nodes.size();
+
+        for (int i = 0; i < n; i++) {
+            int[] adj = new int[n - 1];
+            int k = 0;
+
+            for (int j = 0; j < n; j++) {
+                if (j != i) adj[k++] = pack(j, code, code);
+            }
+
+            adjacencies[i] = adj;
+        }
+
+        numEdges = n * (n - 1) / 2;
+    }
+
+    public void reorientAllWith(Endpoint endpoint) {
+        int code = code(endpoint);
+
+        for (int i = 0; i < nodes.size(); i++) {
+            int[] adj = adjacencies[i].clone();
+
+            for (int k = 0; k < adj.length; k++) {
+                adj[k] = pack(adj[k] >>> 6, code, code);
+            }
+
+            adjacencies[i] = adj;
+        }
+    }
+
+    public Node getNode(String name) {
+        return namesHash.get(name);
+    }
+
+    public int getNumNodes() {
+        return nodes.size();
+    }
+
+    public int getNumEdges() {
+        return numEdges;
+    }
+
+    public int getNumEdges(Node node) {
+        Integer i = indices.get(node);
+        return i == null ? 0 : adjacencies[i].length;
+    }
+
+    public List<GraphConstraint> getGraphConstraints() {
+        return new LinkedList<>(graphConstraints);
+    }
+
+    public boolean isGraphConstraintsChecked() {
+        return this.graphConstraintsChecked;
+    }
+
+    public void setGraphConstraintsChecked(boolean checked) {
+        this.graphConstraintsChecked = checked;
+    }
+
+    public List<Node> getNodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    public boolean removeEdge(Edge edge) {
+        if (!containsEdge(edge)) return false;
+
+        if (!checkRemoveEdge(edge)) {
+            return false;
+        }
+
+        int i = indices.get(edge.getNode1());
+        int j = indices.get(edge.getNode2());
+
+        delete(i, j);
+        delete(j, i);
+        numEdges--;
+
+        highlightedEdges.remove(edge);
+
+        if (pcs != null) {
+            pcs.firePropertyChange("edgeRemoved", edge, null);
+        }
+
+        return true;
+    }
+
+    public boolean removeEdges(Collection<Edge> edges) {
+        boolean change = false;
+
+        for (Edge edge : edges) {
+            boolean _change = removeEdge(edge);
+            change = change || _change;
+        }
+
+        return change;
+    }
+
+    public boolean removeEdges(Node node1, Node node2) {
+        Edge edge = getEdge(node1, node2);
+        return edge != null && removeEdge(edge);
+    }
+
+    /**
+     * Removes a node from the graph. The nodes after it are renumbered.
+     */
+    public boolean removeNode(Node node) {
+        Integer index = indices.get(node);
+        if (index == null) return false;
+
+        if (!checkRemoveNode(node)) {
+            return false;
+        }
+
+        if (pcs != null) {
+            for (Edge edge : getEdges(node)) {
+                pcs.firePropertyChange("edgeRemoved", edge, null);
+            }
+        }
+
+        boolean changed = adjacencies[index].length > 0;
+        numEdges -= adjacencies[index].length;
+
+        int n = nodes.size();
+
+        for (int i = 0; i < n; i++) {
+            if (i == index) continue;
+            int[] adj = adjacencies[i];
+            int[] _adj = new int[adj.length];
+            int k = 0;
+
+            for (int code : adj) {
+                int j = code >>> 6;
+                if (j == index) continue;
+                _adj[k++] = j > index ? code - (1 << 6) : code;
+            }
+
+            adjacencies[i] = k == _adj.length ? _adj : Arrays.copyOf(_adj, k);
+        }
+
+        System.arraycopy(adjacencies, index + 1, adjacencies, index, n - index - 1);
+        adjacencies[n - 1] = null;
+
+        nodes.remove((int) index);
+        indices.remove(node);
+        namesHash.remove(node.getName());
+
+        for (int i = index; i < nodes.size(); i++) {
+            indices.put(nodes.get(i), i);
+        }
+
+        if (pcs != null) {
+            pcs.firePropertyChange("nodeRemoved", node, null);
+        }
+
+        return changed;
+    }
+
+    public boolean removeNodes(List<Node> newNodes) {
+        boolean changed = false;
+
+        for (Node node : newNodes) {
+            boolean _changed = removeNode(node);
+            changed = changed || _changed;
+        }
+
+        return changed;
+    }
+
+    public String toString() {
+        return GraphUtils.graphToText(this);
+    }
+
+    public Graph subgraph(List<Node> nodes) {
+        IntIndexedGraph graph = new IntIndexedGraph(nodes);
+
+        for (Node node : nodes) {
+            int i = getIndex(node);
+            if (i == -1) continue;
+
+            for (int code : adjacencies[i]) {
+                Edge edge = edge(i, code);
+
+                if (graph.containsNode(edge.getNode1()) && graph.containsNode(edge.getNode2())) {
+                    graph.addEdge(edge);
+                }
+            }
+        }
+
+        return graph;
+    }
+
+    public Set<Triple> getAmbiguousTriples() {
+        return new HashSet<>(ambiguousTriples);
+    }
+
+    public Set<Triple> getUnderLines() {
+        return new HashSet<>(underLineTriples);
+    }
+
+    public Set<Triple> getDottedUnderlines() {
+        return new HashSet<>(dottedUnderLineTriples);
+    }
+
+    public boolean isAmbiguousTriple(Node x, Node y, Node z) {
+        return ambiguousTriples.contains(new Triple(x, y, z));
+    }
+
+    public boolean isUnderlineTriple(Node x, Node y, Node z) {
+        return underLineTriples.contains(new Triple(x, y, z));
+    }
+
+    public boolean isDottedUnderlineTriple(Node x, Node y, Node z) {
+        return dottedUnderLineTriples.contains(new Triple(x, y, z));
+    }
+
+    public void addAmbiguousTriple(Node x, Node y, Node z) {
+        ambiguousTriples.add(new Triple(x, y, z));
+    }
+
+    public void addUnderlineTriple(Node x, Node y, Node z) {
+        Triple triple = new Triple(x, y, z);
+
+        if (!triple.alongPathIn(this)) {
+            throw new IllegalArgumentException("<" + x + ", " + y + ", " + z + "> must lie along a path in the graph.");
+        }
+
+        underLineTriples.add(triple);
+    }
+
+    public void addDottedUnderlineTriple(Node x, Node y, Node z) {
+        Triple triple = new Triple(x, y, z);
+
+        if (!triple.alongPathIn(this)) {
+            throw new IllegalArgumentException("<" + x + ", " + y + ", " + z + "> must lie along a path in the graph.");
+        }
+
+        dottedUnderLineTriples.add(triple);
+    }
+
+    public void removeAmbiguousTriple(Node x, Node y, Node z) {
+        ambiguousTriples.remove(new Triple(x, y, z));
+    }
+
+    public void removeUnderlineTriple(Node x, Node y, Node z) {
+        underLineTriples.remove(new Triple(x, y, z));
+    }
+
+    public void removeDottedUnderlineTriple(Node x, Node y, Node z) {
+        dottedUnderLineTriples.remove(new Triple(x, y, z));
+    }
+
+    public void setAmbiguousTriples(Set<Triple> triples) {
+        ambiguousTriples.clear();
+
+        for (Triple triple : triples) {
+            addAmbiguousTriple(triple.getX(), triple.getY(), triple.getZ());
+        }
+    }
+
+    public void setUnderLineTriples(Set<Triple> triples) {
+        underLineTriples.clear();
+
+        for (Triple triple : triples) {
+            addUnderlineTriple(triple.getX(), triple.getY(), triple.getZ());
+        }
+    }
+
+    public void setDottedUnderLineTriples(Set<Triple> triples) {
+        dottedUnderLineTriples.clear();
+
+        for (Triple triple : triples) {
+            addDottedUnderlineTriple(triple.getX(), triple.getY(), triple.getZ());
+        }
+    }
+
+    public List<String> getNodeNames() {
+        List<String> names = new ArrayList<>();
+
+        for (Node node : nodes) {
+            names.add(node.getName());
+        }
+
+        return names;
+    }
+
+    public List<Node> getCausalOrdering() {
+        return GraphUtils.getCausalOrdering(this);
+    }
+
+    public void setHighlighted(Edge edge, boolean highlighted) {
+        highlightedEdges.add(edge);
+    }
+
+    public boolean isHighlighted(Edge edge) {
+        return highlightedEdges.contains(edge);
+    }
+
+    public boolean isParameterizable(Node node) {
+        return true;
+    }
+
+    public boolean isTimeLagModel() {
+        return false;
+    }
+
+    public TimeLagGraph getTimeLagGraph() {
+        return null;
+    }
+
+    public void removeTriplesNotInGraph() {
+        removeTriplesNotInGraph(ambiguousTriples);
+        removeTriplesNotInGraph(underLineTriples);
+        removeTriplesNotInGraph(dottedUnderLineTriples);
+    }
+
+    public List<Node> getSepset(Node x, Node y) {
+        return GraphUtils.getSepset(x, y, this);
+    }
+
+    //===============================PRIVATE METHODS======================//
+
+    private static int pack(int j, int near, int far) {
+        return (j << 6) | (near << 3) | far;
+    }
+
+    private static int near(int code) {
+        return (code >>> 3) & 7;
+    }
+
+    private static int far(int code) {
+        return code & 7;
+    }
+
+    private static long pair(int i, int j) {
+        return ((long) i << 32) | j;
+    }
+
+    private static int code(Endpoint endpoint) {
+        for (int c = 1; c < ENDPOINTS.length; c++) {
+            if (ENDPOINTS[c] == endpoint) return c;
+        }
+
+        throw new IllegalArgumentException("Unsupported endpoint: " + endpoint);
+    }
+
+    /**
+     * @return the position of node j in the sorted adjacency array, or (-(insertion point) - 1)
+     * if it is not there.
+     */
+    private static int find(int[] adj, int j) {
+        int low = 0;
+        int high = adj.length - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int k = adj[mid] >>> 6;
+
+            if (k < j) {
+                low = mid + 1;
+            } else if (k > j) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * Sets the adjacency of j to i, replacing the array for i.
+     */
+    private void put(int i, int j, int near, int far) {
+        int[] adj = adjacencies[i];
+        int k = find(adj, j);
+        int[] _adj;
+
+        if (k >= 0) {
+            _adj = adj.clone();
+        } else {
+            k = -k - 1;
+            _adj = new int[adj.length + 1];
+            System.arraycopy(adj, 0, _adj, 0, k);
+            System.arraycopy(adj, k, _adj, k + 1, adj.length - k);
+        }
+
+        _adj[k] = pack(j, near, far);
+        adjacencies[i] = _adj;
+    }
+
+    /**
+     * Removes the adjacency of j from i, replacing the array for i.
+     */
+    private void delete(int i, int j) {
+        int[] adj = adjacencies[i];
+        int k = find(adj, j);
+        if (k < 0) return;
+
+        int[] _adj = new int[adj.length - 1];
+        System.arraycopy(adj, 0, _adj, 0, k);
+        System.arraycopy(adj, k + 1, _adj, k, adj.length - k - 1);
+        adjacencies[i] = _adj;
+    }
+
+    /**
+     * @return the indices of adjacent nodes whose edge has the given endpoint codes at either end.
+     */
+    private static int[] select(int[] adj, int near, int far) {
+        int[] selected = new int[adj.length];
+        int n = 0;
+
+        for (int code : adj) {
+            if (near(code) == near && far(code) == far) {
+                selected[n++] = code >>> 6;
+            }
+        }
+
+        return Arrays.copyOf(selected, n);
+    }
+
+    /**
+     * @return {near, far} endpoint codes of the edge from node1 to node2, or null if none.
+     */
+    private int[] endpoints(Node node1, Node node2) {
+        Integer i = indices.get(node1);
+        Integer j = indices.get(node2);
+        if (i == null || j == null) return null;
+
+        int[] adj = adjacencies[i];
+        int k = find(adj, j);
+        if (k < 0) return null;
+
+        return new int[]{near(adj[k]), far(adj[k])};
+    }
+
+    private Edge edge(int i, int code) {
+        return new Edge(nodes.get(i), nodes.get(code >>> 6), ENDPOINTS[near(code)], ENDPOINTS[far(code)]);
+    }
+
+    private BitSet ancestors(List<Node> nodes) {
+        BitSet reached = toBitSet(nodes);
+        int[] queue = new int[this.nodes.size()];
+        int tail = 0;
+
+        for (int i = reached.nextSetBit(0); i >= 0; i = reached.nextSetBit(i + 1)) {
+            queue[tail++] = i;
+        }
+
+        for (int head = 0; head < tail; head++) {
+            for (int parent : getParentIndices(queue[head])) {
+                if (reached.get(parent)) continue;
+                reached.set(parent);
+                queue[tail++] = parent;
+            }
+        }
+
+        return reached;
+    }
+
+    private boolean possibleAncestorSet(Node node1, List<Node> nodes2) {
+        for (Node node2 : nodes2) {
+            if (possibleAncestor(node1, node2)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private BitSet toBitSet(Collection<Node> nodes) {
+        BitSet bits = new BitSet(this.nodes.size());
+
+        for (Node node : nodes) {
+            Integer i = indices.get(node);
+            if (i != null) bits.set(i);
+        }
+
+        return bits;
+    }
+
+    private List<Node> toNodes(int[] indices) {
+        List<Node> nodes = new ArrayList<>(indices.length);
+
+        for (int i : indices) {
+            nodes.add(this.nodes.get(i));
+        }
+
+        return nodes;
+    }
+
+    private List<Node> toNodes(BitSet bits) {
+        List<Node> nodes = new ArrayList<>(bits.cardinality());
+
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            nodes.add(this.nodes.get(i));
+        }
+
+        return nodes;
+    }
+
+    private void removeTriplesNotInGraph(Set<Triple> triples) {
+        for (Triple triple : new HashSet<>(triples)) {
+            if (!containsNode(triple.getX()) || !containsNode(triple.getY()) || !containsNode(triple.getZ())
+                    || !isAdjacentTo(triple.getX(), triple.getY()) || !isAdjacentTo(triple.getY(), triple.getZ())) {
+                triples.remove(triple);
+            }
+        }
+    }
+
+    private boolean checkAddNode(Node node) {
+        for (GraphConstraint gc : graphConstraints) {
+            if (!gc.isNodeAddable(node, this)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean checkRemoveNode(Node node) {
+        for (GraphConstraint gc : graphConstraints) {
+            if (!gc.isNodeRemovable(node, this)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean checkRemoveEdge(Edge edge) {
+        for (GraphConstraint gc : graphConstraints) {
+            if (!gc.isEdgeRemovable(edge, this)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private PropertyChangeSupport getPcs() {
+        if (pcs == null) {
+            pcs = new PropertyChangeSupport(this);
+        }
+        return pcs;
+    }
+
+    /**
+     * Adds semantic checks to the default deserialization method. This method
+     * must have the standard signature for a readObject method, and the body of
+     * the method must begin with "s.defaultReadObject();". Other than that, any
+     * semantic checks can be specified and do not need to stay the same from
+     * version to version. A readObject method of this form may be added to any
+     * class, even if Tetrad sessions were previously saved out using a version
+     * of the class that didn't include it. (That's what the
+     * "s.defaultReadObject();" is for. See J. Bloch, Effective Java, for help.
+     *
+     * @throws java.io.IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream s)
+            throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+
+        if (nodes == null) {
+            throw new NullPointerException();
+        }
+
+        if (indices == null) {
+            throw new NullPointerException();
+        }
+
+        if (adjacencies == null || adjacencies.length < nodes.size()) {
+            throw new IllegalStateException();
+        }
+
+        if (graphConstraints == null) {
+            throw new NullPointerException();
+        }
+    }
+}
@@ -72,7 +72,7 @@ public abstract class AbstractContinuousDataReader extends AbstractDataReader {
         List<Integer> excludedVarIndices = new LinkedList<>();
         List<Node> nodes = new LinkedList<>();
         try (FileChannel fc = new RandomAccessFile(dataFile.toFile(), "r").getChannel()) {
-            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fc.size(), Integer.MAX_VALUE));  // only the first line is read
 
             int index = 0;
             byte currentChar = -1;
@@ -67,7 +67,7 @@ public abstract class AbstractDataReader {
         if (columnCount == -1) {
             int count = 0;
             try (FileChannel fc = new RandomAccessFile(dataFile.toFile(), "r").getChannel()) {
-                MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+                MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fc.size(), Integer.MAX_VALUE));  // only the first line is read
                 byte currentChar = -1;
                 byte prevChar = NEW_LINE;
                 while (buffer.hasRemaining()) {
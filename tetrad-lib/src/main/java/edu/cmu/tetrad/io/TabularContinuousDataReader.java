@@ -21,21 +21,36 @@ package edu.cmu.tetrad.io;
 import edu.cmu.tetrad.data.BoxDataSet;
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.DoubleDataBox;
+import edu.cmu.tetrad.data.VerticalDoubleDataBox;
 import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This data reader reads in tabular data contains continuous variables.
  *
+ * The data lines are split at line boundaries into chunks that are memory
+ * mapped and parsed in parallel, straight into the columns of a
+ * VerticalDoubleDataBox. The chunks are first scanned in parallel for the
+ * number of lines they hold, which gives the row at which each chunk starts.
+ *
  * Feb 29, 2016 1:34:57 PM
  *
  * @author Kevin V. Bui (kvb2@pitt.edu)
@@ -44,6 +59,19 @@ public class TabularContinuousDataReader extends AbstractContinuousDataReader im
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TabularContinuousDataReader.class);
 
+    /**
+     * Chunks are no bigger than this, so that each can be mapped on its own.
+     */
+    private static final long MAX_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Powers of ten that are exactly representable as doubles.
+     */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     public TabularContinuousDataReader(Path dataFile, char delimiter) {
         super(dataFile, delimiter);
     }
@@ -63,127 +91,379 @@ public class TabularContinuousDataReader extends AbstractContinuousDataReader im
         List<Node> nodes = variableAnalysis.getVariables();
         double[][] data = extractContinuousData(variableAnalysis);
 
-        return new BoxDataSet(new DoubleDataBox(data), nodes);
+        if (data.length == 0) {
+            return new BoxDataSet(new DoubleDataBox(lineCount - 1, 0), nodes);
+        }
+
+        return new BoxDataSet(new VerticalDoubleDataBox(data), nodes);
     }
 
     /**
      * Read in data.
      *
      * @param variableAnalysis
-     * @return
+     * @return the data, column by column
      * @throws IOException
      */
     protected double[][] extractContinuousData(ContinuousVariableAnalysis variableAnalysis) throws IOException {
         int maxNumOfCols = countNumberOfColumns();
         int numOfCols = variableAnalysis.getVariables().size();
-        int numOfRows = countNumberOfLines() - 1;  // minus the header
 
-        double[][] data = new double[numOfRows][numOfCols];
+        // column in the file -> column in the data, or -1 if excluded
+        int[] columns = new int[maxNumOfCols];
+        int[] excludedIndices = variableAnalysis.getExcludedIndices();
+        for (int i = 0, col = 0; i < maxNumOfCols; i++) {
+            columns[i] = (Arrays.binarySearch(excludedIndices, i) >= 0) ? -1 : col++;
+        }
+
+        ForkJoinPool pool = ForkJoinPoolInstance.getInstance().getPool();
+
         try (FileChannel fc = new RandomAccessFile(dataFile.toFile(), "r").getChannel()) {
-            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            long size = fc.size();
+            long start = skipHeader(fc);
+
+            // split the data lines into chunks, each ending just after a newline
+            long chunkSize = Math.max(1024 * 1024, Math.min(MAX_CHUNK_SIZE, (size - start) / (4 * pool.getParallelism()) + 1));
+            List<long[]> chunks = new ArrayList<>();
+            while (start < size) {
+                long end = (start + chunkSize >= size) ? size : nextLineStart(fc, start + chunkSize);
+                chunks.add(new long[]{start, end});
+                start = end;
+            }
+
+            // count the lines in each chunk to find the row each one starts at
+            List<Callable<Integer>> counters = new ArrayList<>();
+            for (long[] chunk : chunks) {
+                counters.add(new LineCounter(fc, chunk[0], chunk[1]));
+            }
+            List<Integer> lineCounts = invokeAll(pool, counters);
+
+            int[] firstRows = new int[chunks.size()];
+            long numOfRows = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                firstRows[i] = (int) numOfRows;
+                numOfRows += lineCounts.get(i);
+            }
+            if (numOfRows > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Too many lines of data: %d.", numOfRows));
+            }
+            lineCount = (int) numOfRows + 1;  // plus the header
+
+            double[][] data = new double[numOfCols][(int) numOfRows];
+
+            List<Callable<Integer>> parsers = new ArrayList<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                parsers.add(new ChunkParser(fc, chunks.get(i)[0], chunks.get(i)[1], firstRows[i], columns, numOfCols, data));
+            }
+            invokeAll(pool, parsers);
+
+            return data;
+        }
+    }
+
+    private <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException exception) {
+                throw new IOException("Interrupted while reading data.", exception);
+            } catch (ExecutionException exception) {
+                if (exception.getCause() instanceof IOException) {
+                    throw (IOException) exception.getCause();
+                }
+                throw new IOException(exception.getCause());
+            }
+        }
+
+        return results;
+    }
 
-            skipToNextLine(buffer);  // skip header
+    /**
+     * @return the position just after the first line with content.
+     */
+    private long skipHeader(FileChannel fc) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        byte prevChar = NEW_LINE;
+        while (fc.read(buffer, position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte currentChar = buffer.get();
+                position++;
+                if (currentChar == CARRIAGE_RETURN) {
+                    currentChar = NEW_LINE;
+                }
+                if (currentChar == NEW_LINE && prevChar != NEW_LINE) {
+                    return position;
+                }
+                prevChar = currentChar;
+            }
+            buffer.clear();
+        }
 
-            int[] excludedIndices = variableAnalysis.getExcludedIndices();
-            int excludedIndex = 0;
-            int excludedColumn = excludedIndices[excludedIndex];
+        return position;
+    }
 
-            int row = 0;
+    /**
+     * @return the position just after the first newline at or after the given
+     * one, or the end of the file.
+     */
+    private long nextLineStart(FileChannel fc, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (fc.read(buffer, position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte currentChar = buffer.get();
+                position++;
+                if (currentChar == NEW_LINE || currentChar == CARRIAGE_RETURN) {
+                    return position;
+                }
+            }
+            buffer.clear();
+        }
+
+        return position;
+    }
+
+    /**
+     * Counts the nonempty lines in a chunk of the file.
+     */
+    private static class LineCounter implements Callable<Integer> {
+
+        private final FileChannel fc;
+        private final long start;
+        private final long end;
+
+        public LineCounter(FileChannel fc, long start, long end) {
+            this.fc = fc;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            int count = 0;
+            byte prevChar = NEW_LINE;
+            while (buffer.hasRemaining()) {
+                byte currentChar = buffer.get();
+                if (currentChar == CARRIAGE_RETURN) {
+                    currentChar = NEW_LINE;
+                }
+
+                if (currentChar == NEW_LINE && prevChar != NEW_LINE) {
+                    count++;
+                }
+
+                prevChar = currentChar;
+            }
+
+            // the last chunk may have no newline at the end
+            if (prevChar != NEW_LINE) {
+                count++;
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Parses the lines in a chunk of the file into the data columns, starting
+     * at the given row.
+     */
+    private class ChunkParser implements Callable<Integer> {
+
+        private final FileChannel fc;
+        private final long start;
+        private final long end;
+        private final int firstRow;
+        private final int[] columns;
+        private final int numOfCols;
+        private final double[][] data;
+
+        // the characters of the current value, without quotes or whitespace
+        private byte[] value = new byte[64];
+        private int length = 0;
+
+        public ChunkParser(FileChannel fc, long start, long end, int firstRow, int[] columns, int numOfCols, double[][] data) {
+            this.fc = fc;
+            this.start = start;
+            this.end = end;
+            this.firstRow = firstRow;
+            this.columns = columns;
+            this.numOfCols = numOfCols;
+            this.data = data;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            int maxNumOfCols = columns.length;
+
+            int row = firstRow;
             int col = 0;
             int colCount = 0;
-            byte currentChar = -1;
             byte prevChar = NEW_LINE;
-            StringBuilder dataBuilder = new StringBuilder();
             while (buffer.hasRemaining()) {
-                currentChar = buffer.get();
+                byte currentChar = buffer.get();
                 if (currentChar == CARRIAGE_RETURN) {
                     currentChar = NEW_LINE;
                 }
 
                 if (currentChar == delimiter || (currentChar == NEW_LINE && prevChar != NEW_LINE)) {
-                    String value = dataBuilder.toString();
-                    dataBuilder.delete(0, dataBuilder.length());
-                    if (colCount == excludedColumn) {
-                        excludedIndex++;
-                        if (excludedIndex < excludedIndices.length) {
-                            excludedColumn = excludedIndices[excludedIndex];
-                        }
-                    } else {
-                        if (colCount < maxNumOfCols) {
-                            if (value.length() > 0) {
-                                try {
-                                    data[row][col++] = Double.parseDouble(value);
-                                } catch (NumberFormatException exception) {
-                                    throw new IOException(
-                                            String.format("Unable to parse data at line %d column %d.", row + 2, colCount + 1),
-                                            exception);
-                                }
-                            } else {
-                                String errMsg = String.format("Missing data at line %d column %d.", row + 2, colCount + 1);
-                                LOGGER.error(errMsg);
-                                throw new IOException(errMsg);
-                            }
-                        } else {
-                            String errMsg = String.format("Number of columns exceeded at line %d.  Expect %d column(s) but found %d.", row + 2, maxNumOfCols, colCount + 1);
-                            LOGGER.error(errMsg);
-                            throw new IOException(errMsg);
-                        }
+                    if (colCount >= maxNumOfCols) {
+                        String errMsg = String.format("Number of columns exceeded at line %d.  Expect %d column(s) but found %d.", row + 2, maxNumOfCols, colCount + 1);
+                        LOGGER.error(errMsg);
+                        throw new IOException(errMsg);
+                    }
+                    if (columns[colCount] != -1) {
+                        data[columns[colCount]][row] = parseValue(row, colCount);
+                        col++;
                     }
+                    length = 0;
 
                     colCount++;
                     if (currentChar == NEW_LINE) {
-                        if (col < numOfCols) {
-                            String errMsg = String.format("Insufficient number of columns at line %d.  Expect %d column(s) but found %d.", row + 2, maxNumOfCols, colCount);
-                            LOGGER.error(errMsg);
-                            throw new IOException(errMsg);
-                        }
+                        checkNumberOfColumns(row, col, colCount);
                         colCount = 0;
                         col = 0;
                         row++;
-
-                        excludedIndex = 0;
-                        excludedColumn = excludedIndices[excludedIndex];
                     }
                 } else if (currentChar > SPACE && (currentChar != SINGLE_QUOTE && currentChar != DOUBLE_QUOTE)) {
-                    dataBuilder.append((char) currentChar);
+                    if (length == value.length) {
+                        value = Arrays.copyOf(value, 2 * length);
+                    }
+                    value[length++] = currentChar;
                 }
 
                 prevChar = currentChar;
             }
-            if (currentChar > -1 && currentChar != NEW_LINE) {
-                if (currentChar == delimiter) {
-                    String errMsg = String.format("Missing data at line %d column %d.", row + 2, col + 1);
+
+            // the last chunk may have no newline at the end
+            if (prevChar != NEW_LINE) {
+                if (colCount >= maxNumOfCols) {
+                    String errMsg = String.format("Number of columns exceeded at line %d.  Expect %d column(s) but found %d.", row + 2, maxNumOfCols, colCount + 1);
                     LOGGER.error(errMsg);
                     throw new IOException(errMsg);
-                } else {
-                    String value = dataBuilder.toString();
-                    dataBuilder.delete(0, dataBuilder.length());
-                    if (colCount != excludedColumn) {
-                        if (colCount < maxNumOfCols) {
-                            if (value.length() > 0) {
-                                try {
-                                    data[row][col++] = Double.parseDouble(value);
-                                } catch (NumberFormatException exception) {
-                                    throw new IOException(
-                                            String.format("Unable to parse data at line %d column %d.", row + 2, colCount + 1),
-                                            exception);
-                                }
-                            } else {
-                                String errMsg = String.format("Missing data at line %d column %d.", row + 2, colCount + 1);
-                                LOGGER.error(errMsg);
-                                throw new IOException(errMsg);
-                            }
-                        } else {
-                            String errMsg = String.format("Number of columns exceeded at line %d.  Expect %d column(s) but found %d.", row + 2, maxNumOfCols, colCount + 1);
-                            LOGGER.error(errMsg);
-                            throw new IOException(errMsg);
-                        }
-                    }
                 }
+                if (columns[colCount] != -1) {
+                    data[columns[colCount]][row] = parseValue(row, colCount);
+                    col++;
+                }
+                checkNumberOfColumns(row, col, colCount + 1);
+                row++;
+            }
+
+            return row - firstRow;
+        }
+
+        private void checkNumberOfColumns(int row, int col, int colCount) throws IOException {
+            if (col < numOfCols) {
+                String errMsg = String.format("Insufficient number of columns at line %d.  Expect %d column(s) but found %d.", row + 2, columns.length, colCount);
+                LOGGER.error(errMsg);
+                throw new IOException(errMsg);
+            }
+        }
+
+        private double parseValue(int row, int colCount) throws IOException {
+            if (length == 0) {
+                String errMsg = String.format("Missing data at line %d column %d.", row + 2, colCount + 1);
+                LOGGER.error(errMsg);
+                throw new IOException(errMsg);
+            }
+
+            try {
+                return parseDouble(value, length);
+            } catch (NumberFormatException exception) {
+                throw new IOException(
+                        String.format("Unable to parse data at line %d column %d.", row + 2, colCount + 1),
+                        exception);
+            }
+        }
+    }
+
+    /**
+     * Parses a decimal number from its ASCII bytes. Numbers of up to 18
+     * significant digits whose value can be formed with a single exact
+     * multiplication or division by a power of ten are converted directly,
+     * which is exact; anything else is handed to Double.parseDouble. Either
+     * way the result is the same as Double.parseDouble's.
+     *
+     * @throws NumberFormatException if the bytes are not a number.
+     */
+    static double parseDouble(byte[] bytes, int length) {
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int numDigits = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+
+        while (i < length && bytes[i] >= '0' && bytes[i] <= '9') {
+            if (mantissa != 0 || bytes[i] != '0') {
+                mantissa = 10 * mantissa + (bytes[i] - '0');
+                significantDigits++;
+            }
+            numDigits++;
+            i++;
+        }
+
+        if (i < length && bytes[i] == '.') {
+            i++;
+            while (i < length && bytes[i] >= '0' && bytes[i] <= '9') {
+                if (mantissa != 0 || bytes[i] != '0') {
+                    mantissa = 10 * mantissa + (bytes[i] - '0');
+                    significantDigits++;
+                }
+                exponent--;
+                numDigits++;
+                i++;
+            }
+        }
+
+        if (numDigits > 0 && i < length && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < length && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+
+            int e = 0;
+            int numExponentDigits = 0;
+            while (i < length && bytes[i] >= '0' && bytes[i] <= '9' && e < 10000) {
+                e = 10 * e + (bytes[i] - '0');
+                numExponentDigits++;
+                i++;
+            }
+
+            if (numExponentDigits == 0) {
+                i = -1;
+            }
+
+            exponent += negativeExponent ? -e : e;
+        }
+
+        if (i == length && numDigits > 0 && significantDigits <= 18) {
+            if (mantissa == 0) {
+                return negative ? -0.0 : 0.0;
+            }
+
+            if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+                double d = exponent >= 0
+                        ? mantissa * POWERS_OF_TEN[exponent]
+                        : mantissa / POWERS_OF_TEN[-exponent];
+                return negative ? -d : d;
             }
         }
 
-        return data;
+        return Double.parseDouble(new String(bytes, 0, length, StandardCharsets.US_ASCII));
     }
 
 }
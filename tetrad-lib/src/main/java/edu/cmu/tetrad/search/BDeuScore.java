@@ -25,6 +25,7 @@ import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.Node;
 import org.apache.commons.math3.special.Gamma;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -40,6 +41,9 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
 
     private int[] numCategories;
 
+    // Counting buffers for each thread.
+    private final ThreadLocal<Counter> counters = new ThreadLocal<>();
+
     public BDeuScore(DataSet dataSet) {
         if (dataSet == null) {
             throw new NullPointerException("Data was not provided.");
@@ -50,13 +54,18 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
 
             this.variables = dataSet.getVariables();
 
-            if (!(dataBox instanceof VerticalIntDataBox)) {
-                dataBox = new VerticalIntDataBox(dataBox);
-            }
+            if (dataBox instanceof MappedDataBox) {
+                data = ((MappedDataBox) dataBox).getIntColumns();
+            } else {
+                if (!(dataBox instanceof VerticalIntDataBox)) {
+                    dataBox = new VerticalIntDataBox(dataBox);
+                }
+
+                VerticalIntDataBox box = (VerticalIntDataBox) dataBox;
 
-            VerticalIntDataBox box = (VerticalIntDataBox) dataBox;
+                data = box.getVariableVectors();
+            }
 
-            data = box.getVariableVectors();
             this.sampleSize = dataSet.getNumRows();
         } else {
             data = new int[dataSet.getNumColumns()][];
@@ -90,71 +99,69 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
         // Number of categories for node.
         int c = numCategories[node];
 
-        // Numbers of categories of parents.
-        int[] dims = new int[parents.length];
+        // Number of parent states, most of which are typically not observed.
+        double r = 1;
 
-        for (int p = 0; p < parents.length; p++) {
-            dims[p] = numCategories[parents[p]];
+        for (int parent : parents) {
+            r *= numCategories[parent];
         }
 
-        // Number of parent states.
-        int r = 1;
+        Counter counter = counters.get();
 
-        for (int p = 0; p < parents.length; p++) {
-            r *= dims[p];
+        if (counter == null) {
+            counter = new Counter(sampleSize);
+            counters.set(counter);
         }
 
-        // Conditional cell coefs of data for node given parents(node).
-        int n_jk[][] = new int[r][c];
-        int n_j[] = new int[r];
+        counter.setParents(data, numCategories, parents);
 
-        int[] parentValues = new int[parents.length];
+        // The observed parent configurations, numbered 0,...,g - 1, for each record.
+        int[] rowConfigs = counter.getRowConfigs();
+        int g = counter.getNumConfigs();
 
-        int[][] myParents = new int[parents.length][];
-        for (int i = 0; i < parents.length; i++) {
-            myParents[i] = data[parents[i]];
-        }
+        // Conditional cell coefs of data for node given parents(node), for observed configurations.
+        int[] n_jk = counter.getCellCounts(g * c);
+        int[] n_j = counter.getRowCounts(g);
 
         int[] myChild = data[node];
 
-
         for (int i = 0; i < sampleSize; i++) {
-            for (int p = 0; p < parents.length; p++) {
-                parentValues[p] = myParents[p][i];
-            }
-
             int childValue = myChild[i];
 
             if (childValue == -99) {
                 throw new IllegalStateException("Please remove or impute missing " +
-                        "values (record " + i + " column " + i + ")");
+                        "values (record " + i + " column " + node + ")");
             }
 
-            int rowIndex = getRowIndex(dims, parentValues);
+            int rowIndex = rowConfigs[i];
 
-            n_jk[rowIndex][childValue]++;
+            n_jk[rowIndex * c + childValue]++;
             n_j[rowIndex]++;
         }
 
-        //Finally, compute the score
+        //Finally, compute the score. Unobserved parent configurations contribute nothing, since
+        //their terms cancel with the normalizing terms, so only observed ones are visited.
         double score = 0.0;
 
         score += getPriorForStructure(parents.length);
 
         final double cellPrior = getSamplePrior() / (c * r);
         final double rowPrior = getSamplePrior() / r;
+        final double logGammaCellPrior = Gamma.logGamma(cellPrior);
+        final double logGammaRowPrior = Gamma.logGamma(rowPrior);
 
-        for (int j = 0; j < r; j++) {
-            score -= Gamma.logGamma(rowPrior + n_j[j]);
+        for (int j = 0; j < g; j++) {
+            score += logGammaRowPrior - Gamma.logGamma(rowPrior + n_j[j]);
 
             for (int k = 0; k < c; k++) {
-                score += Gamma.logGamma(cellPrior + n_jk[j][k]);
+                int n = n_jk[j * c + k];
+
+                if (n > 0) {
+                    score += Gamma.logGamma(cellPrior + n) - logGammaCellPrior;
+                }
             }
         }
 
-        score += r * Gamma.logGamma(rowPrior);
-        score -= c * r * Gamma.logGamma(cellPrior);
-
         return score;
     }
 
@@ -222,14 +229,6 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
         throw new UnsupportedOperationException();
     }
 
-    private static int getRowIndex(int[] dim, int[] values) {
-        int rowIndex = 0;
-        for (int i = 0; i < dim.length; i++) {
-            rowIndex *= dim[i];
-            rowIndex += values[i];
-        }
-        return rowIndex;
-    }
 
     @Override
     public double getStructurePrior() {
@@ -276,7 +275,128 @@ public class BDeuScore implements LocalDiscreteScore, IBDeuScore, Score {
     public int getMaxIndegree() {
         return (int) Math.ceil(Math.log(sampleSize));
     }
-}
 
+    /**
+     * Numbers the parent configurations observed in the data, for each record, so that counts
+     * need only be kept for those configurations rather than for every combination of parent
+     * values. Configurations are built up one parent at a time; those for each prefix of the
+     * most recent parents are kept, so that parent sets sharing a prefix with them (as z does
+     * with z + x when FGS scores an arrow) only need the remaining parents added. Buffers are
+     * reused from call to call; one counter is used per thread. The counter keeps no reference
+     * to the score or its data, so that a pool thread holding it doesn't keep them alive.
+     */
+    private static class Counter {
+
+        // The parents whose configurations are stored, in order.
+        private int[] parents = new int[0];
+
+        // rowConfigs[m][i] is the configuration of the first m parents for record i.
+        private int[][] rowConfigs = new int[1][];
+
+        // numConfigs[m] is the number of observed configurations of the first m parents.
+        private int[] numConfigs = {1};
+
+        // Maps a configuration plus the value of the next parent to its new number; -1 if unseen.
+        private int[] lookup = new int[0];
+
+        // The lookup entries used so far in the current step.
+        private final int[] used;
+
+        private int[] cellCounts = new int[0];
+        private int[] rowCounts = new int[0];
+
+        public Counter(int sampleSize) {
+            rowConfigs[0] = new int[sampleSize];
+            used = new int[sampleSize];
+        }
+
+        public void setParents(int[][] data, int[] numCategories, int[] parents) {
+            int m = 0;
+
+            while (m < parents.length && m < this.parents.length && parents[m] == this.parents[m]) {
+                m++;
+            }
+
+            if (rowConfigs.length < parents.length + 1) {
+                rowConfigs = Arrays.copyOf(rowConfigs, parents.length + 1);
+                numConfigs = Arrays.copyOf(numConfigs, parents.length + 1);
+            }
 
+            this.parents = Arrays.copyOf(parents, m);
 
+            for (int p = m; p < parents.length; p++) {
+                addParent(p, parents[p], data[parents[p]], numCategories[parents[p]]);
+            }
+
+            this.parents = Arrays.copyOf(parents, parents.length);
+        }
+
+        public int[] getRowConfigs() {
+            return rowConfigs[parents.length];
+        }
+
+        public int getNumConfigs() {
+            return numConfigs[parents.length];
+        }
+
+        public int[] getCellCounts(int size) {
+            if (cellCounts.length < size) cellCounts = new int[size];
+            Arrays.fill(cellCounts, 0, size, 0);
+            return cellCounts;
+        }
+
+        public int[] getRowCounts(int size) {
+            if (rowCounts.length < size) rowCounts = new int[size];
+            Arrays.fill(rowCounts, 0, size, 0);
+            return rowCounts;
+        }
+
+        // Sets the configurations for level + 1 from those for level and the given parent, whose
+        // column and number of categories are given.
+        private void addParent(int level, int parent, int[] column, int dim) {
+            int[] previous = rowConfigs[level];
+            int sampleSize = previous.length;
+            int size = numConfigs[level] * dim;
+
+            if (lookup.length < size) {
+                lookup = new int[size];
+                Arrays.fill(lookup, -1);
+            }
+
+            if (rowConfigs[level + 1] == null) {
+                rowConfigs[level + 1] = new int[sampleSize];
+            }
+
+            int[] current = rowConfigs[level + 1];
+            int numUsed = 0;
+
+            try {
+                for (int i = 0; i < sampleSize; i++) {
+                    int value = column[i];
+
+                    if (value < 0 || value >= dim) {
+                        throw new IllegalStateException("Please remove or impute missing " +
+                                "values (record " + i + " column " + parent + ")");
+                    }
+
+                    int key = previous[i] * dim + value;
+                    int config = lookup[key];
+
+                    if (config == -1) {
+                        config = numUsed;
+                        lookup[key] = config;
+                        used[numUsed++] = key;
+                    }
+
+                    current[i] = config;
+                }
+            } finally {
+                for (int j = 0; j < numUsed; j++) {
+                    lookup[used[j]] = -1;
+                }
+            }
+
+            numConfigs[level + 1] = numUsed;
+        }
+    }
+}
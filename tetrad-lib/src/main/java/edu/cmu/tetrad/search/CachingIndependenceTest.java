@@ -0,0 +1,466 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.search;
+
+import edu.cmu.tetrad.data.DataModel;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.data.ICovarianceMatrix;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.TetradMatrix;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps an independence test, storing the result of each test (x, y | z) as it is calculated so
+ * that it is only calculated once. Results are keyed on the unordered pair {x, y} and the set z,
+ * so x _||_ y | z and y _||_ x | z share a result. Along with the judgment, the p value and score
+ * reported by the wrapped test are stored, and getPValue() and getScore() report those of the
+ * most recent test on the calling thread.
+ * <p>
+ * Safe for use from multiple threads. Tests that are not in the store are passed to the wrapped
+ * test one at a time, unless it is a ThreadSafeIndependenceTest, in which case they are passed
+ * from whatever thread asks for them; setSerial overrides this. Changing alpha discards the
+ * stored results. Once the maximum number of results is exceeded, the oldest
+ * are dropped.
+ * <p>
+ * To share results among searches on the same data (PC, CPC, FCI, RFCI, GFCI...), give each of
+ * them the same CachingIndependenceTest. The results may also be saved to a file and loaded into
+ * the cache of a later run on the same data.
+ */
+public class CachingIndependenceTest implements ThreadSafeIndependenceTest {
+
+    // The wrapped test.
+    private final IndependenceTest test;
+
+    // Indices of the variables of the wrapped test, for the keys.
+    private final Map<Node, Integer> indices = new HashMap<>();
+
+    // The stored results.
+    private final ConcurrentMap<Key, Result> results = new ConcurrentHashMap<>();
+
+    // The stored keys, oldest first.
+    private final Queue<Key> order = new ConcurrentLinkedQueue<>();
+
+    // The maximum number of results to store.
+    private final int maxSize;
+
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numMisses = new AtomicLong();
+
+    // True if tests are passed to the wrapped test one at a time.
+    private volatile boolean serial;
+
+    // The result of the most recent test on each thread.
+    private final ThreadLocal<Result> last = new ThreadLocal<>();
+
+    /**
+     * @param test The test to wrap.
+     */
+    public CachingIndependenceTest(IndependenceTest test) {
+        this(test, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param test    The test to wrap.
+     * @param maxSize The maximum number of results to store.
+     */
+    public CachingIndependenceTest(IndependenceTest test, int maxSize) {
+        if (test == null) throw new NullPointerException();
+        if (maxSize < 1) throw new IllegalArgumentException("Max size must be at least 1: " + maxSize);
+        this.test = test;
+        this.maxSize = maxSize;
+        this.serial = !(test instanceof ThreadSafeIndependenceTest);
+
+        List<Node> variables = test.getVariables();
+
+        for (int i = 0; i < variables.size(); i++) {
+            indices.put(variables.get(i), i);
+        }
+    }
+
+    /**
+     * @return the given test if it already stores its results, otherwise a new CachingIndependenceTest
+     * wrapping it.
+     */
+    public static CachingIndependenceTest of(IndependenceTest test) {
+        if (test instanceof CachingIndependenceTest) return (CachingIndependenceTest) test;
+        return new CachingIndependenceTest(test);
+    }
+
+    public IndependenceTest indTestSubset(List<Node> vars) {
+        CachingIndependenceTest subset = new CachingIndependenceTest(test.indTestSubset(vars), maxSize);
+        subset.setSerial(serial);
+        return subset;
+    }
+
+    public boolean isIndependent(Node x, Node y, List<Node> z) {
+        Key key = key(x, y, z);
+        Result result = key == null ? null : results.get(key);
+
+        if (result == null) {
+            numMisses.incrementAndGet();
+
+            if (serial) {
+                synchronized (test) {
+                    result = calculate(x, y, z);
+                }
+            } else {
+                result = calculate(x, y, z);
+            }
+
+            if (key != null) add(key, result);
+        } else {
+            numHits.incrementAndGet();
+        }
+
+        last.set(result);
+        return result.independent;
+    }
+
+    public boolean isIndependent(Node x, Node y, Node... z) {
+        return isIndependent(x, y, Arrays.asList(z));
+    }
+
+    public boolean isDependent(Node x, Node y, List<Node> z) {
+        return !isIndependent(x, y, z);
+    }
+
+    public boolean isDependent(Node x, Node y, Node... z) {
+        return !isIndependent(x, y, Arrays.asList(z));
+    }
+
+    /**
+     * @return the p value of the most recent test on this thread.
+     */
+    public double getPValue() {
+        Result result = last.get();
+        return result == null ? test.getPValue() : result.pValue;
+    }
+
+    /**
+     * @return the score of the most recent test on this thread.
+     */
+    public double getScore() {
+        Result result = last.get();
+        return result == null ? test.getScore() : result.score;
+    }
+
+    /**
+     * @return the wrapped test.
+     */
+    public IndependenceTest getTest() {
+        return test;
+    }
+
+    /**
+     * @return true if tests not in the store are passed to the wrapped test one at a time.
+     */
+    public boolean isSerial() {
+        return serial;
+    }
+
+    /**
+     * @param serial True if tests not in the store should be passed to the wrapped test one at a
+     *               time, for a test that can't be called from several threads at once. By
+     *               default, true unless the wrapped test is a ThreadSafeIndependenceTest.
+     */
+    public void setSerial(boolean serial) {
+        this.serial = serial;
+    }
+
+    /**
+     * @return the number of results stored.
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * @return the number of tests whose results were found in the cache.
+     */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    /**
+     * @return the number of tests that had to be passed to the wrapped test.
+     */
+    public long getNumMisses() {
+        return numMisses.get();
+    }
+
+    /**
+     * @return the fraction of tests whose results were found in the cache, or NaN if there have been
+     * no tests.
+     */
+    public double getHitRate() {
+        long hits = numHits.get();
+        long total = hits + numMisses.get();
+        return total == 0 ? Double.NaN : hits / (double) total;
+    }
+
+    /**
+     * Discards the stored results. Should be called if the wrapped test is changed.
+     */
+    public void clear() {
+        results.clear();
+        order.clear();
+    }
+
+    /**
+     * Saves the stored results to the given file, along with the names of the variables, the class
+     * of the wrapped test, its alpha and its sample size, so that they can be checked on loading.
+     */
+    public void save(File file) {
+        List<Node> variables = test.getVariables();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeUTF(test.getClass().getName());
+            out.writeDouble(test.getAlpha());
+            out.writeInt(sampleSize());
+            out.writeInt(variables.size());
+
+            for (Node variable : variables) {
+                out.writeUTF(variable.getName());
+            }
+
+            List<Map.Entry<Key, Result>> entries = new ArrayList<>(results.entrySet());
+            out.writeInt(entries.size());
+
+            for (Map.Entry<Key, Result> entry : entries) {
+                Key key = entry.getKey();
+                Result result = entry.getValue();
+
+                out.writeInt(key.x);
+                out.writeInt(key.y);
+                out.writeInt(key.z.length);
+                for (int z : key.z) out.writeInt(z);
+                out.writeBoolean(result.independent);
+                out.writeDouble(result.pValue);
+                out.writeDouble(result.score);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Adds the results saved in the given file to the cache. Results for variables that the wrapped
+     * test doesn't have are skipped. It is up to the caller to make sure the file was saved from a
+     * test on the same data.
+     *
+     * @return the number of results loaded.
+     * @throws IllegalArgumentException if the file was saved from a different kind of test, or one
+     *                                  with a different alpha or sample size.
+     */
+    public int load(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            String testClass = in.readUTF();
+            double alpha = in.readDouble();
+            int sampleSize = in.readInt();
+
+            if (!testClass.equals(test.getClass().getName())) {
+                throw new IllegalArgumentException("Results in " + file + " are for " + testClass
+                        + ", not " + test.getClass().getName());
+            }
+
+            if (alpha != test.getAlpha() || sampleSize != sampleSize()) {
+                throw new IllegalArgumentException("Results in " + file + " are for alpha = " + alpha
+                        + " and sample size " + sampleSize + ", not " + test.getAlpha() + " and " + sampleSize());
+            }
+
+            int[] map = new int[in.readInt()];
+
+            for (int i = 0; i < map.length; i++) {
+                Node variable = test.getVariable(in.readUTF());
+                Integer index = variable == null ? null : indices.get(variable);
+                map[i] = index == null ? -1 : index;
+            }
+
+            int numEntries = in.readInt();
+            int numLoaded = 0;
+
+            for (int e = 0; e < numEntries; e++) {
+                int x = map[in.readInt()];
+                int y = map[in.readInt()];
+                int[] z = new int[in.readInt()];
+                boolean skip = x == -1 || y == -1;
+
+                for (int i = 0; i < z.length; i++) {
+                    z[i] = map[in.readInt()];
+                    if (z[i] == -1) skip = true;
+                }
+
+                Result result = new Result(in.readBoolean(), in.readDouble(), in.readDouble());
+
+                if (skip) continue;
+
+                add(new Key(Math.min(x, y), Math.max(x, y), z), result);
+                numLoaded++;
+            }
+
+            return numLoaded;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + file.getAbsolutePath(), e);
+        }
+    }
+
+    public List<Node> getVariables() {
+        return test.getVariables();
+    }
+
+    public Node getVariable(String name) {
+        return test.getVariable(name);
+    }
+
+    public List<String> getVariableNames() {
+        return test.getVariableNames();
+    }
+
+    public boolean determines(List<Node> z, Node y) {
+        return test.determines(z, y);
+    }
+
+    public double getAlpha() {
+        return test.getAlpha();
+    }
+
+    public void setAlpha(double alpha) {
+        test.setAlpha(alpha);
+        clear();
+    }
+
+    public DataModel getData() {
+        return test.getData();
+    }
+
+    public ICovarianceMatrix getCov() {
+        return test.getCov();
+    }
+
+    public List<DataSet> getDataSets() {
+        return test.getDataSets();
+    }
+
+    public int getSampleSize() {
+        return test.getSampleSize();
+    }
+
+    public List<TetradMatrix> getCovMatrices() {
+        return test.getCovMatrices();
+    }
+
+    public String toString() {
+        return test.toString();
+    }
+
+    //==============================PRIVATE METHODS=============================//
+
+    private void add(Key key, Result result) {
+        if (results.putIfAbsent(key, result) == null) {
+            order.add(key);
+
+            while (results.size() > maxSize) {
+                Key oldest = order.poll();
+                if (oldest == null) break;
+                results.remove(oldest);
+            }
+        }
+    }
+
+    // Tests without a fixed sample size, such as d-separation, are saved with -1.
+    private int sampleSize() {
+        try {
+            return test.getSampleSize();
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    private Result calculate(Node x, Node y, List<Node> z) {
+        boolean independent = test.isIndependent(x, y, z);
+        return new Result(independent, test.getPValue(), test.getScore());
+    }
+
+    /**
+     * @return the key for x _||_ y | z, or null if one of the nodes is not a variable of the test.
+     */
+    private Key key(Node x, Node y, List<Node> z) {
+        Integer _x = indices.get(x);
+        Integer _y = indices.get(y);
+        if (_x == null || _y == null) return null;
+
+        int[] _z = new int[z.size()];
+
+        for (int i = 0; i < _z.length; i++) {
+            Integer index = indices.get(z.get(i));
+            if (index == null) return null;
+            _z[i] = index;
+        }
+
+        return new Key(Math.min(_x, _y), Math.max(_x, _y), _z);
+    }
+
+    private static class Result {
+        private final boolean independent;
+        private final double pValue;
+        private final double score;
+
+        public Result(boolean independent, double pValue, double score) {
+            this.independent = independent;
+            this.pValue = pValue;
+            this.score = score;
+        }
+    }
+
+    private static class Key {
+        private final int x;
+        private final int y;
+        private final int[] z;
+        private final int hashCode;
+
+        public Key(int x, int y, int[] z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            Arrays.sort(this.z);
+            this.hashCode = 31 * (31 * x + y) + Arrays.hashCode(this.z);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return x == key.x && y == key.y && Arrays.equals(z, key.z);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.search;
+
+import edu.cmu.tetrad.graph.Node;
+
+import java.util.List;
+
+/**
+ * Wraps a score, storing local scores and score differences as they are calculated so that
+ * families that are scored more than once (as in the backward phase of FGS or when its arrows
+ * are rescored) are only calculated once. Score differences are always taken from the wrapped
+ * score, since some scores don't calculate them as differences of local scores, and are stored
+ * separately from the local scores.
+ * <p>
+ * Safe for use from multiple threads if the wrapped score is. Scores that are NaN are not stored.
+ */
+public class CachingScore implements Score {
+
+    // The wrapped score.
+    private final Score score;
+
+    // The stored local scores.
+    private final LocalScoreCache cache;
+
+    // The stored score differences, keyed on the conditioning set plus -(x + 1) for the added node.
+    private final LocalScoreCache diffs;
+
+    /**
+     * @param score   The score to wrap.
+     * @param maxSize The maximum number of local scores to store.
+     */
+    public CachingScore(Score score, int maxSize) {
+        if (score == null) throw new NullPointerException();
+        this.score = score;
+        this.cache = new LocalScoreCache(maxSize);
+        this.diffs = new LocalScoreCache(maxSize);
+    }
+
+    public double localScore(int node, int... parents) {
+        double s = cache.get(node, parents);
+
+        if (Double.isNaN(s)) {
+            s = score.localScore(node, parents);
+            if (!Double.isNaN(s)) cache.add(node, parents, s);
+        }
+
+        return s;
+    }
+
+    public double localScore(int node, int parent) {
+        int[] parents = {parent};
+        double s = cache.get(node, parents);
+
+        if (Double.isNaN(s)) {
+            s = score.localScore(node, parent);
+            if (!Double.isNaN(s)) cache.add(node, parents, s);
+        }
+
+        return s;
+    }
+
+    public double localScore(int node) {
+        int[] parents = new int[0];
+        double s = cache.get(node, parents);
+
+        if (Double.isNaN(s)) {
+            s = score.localScore(node);
+            if (!Double.isNaN(s)) cache.add(node, parents, s);
+        }
+
+        return s;
+    }
+
+    public double localScoreDiff(int x, int y, int[] z) {
+        int[] key = append(z, -x - 1);
+        double s = diffs.get(y, key);
+
+        if (Double.isNaN(s)) {
+            s = score.localScoreDiff(x, y, z);
+            if (!Double.isNaN(s)) diffs.add(y, key, s);
+        }
+
+        return s;
+    }
+
+    public double localScoreDiff(int x, int y) {
+        int[] key = {-x - 1};
+        double s = diffs.get(y, key);
+
+        if (Double.isNaN(s)) {
+            s = score.localScoreDiff(x, y);
+            if (!Double.isNaN(s)) diffs.add(y, key, s);
+        }
+
+        return s;
+    }
+
+    /**
+     * @return the wrapped score.
+     */
+    public Score getScore() {
+        return score;
+    }
+
+    /**
+     * @return the number of local scores and score differences found in the cache.
+     */
+    public long getNumHits() {
+        return cache.getNumHits() + diffs.getNumHits();
+    }
+
+    /**
+     * @return the number of local scores and score differences that had to be calculated.
+     */
+    public long getNumMisses() {
+        return cache.getNumMisses() + diffs.getNumMisses();
+    }
+
+    /**
+     * Discards the stored local scores and differences. Should be called if the wrapped score is
+     * changed.
+     */
+    public void clear() {
+        cache.clear();
+        diffs.clear();
+    }
+
+    public List<Node> getVariables() {
+        return score.getVariables();
+    }
+
+    public boolean isEffectEdge(double bump) {
+        return score.isEffectEdge(bump);
+    }
+
+    public double getParameter1() {
+        return score.getParameter1();
+    }
+
+    public void setParameter1(double alpha) {
+        score.setParameter1(alpha);
+        clear();
+    }
+
+    public int getSampleSize() {
+        return score.getSampleSize();
+    }
+
+    public Node getVariable(String targetName) {
+        return score.getVariable(targetName);
+    }
+
+    public int getMaxIndegree() {
+        return score.getMaxIndegree();
+    }
+
+    private int[] append(int[] parents, int extra) {
+        int[] all = new int[parents.length + 1];
+        System.arraycopy(parents, 0, all, 0, parents.length);
+        all[parents.length] = extra;
+        return all;
+    }
+}
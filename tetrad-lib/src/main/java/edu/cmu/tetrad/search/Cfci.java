@@ -169,8 +169,11 @@ public final class Cfci implements GraphSearch {
         this.graph = new EdgeListGraph(nodes);
         this.graph.fullyConnect(Endpoint.TAIL);
 
+        // Tests done by the adjacency search are reused in the later steps.
+        IndependenceTest test = CachingIndependenceTest.of(independenceTest);
+
 //        // Step FCI B.  (Zhang's step F2.)
-        Fas adj = new Fas(graph, independenceTest);
+        Fas adj = new Fas(graph, test);
         adj.setKnowledge(getKnowledge());
         adj.setDepth(depth);
         adj.setVerbose(verbose);
@@ -182,7 +185,7 @@ public final class Cfci implements GraphSearch {
         // Optional step: Possible Dsep. (Needed for correctness but very time consuming.)
         if (isPossibleDsepSearchDone()) {
             long time1 = System.currentTimeMillis();
-            ruleR0(independenceTest, depth, sepsets);
+            ruleR0(test, depth, sepsets);
 
             long time2 = System.currentTimeMillis();
 
@@ -193,7 +196,7 @@ public final class Cfci implements GraphSearch {
             // Step FCI D.
             long time3 = System.currentTimeMillis();
 
-            PossibleDsepFci possibleDSep = new PossibleDsepFci(graph, independenceTest);
+            PossibleDsepFci possibleDSep = new PossibleDsepFci(graph, test);
             possibleDSep.setDepth(getDepth());
             possibleDSep.setKnowledge(getKnowledge());
             possibleDSep.setMaxPathLength(getMaxReachablePathLength());
@@ -213,7 +216,7 @@ public final class Cfci implements GraphSearch {
         // Step CI C (Zhang's step F3.)
         long time5 = System.currentTimeMillis();
         fciOrientbk(getKnowledge(), graph, variables);
-        ruleR0(independenceTest, depth, sepsets);
+        ruleR0(test, depth, sepsets);
 
         long time6 = System.currentTimeMillis();
 
@@ -223,7 +226,7 @@ public final class Cfci implements GraphSearch {
 
         // Step CI D. (Zhang's step F4.)
 
-        final FciOrient fciOrient = new FciOrient(new SepsetsConservative(graph, independenceTest,
+        final FciOrient fciOrient = new FciOrient(new SepsetsConservative(graph, test,
                 new SepsetMap(), depth));
 
         fciOrient.setCompleteRuleSetUsed(completeRuleSetUsed);
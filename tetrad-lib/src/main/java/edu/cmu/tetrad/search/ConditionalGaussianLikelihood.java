@@ -21,9 +21,12 @@
 
 package edu.cmu.tetrad.search;
 
+import edu.cmu.tetrad.data.BoxDataSet;
 import edu.cmu.tetrad.data.ContinuousVariable;
+import edu.cmu.tetrad.data.DataBox;
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.DiscreteVariable;
+import edu.cmu.tetrad.data.MappedDataBox;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.util.TetradMatrix;
 import org.apache.commons.math3.stat.correlation.Covariance;
@@ -62,28 +65,35 @@ public class ConditionalGaussianLikelihood {
         this.dataSet = dataSet;
         this.variables = dataSet.getVariables();
 
-        continuousData = new double[dataSet.getNumColumns()][];
-        discreteData = new int[dataSet.getNumColumns()][];
+        DataBox box = dataSet instanceof BoxDataSet ? ((BoxDataSet) dataSet).getDataBox() : null;
 
-        for (int j = 0; j < dataSet.getNumColumns(); j++) {
-            Node v = dataSet.getVariable(j);
+        if (box instanceof MappedDataBox) {
+            continuousData = ((MappedDataBox) box).getDoubleColumns();
+            discreteData = ((MappedDataBox) box).getIntColumns();
+        } else {
+            continuousData = new double[dataSet.getNumColumns()][];
+            discreteData = new int[dataSet.getNumColumns()][];
 
-            if (v instanceof ContinuousVariable) {
-                double[] col = new double[dataSet.getNumRows()];
+            for (int j = 0; j < dataSet.getNumColumns(); j++) {
+                Node v = dataSet.getVariable(j);
 
-                for (int i = 0; i < dataSet.getNumRows(); i++) {
-                    col[i] = dataSet.getDouble(i, j);
-                }
+                if (v instanceof ContinuousVariable) {
+                    double[] col = new double[dataSet.getNumRows()];
 
-                continuousData[j] = col;
-            } else if (v instanceof DiscreteVariable) {
-                int[] col = new int[dataSet.getNumRows()];
+                    for (int i = 0; i < dataSet.getNumRows(); i++) {
+                        col[i] = dataSet.getDouble(i, j);
+                    }
 
-                for (int i = 0; i < dataSet.getNumRows(); i++) {
-                    col[i] = dataSet.getInt(i, j);
-                }
+                    continuousData[j] = col;
+                } else if (v instanceof DiscreteVariable) {
+                    int[] col = new int[dataSet.getNumRows()];
+
+                    for (int i = 0; i < dataSet.getNumRows(); i++) {
+                        col[i] = dataSet.getInt(i, j);
+                    }
 
-                discreteData[j] = col;
+                    discreteData[j] = col;
+                }
             }
         }
 
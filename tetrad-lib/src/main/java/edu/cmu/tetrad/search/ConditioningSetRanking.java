@@ -0,0 +1,91 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.search;
+
+import edu.cmu.tetrad.graph.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Orders the conditioning variables of an adjacency search (Fas, FasStableConcurrent) by the p values
+ * of their depth 0 tests with x, smallest first, so that the variables most strongly associated with x,
+ * and so most likely to separate x from y, are tried in conditioning sets first. P values are used
+ * rather than scores since scores differ from test to test in which way is stronger.
+ * <p>
+ * Without a limit on tests per edge, ranking finds the same adjacencies as the plain ChoiceGenerator
+ * order, though possibly different sepsets. Safe for the depth 0 tests to be recorded from several
+ * threads.
+ */
+final class ConditioningSetRanking {
+
+    // The p value of the depth 0 test of each pair of variables judged dependent, by each of them.
+    private final ConcurrentMap<Node, Map<Node, Double>> pValues = new ConcurrentHashMap<>();
+
+    /**
+     * Records the p value of the depth 0 test of x and y, which were judged dependent.
+     */
+    public void add(Node x, Node y, double pValue) {
+        pValues(x).put(y, pValue);
+        pValues(y).put(x, pValue);
+    }
+
+    /**
+     * @return the given variables, ordered by the p values of their depth 0 tests with x, smallest
+     * first; those with no recorded test go last, and ties keep their order.
+     */
+    public List<Node> rank(Node x, List<Node> variables) {
+        final Map<Node, Double> p = pValues.get(x);
+        List<Node> ranked = new ArrayList<>(variables);
+
+        Collections.sort(ranked, new Comparator<Node>() {
+            public int compare(Node z1, Node z2) {
+                return Double.compare(pValue(p, z1), pValue(p, z2));
+            }
+        });
+
+        return ranked;
+    }
+
+    private Map<Node, Double> pValues(Node x) {
+        Map<Node, Double> p = pValues.get(x);
+
+        if (p == null) {
+            Map<Node, Double> created = new ConcurrentHashMap<>();
+            p = pValues.putIfAbsent(x, created);
+            if (p == null) p = created;
+        }
+
+        return p;
+    }
+
+    private static double pValue(Map<Node, Double> p, Node z) {
+        Double pValue = p == null ? null : p.get(z);
+        return pValue == null || Double.isNaN(pValue) ? Double.POSITIVE_INFINITY : pValue;
+    }
+}
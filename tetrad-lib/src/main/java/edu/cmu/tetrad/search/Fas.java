@@ -77,6 +77,27 @@ public class Fas implements IFas {
      */
     private int numIndependenceTests;
 
+    /**
+     * The number of independence tests done at each depth in the most recent search.
+     */
+    private List<Integer> numIndependenceTestsByDepth = new ArrayList<>();
+
+    /**
+     * True if the variables adjacent to x should be tried in conditioning sets in the order given by a
+     * ConditioningSetRanking, rather than in the order of the adjacency list.
+     */
+    private boolean rankConditioningSets = false;
+
+    /**
+     * The maximum number of conditioning sets tried for an edge from each of its endpoints at each depth, or -1 if
+     * all of them should be tried.
+     */
+    private int maxTestsPerEdge = -1;
+
+    /**
+     * For ranked conditioning sets, the p values of the depth 0 tests.
+     */
+    private ConditioningSetRanking ranking = new ConditioningSetRanking();
 
     /**
      * The logger, by default the empty logger.
@@ -159,6 +180,8 @@ public class Fas implements IFas {
 
         sepset = new SepsetMap();
         sepset.setReturnEmptyIfNotSet(true);
+        numIndependenceTestsByDepth = new ArrayList<>();
+        ranking = new ConditioningSetRanking();
 
         int _depth = depth;
 
@@ -209,6 +232,8 @@ public class Fas implements IFas {
         graph.removeEdges(graph.getEdges());
 
         sepset = new SepsetMap();
+        numIndependenceTestsByDepth = new ArrayList<>();
+        ranking = new ConditioningSetRanking();
 
         int _depth = depth;
 
@@ -264,10 +289,41 @@ public class Fas implements IFas {
         this.knowledge = knowledge;
     }
 
+    public boolean isRankConditioningSets() {
+        return rankConditioningSets;
+    }
+
+    /**
+     * If true, conditioning sets for an edge x *-* y are drawn from the possible parents of x ordered by the p values
+     * of their depth 0 tests with x, smallest first (see ConditioningSetRanking). False by default.
+     */
+    public void setRankConditioningSets(boolean rankConditioningSets) {
+        this.rankConditioningSets = rankConditioningSets;
+    }
+
+    public int getMaxTestsPerEdge() {
+        return maxTestsPerEdge;
+    }
+
+    /**
+     * Sets the maximum number of conditioning sets tried for an edge from each endpoint at each depth; if none of
+     * them separates the endpoints, the edge is kept for the next depth. -1 (the default) tries all of them.
+     */
+    public void setMaxTestsPerEdge(int maxTestsPerEdge) {
+        if (maxTestsPerEdge < -1 || maxTestsPerEdge == 0) {
+            throw new IllegalArgumentException(
+                    "Max tests per edge must be -1 (unlimited) or > 0: " + maxTestsPerEdge);
+        }
+
+        this.maxTestsPerEdge = maxTestsPerEdge;
+    }
+
     //==============================PRIVATE METHODS======================/
 
     private boolean searchAtDepth0(List<Node> nodes, IndependenceTest test, Map<Node, Set<Node>> adjacencies) {
         List<Node> empty = Collections.emptyList();
+        int numTests = numIndependenceTests;
+
         for (int i = 0; i < nodes.size(); i++) {
             if (verbose) {
                 if ((i + 1) % 100 == 0) out.println("Node # " + (i + 1));
@@ -325,6 +381,10 @@ public class Fas implements IFas {
                     adjacencies.get(x).add(y);
                     adjacencies.get(y).add(x);
 
+                    if (rankConditioningSets) {
+                        ranking.add(x, y, test.getPValue());
+                    }
+
                     if (verbose) {
                         TetradLogger.getInstance().log("dependencies", SearchLogUtils.independenceFact(x, y, empty) + " score = " +
                                 nf.format(test.getScore()));
@@ -333,6 +393,8 @@ public class Fas implements IFas {
             }
         }
 
+        numIndependenceTestsByDepth.add(numIndependenceTests - numTests);
+
         return freeDegree(nodes, adjacencies) > 0;
     }
 
@@ -372,6 +434,7 @@ public class Fas implements IFas {
 
     private boolean searchAtDepth(List<Node> nodes, final IndependenceTest test, Map<Node, Set<Node>> adjacencies, int depth) {
         int count = 0;
+        int numTests = numIndependenceTests;
 
         for (Node x : nodes) {
             if (verbose) {
@@ -386,18 +449,33 @@ public class Fas implements IFas {
                 _adjx.remove(y);
                 List<Node> ppx = possibleParents(x, _adjx, knowledge);
 
+                if (rankConditioningSets) {
+                    ppx = ranking.rank(x, ppx);
+                }
+
                 if (ppx.size() >= depth) {
                     ChoiceGenerator cg = new ChoiceGenerator(ppx.size(), depth);
                     int[] choice;
+                    int numEdgeTests = 0;
+
+                    // With Fisher Z, the p values for all the conditioning sets are calculated together,
+                    // sharing the Cholesky rows of their common prefixes.
+                    double[] pValues = pValues(test, x, y, ppx, depth);
+                    int t = 0;
 
                     while ((choice = cg.next()) != null) {
+                        if (maxTestsPerEdge != -1 && numEdgeTests++ >= maxTestsPerEdge) {
+                            break;
+                        }
+
                         List<Node> condSet = GraphUtils.asList(choice, ppx);
 
                         boolean independent;
 
                         try {
                             numIndependenceTests++;
-                            independent = test.isIndependent(x, y, condSet);
+                            independent = pValues != null ? pValues[t++] > test.getAlpha()
+                                    : test.isIndependent(x, y, condSet);
                         } catch (Exception e) {
                             independent = false;
                         }
@@ -418,9 +496,10 @@ public class Fas implements IFas {
                             getSepsets().set(x, y, condSet);
 
                             if (verbose) {
+                                double score = pValues != null ? pValues[t - 1] : test.getScore();
                                 TetradLogger.getInstance().log("independencies", SearchLogUtils.independenceFact(x, y, condSet) +
-                                        " score = " + nf.format(test.getScore()));
-                                out.println(SearchLogUtils.independenceFactMsg(x, y, condSet, test.getScore()));
+                                        (pValues != null ? " p = " : " score = ") + nf.format(score));
+                                out.println(SearchLogUtils.independenceFactMsg(x, y, condSet, score));
                             }
 
                             continue EDGE;
@@ -430,9 +509,26 @@ public class Fas implements IFas {
             }
         }
 
+        numIndependenceTestsByDepth.add(numIndependenceTests - numTests);
+
         return freeDegree(nodes, adjacencies) > depth;
     }
 
+    /**
+     * @return the p values of the tests of x and y given each subset of the given size of ppx, in
+     * ChoiceGenerator order, if the test is Fisher Z and all of them will be tried; otherwise null, and
+     * the tests are done one at a time.
+     */
+    private double[] pValues(IndependenceTest test, Node x, Node y, List<Node> ppx, int depth) {
+        if (!(test instanceof IndTestFisherZ) || depth == 0 || maxTestsPerEdge != -1) return null;
+
+        try {
+            return ((IndTestFisherZ) test).getPValues(x, y, ppx, depth);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private List<Node> possibleParents(Node x, List<Node> adjx,
                                        IKnowledge knowledge) {
         List<Node> possibleParents = new LinkedList<>();
@@ -457,6 +553,15 @@ public class Fas implements IFas {
         return numIndependenceTests;
     }
 
+    /**
+     * @return the number of independence tests done at the given depth in the most recent search, 0 if the search
+     * did not reach that depth.
+     */
+    public int getNumIndependenceTests(int depth) {
+        if (depth < 0) throw new IllegalArgumentException("Depth must be >= 0: " + depth);
+        return depth < numIndependenceTestsByDepth.size() ? numIndependenceTestsByDepth.get(depth) : 0;
+    }
+
     public void setTrueGraph(Graph trueGraph) {
         this.trueGraph = trueGraph;
     }
@@ -493,7 +598,7 @@ public class Fas implements IFas {
 
     @Override
     public IndependenceTest getIndependenceTest() {
-        return null;
+        return test;
     }
 
     @Override
@@ -574,7 +574,7 @@ public class FasDeterministic implements IFas {
 
     @Override
     public IndependenceTest getIndependenceTest() {
-        return null;
+        return test;
     }
 
     @Override
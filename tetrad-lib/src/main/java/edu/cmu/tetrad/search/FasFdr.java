@@ -693,7 +693,7 @@ public class FasFdr implements IFas {
 
     @Override
     public IndependenceTest getIndependenceTest() {
-        return null;
+        return test;
     }
 
     @Override
@@ -498,7 +498,7 @@ public class FasStable implements IFas {
 
     @Override
     public IndependenceTest getIndependenceTest() {
-        return null;
+        return test;
     }
 
     @Override
@@ -21,6 +21,7 @@ package edu.cmu.tetrad.search;
 // Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
 ///////////////////////////////////////////////////////////////////////////////
 
+import edu.cmu.tetrad.data.CompiledKnowledge;
 import edu.cmu.tetrad.data.IKnowledge;
 import edu.cmu.tetrad.data.Knowledge2;
 import edu.cmu.tetrad.graph.*;
@@ -33,6 +34,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements the "fast adjacency search" used in several causal algorithm in this package. In the fast adjacency
@@ -60,6 +62,11 @@ public class FasStableConcurrent implements IFas {
      */
     private IKnowledge knowledge = new Knowledge2();
 
+    /**
+     * The knowledge used during the search, compiled for the variables when the search starts.
+     */
+    private IKnowledge searchKnowledge = knowledge;
+
     /**
      * The maximum number of variables conditioned on in any conditional independence test. If the depth is -1, it will
      * be taken to be the maximum value, which is 1000. Otherwise, it should be set to a non-negative integer.
@@ -71,6 +78,27 @@ public class FasStableConcurrent implements IFas {
      */
     private int numIndependenceTests;
 
+    /**
+     * The number of independence tests done at each depth in the most recent search.
+     */
+    private List<Integer> numIndependenceTestsByDepth = new ArrayList<>();
+
+    /**
+     * True if the variables adjacent to x should be tried in conditioning sets in the order given by a
+     * ConditioningSetRanking, rather than in the order of the adjacency list.
+     */
+    private boolean rankConditioningSets = false;
+
+    /**
+     * The maximum number of conditioning sets tried for an edge from each of its endpoints at each depth, or -1 if
+     * all of them should be tried.
+     */
+    private int maxTestsPerEdge = -1;
+
+    /**
+     * For ranked conditioning sets, the p values of the depth 0 tests.
+     */
+    private ConditioningSetRanking ranking = new ConditioningSetRanking();
 
     private TetradLogger logger = TetradLogger.getInstance();
 
@@ -138,8 +166,11 @@ public class FasStableConcurrent implements IFas {
         // The search graph. It is assumed going in that all of the true adjacencies of x are in this graph for every node
         // x. It is hoped (i.e. true in the large sample limit) that true adjacencies are never removed.
         Graph graph = new EdgeListGraphSingleConnections(test.getVariables());
+        searchKnowledge = CompiledKnowledge.compile(knowledge, test.getVariables());
 
         sepsets = new SepsetMap();
+        numIndependenceTestsByDepth = new ArrayList<>();
+        ranking = new ConditioningSetRanking();
 
         //this is bad when starting from init graph --AJ
         sepsets.setReturnEmptyIfNotSet(true);
@@ -196,6 +227,7 @@ public class FasStableConcurrent implements IFas {
             this.logger.log("info", "Finishing Fast Adjacency Search.");
         }
 
+        searchKnowledge = knowledge;
         return graph;
     }
 
@@ -246,6 +278,36 @@ public class FasStableConcurrent implements IFas {
             throw new NullPointerException("Cannot set knowledge to null");
         }
         this.knowledge = knowledge;
+        this.searchKnowledge = knowledge;
+    }
+
+    public boolean isRankConditioningSets() {
+        return rankConditioningSets;
+    }
+
+    /**
+     * If true, conditioning sets for an edge x *-* y are drawn from the possible parents of x ordered by the p values
+     * of their depth 0 tests with x, smallest first (see ConditioningSetRanking). False by default.
+     */
+    public void setRankConditioningSets(boolean rankConditioningSets) {
+        this.rankConditioningSets = rankConditioningSets;
+    }
+
+    public int getMaxTestsPerEdge() {
+        return maxTestsPerEdge;
+    }
+
+    /**
+     * Sets the maximum number of conditioning sets tried for an edge from each endpoint at each depth; if none of
+     * them separates the endpoints, the edge is kept for the next depth. -1 (the default) tries all of them.
+     */
+    public void setMaxTestsPerEdge(int maxTestsPerEdge) {
+        if (maxTestsPerEdge < -1 || maxTestsPerEdge == 0) {
+            throw new IllegalArgumentException(
+                    "Max tests per edge must be -1 (unlimited) or > 0: " + maxTestsPerEdge);
+        }
+
+        this.maxTestsPerEdge = maxTestsPerEdge;
     }
 
     //==============================PRIVATE METHODS======================/
@@ -257,6 +319,7 @@ public class FasStableConcurrent implements IFas {
         }
 
         final List<Node> empty = Collections.emptyList();
+        final AtomicInteger numTests = new AtomicInteger();
 
         class Depth0Task extends RecursiveTask<Boolean> {
             private int chunk;
@@ -300,10 +363,10 @@ public class FasStableConcurrent implements IFas {
                                 independent = true;
                             }
 
-                            numIndependenceTests++;
+                            numTests.incrementAndGet();
 
                             boolean noEdgeRequired =
-                                    knowledge.noEdgeRequired(x.getName(), y.getName());
+                                    searchKnowledge.noEdgeRequired(x.getName(), y.getName());
 
                             if (independent && noEdgeRequired) {
                                 if (!sepsets.isReturnEmptyIfNotSet()) {
@@ -322,6 +385,10 @@ public class FasStableConcurrent implements IFas {
                                 adjacencies.get(x).add(y);
                                 adjacencies.get(y).add(x);
 
+                                if (rankConditioningSets) {
+                                    ranking.add(x, y, test.getPValue());
+                                }
+
                                 if (verbose) {
                                     TetradLogger.getInstance().log("dependencies", SearchLogUtils.independenceFact(x, y, empty) + " p = " +
                                             nf.format(test.getPValue()));
@@ -350,6 +417,9 @@ public class FasStableConcurrent implements IFas {
 
         pool.invoke(new Depth0Task(chunk, 0, nodes.size()));
 
+        numIndependenceTests += numTests.get();
+        numIndependenceTestsByDepth.add(numTests.get());
+
         return freeDegree(nodes, adjacencies) > 0;
     }
 
@@ -357,8 +427,8 @@ public class FasStableConcurrent implements IFas {
         String name1 = x.getName();
         String name2 = y.getName();
 
-        if (knowledge.isForbidden(name1, name2) &&
-                knowledge.isForbidden(name2, name1)) {
+        if (searchKnowledge.isForbidden(name1, name2) &&
+                searchKnowledge.isForbidden(name2, name1)) {
             if (verbose) {
                 this.logger.log("edgeRemoved", "Removed " + Edges.undirectedEdge(x, y) + " because it was " +
                         "forbidden by background knowledge.");
@@ -415,6 +485,8 @@ public class FasStableConcurrent implements IFas {
             adjacenciesCopy.put(node, new HashSet<>(adjacencies.get(node)));
         }
 
+        final AtomicInteger numTests = new AtomicInteger();
+
         class DepthTask extends RecursiveTask<Boolean> {
             private int chunk;
             private int from;
@@ -442,26 +514,41 @@ public class FasStableConcurrent implements IFas {
                         for (Node y : adjx) {
                             List<Node> _adjx = new ArrayList<>(adjx);
                             _adjx.remove(y);
-                            List<Node> ppx = possibleParents(x, _adjx, knowledge);
+                            List<Node> ppx = possibleParents(x, _adjx, searchKnowledge);
+
+                            if (rankConditioningSets) {
+                                ppx = ranking.rank(x, ppx);
+                            }
 
                             if (ppx.size() >= depth) {
                                 ChoiceGenerator cg = new ChoiceGenerator(ppx.size(), depth);
                                 int[] choice;
+                                int numEdgeTests = 0;
+
+                                // With Fisher Z, the p values for all the conditioning sets are calculated
+                                // together, sharing the Cholesky rows of their common prefixes.
+                                double[] pValues = pValues(test, x, y, ppx, depth);
+                                int t = 0;
 
                                 while ((choice = cg.next()) != null) {
+                                    if (maxTestsPerEdge != -1 && numEdgeTests++ >= maxTestsPerEdge) {
+                                        break;
+                                    }
+
                                     List<Node> condSet = GraphUtils.asList(choice, ppx);
 
                                     boolean independent;
 
                                     try {
-                                        numIndependenceTests++;
-                                        independent = test.isIndependent(x, y, condSet);
+                                        numTests.incrementAndGet();
+                                        independent = pValues != null ? pValues[t++] > test.getAlpha()
+                                                : test.isIndependent(x, y, condSet);
                                     } catch (Exception e) {
                                         independent = false;
                                     }
 
                                     boolean noEdgeRequired =
-                                            knowledge.noEdgeRequired(x.getName(), y.getName());
+                                            searchKnowledge.noEdgeRequired(x.getName(), y.getName());
 
                                     if (independent && noEdgeRequired) {
                                         adjacencies.get(x).remove(y);
@@ -503,6 +590,9 @@ public class FasStableConcurrent implements IFas {
 
         pool.invoke(new DepthTask(chunk, 0, nodes.size()));
 
+        numIndependenceTests += numTests.get();
+        numIndependenceTestsByDepth.add(numTests.get());
+
         if (verbose) {
             System.out.println("Done with depth");
         }
@@ -510,6 +600,21 @@ public class FasStableConcurrent implements IFas {
         return freeDegree(nodes, adjacencies) > depth;
     }
 
+    /**
+     * @return the p values of the tests of x and y given each subset of the given size of ppx, in
+     * ChoiceGenerator order, if the test is Fisher Z and all of them will be tried; otherwise null, and
+     * the tests are done one at a time.
+     */
+    private double[] pValues(IndependenceTest test, Node x, Node y, List<Node> ppx, int depth) {
+        if (!(test instanceof IndTestFisherZ) || depth == 0 || maxTestsPerEdge != -1) return null;
+
+        try {
+            return ((IndTestFisherZ) test).getPValues(x, y, ppx, depth);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private List<Node> possibleParents(Node x, List<Node> adjx,
                                        IKnowledge knowledge) {
         List<Node> possibleParents = new LinkedList<>();
@@ -534,6 +639,15 @@ public class FasStableConcurrent implements IFas {
         return numIndependenceTests;
     }
 
+    /**
+     * @return the number of independence tests done at the given depth in the most recent search, 0 if the search
+     * did not reach that depth.
+     */
+    public int getNumIndependenceTests(int depth) {
+        if (depth < 0) throw new IllegalArgumentException("Depth must be >= 0: " + depth);
+        return depth < numIndependenceTestsByDepth.size() ? numIndependenceTestsByDepth.get(depth) : 0;
+    }
+
     @Override
     public void setTrueGraph(Graph trueGraph) {
 
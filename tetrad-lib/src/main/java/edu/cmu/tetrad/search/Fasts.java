@@ -819,7 +819,7 @@ public class Fasts implements IFas {
 
     @Override
     public IndependenceTest getIndependenceTest() {
-        return null;
+        return test;
     }
 
     @Override
@@ -22,6 +22,7 @@
 package edu.cmu.tetrad.search;
 
 import edu.cmu.tetrad.data.ICovarianceMatrix;
+import edu.cmu.tetrad.data.CompiledKnowledge;
 import edu.cmu.tetrad.data.IKnowledge;
 import edu.cmu.tetrad.data.Knowledge2;
 import edu.cmu.tetrad.data.KnowledgeEdge;
@@ -179,18 +180,38 @@ public final class Fci implements GraphSearch {
     }
 
     public Graph search() {
-        return search(new Fas(initialGraph, getIndependenceTest()));
+        // Tests done by the adjacency search are reused in the later steps.
+        IndependenceTest test = CachingIndependenceTest.of(getIndependenceTest());
+        return search(new Fas(initialGraph, test), test);
     }
 
     public void setInitialGraph(Graph initialGraph) {
         this.initialGraph = initialGraph;
     }
 
+    /**
+     * Runs the search with the given adjacency search. Its tests are reused in the later steps if
+     * it was given a CachingIndependenceTest wrapping this search's test.
+     */
     public Graph search(IFas fas) {
+        IndependenceTest test = fas.getIndependenceTest();
+
+        if (!(test instanceof CachingIndependenceTest
+                && ((CachingIndependenceTest) test).getTest() == getIndependenceTest())) {
+            test = CachingIndependenceTest.of(getIndependenceTest());
+        }
+
+        return search(fas, test);
+    }
+
+    private Graph search(IFas fas, IndependenceTest test) {
         logger.log("info", "Starting FCI algorithm.");
         logger.log("info", "Independence test = " + getIndependenceTest() + ".");
 
-        fas.setKnowledge(getKnowledge());
+        // Compiled once, so every knowledge check from here on is a bit test.
+        IKnowledge knowledge = CompiledKnowledge.compile(this.knowledge, independenceTest.getVariables());
+
+        fas.setKnowledge(knowledge);
         fas.setDepth(depth);
         fas.setVerbose(verbose);
         this.graph = fas.search();
@@ -198,20 +219,23 @@ public final class Fci implements GraphSearch {
 
         graph.reorientAllWith(Endpoint.CIRCLE);
 
-        SepsetProducer sp = new SepsetsPossibleDsep(graph, independenceTest, knowledge, depth, maxPathLength);
+        SepsetProducer sp = new SepsetsPossibleDsep(graph, test, knowledge, depth, maxPathLength);
         sp.setVerbose(verbose);
 
         // The original FCI, with or without JiJi Zhang's orientation rules
         //        // Optional step: Possible Dsep. (Needed for correctness but very time consuming.)
         if (isPossibleDsepSearchDone()) {
 //            long time1 = System.currentTimeMillis();
-            new FciOrient(new SepsetsSet(this.sepsets, independenceTest)).ruleR0(graph);
+            new FciOrient(new SepsetsSet(this.sepsets, test)).ruleR0(graph);
+
+            List<Edge> edges = new ArrayList<>(graph.getEdges());
+            List<List<Node>> possibleDsepSepsets = PossibleDsepFci.getSepsets(edges, sp);
 
-            for (Edge edge : new ArrayList<>(graph.getEdges())) {
-                Node x = edge.getNode1();
-                Node y = edge.getNode2();
+            for (int i = 0; i < edges.size(); i++) {
+                Node x = edges.get(i).getNode1();
+                Node y = edges.get(i).getNode2();
 
-                List<Node> sepset = sp.getSepset(x, y);
+                List<Node> sepset = possibleDsepSepsets.get(i);
 
                 if (sepset != null) {
                     graph.removeEdge(x, y);
@@ -253,7 +277,7 @@ public final class Fci implements GraphSearch {
         long time6 = System.currentTimeMillis();
         logger.log("info", "Step CI C: " + (time6 - time5) / 1000. + "s");
 
-        final FciOrient fciOrient = new FciOrient(new SepsetsSet(this.sepsets, independenceTest));
+        final FciOrient fciOrient = new FciOrient(new SepsetsSet(this.sepsets, test));
 
         fciOrient.setCompleteRuleSetUsed(completeRuleSetUsed);
         fciOrient.setMaxPathLength(maxPathLength);
@@ -181,9 +181,11 @@ public final class FciMax implements GraphSearch {
     }
 
     public Graph search(List<Node> nodes) {
-        FasStableConcurrent fas = new FasStableConcurrent(initialGraph, getIndependenceTest());
+        // Tests done by the adjacency search are reused in the later steps.
+        IndependenceTest test = CachingIndependenceTest.of(getIndependenceTest());
+        FasStableConcurrent fas = new FasStableConcurrent(initialGraph, test);
         fas.setVerbose(verbose);
-        return search(fas);
+        return search(fas, test);
 //        return search(new Fas(getIndependenceTest()));
     }
 
@@ -191,7 +193,22 @@ public final class FciMax implements GraphSearch {
         this.initialGraph = initialGraph;
     }
 
+    /**
+     * Runs the search with the given adjacency search. Its tests are reused in the later steps if
+     * it was given a CachingIndependenceTest wrapping this search's test.
+     */
     public Graph search(IFas fas) {
+        IndependenceTest test = fas.getIndependenceTest();
+
+        if (!(test instanceof CachingIndependenceTest
+                && ((CachingIndependenceTest) test).getTest() == getIndependenceTest())) {
+            test = CachingIndependenceTest.of(getIndependenceTest());
+        }
+
+        return search(fas, test);
+    }
+
+    private Graph search(IFas fas, IndependenceTest test) {
         logger.log("info", "Starting FCI algorithm.");
         logger.log("info", "Independence test = " + getIndependenceTest() + ".");
         fas.setVerbose(verbose);
@@ -205,8 +222,8 @@ public final class FciMax implements GraphSearch {
         graph.reorientAllWith(Endpoint.CIRCLE);
 
 //        SepsetProducer sp = new SepsetsPossibleDsep(graph, independenceTest, knowledge, depth, maxPathLength);
-        SepsetProducer sp = new SepsetsMaxPValuePossDsep(graph, independenceTest, null, depth, maxPathLength);
-        SepsetProducer sp2 = new SepsetsMaxScore(graph, independenceTest, null, depth);
+        SepsetProducer sp = new SepsetsMaxPValuePossDsep(graph, test, null, depth, maxPathLength);
+        SepsetProducer sp2 = new SepsetsMaxScore(graph, test, null, depth);
 
         // The original FCI, with or without JiJi Zhang's orientation rules
         //        // Optional step: Possible Dsep. (Needed for correctness but very time consuming.)
@@ -219,11 +236,14 @@ public final class FciMax implements GraphSearch {
 
             System.out.println("Possible dsep add colliders done");
 
-            for (Edge edge : new ArrayList<>(graph.getEdges())) {
-                Node x = edge.getNode1();
-                Node y = edge.getNode2();
+            List<Edge> edges = new ArrayList<>(graph.getEdges());
+            List<List<Node>> possibleDsepSepsets = PossibleDsepFci.getSepsets(edges, sp);
+
+            for (int i = 0; i < edges.size(); i++) {
+                Node x = edges.get(i).getNode1();
+                Node y = edges.get(i).getNode2();
 
-                List<Node> sepset = sp.getSepset(x, y);
+                List<Node> sepset = possibleDsepSepsets.get(i);
 
                 if (sepset != null) {
                     graph.removeEdge(x, y);
@@ -267,7 +287,7 @@ public final class FciMax implements GraphSearch {
         long time6 = System.currentTimeMillis();
         logger.log("info", "Step CI C: " + (time6 - time5) / 1000. + "s");
 
-        final FciOrient fciOrient = new FciOrient(new SepsetsSet(this.sepsets, independenceTest));
+        final FciOrient fciOrient = new FciOrient(new SepsetsSet(this.sepsets, test));
 
         fciOrient.setCompleteRuleSetUsed(completeRuleSetUsed);
         fciOrient.setMaxPathLength(maxPathLength);
@@ -89,6 +89,16 @@ public final class FciOrient {
     private Graph dag;
     private boolean skipDiscriminatingPathRule;
 
+    /**
+     * While doFinalOrientation is running, the nodes at which each rule needs to be tried again because an endpoint
+     * it looks at has changed since it was last tried there; null otherwise. Trying a rule at any other node would
+     * just find what it found last time, so skipping them gives the same graph.
+     */
+    private Set<Node> toDoR1R2 = null;
+    private Set<Node> toDoR3 = null;
+    private Set<Node> toDoR4 = null;
+    private Set<Node> toDoR6R7 = null;
+
     //============================CONSTRUCTORS============================//
 
     /**
@@ -171,6 +181,46 @@ public final class FciOrient {
         return this.sepsets.getSepset(i, k);
     }
 
+    /**
+     * Sets an endpoint, noting where the rules need to be tried again. R1-R3 look at the edges of the middle node
+     * and the edges between its neighbors, R6 and R7 at the edges of the middle node, and R4, for B, at the edges of
+     * the nodes adjacent to the neighbors C of B, which is where discriminating paths for C lie.
+     */
+    private void setEndpoint(Graph graph, Node x, Node y, Endpoint endpoint) {
+        graph.setEndpoint(x, y, endpoint);
+
+        if (toDoR1R2 == null) return;
+
+        List<Node> adjX = graph.getAdjacentNodes(x);
+        List<Node> adjY = graph.getAdjacentNodes(y);
+
+        for (Node n : new Node[]{x, y}) {
+            toDoR1R2.add(n);
+            toDoR3.add(n);
+            toDoR4.add(n);
+            toDoR6R7.add(n);
+        }
+
+        for (Node n : adjX) {
+            if (graph.isAdjacentTo(n, y)) {
+                toDoR1R2.add(n);
+                toDoR3.add(n);
+            }
+        }
+
+        for (List<Node> adj : Arrays.asList(adjX, adjY)) {
+            for (Node c : adj) {
+                toDoR4.add(c);
+                toDoR4.addAll(graph.getAdjacentNodes(c));
+            }
+        }
+    }
+
+    // True if the rule needs to be tried at the node; it's then taken off the list.
+    private static boolean isToDo(Set<Node> toDo, Node node) {
+        return toDo == null || toDo.remove(node);
+    }
+
 
     /**
      * Orients colliders in the graph.  (FCI Step C)
@@ -215,8 +265,8 @@ public final class FciOrient {
                         continue;
                     }
 
-                    graph.setEndpoint(a, b, Endpoint.ARROW);
-                    graph.setEndpoint(c, b, Endpoint.ARROW);
+                    setEndpoint(graph, a, b, Endpoint.ARROW);
+                    setEndpoint(graph, c, b, Endpoint.ARROW);
                     if (verbose) {
                         logger.log("colliderOrientations", SearchLogUtils.colliderOrientedMsg(a, b, c));
                         System.out.println(SearchLogUtils.colliderOrientedMsg(a, b, c));
@@ -242,10 +292,22 @@ public final class FciOrient {
      * Zhang's step F4, rules R1-R10.
      */
     public void doFinalOrientation(Graph graph) {
-        if (completeRuleSetUsed) {
-            zhangFinalOrientation(graph);
-        } else {
-            spirtesFinalOrientation(graph);
+        toDoR1R2 = new HashSet<>(graph.getNodes());
+        toDoR3 = new HashSet<>(graph.getNodes());
+        toDoR4 = new HashSet<>(graph.getNodes());
+        toDoR6R7 = new HashSet<>(graph.getNodes());
+
+        try {
+            if (completeRuleSetUsed) {
+                zhangFinalOrientation(graph);
+            } else {
+                spirtesFinalOrientation(graph);
+            }
+        } finally {
+            toDoR1R2 = null;
+            toDoR3 = null;
+            toDoR4 = null;
+            toDoR6R7 = null;
         }
     }
 
@@ -322,6 +384,8 @@ public final class FciOrient {
         List<Node> nodes = graph.getNodes();
 
         for (Node B : nodes) {
+            if (!isToDo(toDoR1R2, B)) continue;
+
             List<Node> adj = graph.getAdjacentNodes(B);
 
             if (adj.size() < 2) {
@@ -356,8 +420,8 @@ public final class FciOrient {
                 return;
             }
 
-            graph.setEndpoint(c, b, Endpoint.TAIL);
-            graph.setEndpoint(b, c, Endpoint.ARROW);
+            setEndpoint(graph, c, b, Endpoint.TAIL);
+            setEndpoint(graph, b, c, Endpoint.ARROW);
             changeFlag = true;
 
             if (verbose) {
@@ -386,7 +450,7 @@ public final class FciOrient {
                     return;
                 }
 
-                graph.setEndpoint(a, c, Endpoint.ARROW);
+                setEndpoint(graph, a, c, Endpoint.ARROW);
 
                 if (verbose) {
                     logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("Away from ancestor", graph.getEdge(a, c)));
@@ -427,7 +491,7 @@ public final class FciOrient {
 //                if (graph.getEndpoint(a, b) == Endpoint.ARROW && graph.getEndpoint(c, b) == Endpoint.ARROW
 //                    && graph.getEndpoint(a, d) == Endpoint.CIRCLE && graph.getEndpoint(c, d) == Endpoint.ARROW
 //                        && !graph.isAdjacentTo(a, c) && graph.getEndpoint(d, b) == Endpoint.CIRCLE) {
-//                    graph.setEndpoint(d, b, Endpoint.ARROW);
+//                    setEndpoint(graph, d, b, Endpoint.ARROW);
 //                }
 //            }
 //        }
@@ -443,6 +507,7 @@ public final class FciOrient {
         List<Node> nodes = graph.getNodes();
 
         for (Node B : nodes) {
+            if (!isToDo(toDoR3, B)) continue;
 
             List<Node> intoBArrows = graph.getNodesInTo(B, Endpoint.ARROW);
             List<Node> intoBCircles = graph.getNodesInTo(B, Endpoint.CIRCLE);
@@ -484,7 +549,7 @@ public final class FciOrient {
                         continue;
                     }
 
-                    graph.setEndpoint(D, B, Endpoint.ARROW);
+                    setEndpoint(graph, D, B, Endpoint.ARROW);
 
                     if (verbose) {
                         logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("Double triangle", graph.getEdge(D, B)));
@@ -637,7 +702,7 @@ public final class FciOrient {
         if (sepset == null) return;
 
         if (sepset.contains(b)) {
-            graph.setEndpoint(c, b, Endpoint.TAIL);
+            setEndpoint(graph, c, b, Endpoint.TAIL);
 
             if (verbose) {
                 logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("Definite discriminating path d = " + d, graph.getEdge(b, c)));
@@ -654,8 +719,8 @@ public final class FciOrient {
                 return;
             }
 
-            graph.setEndpoint(a, b, Endpoint.ARROW);
-            graph.setEndpoint(c, b, Endpoint.ARROW);
+            setEndpoint(graph, a, b, Endpoint.ARROW);
+            setEndpoint(graph, c, b, Endpoint.ARROW);
             logger.log("colliderOrientations", SearchLogUtils.colliderOrientedMsg("Definite discriminating path.. d = " + d, a, b, c));
             changeFlag = true;
         }
@@ -681,6 +746,7 @@ public final class FciOrient {
         List<Node> nodes = graph.getNodes();
 
         for (Node b : nodes) {
+            if (!isToDo(toDoR4, b)) continue;
 
             //potential A and C candidate pairs are only those
             // that look like this:   A<-*Bo-*C
@@ -717,7 +783,7 @@ public final class FciOrient {
 
         Map<Node, Node> previous = new HashMap<Node, Node>();
 
-        List<Node> cParents = graph.getParents(c);
+        Set<Node> cParents = new HashSet<Node>(graph.getParents(c));
 
         Q.offer(a);
         V.add(a);
@@ -768,7 +834,7 @@ public final class FciOrient {
     private boolean doDdpOrientation(Node d, Node a, Node b, Node c, Map<Node, Node> previous, Graph graph) {
         if (dag != null) {
             if (dag.isAncestorOf(b, c)) {
-                graph.setEndpoint(c, b, Endpoint.TAIL);
+                setEndpoint(graph, c, b, Endpoint.TAIL);
                 changeFlag = true;
             } else {
                 if (!isArrowpointAllowed(a, b, graph)) {
@@ -779,8 +845,8 @@ public final class FciOrient {
                     return false;
                 }
 
-                graph.setEndpoint(a, b, Endpoint.ARROW);
-                graph.setEndpoint(c, b, Endpoint.ARROW);
+                setEndpoint(graph, a, b, Endpoint.ARROW);
+                setEndpoint(graph, c, b, Endpoint.ARROW);
                 changeFlag = true;
             }
 
@@ -822,7 +888,7 @@ public final class FciOrient {
 
         if (ind) {
 //            if (sepset.contains(b)) {
-            graph.setEndpoint(c, b, Endpoint.TAIL);
+            setEndpoint(graph, c, b, Endpoint.TAIL);
 
             if (verbose) {
                 logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("Definite discriminating path d = " + d, graph.getEdge(b, c)));
@@ -840,8 +906,8 @@ public final class FciOrient {
                 return false;
             }
 
-            graph.setEndpoint(a, b, Endpoint.ARROW);
-            graph.setEndpoint(c, b, Endpoint.ARROW);
+            setEndpoint(graph, a, b, Endpoint.ARROW);
+            setEndpoint(graph, c, b, Endpoint.ARROW);
 
             if (verbose) {
                 logger.log("impliedOrientations", SearchLogUtils.colliderOrientedMsg("Definite discriminating path.. d = " + d, a, b, c));
@@ -910,8 +976,8 @@ public final class FciOrient {
 
                     logger.log("colliderOrientations", SearchLogUtils.edgeOrientedMsg("Orient circle path", graph.getEdge(a, b)));
 
-                    graph.setEndpoint(a, b, Endpoint.TAIL);
-                    graph.setEndpoint(b, a, Endpoint.TAIL);
+                    setEndpoint(graph, a, b, Endpoint.TAIL);
+                    setEndpoint(graph, b, a, Endpoint.TAIL);
                     orientTailPath(u, graph);
                     changeFlag = true;
                 }
@@ -927,6 +993,8 @@ public final class FciOrient {
         List<Node> nodes = graph.getNodes();
 
         for (Node b : nodes) {
+            if (!isToDo(toDoR6R7, b)) continue;
+
             List<Node> adjacents = graph.getAdjacentNodes(b);
 
             if (adjacents.size() < 2) continue;
@@ -946,7 +1014,7 @@ public final class FciOrient {
                 if (graph.getEndpoint(a, b) == Endpoint.TAIL) {
 
                     // We know A---Bo-*C: R6 applies!
-                    graph.setEndpoint(c, b, Endpoint.TAIL);
+                    setEndpoint(graph, c, b, Endpoint.TAIL);
 
                     logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("Single tails (tail)", graph.getEdge(c, b)));
 
@@ -959,7 +1027,7 @@ public final class FciOrient {
                     logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("Single tails (tail)", graph.getEdge(c, b)));
 
                     // We know A--oBo-*C and A,C nonadjacent: R7 applies!
-                    graph.setEndpoint(c, b, Endpoint.TAIL);
+                    setEndpoint(graph, c, b, Endpoint.TAIL);
                     changeFlag = true;
                 }
 
@@ -1007,8 +1075,8 @@ public final class FciOrient {
             Node n1 = path.get(i);
             Node n2 = path.get(i + 1);
 
-            graph.setEndpoint(n1, n2, Endpoint.TAIL);
-            graph.setEndpoint(n2, n1, Endpoint.TAIL);
+            setEndpoint(graph, n1, n2, Endpoint.TAIL);
+            setEndpoint(graph, n2, n1, Endpoint.TAIL);
             changeFlag = true;
 
             logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("Orient circle undirectedPaths", graph.getEdge(n1, n2)));
@@ -1016,77 +1084,48 @@ public final class FciOrient {
     }
 
     /**
-     * Gets a list of every uncovered partially directed path between two nodes in the graph.
-     * <p>
-     * Probably extremely slow.
+     * Determines whether there is an uncovered partially directed path from n1 to n2 whose second node is the given
+     * one. The search is depth-first and stops at the first such path.
      *
-     * @param n1 The beginning node of the undirectedPaths.
-     * @param n2 The ending node of the undirectedPaths.
-     * @return A list of uncovered partially directed undirectedPaths from n1 to n2.
+     * @param n1     The beginning node of the path.
+     * @param second The second node of the path.
+     * @param n2     The ending node of the path.
      */
-    private List<List<Node>> getUcPdPaths(Node n1, Node n2, Graph graph) {
-        List<List<Node>> ucPdPaths = new LinkedList<List<Node>>();
-
-        LinkedList<Node> soFar = new LinkedList<Node>();
+    private boolean existsUcPdPath(Node n1, Node second, Node n2, Graph graph) {
+        List<Node> soFar = new ArrayList<>();
         soFar.add(n1);
-
-        List<Node> adjacencies = graph.getAdjacentNodes(n1);
-        for (Node curr : adjacencies) {
-            getUcPdPsHelper(curr, soFar, n2, ucPdPaths, graph);
-        }
-
-        return ucPdPaths;
+        return existsUcPathHelper(second, soFar, new HashSet<>(soFar), n2, false, graph);
     }
 
     /**
-     * Used in getUcPdPaths(n1,n2) to perform a breadth-first search on the graph.
-     * <p>
-     * ASSUMES soFar CONTAINS AT LEAST ONE NODE!
-     * <p>
-     * Probably extremely slow.
+     * Extends soFar to curr if that keeps it uncovered and partially directed (or, if circles is true, made of
+     * o-o edges), and goes on depth-first from there. soFar is left as it was.
      *
-     * @param curr      The getModel node to test for addition.
-     * @param soFar     The getModel partially built-up path.
-     * @param end       The node to finish the undirectedPaths at.
-     * @param ucPdPaths The getModel list of uncovered p.d. undirectedPaths.
+     * @return True iff a path to the end was found.
      */
-    private void getUcPdPsHelper(Node curr, List<Node> soFar, Node end,
-                                 List<List<Node>> ucPdPaths, Graph graph) {
+    private boolean existsUcPathHelper(Node curr, List<Node> soFar, Set<Node> onPath, Node end, boolean circles,
+                                       Graph graph) {
+        if (!canExtend(curr, soFar, onPath, circles, graph)) return false;
+        if (curr.equals(end)) return true;
 
-        if (soFar.contains(curr)) return;
+        soFar.add(curr);
+        onPath.add(curr);
 
-        Node prev = soFar.get(soFar.size() - 1);
-        if (graph.getEndpoint(prev, curr) == Endpoint.TAIL ||
-                graph.getEndpoint(curr, prev) == Endpoint.ARROW) {
-            return; // Adding curr would make soFar not p.d.
-        } else if (soFar.size() >= 2) {
-            Node prev2 = soFar.get(soFar.size() - 2);
-            if (graph.isAdjacentTo(prev2, curr)) {
-                return; // Adding curr would make soFar not uncovered.
+        try {
+            for (Node next : graph.getAdjacentNodes(curr)) {
+                if (existsUcPathHelper(next, soFar, onPath, end, circles, graph)) return true;
             }
-        }
-
-        soFar.add(curr); // Adding curr is OK, so let's do it.
 
-        if (curr.equals(end)) {
-            // We've reached the goal! Save soFar as a path.
-            ucPdPaths.add(new LinkedList<Node>(soFar));
-        } else {
-            // Otherwise, try each node adjacent to the getModel one.
-            List<Node> adjacents = graph.getAdjacentNodes(curr);
-            for (Node next : adjacents) {
-                getUcPdPsHelper(next, soFar, end, ucPdPaths, graph);
-            }
+            return false;
+        } finally {
+            soFar.remove(soFar.size() - 1);
+            onPath.remove(curr);
         }
-
-        soFar.remove(soFar.get(soFar.size() - 1)); // For other recursive calls.
     }
 
     /**
-     * Gets a list of every uncovered circle path between two nodes in the graph by iterating through the uncovered
-     * partially directed undirectedPaths and only keeping the circle undirectedPaths.
-     * <p>
-     * Probably extremely slow.
+     * Gets a list of every uncovered circle path between two nodes in the graph, in depth-first order. Only o-o edges
+     * are followed.
      *
      * @param n1 The beginning node of the undirectedPaths.
      * @param n2 The ending node of the undirectedPaths.
@@ -1094,25 +1133,62 @@ public final class FciOrient {
      */
     private List<List<Node>> getUcCirclePaths(Node n1, Node n2, Graph graph) {
         List<List<Node>> ucCirclePaths = new LinkedList<List<Node>>();
-        List<List<Node>> ucPdPaths = getUcPdPaths(n1, n2, graph);
 
-        for (List<Node> path : ucPdPaths) {
-            for (int i = 0; i < path.size() - 1; i++) {
-                Node j = path.get(i);
-                Node sj = path.get(i + 1);
+        List<Node> soFar = new ArrayList<>();
+        soFar.add(n1);
+        Set<Node> onPath = new HashSet<>(soFar);
 
-                if (!(graph.getEndpoint(j, sj) == Endpoint.CIRCLE)) break;
-                if (!(graph.getEndpoint(sj, j) == Endpoint.CIRCLE)) break;
-                // This edge is OK, it's all circles.
+        for (Node curr : graph.getAdjacentNodes(n1)) {
+            getUcCirclePathsHelper(curr, soFar, onPath, n2, ucCirclePaths, graph);
+        }
 
-                if (i == path.size() - 2) {
-                    // We're at the last edge, so this is a circle path.
-                    ucCirclePaths.add(path);
-                }
+        return ucCirclePaths;
+    }
+
+    private void getUcCirclePathsHelper(Node curr, List<Node> soFar, Set<Node> onPath, Node end,
+                                        List<List<Node>> ucCirclePaths, Graph graph) {
+        if (!canExtend(curr, soFar, onPath, true, graph)) return;
+
+        soFar.add(curr);
+        onPath.add(curr);
+
+        if (curr.equals(end)) {
+            // We've reached the goal! Save soFar as a path.
+            ucCirclePaths.add(new LinkedList<Node>(soFar));
+        } else {
+            for (Node next : graph.getAdjacentNodes(curr)) {
+                getUcCirclePathsHelper(next, soFar, onPath, end, ucCirclePaths, graph);
             }
         }
 
-        return ucCirclePaths;
+        soFar.remove(soFar.size() - 1);
+        onPath.remove(curr);
+    }
+
+    // True iff soFar followed by curr is an uncovered, partially directed path (of o-o edges, if circles is true).
+    private boolean canExtend(Node curr, List<Node> soFar, Set<Node> onPath, boolean circles, Graph graph) {
+        if (onPath.contains(curr)) return false;
+
+        Node prev = soFar.get(soFar.size() - 1);
+
+        if (circles) {
+            if (graph.getEndpoint(prev, curr) != Endpoint.CIRCLE ||
+                    graph.getEndpoint(curr, prev) != Endpoint.CIRCLE) {
+                return false;
+            }
+        } else if (graph.getEndpoint(prev, curr) == Endpoint.TAIL ||
+                graph.getEndpoint(curr, prev) == Endpoint.ARROW) {
+            return false; // Adding curr would make soFar not p.d.
+        }
+
+        if (soFar.size() >= 2) {
+            Node prev2 = soFar.get(soFar.size() - 2);
+            if (graph.isAdjacentTo(prev2, curr)) {
+                return false; // Adding curr would make soFar not uncovered.
+            }
+        }
+
+        return true;
     }
 
     /**
@@ -1144,7 +1220,7 @@ public final class FciOrient {
 
             logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("R8", graph.getEdge(c, a)));
 
-            graph.setEndpoint(c, a, Endpoint.TAIL);
+            setEndpoint(graph, c, a, Endpoint.TAIL);
             changeFlag = true;
             return true;
         }
@@ -1164,17 +1240,15 @@ public final class FciOrient {
      * @return Whether or not R9 was succesfully applied.
      */
     private boolean ruleR9(Node a, Node c, Graph graph) {
-        List<List<Node>> ucPdPsToC = getUcPdPaths(a, c, graph);
-
-        for (List<Node> u : ucPdPsToC) {
-            Node b = u.get(1);
-            if (graph.isAdjacentTo(b, c)) continue;
+        for (Node b : graph.getAdjacentNodes(a)) {
             if (b == c) continue;
-            // We know u is as required: R9 applies!
+            if (graph.isAdjacentTo(b, c)) continue;
+            if (!existsUcPdPath(a, b, c, graph)) continue;
+            // We know there is a u = <A,B,...,C> as required: R9 applies!
 
             logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("R9", graph.getEdge(c, a)));
 
-            graph.setEndpoint(c, a, Endpoint.TAIL);
+            setEndpoint(graph, c, a, Endpoint.TAIL);
             changeFlag = true;
             return true;
         }
@@ -1209,12 +1283,16 @@ public final class FciOrient {
                 if (!(graph.getEndpoint(d, c) == Endpoint.TAIL)) continue;
                 // We know Ao->C and B-->C<--D.
 
-                List<List<Node>> ucPdPsToB = getUcPdPaths(a, b, graph);
-                List<List<Node>> ucPdPsToD = getUcPdPaths(a, d, graph);
-                for (List<Node> u1 : ucPdPsToB) {
-                    Node m = u1.get(1);
-                    for (List<Node> u2 : ucPdPsToD) {
-                        Node n = u2.get(1);
+                List<Node> mToB = new ArrayList<>();
+                List<Node> nToD = new ArrayList<>();
+
+                for (Node m : graph.getAdjacentNodes(a)) {
+                    if (existsUcPdPath(a, m, b, graph)) mToB.add(m);
+                    if (existsUcPdPath(a, m, d, graph)) nToD.add(m);
+                }
+
+                for (Node m : mToB) {
+                    for (Node n : nToD) {
 
                         if (m.equals(n)) continue;
                         if (graph.isAdjacentTo(m, n)) continue;
@@ -1222,7 +1300,7 @@ public final class FciOrient {
 
                         logger.log("impliedOrientations", SearchLogUtils.edgeOrientedMsg("R10", graph.getEdge(c, a)));
 
-                        graph.setEndpoint(c, a, Endpoint.TAIL);
+                        setEndpoint(graph, c, a, Endpoint.TAIL);
                         changeFlag = true;
                         return true;
                     }
@@ -1257,8 +1335,8 @@ public final class FciOrient {
             }
 
             // Orient to*->from
-            graph.setEndpoint(to, from, Endpoint.ARROW);
-            graph.setEndpoint(from, to, Endpoint.CIRCLE);
+            setEndpoint(graph, to, from, Endpoint.ARROW);
+            setEndpoint(graph, from, to, Endpoint.CIRCLE);
             changeFlag = true;
             logger.log("knowledgeOrientation", SearchLogUtils.edgeOrientedMsg("Knowledge", graph.getEdge(from, to)));
         }
@@ -1279,8 +1357,8 @@ public final class FciOrient {
                 continue;
             }
 
-            graph.setEndpoint(to, from, Endpoint.TAIL);
-            graph.setEndpoint(from, to, Endpoint.ARROW);
+            setEndpoint(graph, to, from, Endpoint.TAIL);
+            setEndpoint(graph, from, to, Endpoint.ARROW);
             changeFlag = true;
             logger.log("knowledgeOrientation", SearchLogUtils.edgeOrientedMsg("Knowledge", graph.getEdge(from, to)));
         }
@@ -67,6 +67,11 @@ public final class Fgs implements GraphSearch, GraphScorer {
      */
     private IKnowledge knowledge = new Knowledge2();
 
+    /**
+     * The knowledge used during the search, compiled for the variables when the search starts.
+     */
+    private IKnowledge searchKnowledge = knowledge;
+
     /**
      * List of variables in the data set, in order.
      */
@@ -103,6 +108,16 @@ public final class Fgs implements GraphSearch, GraphScorer {
      */
     private Score score;
 
+    /**
+     * The score used during the search, which stores local scores if maxCachedScores > 0.
+     */
+    private Score searchScore;
+
+    /**
+     * The maximum number of local scores to store during the search; 0 for none.
+     */
+    private int maxCachedScores = 100000;
+
     /**
      * The logger for this class. The config needs to be set.
      */
@@ -215,56 +230,73 @@ public final class Fgs implements GraphSearch, GraphScorer {
     public Graph search() {
         topGraphs.clear();
 
-        lookupArrows = new ConcurrentHashMap<>();
-        final List<Node> nodes = new ArrayList<>(variables);
-        graph = new EdgeListGraphSingleConnections(nodes);
+        searchScore = maxCachedScores > 0 ? new CachingScore(score, maxCachedScores) : score;
+        searchKnowledge = CompiledKnowledge.compile(knowledge, variables);
 
-        if (adjacencies != null) {
-            adjacencies = GraphUtils.replaceNodes(adjacencies, nodes);
-        }
+        try {
+            lookupArrows = new ConcurrentHashMap<>();
+            final List<Node> nodes = new ArrayList<>(variables);
 
-        if (initialGraph != null) {
-            graph = new EdgeListGraphSingleConnections(initialGraph);
-            graph = GraphUtils.replaceNodes(graph, nodes);
-        }
+            // The search works on an int-indexed graph; the result is converted back below.
+            graph = new IntIndexedGraph(nodes);
 
-        addRequiredEdges(graph);
+            if (adjacencies != null) {
+                adjacencies = GraphUtils.replaceNodes(adjacencies, nodes);
+            }
 
-        if (faithfulnessAssumed) {
-            initializeForwardEdgesFromEmptyGraph(getVariables());
+            if (initialGraph != null) {
+                graph = new IntIndexedGraph(GraphUtils.replaceNodes(initialGraph, nodes));
+            }
 
-            // Do forward search.
-            this.mode = Mode.heuristicSpeedup;
-            fes();
-            bes();
+            addRequiredEdges(graph);
 
-            this.mode = Mode.coverNoncolliders;
-            initializeTwoStepEdges(getVariables());
-            fes();
-            bes();
-        } else {
-            initializeForwardEdgesFromEmptyGraph(getVariables());
+            if (faithfulnessAssumed) {
+                initializeForwardEdgesFromEmptyGraph(getVariables());
 
-            // Do forward search.
-            this.mode = Mode.heuristicSpeedup;
-            fes();
-            bes();
+                // Do forward search.
+                this.mode = Mode.heuristicSpeedup;
+                fes();
+                bes();
 
-            this.mode = Mode.allowUnfaithfulness;
-            initializeForwardEdgesFromExistingGraph(getVariables());
-            fes();
-            bes();
-        }
+                this.mode = Mode.coverNoncolliders;
+                initializeTwoStepEdges(getVariables());
+                fes();
+                bes();
+            } else {
+                initializeForwardEdgesFromEmptyGraph(getVariables());
 
-        long start = System.currentTimeMillis();
-        totalScore = 0.0;
+                // Do forward search.
+                this.mode = Mode.heuristicSpeedup;
+                fes();
+                bes();
+
+                this.mode = Mode.allowUnfaithfulness;
+                initializeForwardEdgesFromExistingGraph(getVariables());
+                fes();
+                bes();
+            }
+
+            long start = System.currentTimeMillis();
+            totalScore = 0.0;
 
-        long endTime = System.currentTimeMillis();
-        this.elapsedTime = endTime - start;
-        this.logger.log("graph", "\nReturning this graph: " + graph);
+            long endTime = System.currentTimeMillis();
+            this.elapsedTime = endTime - start;
+            this.logger.log("graph", "\nReturning this graph: " + graph);
+
+            this.logger.log("info", "Elapsed time = " + (elapsedTime) / 1000. + " s");
+            this.logger.flush();
+
+            if (verbose && searchScore instanceof CachingScore) {
+                CachingScore cachingScore = (CachingScore) searchScore;
+                out.println("Local scores cached: hits = " + cachingScore.getNumHits()
+                        + ", misses = " + cachingScore.getNumMisses());
+            }
+        } finally {
+            searchScore = score;
+            searchKnowledge = knowledge;
+        }
 
-        this.logger.log("info", "Elapsed time = " + (elapsedTime) / 1000. + " s");
-        this.logger.flush();
+        graph = new EdgeListGraphSingleConnections(graph);
 
         this.modelScore = totalScore;
 
@@ -287,6 +319,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
     public void setKnowledge(IKnowledge knowledge) {
         if (knowledge == null) throw new NullPointerException();
         this.knowledge = knowledge;
+        this.searchKnowledge = knowledge;
     }
 
     public long getElapsedTime() {
@@ -367,6 +400,24 @@ public final class Fgs implements GraphSearch, GraphScorer {
         this.verbose = verbose;
     }
 
+    /**
+     * The maximum number of local scores stored during a search, so that families rescored in
+     * the backward phase or when arrows are rebuilt are only calculated once.
+     * @return 0 if local scores are not stored.
+     */
+    public int getMaxCachedScores() {
+        return maxCachedScores;
+    }
+
+    /**
+     * The maximum number of local scores stored during a search.
+     * @param maxCachedScores 0 if local scores should not be stored.
+     */
+    public void setMaxCachedScores(int maxCachedScores) {
+        if (maxCachedScores < 0) throw new IllegalArgumentException();
+        this.maxCachedScores = maxCachedScores;
+    }
+
     /**
      * Sets the output stream that output (except for log output) should be sent to.
      * By detault System.out.
@@ -494,6 +545,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
     //Sets the discrete scoring function to use.
     private void setScore(Score totalScore) {
         this.score = totalScore;
+        this.searchScore = totalScore;
 
         this.variables = new ArrayList<>();
 
@@ -542,7 +594,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
                     Node x = nodes.get(j);
 
                     if (existsKnowledge()) {
-                        if (getKnowledge().isForbidden(x.getName(), y.getName()) && getKnowledge().isForbidden(y.getName(), x.getName())) {
+                        if (searchKnowledge.isForbidden(x.getName(), y.getName()) && searchKnowledge.isForbidden(y.getName(), x.getName())) {
                             continue;
                         }
 
@@ -557,7 +609,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
 
                     int child = hashIndices.get(y);
                     int parent = hashIndices.get(x);
-                    double bump = score.localScoreDiff(parent, child);
+                    double bump = searchScore.localScoreDiff(parent, child);
 
                     if (boundGraph != null && !boundGraph.isAdjacentTo(x, y)) continue;
 
@@ -708,7 +760,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
                             if (x == y) throw new IllegalArgumentException();
 
                             if (existsKnowledge()) {
-                                if (getKnowledge().isForbidden(x.getName(), y.getName()) && getKnowledge().isForbidden(y.getName(), x.getName())) {
+                                if (searchKnowledge.isForbidden(x.getName(), y.getName()) && searchKnowledge.isForbidden(y.getName(), x.getName())) {
                                     continue;
                                 }
 
@@ -804,7 +856,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
 
                         for (Node x : D) {
                             if (existsKnowledge()) {
-                                if (getKnowledge().isForbidden(x.getName(), y.getName()) && getKnowledge().isForbidden(y.getName(), x.getName())) {
+                                if (searchKnowledge.isForbidden(x.getName(), y.getName()) && searchKnowledge.isForbidden(y.getName(), x.getName())) {
                                     continue;
                                 }
 
@@ -955,7 +1007,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
             reevaluateBackward(toProcess);
         }
 
-        meekOrientRestricted(getVariables(), getKnowledge());
+        meekOrientRestricted(getVariables(), searchKnowledge);
     }
 
     private Set<Node> getCommonAdjacents(Node x, Node y) {
@@ -973,7 +1025,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
             toProcess.addAll(newArrows);
         }
 
-        return meekOrientRestricted(new ArrayList<>(toProcess), getKnowledge());
+        return meekOrientRestricted(new ArrayList<>(toProcess), searchKnowledge);
     }
 
     // Returns true if knowledge is not empty.
@@ -989,7 +1041,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
             Node y = edge.getNode2();
 
             if (existsKnowledge()) {
-                if (!getKnowledge().noEdgeRequired(x.getName(), y.getName())) {
+                if (!searchKnowledge.noEdgeRequired(x.getName(), y.getName())) {
                     continue;
                 }
             }
@@ -1106,7 +1158,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
         if (a == b) throw new IllegalArgumentException();
 
         if (existsKnowledge()) {
-            if (getKnowledge().isForbidden(a.getName(), b.getName())) {
+            if (searchKnowledge.isForbidden(a.getName(), b.getName())) {
                 return;
             }
         }
@@ -1243,7 +1295,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
     // Calculates the arrows for the removal in the backward direction.
     private void calculateArrowsBackward(Node a, Node b) {
         if (existsKnowledge()) {
-            if (!getKnowledge().noEdgeRequired(a.getName(), b.getName())) {
+            if (!searchKnowledge.noEdgeRequired(a.getName(), b.getName())) {
                 return;
             }
         }
@@ -1537,12 +1589,12 @@ public final class Fgs implements GraphSearch, GraphScorer {
         boolean violatesKnowledge = false;
 
         if (existsKnowledge()) {
-            if (knowledge.isForbidden(x.getName(), y.getName())) {
+            if (searchKnowledge.isForbidden(x.getName(), y.getName())) {
                 violatesKnowledge = true;
             }
 
             for (Node t : T) {
-                if (knowledge.isForbidden(t.getName(), y.getName())) {
+                if (searchKnowledge.isForbidden(t.getName(), y.getName())) {
                     violatesKnowledge = true;
                 }
             }
@@ -1560,11 +1612,11 @@ public final class Fgs implements GraphSearch, GraphScorer {
 
         if (existsKnowledge()) {
             for (Node h : H) {
-                if (knowledge.isForbidden(x.getName(), h.getName())) {
+                if (searchKnowledge.isForbidden(x.getName(), h.getName())) {
                     violatesKnowledge = true;
                 }
 
-                if (knowledge.isForbidden(y.getName(), h.getName())) {
+                if (searchKnowledge.isForbidden(y.getName(), h.getName())) {
                     violatesKnowledge = true;
                 }
             }
@@ -1579,7 +1631,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
     private void addRequiredEdges(Graph graph) {
         if (!existsKnowledge()) return;
 
-        for (Iterator<KnowledgeEdge> it = getKnowledge().requiredEdgesIterator(); it.hasNext(); ) {
+        for (Iterator<KnowledgeEdge> it = searchKnowledge.requiredEdgesIterator(); it.hasNext(); ) {
             KnowledgeEdge next = it.next();
 
             Node nodeA = graph.getNode(next.getFrom());
@@ -1595,7 +1647,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
             final String A = edge.getNode1().getName();
             final String B = edge.getNode2().getName();
 
-            if (knowledge.isForbidden(A, B)) {
+            if (searchKnowledge.isForbidden(A, B)) {
                 Node nodeA = edge.getNode1();
                 Node nodeB = edge.getNode2();
                 if (nodeA == null || nodeB == null) throw new NullPointerException();
@@ -1608,14 +1660,14 @@ public final class Fgs implements GraphSearch, GraphScorer {
                     }
                 }
 
-                if (!graph.isChildOf(nodeA, nodeB) && getKnowledge().isForbidden(nodeA.getName(), nodeB.getName())) {
+                if (!graph.isChildOf(nodeA, nodeB) && searchKnowledge.isForbidden(nodeA.getName(), nodeB.getName())) {
                     if (!graph.isAncestorOf(nodeA, nodeB)) {
                         graph.removeEdges(nodeA, nodeB);
                         graph.addDirectedEdge(nodeB, nodeA);
                         TetradLogger.getInstance().log("insertedEdges", "Adding edge by knowledge: " + graph.getEdge(nodeB, nodeA));
                     }
                 }
-            } else if (knowledge.isForbidden(B, A)) {
+            } else if (searchKnowledge.isForbidden(B, A)) {
                 Node nodeA = edge.getNode2();
                 Node nodeB = edge.getNode1();
                 if (nodeA == null || nodeB == null) throw new NullPointerException();
@@ -1627,7 +1679,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
                         TetradLogger.getInstance().log("insertedEdges", "Adding edge by knowledge: " + graph.getEdge(nodeB, nodeA));
                     }
                 }
-                if (!graph.isChildOf(nodeA, nodeB) && getKnowledge().isForbidden(nodeA.getName(), nodeB.getName())) {
+                if (!graph.isChildOf(nodeA, nodeB) && searchKnowledge.isForbidden(nodeA.getName(), nodeB.getName())) {
                     if (!graph.isAncestorOf(nodeA, nodeB)) {
                         graph.removeEdges(nodeA, nodeB);
                         graph.addDirectedEdge(nodeB, nodeA);
@@ -1643,7 +1695,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
     // forbidden.
     private boolean validSetByKnowledge(Node y, Set<Node> subset) {
         for (Node node : subset) {
-            if (getKnowledge().isForbidden(node.getName(), y.getName())) {
+            if (searchKnowledge.isForbidden(node.getName(), y.getName())) {
                 return false;
             }
         }
@@ -1746,7 +1798,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
     // Runs Meek rules on just the changed adj.
     private Set<Node> reorientNode(List<Node> nodes) {
         addRequiredEdges(graph);
-        return meekOrientRestricted(nodes, getKnowledge());
+        return meekOrientRestricted(nodes, searchKnowledge);
     }
 
     // Runs Meek rules on just the changed adj.
@@ -1817,7 +1869,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
             }
 
             int yIndex = hashIndices.get(y);
-            _score += score.localScore(yIndex, parentIndices);
+            _score += searchScore.localScore(yIndex, parentIndices);
         }
 
         return _score;
@@ -1837,7 +1889,7 @@ public final class Fgs implements GraphSearch, GraphScorer {
             parentIndices[count++] = hashIndices.get(parent);
         }
 
-        return score.localScoreDiff(hashIndices.get(x), yIndex, parentIndices);
+        return searchScore.localScoreDiff(hashIndices.get(x), yIndex, parentIndices);
     }
 
     private List<Node> getVariables() {
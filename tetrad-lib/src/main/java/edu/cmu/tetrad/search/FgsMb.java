@@ -100,6 +100,16 @@ public final class FgsMb {
      */
     private Score fgsScore;
 
+    /**
+     * The score used during the search, which stores local scores if maxCachedScores > 0.
+     */
+    private Score searchScore;
+
+    /**
+     * The maximum number of local scores to store during the search; 0 for none.
+     */
+    private int maxCachedScores = 100000;
+
     /**
      * The logger for this class. The config needs to be set.
      */
@@ -225,25 +235,37 @@ public final class FgsMb {
 
         topGraphs.clear();
 
-        lookupArrows = new ConcurrentHashMap<>();
-        final List<Node> nodes = new ArrayList<>(fgsScore.getVariables());
+        searchScore = maxCachedScores > 0 ? new CachingScore(fgsScore, maxCachedScores) : fgsScore;
 
-        if (adjacencies != null) {
-            adjacencies = GraphUtils.replaceNodes(adjacencies, nodes);
-        }
+        try {
+            lookupArrows = new ConcurrentHashMap<>();
+            final List<Node> nodes = new ArrayList<>(fgsScore.getVariables());
 
-        calcDConnections(targets);
-        fes();
+            if (adjacencies != null) {
+                adjacencies = GraphUtils.replaceNodes(adjacencies, nodes);
+            }
 
-        // Do backward search.
-        bes();
+            calcDConnections(targets);
+            fes();
 
-        long endTime = System.currentTimeMillis();
-        this.elapsedTime = endTime - start;
-        this.logger.log("graph", "\nReturning this graph: " + graph);
+            // Do backward search.
+            bes();
 
-        this.logger.log("info", "Elapsed time = " + (elapsedTime) / 1000. + " s");
-        this.logger.flush();
+            long endTime = System.currentTimeMillis();
+            this.elapsedTime = endTime - start;
+            this.logger.log("graph", "\nReturning this graph: " + graph);
+
+            this.logger.log("info", "Elapsed time = " + (elapsedTime) / 1000. + " s");
+            this.logger.flush();
+
+            if (verbose && searchScore instanceof CachingScore) {
+                CachingScore cachingScore = (CachingScore) searchScore;
+                out.println("Local scores cached: hits = " + cachingScore.getNumHits()
+                        + ", misses = " + cachingScore.getNumMisses());
+            }
+        } finally {
+            searchScore = fgsScore;
+        }
 
         this.modelScore = score;
 
@@ -360,6 +382,24 @@ public final class FgsMb {
         this.verbose = verbose;
     }
 
+    /**
+     * The maximum number of local scores stored during a search, so that families rescored in
+     * the backward phase or when arrows are rebuilt are only calculated once.
+     * @return 0 if local scores are not stored.
+     */
+    public int getMaxCachedScores() {
+        return maxCachedScores;
+    }
+
+    /**
+     * The maximum number of local scores stored during a search.
+     * @param maxCachedScores 0 if local scores should not be stored.
+     */
+    public void setMaxCachedScores(int maxCachedScores) {
+        if (maxCachedScores < 0) throw new IllegalArgumentException();
+        this.maxCachedScores = maxCachedScores;
+    }
+
     /**
      * Sets the output stream that output (except for log output) should be sent to.
      * By detault System.out.
@@ -505,6 +545,7 @@ public final class FgsMb {
     //Sets the discrete scoring function to use.
     private void setFgsScore(Score fgsScore) {
         this.fgsScore = fgsScore;
+        this.searchScore = fgsScore;
 
         this.variables = new ArrayList<>();
 
@@ -549,7 +590,7 @@ public final class FgsMb {
 
                 int child = hashIndices.get(target);
                 int parent = hashIndices.get(x);
-                double bump = fgsScore.localScoreDiff(parent, child);
+                double bump = searchScore.localScoreDiff(parent, child);
 
                 if (bump > 0) {
                     dconn.addNode(x);
@@ -562,7 +603,7 @@ public final class FgsMb {
                             int child2 = hashIndices.get(x);
                             int parent2 = hashIndices.get(y);
 
-                            double bump2 = fgsScore.localScoreDiff(parent2, child2);
+                            double bump2 = searchScore.localScoreDiff(parent2, child2);
 
                             if (bump2 > 0) {
                                 dconn.addNode(y);
@@ -598,7 +639,7 @@ public final class FgsMb {
 
         int child = hashIndices.get(y);
         int parent = hashIndices.get(x);
-        double bump = fgsScore.localScoreDiff(parent, child);
+        double bump = searchScore.localScoreDiff(parent, child);
 
         if (boundGraph != null && !boundGraph.isAdjacentTo(x, y)) return;
 
@@ -1520,7 +1561,7 @@ public final class FgsMb {
             }
 
             int yIndex = hashIndices.get(y);
-            score += fgsScore.localScore(yIndex, parentIndices);
+            score += searchScore.localScore(yIndex, parentIndices);
         }
 
         return score;
@@ -1539,7 +1580,7 @@ public final class FgsMb {
             parentIndices[count++] = hashIndices.get(parent);
         }
 
-        return fgsScore.localScoreDiff(hashIndices.get(x), yIndex, parentIndices);
+        return searchScore.localScoreDiff(hashIndices.get(x), yIndex, parentIndices);
     }
 
     private List<Node> getVariables() {
@@ -22,6 +22,7 @@
 package edu.cmu.tetrad.search;
 
 import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.graph.DSeparationOracle;
 import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.graph.NodeType;
@@ -44,6 +45,9 @@ public class GraphScore implements Score {
     // True if verbose output should be sent to out.
     private boolean verbose = false;
 
+    // If not null, d-separation facts are read from this instead of from the graph.
+    private DSeparationOracle oracle = null;
+
     /**
      * Constructs the score using a covariance matrix.
      */
@@ -91,7 +95,7 @@ public class GraphScore implements Score {
         Node _y = variables.get(y);
         Node _x = variables.get(x);
         List<Node> _z = getVariableList(z);
-        boolean dSeparatedFrom = dag.isDSeparatedFrom(_x, _y, _z);
+        boolean dSeparatedFrom = isDSeparatedFrom(_x, _y, _z);
 
 //        if (dSeparatedFrom) {
 //            System.out.println(SearchLogUtils.independenceFact(_x, _y, _z));
@@ -106,13 +110,13 @@ public class GraphScore implements Score {
         Node _y = variables.get(y);
         Node _x = variables.get(x);
         List<Node> _z = getVariableList(z);
-        boolean dsep = dag.isDSeparatedFrom(_x, _y, _z);
+        boolean dsep = isDSeparatedFrom(_x, _y, _z);
         int count = 0;
 
         if (!dsep) count++;
 
         for (Node z0 : _z) {
-            if (dag.isDSeparatedFrom(_x, z0, _z)) {
+            if (isDSeparatedFrom(_x, z0, _z)) {
                 count += 1;
             }
         }
@@ -123,6 +127,24 @@ public class GraphScore implements Score {
         return score;
     }
 
+    private boolean isDSeparatedFrom(Node x, Node y, List<Node> z) {
+        if (oracle != null) return oracle.isDSeparatedFrom(x, y, z);
+        return dag.isDSeparatedFrom(x, y, z);
+    }
+
+    /**
+     * If set to true, d-separation facts are read from a DSeparationOracle compiled from the graph, which
+     * is much faster for large graphs; the graph should not be changed after that. Graphs with underline
+     * triples are always checked directly.
+     */
+    public void setUseOracle(boolean useOracle) {
+        if (useOracle && dag.getUnderLines().isEmpty()) {
+            this.oracle = new DSeparationOracle(dag);
+        } else {
+            this.oracle = null;
+        }
+    }
+
     private List<Node> minus(List<Node> z, Node z0) {
         List<Node> diff = new ArrayList<>(z);
         diff.remove(z0);
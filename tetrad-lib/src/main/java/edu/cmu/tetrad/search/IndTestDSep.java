@@ -23,6 +23,7 @@ package edu.cmu.tetrad.search;
 
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.ICovarianceMatrix;
+import edu.cmu.tetrad.graph.DSeparationOracle;
 import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.IndependenceFact;
 import edu.cmu.tetrad.graph.Node;
@@ -54,6 +55,11 @@ public class IndTestDSep implements IndependenceTest {
     private boolean verbose = false;
     private double pvalue = 0;
 
+    /**
+     * If not null, d-separation facts are read from this instead of from the graph.
+     */
+    private DSeparationOracle oracle = null;
+
     public IndTestDSep(Graph graph) {
         this(graph, false);
     }
@@ -153,7 +159,7 @@ public class IndTestDSep implements IndependenceTest {
             }
         }
 
-        boolean dSeparated = !getGraph().isDConnectedTo(x, y, z);
+        boolean dSeparated = oracle != null ? oracle.isDSeparatedFrom(x, y, z) : !getGraph().isDConnectedTo(x, y, z);
 
         if (verbose) {
             if (dSeparated) {
@@ -208,9 +214,33 @@ public class IndTestDSep implements IndependenceTest {
             }
         }
 
+        if (oracle != null) {
+            return oracle.isDSeparatedFrom(x, y, z);
+        }
+
         return getGraph().isDSeparatedFrom(x, y, z);
     }
 
+    /**
+     * If set to true, d-separation facts are read from a DSeparationOracle compiled from the graph, which
+     * is much faster for large graphs; the graph should not be changed after that. Graphs with underline
+     * triples are always checked directly.
+     */
+    public void setUseOracle(boolean useOracle) {
+        if (useOracle && graph.getUnderLines().isEmpty()) {
+            this.oracle = new DSeparationOracle(graph);
+        } else {
+            this.oracle = null;
+        }
+    }
+
+    /**
+     * @return the oracle in use, so that, e.g., reach sets may be cached, or null if there is none.
+     */
+    public DSeparationOracle getOracle() {
+        return oracle;
+    }
+
     /**
      * Needed for IndependenceTest interface. P value is not meaningful here.
      */
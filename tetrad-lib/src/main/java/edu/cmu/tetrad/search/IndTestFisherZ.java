@@ -40,7 +40,7 @@ import static java.lang.Math.abs;
  * @author Joseph Ramsey
  * @author Frank Wimberly adapted IndTestCramerT for Fisher's Z
  */
-public final class IndTestFisherZ implements IndependenceTest {
+public final class IndTestFisherZ implements ThreadSafeIndependenceTest {
 
     /**
      * The covariance matrix.
@@ -62,11 +62,6 @@ public final class IndTestFisherZ implements IndependenceTest {
      */
     private double alpha;
 
-    /**
-     * The value of the Fisher's Z statistic associated with the las calculated partial correlation.
-     */
-    private double pValue;
-
     /**
      * Formats as 0.0000.
      */
@@ -81,9 +76,27 @@ public final class IndTestFisherZ implements IndependenceTest {
     private Map<Node, Integer> indexMap;
     private Map<String, Node> nameMap;
     private boolean verbose = true;
-    private double fisherZ = Double.NaN;
     private double cutoff = Double.NaN;
 
+    /**
+     * The Fisher Z statistic of the most recent test on each thread, so that the test can be shared by
+     * searches that run in parallel.
+     */
+    private final ThreadLocal<Double> fisherZ = new ThreadLocal<Double>() {
+        protected Double initialValue() {
+            return Double.NaN;
+        }
+    };
+
+    /**
+     * Gives the partial correlation kernel lock-free access to the covariance matrix.
+     */
+    private final PartialCorrelationKernel.Covariances covariances = new PartialCorrelationKernel.Covariances() {
+        public double getValue(int i, int j) {
+            return covMatrix.getValue(i, j);
+        }
+    };
+
     //==========================CONSTRUCTORS=============================//
 
     /**
@@ -192,7 +205,7 @@ public final class IndTestFisherZ implements IndependenceTest {
         double fisherZ = Math.sqrt(n - 3 - z.size()) * 0.5 * (Math.log(1.0 + r) - Math.log(1.0 - r));
 //        fisherZ /= 2.0;
 
-        this.fisherZ = fisherZ;
+        this.fisherZ.set(fisherZ);
 
 //        double pValue = 2.0 * (1.0 - value);//  RandomUtil.getInstance().normalCdf(0, 1, key));// abs(fisherZ)));
 //        double pValue = 2.0 * (1.0 - RandomUtil.getInstance().normalCdf(0, 1, abs(fisherZ)));
@@ -224,6 +237,53 @@ public final class IndTestFisherZ implements IndependenceTest {
         return independent;
     }
 
+    /**
+     * Tests x _||_ y | s for every subset s of the given size of the candidates, in the order in which
+     * ChoiceGenerator gives them. Successive subsets share the rows of the Cholesky factor for their
+     * common prefix (see PartialCorrelationKernel), so most tests cost O(depth) rather than O(depth^3).
+     *
+     * @param x          The one variable being compared.
+     * @param y          The second variable being compared.
+     * @param candidates The variables from which the conditioning sets are chosen.
+     * @param depth      The size of the conditioning sets.
+     * @return the p value of each test, in ChoiceGenerator order.
+     */
+    public double[] getPValues(Node x, Node y, List<Node> candidates, int depth) {
+        int n = sampleSize();
+        double[] pValues = new double[ChoiceGenerator.getNumCombinations(candidates.size(), depth)];
+
+        int[] _candidates = new int[candidates.size()];
+        for (int i = 0; i < _candidates.length; i++) _candidates[i] = indexMap.get(candidates.get(i));
+
+        int[] indices = new int[depth + 2];
+        indices[0] = indexMap.get(x);
+        indices[1] = indexMap.get(y);
+
+        PartialCorrelationKernel.Factor factor = new PartialCorrelationKernel.Factor(covariances);
+        ChoiceGenerator cg = new ChoiceGenerator(candidates.size(), depth);
+        int[] choice;
+        int t = 0;
+
+        while ((choice = cg.next()) != null) {
+            double r;
+
+            if (depth == 0) {
+                r = partialCorrelation(x, y, Collections.<Node>emptyList());
+            } else {
+                for (int i = 0; i < depth; i++) indices[i + 2] = _candidates[choice[i]];
+                r = factor.partialCorrelation(indices, indices.length);
+            }
+
+            double fisherZ = Math.sqrt(n - 3 - depth) * 0.5 * (Math.log(1.0 + r) - Math.log(1.0 - r));
+
+            // getNumCombinations is calculated in floating point, so it is only a first guess.
+            if (t == pValues.length) pValues = Arrays.copyOf(pValues, 2 * t + 1);
+            pValues[t++] = pValue(fisherZ);
+        }
+
+        return t == pValues.length ? pValues : Arrays.copyOf(pValues, t);
+    }
+
     private double partialCorrelation(Node x, Node y, List<Node> z) {
         if (z.isEmpty()) {
             double a = covMatrix.getValue(indexMap.get(x), indexMap.get(y));
@@ -235,8 +295,7 @@ public final class IndTestFisherZ implements IndependenceTest {
             indices[0] = indexMap.get(x);
             indices[1] = indexMap.get(y);
             for (int i = 0; i < z.size(); i++) indices[i + 2] = indexMap.get(z.get(i));
-            TetradMatrix submatrix = covMatrix.getSubmatrix(indices).getMatrix();
-            return StatUtils.partialCorrelation(submatrix);
+            return PartialCorrelationKernel.partialCorrelation(covariances, indices, indices.length);
         }
     }
 
@@ -254,10 +313,15 @@ public final class IndTestFisherZ implements IndependenceTest {
     }
 
     /**
-     * @return the probability associated with the most recently computed independence test.
+     * @return the probability associated with the most recent independence test on this thread.
      */
     public double getPValue() {
-        return pValue;
+        return pValue(fisherZ.get());
+    }
+
+    // Taken from the lower tail, so that p values for strong associations don't all round to zero.
+    private static double pValue(double fisherZ) {
+        return 2.0 * ProbUtils.normalCdf(-Math.abs(fisherZ));
     }
 
     /**
@@ -429,7 +493,7 @@ public final class IndTestFisherZ implements IndependenceTest {
 
     @Override
     public double getScore() {
-        return Math.abs(fisherZ) - cutoff;
+        return Math.abs(fisherZ.get()) - cutoff;
     }
 
     public boolean isVerbose() {
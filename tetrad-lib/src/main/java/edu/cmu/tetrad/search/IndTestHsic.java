@@ -21,23 +21,20 @@
 
 package edu.cmu.tetrad.search;
 
-import edu.cmu.tetrad.cluster.KMeans;
 import edu.cmu.tetrad.data.ColtDataSet;
 import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.ICovarianceMatrix;
 import edu.cmu.tetrad.graph.Node;
-import edu.cmu.tetrad.search.kernel.Kernel;
-import edu.cmu.tetrad.search.kernel.KernelGaussian;
 import edu.cmu.tetrad.search.kernel.KernelUtils;
 import edu.cmu.tetrad.util.NumberFormatUtil;
+import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.TetradLogger;
 import edu.cmu.tetrad.util.TetradMatrix;
+import org.apache.commons.math3.special.Gamma;
 
 import java.text.NumberFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Checks the conditional independence X _||_ Y | S, where S is a set of continuous variable, and X and Y are discrete
@@ -49,6 +46,17 @@ import java.util.List;
 
 public final class IndTestHsic implements IndependenceTest {
 
+    /**
+     * How the Gram matrices are approximated.
+     */
+    public enum Approximation {INCOMPLETE_CHOLESKY, RANDOM_FEATURES}
+
+    /**
+     * How the null distribution of the statistic is found. The gamma approximation of Gretton et al. (2008) is
+     * used only for unconditional tests; conditional tests always use permutations.
+     */
+    public enum NullDistribution {PERMUTATION, GAMMA}
+
     /**
      * The variables of the covariance matrix, in order. (Unmodifiable list.)
      */
@@ -65,9 +73,13 @@ public final class IndTestHsic implements IndependenceTest {
     private double thresh = Double.NaN;
 
     /**
-     * The value of the empirical estimate of HSIC
+     * The value of the empirical estimate of HSIC in the most recent test on each thread.
      */
-    private double hsic;
+    private final ThreadLocal<Double> hsic = new ThreadLocal<Double>() {
+        protected Double initialValue() {
+            return Double.NaN;
+        }
+    };
 
     /**
      * Formats as 0.0000.
@@ -80,9 +92,29 @@ public final class IndTestHsic implements IndependenceTest {
     private DataSet dataSet;
 
     /**
-     * A stored p value, if the deterministic test was used.
+     * The p value of the most recent test on each thread, so that the test can be shared by searches that run in
+     * parallel.
+     */
+    private final ThreadLocal<Double> pValue = new ThreadLocal<Double>() {
+        protected Double initialValue() {
+            return Double.NaN;
+        }
+    };
+
+    /**
+     * The data, by column.
+     */
+    private double[][] columns;
+
+    /**
+     * The median distance bandwidth of each column, or NaN if not yet calculated.
+     */
+    private double[] bandwidths;
+
+    /**
+     * Approximate Gram matrix factors of single variables, which are used over and over by searches.
      */
-    private double pValue = Double.NaN;
+    private final Map<Node, double[][]> factors = new ConcurrentHashMap<>();
 
     /**
      * The regularizer
@@ -97,7 +129,22 @@ public final class IndTestHsic implements IndependenceTest {
     /**
      * Use incomplete Choleksy decomposition to calculate Gram matrices
      */
-    private double useIncompleteCholesky = 1e-18;
+    private double useIncompleteCholesky = 1e-6;
+
+    /**
+     * The maximum rank of the approximate Gram matrices; also the number of random features.
+     */
+    private int maxRank = 50;
+
+    /**
+     * How the Gram matrices are approximated.
+     */
+    private Approximation approximation = Approximation.INCOMPLETE_CHOLESKY;
+
+    /**
+     * How the null distribution is found.
+     */
+    private NullDistribution nullDistribution = NullDistribution.PERMUTATION;
     private boolean verbose = false;
 
     //==========================CONSTRUCTORS=============================//
@@ -119,6 +166,7 @@ public final class IndTestHsic implements IndependenceTest {
         setAlpha(alpha);
 
         this.dataSet = dataSet;
+        setColumns();
     }
 
     public IndTestHsic(TetradMatrix data, List<Node> variables, double alpha) {
@@ -128,6 +176,7 @@ public final class IndTestHsic implements IndependenceTest {
         setAlpha(alpha);
 
         this.dataSet = dataSet;
+        setColumns();
     }
 
 
@@ -160,6 +209,12 @@ public final class IndTestHsic implements IndependenceTest {
 
     /**
      * Determines whether variable x is independent of variable y given a list of conditioning variables z.
+     * <p>
+     * The Gram matrices are never formed. Each is approximated as G G', with G an m x r matrix from incomplete
+     * Cholesky or random Fourier features, and the statistic tr(Ky R Kx R) is calculated as ||Gx' R Gy||^2, where
+     * R = I - Kz (Kz + eI)^-2 Kz (or I if z is empty) is applied through Gz in O(m r^2). Samples from the null
+     * distribution permute the rows of Gx, within groups of about three points that are close in z if z is not
+     * empty, which is the same as permuting y and z together as in the original test, at O(m r^2) each.
      *
      * @param x the one variable being compared.
      * @param y the second variable being compared.
@@ -167,163 +222,55 @@ public final class IndTestHsic implements IndependenceTest {
      * @return true iff x _||_ y | z.
      */
     public boolean isIndependent(Node y, Node x, List<Node> z) {
-
         int m = sampleSize();
 
-        // choose kernels using median distance heuristic
-        Kernel xKernel = new KernelGaussian(1);
-        Kernel yKernel = new KernelGaussian(1);
-        List<Kernel> zKernel = new ArrayList<>();
-        yKernel.setDefaultBw(this.dataSet, y);
-        xKernel.setDefaultBw(this.dataSet, x);
+        double[][] Fx = factor(Collections.singletonList(x));
+        double[][] Fy = factor(Collections.singletonList(y));
+        double[][] Gx = center(Fx);
+        double[][] Gy = center(Fy);
+        double scale = 1.0 / Math.pow(m - 1, 2);
+        int[] order = null;
+
         if (!z.isEmpty()) {
-            for (int i = 0; i < z.size(); i++) {
-                Kernel Zi = new KernelGaussian(1);
-                Zi.setDefaultBw(this.dataSet, z.get(i));
-                zKernel.add(Zi);
-            }
+            double[][] Gz = center(factor(z));
+            Gy = residuals(Gy, Gz);
+            scale *= m * (m - 1) / offDiagonalSumOfSquares(Gz);
+            order = principalOrder(Gz);
         }
 
-        // consruct Gram matricces
-        TetradMatrix Ky = null;
-        TetradMatrix Kx = null;
-        TetradMatrix Kz = null;
-        // use incomplete Cholesky to approximate
-        if (useIncompleteCholesky > 0) {
-            Ky = KernelUtils.incompleteCholeskyGramMatrix(Arrays.asList(yKernel), this.dataSet, Arrays.asList(y), useIncompleteCholesky);
-            Kx = KernelUtils.incompleteCholeskyGramMatrix(Arrays.asList(xKernel), this.dataSet, Arrays.asList(x), useIncompleteCholesky);
-            if (!z.isEmpty()) {
-                Kz = KernelUtils.incompleteCholeskyGramMatrix(zKernel, this.dataSet, z, useIncompleteCholesky);
-            }
-        }
-        // otherwise compute directly
-        else {
-            Ky = KernelUtils.constructCentralizedGramMatrix(Arrays.asList(yKernel), this.dataSet, Arrays.asList(y));
-            Kx = KernelUtils.constructCentralizedGramMatrix(Arrays.asList(xKernel), this.dataSet, Arrays.asList(x));
-            if (!z.isEmpty()) {
-                Kz = KernelUtils.constructCentralizedGramMatrix(zKernel, this.dataSet, z);
-            }
-        }
+        double hsic = scale * frobeniusSquared(Gx, Gy, null);
+        double pValue;
 
-        // get Hilbert-Schmidt dependence measure
-        if (z.isEmpty()) {
-            if (useIncompleteCholesky > 0) {
-                this.hsic = empiricalHSICincompleteCholesky(Ky, Kx, m);
-            } else {
-                this.hsic = empiricalHSIC(Ky, Kx, m);
-            }
+        if (z.isEmpty() && nullDistribution == NullDistribution.GAMMA) {
+            pValue = gammaPValue(Fx, Fy, Gx, Gy);
         } else {
-            if (useIncompleteCholesky > 0) {
-                this.hsic = empiricalHSICincompleteCholesky(Ky, Kx, Kz, m);
-            } else {
-                this.hsic = empiricalHSIC(Ky, Kx, Kz, m);
-            }
-        }
+            Random random = new Random(RandomUtil.getInstance().nextLong());
+            int[] perm = new int[m];
+            int exceed = 0;
 
-        // shuffle data for approximate the null distribution
-        double[] nullapprox = new double[this.perms];
-        int[] zind = null;
-        int ycol = this.dataSet.getColumn(y);
-        List<List<Integer>> clusterAssign = null;
-        if (!z.isEmpty()) {
-            // get clusters for z
-            KMeans kmeans = KMeans.randomClusters((m / 3));
-            zind = new int[z.size()];
-            for (int j = 0; j < z.size(); j++) {
-                zind[j] = dataSet.getColumn(z.get(j));
-            }
-            kmeans.cluster(dataSet.subsetColumns(z).getDoubleData());
-            clusterAssign = kmeans.getClusters();
-        }
-        for (int i = 0; i < this.perms; i++) {
-            DataSet shuffleData = new ColtDataSet((ColtDataSet) dataSet);
-            // shuffle data
-            if (z.isEmpty()) {
-                List<Integer> indicesList = new ArrayList<>();
-                for (int j = 0; j < m; j++) {
-                    indicesList.add(j);
-                }
-                Collections.shuffle(indicesList);
-                for (int j = 0; j < m; j++) {
-                    double shuffleVal = dataSet.getDouble(indicesList.get(j), ycol);
-                    shuffleData.setDouble(j, ycol, shuffleVal);
-                }
-            } else {
-                // shuffle data within clusters
-                for (int j = 0; j < clusterAssign.size(); j++) {
-                    List<Integer> shuffleCluster = new ArrayList<>(clusterAssign.get(j));
-
-                    Collections.shuffle(shuffleCluster);
-
-                    for (int k = 0; k < shuffleCluster.size(); k++) {
-                        // first swap y;
-                        double swapVal = dataSet.getDouble(clusterAssign.get(j).get(k), ycol);
-                        shuffleData.setDouble(shuffleCluster.get(k), ycol, swapVal);
-                        // now swap z
-                        for (int zi = 0; zi < z.size(); zi++) {
-                            swapVal = dataSet.getDouble(clusterAssign.get(j).get(k), zind[zi]);
-                            shuffleData.setDouble(shuffleCluster.get(k), zind[zi], swapVal);
-                        }
-                    }
-                }
-            }
-            // reset bandwidths
-            yKernel.setDefaultBw(shuffleData, y);
-            for (int j = 0; j < z.size(); j++) {
-                zKernel.get(j).setDefaultBw(shuffleData, z.get(j));
-            }
-            // Gram matrices
-            TetradMatrix Kyn = null;
-            if (useIncompleteCholesky > 0) {
-                Kyn = KernelUtils.incompleteCholeskyGramMatrix(Arrays.asList(yKernel), shuffleData, Arrays.asList(y), useIncompleteCholesky);
-            } else {
-                Kyn = KernelUtils.constructCentralizedGramMatrix(Arrays.asList(yKernel), shuffleData, Arrays.asList(y));
+            for (int i = 0; i < this.perms; i++) {
+                permute(perm, order, random);
 
-            }
-            TetradMatrix Kzn = null;
-            if (!z.isEmpty()) {
-                if (useIncompleteCholesky > 0) {
-                    Kzn = KernelUtils.incompleteCholeskyGramMatrix(zKernel, shuffleData, z, useIncompleteCholesky);
-                } else {
-                    Kzn = KernelUtils.constructCentralizedGramMatrix(zKernel, shuffleData, z);
+                if (scale * frobeniusSquared(Gx, Gy, perm) > hsic) {
+                    exceed++;
                 }
             }
-            // HSIC
-            if (z.isEmpty()) {
-                if (useIncompleteCholesky > 0) {
-                    nullapprox[i] = empiricalHSICincompleteCholesky(Kyn, Kx, m);
-                } else {
-                    nullapprox[i] = empiricalHSIC(Kyn, Kx, m);
-                }
-            } else {
-                if (useIncompleteCholesky > 0) {
-                    nullapprox[i] = empiricalHSICincompleteCholesky(Kyn, Kx, Kz, m);
-                } else {
-                    nullapprox[i] = empiricalHSIC(Kyn, Kx, Kz, m);
-                }
-            }
-        }
 
-        // permutation test to get p-value
-        double evalCdf = 0.0;
-        for (int i = 0; i < this.perms; i++) {
-            if (nullapprox[i] <= this.hsic) {
-                evalCdf += 1.0;
-            }
+            pValue = exceed / (double) this.perms;
         }
 
-        evalCdf /= (double) this.perms;
-        this.pValue = 1.0 - evalCdf;
+        this.hsic.set(hsic);
+        this.pValue.set(pValue);
 
         // reject if pvalue <= alpha
-        if (this.pValue <= this.alpha) {
+        if (pValue <= this.alpha) {
             TetradLogger.getInstance().log("dependencies", SearchLogUtils
-                    .dependenceFactMsg(x, y, z, getPValue()));
+                    .dependenceFactMsg(x, y, z, pValue));
             return false;
         }
         if (verbose) {
             TetradLogger.getInstance().log("independencies", SearchLogUtils
-                    .independenceFactMsg(x, y, z, getPValue()));
+                    .independenceFactMsg(x, y, z, pValue));
         }
         return true;
     }
@@ -382,7 +329,7 @@ public final class IndTestHsic implements IndependenceTest {
      * @param Kz centralized Gram matrix for Z
      * @param m  sample size
      */
-    private double empiricalHSIC(TetradMatrix Ky, TetradMatrix Kx, TetradMatrix Kz, int m) {
+    public double empiricalHSIC(TetradMatrix Ky, TetradMatrix Kx, TetradMatrix Kz, int m) {
         TetradMatrix Kyx = Ky.times(Kx);
         TetradMatrix Kyz = Ky.times(Kz);
         TetradMatrix Kzx = Kz.times(Kx);
@@ -673,7 +620,7 @@ public final class IndTestHsic implements IndependenceTest {
     }
 
     public double getHsic() {
-        return this.hsic;
+        return this.hsic.get();
     }
 
     public double getThreshold() {
@@ -684,7 +631,7 @@ public final class IndTestHsic implements IndependenceTest {
      * @return the probability associated with the most recently computed independence test.
      */
     public double getPValue() {
-        return this.pValue;
+        return this.pValue.get();
     }
 
     /**
@@ -705,6 +652,49 @@ public final class IndTestHsic implements IndependenceTest {
      */
     public void setIncompleteCholesky(double precision) {
         this.useIncompleteCholesky = precision;
+        this.factors.clear();
+    }
+
+    /**
+     * Sets the maximum rank of the approximate Gram matrices, which is also the number of random features. Each
+     * sample from the permutation null takes O(m r^2) for rank r.
+     */
+    public void setMaxRank(int maxRank) {
+        if (maxRank < 1) throw new IllegalArgumentException("Max rank must be at least 1: " + maxRank);
+        this.maxRank = maxRank;
+        this.factors.clear();
+    }
+
+    /**
+     * Gets the maximum rank of the approximate Gram matrices
+     */
+    public int getMaxRank() {
+        return this.maxRank;
+    }
+
+    /**
+     * Sets how the Gram matrices are approximated; by default, by incomplete Cholesky
+     */
+    public void setApproximation(Approximation approximation) {
+        if (approximation == null) throw new NullPointerException();
+        this.approximation = approximation;
+        this.factors.clear();
+    }
+
+    public Approximation getApproximation() {
+        return this.approximation;
+    }
+
+    /**
+     * Sets how the null distribution is found; by default, by permutation
+     */
+    public void setNullDistribution(NullDistribution nullDistribution) {
+        if (nullDistribution == null) throw new NullPointerException();
+        this.nullDistribution = nullDistribution;
+    }
+
+    public NullDistribution getNullDistribution() {
+        return this.nullDistribution;
     }
 
     /**
@@ -838,6 +828,338 @@ public final class IndTestHsic implements IndependenceTest {
         return this.dataSet.getNumRows();
     }
 
+    private void setColumns() {
+        int m = dataSet.getNumRows();
+        columns = new double[dataSet.getNumColumns()][m];
+        bandwidths = new double[columns.length];
+        Arrays.fill(bandwidths, Double.NaN);
+
+        for (int j = 0; j < columns.length; j++) {
+            for (int i = 0; i < m; i++) {
+                columns[j][i] = dataSet.getDouble(i, j);
+            }
+        }
+    }
+
+    /**
+     * @return the approximate factor of the Gram matrix of the product of Gaussian kernels over the given
+     * variables, each with the median distance bandwidth.
+     */
+    private double[][] factor(List<Node> nodes) {
+        if (nodes.size() == 1) {
+            double[][] G = factors.get(nodes.get(0));
+            if (G != null) return G;
+        }
+
+        int m = sampleSize();
+        double[][] scaled = new double[nodes.size()][m];
+
+        for (int v = 0; v < nodes.size(); v++) {
+            int col = dataSet.getColumn(nodes.get(v));
+
+            if (Double.isNaN(bandwidths[col])) {
+                bandwidths[col] = KernelUtils.medianBandwidth(columns[col]);
+            }
+
+            for (int i = 0; i < m; i++) {
+                scaled[v][i] = columns[col][i] / bandwidths[col];
+            }
+        }
+
+        double[][] G;
+
+        if (approximation == Approximation.RANDOM_FEATURES) {
+            G = KernelUtils.randomFourierFeatures(scaled, maxRank, new Random(RandomUtil.getInstance().nextLong()));
+        } else if (useIncompleteCholesky > 0) {
+            G = KernelUtils.incompleteCholeskyFactor(scaled, useIncompleteCholesky, maxRank);
+        } else {
+            G = KernelUtils.incompleteCholeskyFactor(scaled, 0, m);
+        }
+
+        if (nodes.size() == 1) {
+            factors.put(nodes.get(0), G);
+        }
+
+        return G;
+    }
+
+    /**
+     * @return HG, so that (HG)(HG)' = HKH.
+     */
+    private static double[][] center(double[][] G) {
+        int m = G.length;
+        int r = G[0].length;
+        double[] means = new double[r];
+
+        for (double[] g : G) {
+            for (int c = 0; c < r; c++) means[c] += g[c];
+        }
+
+        for (int c = 0; c < r; c++) means[c] /= m;
+
+        double[][] centered = new double[m][r];
+
+        for (int i = 0; i < m; i++) {
+            for (int c = 0; c < r; c++) centered[i][c] = G[i][c] - means[c];
+        }
+
+        return centered;
+    }
+
+    /**
+     * @return (I - Kz (Kz + eI)^-2 Kz) Gy, with Kz = Gz Gz', calculated as Gy - Gz M Gz' Gy, where for C = Gz' Gz,
+     * M = (C + eI)^-1 C (C + eI)^-1.
+     */
+    private double[][] residuals(double[][] Gy, double[][] Gz) {
+        int m = Gy.length;
+        int ry = Gy[0].length;
+        int rz = Gz[0].length;
+
+        TetradMatrix C = new TetradMatrix(crossProduct(Gz, Gz));
+        TetradMatrix Creg = C.copy();
+
+        for (int c = 0; c < rz; c++) {
+            Creg.set(c, c, C.get(c, c) + this.regularizer);
+        }
+
+        TetradMatrix inverse = Creg.inverse();
+        TetradMatrix M = inverse.times(C).times(inverse);
+        double[][] MZtY = M.times(new TetradMatrix(crossProduct(Gz, Gy))).toArray();
+
+        double[][] residuals = new double[m][ry];
+
+        for (int i = 0; i < m; i++) {
+            double[] gz = Gz[i];
+
+            for (int d = 0; d < ry; d++) {
+                double s = Gy[i][d];
+
+                for (int c = 0; c < rz; c++) {
+                    s -= gz[c] * MZtY[c][d];
+                }
+
+                residuals[i][d] = s;
+            }
+        }
+
+        return residuals;
+    }
+
+    /**
+     * @return A'B.
+     */
+    private static double[][] crossProduct(double[][] A, double[][] B) {
+        int ra = A[0].length;
+        int rb = B[0].length;
+        double[][] product = new double[ra][rb];
+
+        for (int i = 0; i < A.length; i++) {
+            double[] a = A[i];
+            double[] b = B[i];
+
+            for (int c = 0; c < ra; c++) {
+                double ac = a[c];
+                double[] row = product[c];
+
+                for (int d = 0; d < rb; d++) {
+                    row[d] += ac * b[d];
+                }
+            }
+        }
+
+        return product;
+    }
+
+    /**
+     * @return ||A'PB||^2 = tr(P'AA'P BB'), where row i of P'A is row perm[i] of A, or A'B if perm is null.
+     */
+    private static double frobeniusSquared(double[][] A, double[][] B, int[] perm) {
+        int ra = A[0].length;
+        int rb = B[0].length;
+        double[] product = new double[ra * rb];
+
+        for (int i = 0; i < A.length; i++) {
+            double[] a = A[perm == null ? i : perm[i]];
+            double[] b = B[i];
+
+            for (int c = 0; c < ra; c++) {
+                double ac = a[c];
+                int row = c * rb;
+
+                for (int d = 0; d < rb; d++) {
+                    product[row + d] += ac * b[d];
+                }
+            }
+        }
+
+        double sum = 0.0;
+
+        for (double v : product) {
+            sum += v * v;
+        }
+
+        return sum;
+    }
+
+    /**
+     * @return the sum of the squares of the off-diagonal entries of GG'.
+     */
+    private static double offDiagonalSumOfSquares(double[][] G) {
+        double sum = 0.0;
+
+        for (double[] row : crossProduct(G, G)) {
+            for (double v : row) sum += v * v;
+        }
+
+        for (double[] g : G) {
+            double d = dot(g, g);
+            sum -= d * d;
+        }
+
+        return sum;
+    }
+
+    /**
+     * @return the mean of the off-diagonal entries of GG'.
+     */
+    private static double offDiagonalMean(double[][] G) {
+        int m = G.length;
+        double[] sums = new double[G[0].length];
+        double diagonal = 0.0;
+
+        for (double[] g : G) {
+            for (int c = 0; c < g.length; c++) sums[c] += g[c];
+            diagonal += dot(g, g);
+        }
+
+        return (dot(sums, sums) - diagonal) / ((double) m * (m - 1));
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int c = 0; c < a.length; c++) sum += a[c] * b[c];
+        return sum;
+    }
+
+    /**
+     * @return the indices of the rows of G, sorted by their projection on its leading principal direction, so that
+     * consecutive rows are close to one another in z.
+     */
+    private static int[] principalOrder(double[][] G) {
+        int r = G[0].length;
+        double[][] C = crossProduct(G, G);
+        double[] v = new double[r];
+        Arrays.fill(v, 1.0);
+
+        for (int iter = 0; iter < 100; iter++) {
+            double[] w = new double[r];
+
+            for (int c = 0; c < r; c++) {
+                w[c] = dot(C[c], v);
+            }
+
+            double norm = Math.sqrt(dot(w, w));
+            if (norm == 0) break;
+            for (int c = 0; c < r; c++) v[c] = w[c] / norm;
+        }
+
+        final double[] projections = new double[G.length];
+
+        for (int i = 0; i < G.length; i++) {
+            projections[i] = dot(G[i], v);
+        }
+
+        Integer[] order = new Integer[G.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i, Integer j) {
+                return Double.compare(projections[i], projections[j]);
+            }
+        });
+
+        int[] _order = new int[order.length];
+        for (int i = 0; i < order.length; i++) _order[i] = order[i];
+        return _order;
+    }
+
+    /**
+     * Fills perm with a random permutation, within consecutive groups of three in order if order is not null.
+     */
+    private static void permute(int[] perm, int[] order, Random random) {
+        int m = perm.length;
+
+        if (order == null) {
+            for (int i = 0; i < m; i++) perm[i] = i;
+
+            for (int i = m - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int t = perm[i];
+                perm[i] = perm[j];
+                perm[j] = t;
+            }
+        } else {
+            for (int from = 0; from < m; from += 3) {
+                int to = Math.min(from + 3, m);
+
+                for (int i = from; i < to; i++) perm[order[i]] = order[i];
+
+                for (int i = to - 1; i > from; i--) {
+                    int j = from + random.nextInt(i - from + 1);
+                    int t = perm[order[i]];
+                    perm[order[i]] = perm[order[j]];
+                    perm[order[j]] = t;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the p value of the unconditional statistic from the gamma approximation to its null distribution
+     * (Gretton et al., A Kernel Statistical Test of Independence, 2008), with the moments calculated from the
+     * factors Fx and Fy and their centered versions Gx and Gy. The variance term is averaged over all pairs of
+     * points for samples up to 2000, and over a random sample of pairs for larger ones.
+     */
+    private static double gammaPValue(double[][] Fx, double[][] Fy, double[][] Gx, double[][] Gy) {
+        int m = Gx.length;
+        double testStat = frobeniusSquared(Gx, Gy, null) / m;
+
+        double variance = 0.0;
+        long numPairs = 0;
+
+        if (m <= 2000) {
+            for (int i = 0; i < m; i++) {
+                for (int j = i + 1; j < m; j++) {
+                    double k = dot(Gx[i], Gx[j]) * dot(Gy[i], Gy[j]);
+                    variance += k * k;
+                    numPairs++;
+                }
+            }
+        } else {
+            Random random = new Random(RandomUtil.getInstance().nextLong());
+
+            for (; numPairs < 500000; numPairs++) {
+                int i = random.nextInt(m);
+                int j = random.nextInt(m - 1);
+                if (j >= i) j++;
+                double k = dot(Gx[i], Gx[j]) * dot(Gy[i], Gy[j]);
+                variance += k * k;
+            }
+        }
+
+        variance /= 36.0 * numPairs;
+        variance *= 72.0 * (m - 4) * (m - 5) / ((double) m * (m - 1) * (m - 2) * (m - 3));
+
+        double muX = offDiagonalMean(Fx);
+        double muY = offDiagonalMean(Fy);
+        double mean = (1 + muX * muY - muX - muY) / m;
+
+        double shape = mean * mean / variance;
+        double scale = variance * m / mean;
+
+        return Gamma.regularizedGammaQ(shape, testStat / scale);
+    }
+
     private double matrixProductEntry(TetradMatrix X, TetradMatrix Y, int i, int j) {
         double entry = 0.0;
         for (int k = 0; k < X.columns(); k++) {
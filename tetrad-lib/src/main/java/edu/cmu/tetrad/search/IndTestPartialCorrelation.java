@@ -26,6 +26,7 @@ import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.data.ICovarianceMatrix;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.util.NumberFormatUtil;
+import edu.cmu.tetrad.util.PartialCorrelationKernel;
 import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.TetradMatrix;
 
@@ -98,25 +99,19 @@ public final class IndTestPartialCorrelation implements IndependenceTest {
     }
 
     private boolean indepCollection(Node x, Node y, double alpha) {
-        TetradMatrix submatrix = cov.getMatrix();
-
-        TetradMatrix inverse;
-
-        try {
-            inverse = submatrix.inverse();
-        } catch (Exception e) {
-            throw new IllegalArgumentException();
-        }
-
         int i = variables.indexOf(x);
         int j = variables.indexOf(y);
 
-        double a = -1.0 * inverse.get(i, j);
-        double v0 = inverse.get(i, i);
-        double v1 = inverse.get(j, j);
-        double b = Math.sqrt(v0 * v1);
+        // Partial correlation of x and y given all of the other variables.
+        int[] indices = new int[variables.size()];
+        indices[0] = i;
+        indices[1] = j;
+
+        for (int k = 0, m = 2; k < variables.size(); k++) {
+            if (k != i && k != j) indices[m++] = k;
+        }
 
-        double r = a / b;
+        double r = PartialCorrelationKernel.partialCorrelation(cov.getMatrix(), indices, indices.length);
 
         double fisherZ = Math.sqrt(cov.getSampleSize() - 3 - (variables.size() - 2)) * 0.5 * (Math.log(1.0 + r) - Math.log(1.0 - r));
         double p = 2.0 * (1.0 - RandomUtil.getInstance().normalCdf(0, 1, abs(fisherZ)));
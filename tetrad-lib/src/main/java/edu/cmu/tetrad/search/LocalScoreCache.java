@@ -21,48 +21,113 @@
 
 package edu.cmu.tetrad.search;
 
-import org.apache.commons.collections4.map.MultiKeyMap;
-
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Stores a map from (variable, parents) to score.
+ * Stores a map from (variable, parents) to score. The parents are treated as a set; they are
+ * keyed on a sorted copy of the given array. Safe for use from multiple threads. Once the
+ * maximum number of entries is exceeded, the oldest entries are dropped.
  *
  * @author Joseph Ramsey
  */
 public class LocalScoreCache {
-    private MultiKeyMap map;
+    private final ConcurrentMap<Key, Double> map = new ConcurrentHashMap<>();
+    private final Queue<Key> order = new ConcurrentLinkedQueue<>();
+    private final int maxSize;
+
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numMisses = new AtomicLong();
 
     public LocalScoreCache() {
-        map = new MultiKeyMap();
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSize The maximum number of scores to store.
+     */
+    public LocalScoreCache(int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("Max size must be at least 1: " + maxSize);
+        this.maxSize = maxSize;
     }
 
     public void add(int variable, int[] parents, double score) {
-        Set<Integer> _parents = new HashSet<>(parents.length);
+        Key key = new Key(variable, parents);
 
-        for (int parent : parents) {
-            _parents.add(parent);
-        }
+        if (map.put(key, score) == null) {
+            order.add(key);
 
-        map.put(variable, _parents, score);
+            while (map.size() > maxSize) {
+                Key oldest = order.poll();
+                if (oldest == null) break;
+                map.remove(oldest);
+            }
+        }
     }
 
+    /**
+     * @return the stored score, or NaN if there is none.
+     */
     public double get(int variable, int[] parents) {
-        Set<Integer> _parents = new HashSet<>(parents.length);
+        Double _score = map.get(new Key(variable, parents));
 
-        for (int parent : parents) {
-            _parents.add(parent);
+        if (_score == null) {
+            numMisses.incrementAndGet();
+            return Double.NaN;
         }
 
-        Double _score = (Double) map.get(variable, _parents);
-        return _score == null ? Double.NaN : (_score);
+        numHits.incrementAndGet();
+        return _score;
     }
 
     public void clear() {
         map.clear();
+        order.clear();
     }
-}
 
+    public int size() {
+        return map.size();
+    }
 
+    /**
+     * @return the number of calls to get() that found a stored score.
+     */
+    public long getNumHits() {
+        return numHits.get();
+    }
 
+    /**
+     * @return the number of calls to get() that did not find a stored score.
+     */
+    public long getNumMisses() {
+        return numMisses.get();
+    }
+
+    private static class Key {
+        private final int variable;
+        private final int[] parents;
+        private final int hashCode;
+
+        public Key(int variable, int[] parents) {
+            this.variable = variable;
+            this.parents = Arrays.copyOf(parents, parents.length);
+            Arrays.sort(this.parents);
+            this.hashCode = 31 * variable + Arrays.hashCode(this.parents);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return variable == key.variable && Arrays.equals(parents, key.parents);
+        }
+    }
+}
@@ -28,11 +28,14 @@ import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.GraphUtils;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.util.ChoiceGenerator;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * This class implements the Possible-D-Sep search step of Spirtes, et al's (1993) FCI algorithm (pp 144-145).
@@ -90,33 +93,51 @@ public class PossibleDsepFci {
      * checked. We get the Possible-D-Sep sets for the pair of variables, and we check to see if they are independent
      * conditional on some subset of the union of Possible-D-Sep sets. This method returns the SepSet passed in the
      * constructor (if any), possibly augmented by some edge removals in this step. The GaSearchGraph passed in the
-     * constructor is directly changed.
+     * constructor is directly changed. The edges are checked in parallel, all against the graph as it is
+     * passed in; edges that are found to be separated are removed afterward.
      */
     public SepsetMap search() {
+        List<Edge> edges = new ArrayList<>(graph.getEdges());
 
-        for (Edge edge : new ArrayList<>(graph.getEdges())) {
-            Node x = edge.getNode1();
-            Node y = edge.getNode2();
+        List<List<Node>> condSets = findSepsets(edges, new EdgeSepsets() {
+            public List<Node> getSepset(Node x, Node y) {
+                return PossibleDsepFci.this.getSepset(x, y);
+            }
+        });
 
-            List<Node> condSet = getSepset(x, y);
+        for (int i = 0; i < edges.size(); i++) {
+            List<Node> condSet = condSets.get(i);
 
             if (condSet != null) {
-                for (Node n : condSet) {
-                    if (!(graph.getAdjacentNodes(n).contains(x) || graph.getAdjacentNodes(n).contains(y))) {
-                        System.out.println("Not adjacent");
-                    }
-                }
+                Node x = edges.get(i).getNode1();
+                Node y = edges.get(i).getNode2();
 
                 graph.removeEdge(x, y);
                 sepset.set(x, y, condSet);
                 System.out.println("Removed " + x + "--- " + y + " sepset = " + condSet);
             }
-
         }
 
         return sepset;
     }
 
+    /**
+     * Asks the given sepset producer for a sepset for each of the given edges. The edges are done in
+     * parallel on the shared pool, so the producer, its test and its graph must be safe to read from
+     * several threads, and the graph must not be changed until this returns. Since every edge is
+     * checked against the same graph, the result doesn't depend on the order of the edges, as in the
+     * stable variant of PC.
+     *
+     * @return the sepsets, in the order of the edges, with null for edges that have none.
+     */
+    public static List<List<Node>> getSepsets(List<Edge> edges, final SepsetProducer sepsets) {
+        return findSepsets(edges, new EdgeSepsets() {
+            public List<Node> getSepset(Node x, Node y) {
+                return sepsets.getSepset(x, y);
+            }
+        });
+    }
+
     public List<Node> getSepset(Node node1, Node node2) {
         List<Node> condSet = getCondSet(node1, node2, maxReachablePathLength);
 
@@ -197,6 +218,52 @@ public class PossibleDsepFci {
         return dsep;
     }
 
+    private interface EdgeSepsets {
+        List<Node> getSepset(Node x, Node y);
+    }
+
+    private static List<List<Node>> findSepsets(final List<Edge> edges, final EdgeSepsets sepsets) {
+        final List<List<Node>> condSets = new ArrayList<>(Collections.nCopies(edges.size(), (List<Node>) null));
+
+        // Edges differ a great deal in how long they take, so each one is a task.
+        class EdgeTask extends RecursiveTask<Boolean> {
+            private int from;
+            private int to;
+
+            public EdgeTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected Boolean compute() {
+                if (to - from <= 1) {
+                    for (int i = from; i < to; i++) {
+                        Edge edge = edges.get(i);
+                        condSets.set(i, sepsets.getSepset(edge.getNode1(), edge.getNode2()));
+                    }
+
+                    return true;
+                } else {
+                    int mid = (to + from) / 2;
+
+                    EdgeTask left = new EdgeTask(from, mid);
+                    EdgeTask right = new EdgeTask(mid, to);
+
+                    left.fork();
+                    right.compute();
+                    left.join();
+
+                    return true;
+                }
+            }
+        }
+
+        ForkJoinPoolInstance.getInstance().getPool().invoke(new EdgeTask(0, edges.size()));
+
+        return condSets;
+    }
+
     public int getDepth() {
         return depth;
     }
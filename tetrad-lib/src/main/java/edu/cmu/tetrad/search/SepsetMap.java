@@ -26,8 +26,11 @@ import edu.cmu.tetrad.util.TetradSerializable;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * <p>Stores a map from pairs of nodes to separating sets--that is, for each unordered pair of nodes {node1, node2} in a
@@ -39,6 +42,11 @@ import java.util.concurrent.ConcurrentHashMap;
  * variable-like objects to Node to allow them either to be variables explicitly or else to be graph nodes that in some
  * model could be considered as variables. This allows us to use d-separation as a graphical indicator of what
  * independendence in models ideally should be.</p>
+ * <p>Each node is given an int index the first time it is stored. Pairs are keyed on their two indices packed into a
+ * long, and sepsets are stored as arrays of indices, so that a lookup allocates nothing but its key, and lists of
+ * nodes are only made when a sepset is read. Safe for use from multiple threads; writes take no locks except the
+ * first time a node is seen. The serialized form is still the map from pairs of nodes to lists of nodes, so
+ * sessions saved with earlier versions can be read.</p>
  *
  * @author Joseph Ramsey
  */
@@ -46,12 +54,35 @@ public final class SepsetMap implements TetradSerializable {
     static final long serialVersionUID = 23L;
 
     /**
-     * @serial
+     * The serialized form: sepsets and p values keyed by pairs of nodes, as in earlier versions.
+     *
+     * @serialField sepsets Map the sepsets, keyed by Set&lt;Node&gt; pairs.
+     * @serialField pValues Map the p values, keyed by Set&lt;Node&gt; pairs.
+     * @serialField parents Map the sets given for single nodes.
+     * @serialField correlations Set the correlated pairs, or null.
+     * @serialField returnEmptyIfNotSet boolean
      */
-    private Map<Set<Node>, List<Node>> sepsets = new ConcurrentHashMap<>();
-    private Map<Set<Node>, Double> pValues = new ConcurrentHashMap<>();
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("sepsets", Map.class),
+            new ObjectStreamField("pValues", Map.class),
+            new ObjectStreamField("parents", Map.class),
+            new ObjectStreamField("correlations", Set.class),
+            new ObjectStreamField("returnEmptyIfNotSet", Boolean.TYPE)
+    };
+
+    // The index of each node that has been stored.
+    private transient Map<Node, Integer> indices = new ConcurrentHashMap<>();
+
+    // The nodes that have been stored, by index. Replaced, not changed, when it grows.
+    private transient volatile Node[] nodes = new Node[16];
+
+    // The number of nodes that have been stored.
+    private transient int numNodes = 0;
 
-    private Map<Node, HashSet<Node>> parents = new HashMap<>();
+    private transient Map<Long, int[]> sepsets = new ConcurrentHashMap<>();
+    private transient Map<Long, Double> pValues = new ConcurrentHashMap<>();
+
+    private transient ConcurrentMap<Node, HashSet<Node>> parents = new ConcurrentHashMap<>();
     private Set<Set<Node>> correlations;
     private boolean returnEmptyIfNotSet = false;
 
@@ -61,8 +92,14 @@ public final class SepsetMap implements TetradSerializable {
     }
 
     public SepsetMap(SepsetMap map) {
-        this.sepsets = new HashMap<>(map.sepsets);
-        this.pValues = new HashMap<>(map.pValues);
+        synchronized (map.indices) {
+            this.indices.putAll(map.indices);
+            this.nodes = Arrays.copyOf(map.nodes, map.nodes.length);
+            this.numNodes = map.numNodes;
+        }
+
+        this.sepsets.putAll(map.sepsets);
+        this.pValues.putAll(map.pValues);
     }
 
     /**
@@ -78,55 +115,57 @@ public final class SepsetMap implements TetradSerializable {
      * Sets the sepset for {x, y} to be z. Note that {x, y} is unordered.
      */
     public void set(Node x, Node y, List<Node> z) {
-        Set<Node> pair = new HashSet<>(2);
-        pair.add(x);
-        pair.add(y);
+        long pair = pair(index(x), index(y));
+
         if (z == null) {
             sepsets.remove(pair);
         } else {
-            sepsets.put(pair, z);
+            int[] _z = new int[z.size()];
+            for (int i = 0; i < _z.length; i++) _z[i] = index(z.get(i));
+            sepsets.put(pair, _z);
         }
     }
 
     public void setPValue(Node x, Node y, double p) {
-        Set<Node> pair = new HashSet<>(2);
-        pair.add(x);
-        pair.add(y);
-        pValues.put(pair, p);
+        pValues.put(pair(index(x), index(y)), p);
     }
 
     /**
      * Retrieves the sepset previously set for {x, y}, or null if no such set was previously set.
      */
     public List<Node> get(Node x, Node y) {
-        Set<Node> pair = new HashSet<>(2);
-        pair.add(x);
-        pair.add(y);
-
-        if (correlations != null && !correlations.contains(pair)) {
+        if (correlations != null && !correlations.contains(new HashSet<>(Arrays.asList(x, y)))) {
             return Collections.emptyList();
         }
 
-        if (returnEmptyIfNotSet && sepsets.get(pair) == null) {
-            return Collections.emptyList();
+        Integer _x = indices.get(x);
+        Integer _y = indices.get(y);
+        int[] sepset = _x == null || _y == null ? null : sepsets.get(pair(_x, _y));
+
+        if (sepset == null) {
+            return returnEmptyIfNotSet ? Collections.<Node>emptyList() : null;
         }
 
-        return sepsets.get(pair);
+        return asList(sepset);
     }
 
     public double getPValue(Node x, Node y) {
-        Set<Node> pair = new HashSet<>(2);
-        pair.add(x);
-        pair.add(y);
+        Integer _x = indices.get(x);
+        Integer _y = indices.get(y);
 
-        return pValues.get(pair);
+        return pValues.get(_x == null || _y == null ? -1L : pair(_x, _y));
     }
 
     public void set(Node x, LinkedHashSet<Node> z) {
-        if (parents.get(x) != null) {
-            parents.get(x).addAll(z);
-        } else {
-            parents.put(x, z);
+        HashSet<Node> existing = parents.get(x);
+
+        if (existing == null) {
+            existing = parents.putIfAbsent(x, z);
+            if (existing == null) return;
+        }
+
+        synchronized (existing) {
+            existing.addAll(z);
         }
     }
 
@@ -144,36 +183,84 @@ public final class SepsetMap implements TetradSerializable {
         }
 
         SepsetMap _sepset = (SepsetMap) o;
-        return sepsets.equals(_sepset.sepsets);
+        return asMap().equals(_sepset.asMap());
     }
 
 
     /**
-     * Adds semantic checks to the default deserialization method. This method must have the standard signature for a
-     * readObject method, and the body of the method must begin with "s.defaultReadObject();". Other than that, any
-     * semantic checks can be specified and do not need to stay the same from version to version. A readObject method of
-     * this form may be added to any class, even if Tetrad sessions were previously saved out using a version of the
-     * class that didn't include it. (That's what the "s.defaultReadObject();" is for. See J. Bloch, Effective Java, for
-     * help.
+     * Writes the sepsets and p values keyed by pairs of nodes, the form earlier versions wrote.
+     */
+    private void writeObject(ObjectOutputStream s) throws IOException {
+        Node[] _nodes = nodes;
+        Map<Set<Node>, Double> _pValues = new HashMap<>();
+
+        for (Map.Entry<Long, Double> entry : pValues.entrySet()) {
+            _pValues.put(asPair(_nodes, entry.getKey()), entry.getValue());
+        }
+
+        ObjectOutputStream.PutField fields = s.putFields();
+        fields.put("sepsets", asMap());
+        fields.put("pValues", _pValues);
+        fields.put("parents", new HashMap<>(parents));
+        fields.put("correlations", correlations);
+        fields.put("returnEmptyIfNotSet", returnEmptyIfNotSet);
+        s.writeFields();
+    }
+
+    /**
+     * Reads the sepsets and p values keyed by pairs of nodes and indexes their nodes again. Streams written by
+     * earlier versions have the same form.
      *
      * @throws java.io.IOException
      * @throws ClassNotFoundException
      */
+    @SuppressWarnings("unchecked")
     private void readObject(ObjectInputStream s)
             throws IOException, ClassNotFoundException {
-        s.defaultReadObject();
+        ObjectInputStream.GetField fields = s.readFields();
 
-        if (sepsets == null) {
+        Map<Set<Node>, List<Node>> _sepsets = (Map<Set<Node>, List<Node>>) fields.get("sepsets", null);
+        Map<Set<Node>, Double> _pValues = (Map<Set<Node>, Double>) fields.get("pValues", null);
+        Map<Node, HashSet<Node>> _parents = (Map<Node, HashSet<Node>>) fields.get("parents", null);
+
+        if (_sepsets == null) {
             throw new NullPointerException();
         }
+
+        this.indices = new ConcurrentHashMap<>();
+        this.nodes = new Node[16];
+        this.numNodes = 0;
+        this.sepsets = new ConcurrentHashMap<>();
+        this.pValues = new ConcurrentHashMap<>();
+        this.parents = new ConcurrentHashMap<>();
+        this.correlations = (Set<Set<Node>>) fields.get("correlations", null);
+        this.returnEmptyIfNotSet = fields.get("returnEmptyIfNotSet", false);
+
+        for (Map.Entry<Set<Node>, List<Node>> entry : _sepsets.entrySet()) {
+            Iterator<Node> pair = entry.getKey().iterator();
+            Node x = pair.next();
+            set(x, pair.hasNext() ? pair.next() : x, entry.getValue());
+        }
+
+        if (_pValues != null) {
+            for (Map.Entry<Set<Node>, Double> entry : _pValues.entrySet()) {
+                Iterator<Node> pair = entry.getKey().iterator();
+                Node x = pair.next();
+                setPValue(x, pair.hasNext() ? pair.next() : x, entry.getValue());
+            }
+        }
+
+        if (_parents != null) {
+            this.parents.putAll(_parents);
+        }
     }
 
     public int size() {
-        return sepsets.keySet().size();
+        return sepsets.size();
     }
 
     public String toString() {
-        return sepsets.toString();
+        return asMap().toString();
     }
 
     /**
@@ -193,11 +280,96 @@ public final class SepsetMap implements TetradSerializable {
     }
 
     public void addAll(SepsetMap newSepsets) {
-        sepsets.putAll(newSepsets.sepsets);
+        if (newSepsets.indices == indices) {
+            sepsets.putAll(newSepsets.sepsets);
+            return;
+        }
+
+        Node[] _nodes = newSepsets.nodes;
+
+        for (Map.Entry<Long, int[]> entry : newSepsets.sepsets.entrySet()) {
+            long pair = entry.getKey();
+            int[] sepset = entry.getValue();
+            int[] _sepset = new int[sepset.length];
+
+            for (int i = 0; i < sepset.length; i++) {
+                _sepset[i] = index(_nodes[sepset[i]]);
+            }
+
+            int x = index(_nodes[(int) (pair >>> 32)]);
+            int y = index(_nodes[(int) pair]);
+            sepsets.put(pair(x, y), _sepset);
+        }
+    }
+
+    //=============================PRIVATE METHODS========================//
+
+    /**
+     * @return the index of the given node, giving it the next index if it doesn't have one yet.
+     */
+    private int index(Node node) {
+        Integer index = indices.get(node);
+        if (index != null) return index;
+
+        if (node == null) throw new NullPointerException();
+
+        synchronized (indices) {
+            index = indices.get(node);
+            if (index != null) return index;
+
+            Node[] _nodes = nodes;
+
+            if (numNodes == _nodes.length) {
+                _nodes = Arrays.copyOf(_nodes, 2 * _nodes.length);
+            }
+
+            _nodes[numNodes] = node;
+
+            // Published before the index, so a thread that sees the index sees the node.
+            nodes = _nodes;
+            indices.put(node, numNodes);
+            return numNodes++;
+        }
     }
-}
 
+    /**
+     * @return the key for the unordered pair {x, y}.
+     */
+    private static long pair(int x, int y) {
+        if (x > y) {
+            int t = x;
+            x = y;
+            y = t;
+        }
 
+        return ((long) x << 32) | y;
+    }
 
+    private List<Node> asList(int[] sepset) {
+        Node[] _nodes = nodes;
+        List<Node> list = new ArrayList<>(sepset.length);
+        for (int i : sepset) list.add(_nodes[i]);
+        return list;
+    }
 
+    /**
+     * @return the sepsets keyed by the pairs of nodes they separate.
+     */
+    private Map<Set<Node>, List<Node>> asMap() {
+        Node[] _nodes = nodes;
+        Map<Set<Node>, List<Node>> map = new HashMap<>();
+
+        for (Map.Entry<Long, int[]> entry : sepsets.entrySet()) {
+            map.put(asPair(_nodes, entry.getKey()), asList(entry.getValue()));
+        }
 
+        return map;
+    }
+
+    private static Set<Node> asPair(Node[] nodes, long pair) {
+        Set<Node> _pair = new HashSet<>(2);
+        _pair.add(nodes[(int) (pair >>> 32)]);
+        _pair.add(nodes[(int) pair]);
+        return _pair;
+    }
+}
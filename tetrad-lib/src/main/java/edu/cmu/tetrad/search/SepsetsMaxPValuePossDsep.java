@@ -35,7 +35,13 @@ public class SepsetsMaxPValuePossDsep implements SepsetProducer {
     private final SepsetMap extraSepsets;
     private int depth = 3;
     private int maxPathLength = 3;
-    private double p = Double.NaN;
+
+    // The p value of the most recent sepset on each thread, so that edges can be checked in parallel.
+    private final ThreadLocal<Double> p = new ThreadLocal<Double>() {
+        protected Double initialValue() {
+            return Double.NaN;
+        }
+    };
     private boolean verbose = false;
 
     public SepsetsMaxPValuePossDsep(Graph graph, IndependenceTest independenceTest, SepsetMap extraSepsets, int depth, int maxPathLength) {
@@ -128,7 +134,7 @@ public class SepsetsMaxPValuePossDsep implements SepsetProducer {
             }
         }
 
-        this.p = _p;
+        this.p.set(_p);
         return _v;
     }
 
@@ -259,12 +265,12 @@ public class SepsetsMaxPValuePossDsep implements SepsetProducer {
 
     @Override
     public double getPValue() {
-        return p;
+        return p.get();
     }
 
     @Override
     public double getScore() {
-        return -(p - independenceTest.getAlpha());
+        return -(p.get() - independenceTest.getAlpha());
     }
 
     @Override
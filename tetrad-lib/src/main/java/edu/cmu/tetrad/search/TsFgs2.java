@@ -105,6 +105,16 @@ public final class TsFgs2 implements GraphSearch, GraphScorer {
      */
     private Score score;
 
+    /**
+     * The score used during the search, which stores local scores if maxCachedScores > 0.
+     */
+    private Score searchScore;
+
+    /**
+     * The maximum number of local scores to store during the search; 0 for none.
+     */
+    private int maxCachedScores = 100000;
+
     /**
      * The logger for this class. The config needs to be set.
      */
@@ -217,56 +227,68 @@ public final class TsFgs2 implements GraphSearch, GraphScorer {
     public Graph search() {
         topGraphs.clear();
 
-        lookupArrows = new ConcurrentHashMap<>();
-        final List<Node> nodes = new ArrayList<>(variables);
-        graph = new EdgeListGraphSingleConnections(nodes);
+        searchScore = maxCachedScores > 0 ? new CachingScore(score, maxCachedScores) : score;
 
-        if (adjacencies != null) {
-            adjacencies = GraphUtils.replaceNodes(adjacencies, nodes);
-        }
+        try {
+            lookupArrows = new ConcurrentHashMap<>();
+            final List<Node> nodes = new ArrayList<>(variables);
+            graph = new EdgeListGraphSingleConnections(nodes);
 
-        if (initialGraph != null) {
-            graph = new EdgeListGraphSingleConnections(initialGraph);
-            graph = GraphUtils.replaceNodes(graph, nodes);
-        }
+            if (adjacencies != null) {
+                adjacencies = GraphUtils.replaceNodes(adjacencies, nodes);
+            }
 
-        addRequiredEdges(graph);
+            if (initialGraph != null) {
+                graph = new EdgeListGraphSingleConnections(initialGraph);
+                graph = GraphUtils.replaceNodes(graph, nodes);
+            }
 
-        if (faithfulnessAssumed) {
-            initializeForwardEdgesFromEmptyGraph(getVariables());
+            addRequiredEdges(graph);
 
-            // Do forward search.
-            this.mode = Mode.heuristicSpeedup;
-            fes();
-            bes();
+            if (faithfulnessAssumed) {
+                initializeForwardEdgesFromEmptyGraph(getVariables());
 
-            this.mode = Mode.coverNoncolliders;
-            initializeTwoStepEdges(getVariables());
-            fes();
-            bes();
-        } else {
-            initializeForwardEdgesFromEmptyGraph(getVariables());
+                // Do forward search.
+                this.mode = Mode.heuristicSpeedup;
+                fes();
+                bes();
+
+                this.mode = Mode.coverNoncolliders;
+                initializeTwoStepEdges(getVariables());
+                fes();
+                bes();
+            } else {
+                initializeForwardEdgesFromEmptyGraph(getVariables());
 
-            // Do forward search.
-            this.mode = Mode.heuristicSpeedup;
-            fes();
-            bes();
+                // Do forward search.
+                this.mode = Mode.heuristicSpeedup;
+                fes();
+                bes();
 
-            this.mode = Mode.allowUnfaithfulness;
-            initializeForwardEdgesFromExistingGraph(getVariables());
-            fes();
-            bes();
-        }
+                this.mode = Mode.allowUnfaithfulness;
+                initializeForwardEdgesFromExistingGraph(getVariables());
+                fes();
+                bes();
+            }
 
-        long start = System.currentTimeMillis();
-        totalScore = 0.0;
+            long start = System.currentTimeMillis();
+            totalScore = 0.0;
 
-        long endTime = System.currentTimeMillis();
-        this.elapsedTime = endTime - start;
-        this.logger.log("graph", "\nReturning this graph: " + graph);
+            long endTime = System.currentTimeMillis();
+            this.elapsedTime = endTime - start;
+            this.logger.log("graph", "\nReturning this graph: " + graph);
 
-        this.logger.log("info", "Elapsed time = " + (elapsedTime) / 1000. + " s");
-        this.logger.flush();
+            this.logger.log("info", "Elapsed time = " + (elapsedTime) / 1000. + " s");
+            this.logger.flush();
+
+            if (verbose && searchScore instanceof CachingScore) {
+                CachingScore cachingScore = (CachingScore) searchScore;
+                out.println("Local scores cached: hits = " + cachingScore.getNumHits()
+                        + ", misses = " + cachingScore.getNumMisses());
+            }
+        } finally {
+            searchScore = score;
+        }
 
         this.modelScore = totalScore;
 
@@ -369,6 +391,24 @@ public final class TsFgs2 implements GraphSearch, GraphScorer {
         this.verbose = verbose;
     }
 
+    /**
+     * The maximum number of local scores stored during a search, so that families rescored in
+     * the backward phase or when arrows are rebuilt are only calculated once.
+     * @return 0 if local scores are not stored.
+     */
+    public int getMaxCachedScores() {
+        return maxCachedScores;
+    }
+
+    /**
+     * The maximum number of local scores stored during a search.
+     * @param maxCachedScores 0 if local scores should not be stored.
+     */
+    public void setMaxCachedScores(int maxCachedScores) {
+        if (maxCachedScores < 0) throw new IllegalArgumentException();
+        this.maxCachedScores = maxCachedScores;
+    }
+
     /**
      * Sets the output stream that output (except for log output) should be sent to.
      * By detault System.out.
@@ -496,6 +536,7 @@ public final class TsFgs2 implements GraphSearch, GraphScorer {
     //Sets the discrete scoring function to use.
     private void setScore(Score totalScore) {
         this.score = totalScore;
+        this.searchScore = totalScore;
 
         this.variables = new ArrayList<>();
 
@@ -559,7 +600,7 @@ public final class TsFgs2 implements GraphSearch, GraphScorer {
 
                     int child = hashIndices.get(y);
                     int parent = hashIndices.get(x);
-                    double bump = score.localScoreDiff(parent, child);
+                    double bump = searchScore.localScoreDiff(parent, child);
 
                     if (boundGraph != null && !boundGraph.isAdjacentTo(x, y)) continue;
 
@@ -1833,7 +1874,7 @@ public final class TsFgs2 implements GraphSearch, GraphScorer {
             }
 
             int yIndex = hashIndices.get(y);
-            _score += score.localScore(yIndex, parentIndices);
+            _score += searchScore.localScore(yIndex, parentIndices);
         }
 
         return _score;
@@ -1852,7 +1893,7 @@ public final class TsFgs2 implements GraphSearch, GraphScorer {
             parentIndices[count++] = hashIndices.get(parent);
         }
 
-        return score.localScoreDiff(hashIndices.get(x), yIndex, parentIndices);
+        return searchScore.localScoreDiff(hashIndices.get(x), yIndex, parentIndices);
     }
 
     private List<Node> getVariables() {
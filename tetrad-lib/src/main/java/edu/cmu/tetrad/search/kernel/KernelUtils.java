@@ -25,7 +25,9 @@ import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.util.TetradMatrix;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Various kernel utilities
@@ -186,6 +188,135 @@ public class KernelUtils {
         return Gm;
     }
 
+    /**
+     * Factors the Gram matrix of the product of Gaussian kernels over the given columns, K = G G', using pivoted
+     * incomplete Cholesky. Unlike incompleteCholeskyGramMatrix, the rows of G are in the order of the data, and
+     * neither K nor an m x m workspace is ever formed, so this takes O(m r^2) time and O(m r) space for rank r.
+     *
+     * @param columns   the data for each variable, already divided by the bandwidth of its kernel.
+     * @param precision factoring stops when no diagonal entry of K - G G' is greater than this.
+     * @param maxRank   the maximum number of columns of G.
+     * @return G, as an array of rows.
+     */
+    public static double[][] incompleteCholeskyFactor(double[][] columns, double precision, int maxRank) {
+        int m = columns[0].length;
+        int r = Math.min(maxRank, m);
+
+        double[][] G = new double[m][r];
+        double[] diag = new double[m];
+        boolean[] pivoted = new boolean[m];
+        Arrays.fill(diag, 1.0);
+
+        int cols = 0;
+
+        for (int k = 0; k < r; k++) {
+            int best = -1;
+
+            for (int i = 0; i < m; i++) {
+                if (!pivoted[i] && (best == -1 || diag[i] > diag[best])) {
+                    best = i;
+                }
+            }
+
+            if (best == -1 || diag[best] <= precision) {
+                break;
+            }
+
+            pivoted[best] = true;
+            double d = Math.sqrt(diag[best]);
+            double[] gBest = G[best];
+            gBest[k] = d;
+
+            for (int i = 0; i < m; i++) {
+                if (pivoted[i]) continue;
+
+                double[] gi = G[i];
+                double s = gaussian(columns, i, best);
+
+                for (int c = 0; c < k; c++) {
+                    s -= gi[c] * gBest[c];
+                }
+
+                gi[k] = s / d;
+                diag[i] -= gi[k] * gi[k];
+            }
+
+            cols++;
+        }
+
+        return trim(G, cols);
+    }
+
+    /**
+     * Approximates the Gram matrix of the product of Gaussian kernels over the given columns by G G', where the
+     * columns of G are random Fourier features sqrt(2 / r) cos(w'x + b), with w standard normal and b uniform on
+     * [0, 2 pi).
+     *
+     * @param columns     the data for each variable, already divided by the bandwidth of its kernel.
+     * @param numFeatures the number of features, r.
+     * @param random      the source of w and b.
+     * @return G, as an array of rows.
+     */
+    public static double[][] randomFourierFeatures(double[][] columns, int numFeatures, Random random) {
+        int m = columns[0].length;
+        double[][] w = new double[numFeatures][columns.length];
+        double[] b = new double[numFeatures];
+
+        for (int f = 0; f < numFeatures; f++) {
+            for (int v = 0; v < columns.length; v++) {
+                w[f][v] = random.nextGaussian();
+            }
+
+            b[f] = 2 * Math.PI * random.nextDouble();
+        }
+
+        double scale = Math.sqrt(2.0 / numFeatures);
+        double[][] G = new double[m][numFeatures];
+
+        for (int i = 0; i < m; i++) {
+            for (int f = 0; f < numFeatures; f++) {
+                double s = b[f];
+
+                for (int v = 0; v < columns.length; v++) {
+                    s += w[f][v] * columns[v][i];
+                }
+
+                G[i][f] = scale * Math.cos(s);
+            }
+        }
+
+        return G;
+    }
+
+    /**
+     * @return the median distance between points of the given sample, calculated from at most 1000 evenly spaced
+     * points so that it stays cheap for large samples, or 1 if that is zero.
+     */
+    public static double medianBandwidth(double[] column) {
+        int m = column.length;
+        int n = Math.min(m, 1000);
+        double[] points = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            points[i] = column[(int) ((long) i * m / n)];
+        }
+
+        double[] diff = new double[n * (n - 1) / 2];
+        int c = 0;
+
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                diff[c++] = Math.abs(points[i] - points[j]);
+            }
+        }
+
+        if (diff.length == 0) return 1.0;
+
+        Arrays.sort(diff);
+        double median = diff[diff.length / 2];
+        return median > 0 ? median : 1.0;
+    }
+
     // evaluates tensor product for kernels
 
     private static double evaluate(List<Kernel> kernels, DataSet dataset, List<Node> vars, int i, int j) {
@@ -198,6 +329,31 @@ public class KernelUtils {
         return keval;
     }
 
+    // the product of unit bandwidth Gaussian kernels at rows i and j.
+
+    private static double gaussian(double[][] columns, int i, int j) {
+        double s = 0.0;
+
+        for (double[] column : columns) {
+            double d = column[i] - column[j];
+            s += d * d;
+        }
+
+        return Math.exp(-.5 * s);
+    }
+
+    private static double[][] trim(double[][] G, int cols) {
+        if (G.length > 0 && G[0].length == cols) return G;
+
+        double[][] trimmed = new double[G.length][];
+
+        for (int i = 0; i < G.length; i++) {
+            trimmed[i] = Arrays.copyOf(G[i], cols);
+        }
+
+        return trimmed;
+    }
+
 ////     computes the trace
 //
 //    private static double trace(TetradMatrix A, int m) {
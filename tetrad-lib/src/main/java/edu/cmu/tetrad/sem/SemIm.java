@@ -1332,6 +1332,10 @@ public final class SemIm implements IM, ISemIm, TetradSerializable {
         }
     }
 
+    public ScoreType getScoreType() {
+        return scoreType;
+    }
+
     public void setScoreType(ScoreType scoreType) {
         if (scoreType == null) scoreType = ScoreType.Fgls;
         this.scoreType = scoreType;
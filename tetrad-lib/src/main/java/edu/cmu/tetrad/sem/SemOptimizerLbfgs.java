@@ -0,0 +1,483 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.sem;
+
+import edu.cmu.tetrad.data.DataUtils;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.graph.SemGraph;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
+import edu.cmu.tetrad.util.RandomUtil;
+import edu.cmu.tetrad.util.TetradMatrix;
+import org.apache.commons.math3.exception.MathIllegalArgumentException;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Optimizes a SEM by limited memory BFGS, using the closed form gradient of the fitting function
+ * (FML or FGLS, whichever the SemIm uses) with respect to the free edge coefficients, error
+ * variances and error covariances.
+ * <p>
+ * With A = (I - B')^-1, the implied covariance is A Cov(e) A', and for G the derivative of the
+ * fitting function with respect to the implied covariance of the measured variables (padded with
+ * zeros for the latents), the gradient with respect to Cov(e)[i][j] is (A' G A)[i][j], counted
+ * twice off the diagonal, and with respect to the coefficient of the edge p-->c is
+ * 2 (Sigma G A)[p][c]. So each evaluation costs one LU decomposition of I - B', one Cholesky
+ * decomposition of the implied covariance (which also gives its log determinant and inverse) and
+ * a few matrix products, however many parameters there are. The inverse and log determinant of
+ * the sample covariance matrix are computed once per call to optimize().
+ * <p>
+ * The first search starts from the values in the SemIm; each restart starts from a random point,
+ * as in SemOptimizerPowell. The starting points are drawn up front from RandomUtil and the searches
+ * are run in parallel, so the result doesn't depend on the number of threads. Points with
+ * nonpositive error variances, or at which the implied covariance matrix is not positive
+ * definite, are treated as infinitely bad.
+ */
+public class SemOptimizerLbfgs implements SemOptimizer {
+    static final long serialVersionUID = 23L;
+
+    /**
+     * The number of corrections kept to approximate the inverse Hessian.
+     */
+    private static final int MEMORY = 10;
+
+    private int numRestarts = 0;
+    private int maxIterations = 1000;
+    private double tolerance = 1e-8;
+
+    //=========================CONSTRUCTORS============================//
+
+    /**
+     * Blank constructor.
+     */
+    public SemOptimizerLbfgs() {
+    }
+
+    /**
+     * Generates a simple exemplar of this class to test serialization.
+     */
+    public static SemOptimizerLbfgs serializableInstance() {
+        return new SemOptimizerLbfgs();
+    }
+
+    //=========================PUBLIC METHODS==========================//
+
+    public void optimize(SemIm semIm) {
+        TetradMatrix sampleCovar = semIm.getSampleCovar();
+
+        if (sampleCovar == null) {
+            throw new NullPointerException("Sample covar has not been set.");
+        }
+
+        if (DataUtils.containsMissingValue(sampleCovar)) {
+            throw new IllegalArgumentException("Please remove or impute missing values.");
+        }
+
+        final FittingFunction function = new FittingFunction(semIm);
+        List<Parameter> freeParameters = semIm.getFreeParameters();
+
+        final double[][] starts = new double[numRestarts + 1][];
+        starts[0] = semIm.getFreeParamValues();
+
+        for (int count = 1; count < starts.length; count++) {
+            starts[count] = new double[freeParameters.size()];
+
+            for (int i = 0; i < freeParameters.size(); i++) {
+                if (freeParameters.get(i).getType() == ParamType.VAR) {
+                    starts[count][i] = RandomUtil.getInstance().nextUniform(0, 1);
+                } else {
+                    starts[count][i] = RandomUtil.getInstance().nextUniform(-1, 1);
+                }
+            }
+        }
+
+        final double[][] points = new double[starts.length][];
+        final double[] values = new double[starts.length];
+
+        class SearchTask extends RecursiveAction {
+            private final int from;
+            private final int to;
+
+            private SearchTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    points[from] = starts[from].clone();
+                    values[from] = minimize(function, points[from]);
+                } else {
+                    int mid = (to + from) / 2;
+                    invokeAll(new SearchTask(from, mid), new SearchTask(mid, to));
+                }
+            }
+        }
+
+        ForkJoinPoolInstance.getInstance().getPool().invoke(new SearchTask(0, starts.length));
+
+        double min = Double.POSITIVE_INFINITY;
+        double[] point = null;
+
+        for (int count = 0; count < starts.length; count++) {
+            if (values[count] < min) {
+                min = values[count];
+                point = points[count];
+            }
+        }
+
+        if (point == null) {
+            throw new IllegalStateException("The fitting function could not be evaluated " +
+                    "at any of the starting points.");
+        }
+
+        semIm.setFreeParamValues(point);
+    }
+
+    @Override
+    public void setNumRestarts(int numRestarts) {
+        this.numRestarts = numRestarts;
+    }
+
+    @Override
+    public int getNumRestarts() {
+        return numRestarts;
+    }
+
+    /**
+     * @param maxIterations The maximum number of iterations for each search.
+     */
+    public void setMaxIterations(int maxIterations) {
+        if (maxIterations < 1) {
+            throw new IllegalArgumentException("Max iterations must be at least 1: " + maxIterations);
+        }
+
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * @param tolerance A search stops when no component of the gradient is larger than this.
+     */
+    public void setTolerance(double tolerance) {
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("Tolerance must be nonnegative: " + tolerance);
+        }
+
+        this.tolerance = tolerance;
+    }
+
+    public String toString() {
+        return "Sem Optimizer L-BFGS";
+    }
+
+    //=========================PRIVATE METHODS==========================//
+
+    /**
+     * Minimizes the function from x, leaving the minimizing point in x.
+     *
+     * @return the minimum found, or infinity if the function can't be evaluated at x.
+     */
+    private double minimize(FittingFunction function, double[] x) {
+        int n = x.length;
+        double[] g = new double[n];
+        double f = function.evaluate(x, g);
+
+        if (f == Double.POSITIVE_INFINITY) {
+            return f;
+        }
+
+        double[][] s = new double[MEMORY][n];
+        double[][] y = new double[MEMORY][n];
+        double[] rho = new double[MEMORY];
+        double[] alpha = new double[MEMORY];
+        int numStored = 0;
+        int newest = -1;
+
+        double[] d = new double[n];
+        double[] xNew = new double[n];
+        double[] gNew = new double[n];
+
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            if (maxAbs(g) <= tolerance) {
+                break;
+            }
+
+            // Two loop recursion for d = -H g.
+            for (int i = 0; i < n; i++) d[i] = -g[i];
+
+            for (int k = 0; k < numStored; k++) {
+                int m = (newest - k + MEMORY) % MEMORY;
+                alpha[m] = rho[m] * dot(s[m], d);
+                for (int i = 0; i < n; i++) d[i] -= alpha[m] * y[m][i];
+            }
+
+            if (numStored > 0) {
+                double gamma = dot(s[newest], y[newest]) / dot(y[newest], y[newest]);
+                for (int i = 0; i < n; i++) d[i] *= gamma;
+            }
+
+            for (int k = numStored - 1; k >= 0; k--) {
+                int m = (newest - k + MEMORY) % MEMORY;
+                double beta = rho[m] * dot(y[m], d);
+                for (int i = 0; i < n; i++) d[i] += (alpha[m] - beta) * s[m][i];
+            }
+
+            double slope = dot(g, d);
+
+            if (!(slope < 0)) {
+                numStored = 0;
+                for (int i = 0; i < n; i++) d[i] = -g[i];
+                slope = dot(g, d);
+            }
+
+            // Backtracking line search for sufficient decrease.
+            double step = numStored == 0 ? Math.min(1.0, 1.0 / Math.sqrt(-slope)) : 1.0;
+            double fNew = Double.POSITIVE_INFINITY;
+            boolean found = false;
+
+            for (int trial = 0; trial < 60; trial++) {
+                for (int i = 0; i < n; i++) xNew[i] = x[i] + step * d[i];
+                fNew = function.evaluate(xNew, gNew);
+
+                if (fNew <= f + 1e-4 * step * slope) {
+                    found = true;
+                    break;
+                }
+
+                step *= 0.5;
+            }
+
+            if (!found) {
+                break;
+            }
+
+            int m = (newest + 1) % MEMORY;
+            double sy = 0.0;
+
+            for (int i = 0; i < n; i++) {
+                s[m][i] = xNew[i] - x[i];
+                y[m][i] = gNew[i] - g[i];
+                sy += s[m][i] * y[m][i];
+            }
+
+            // Skip corrections that would make the approximate Hessian indefinite.
+            if (sy > 1e-12 * Math.sqrt(dot(s[m], s[m]) * dot(y[m], y[m]))) {
+                rho[m] = 1.0 / sy;
+                newest = m;
+                numStored = Math.min(numStored + 1, MEMORY);
+            }
+
+            double change = f - fNew;
+
+            System.arraycopy(xNew, 0, x, 0, n);
+            System.arraycopy(gNew, 0, g, 0, n);
+            f = fNew;
+
+            if (change <= 1e-14 * Math.max(1.0, Math.abs(f))) {
+                break;
+            }
+        }
+
+        return f;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) sum += a[i] * b[i];
+        return sum;
+    }
+
+    private static double maxAbs(double[] a) {
+        double max = 0.0;
+        for (double v : a) max = Math.max(max, Math.abs(v));
+        return max;
+    }
+
+    /**
+     * The fitting function of a SemIm and its gradient with respect to the free parameters. Holds
+     * no state that changes with the point, so may be evaluated from several threads at once.
+     */
+    static final class FittingFunction {
+        private final SemIm.ScoreType scoreType;
+        private final ParamType[] types;
+        private final int[] rows;
+        private final int[] columns;
+        private final int[] measured;
+        private final TetradMatrix edgeCoef;
+        private final TetradMatrix errCovar;
+        private final TetradMatrix sampleCovar;
+        private final TetradMatrix sampleCovarInverse;
+        private final double logDetSample;
+
+        FittingFunction(SemIm semIm) {
+            List<Node> variableNodes = semIm.getVariableNodes();
+            List<Parameter> freeParameters = semIm.getFreeParameters();
+            SemGraph graph = semIm.getSemPm().getGraph();
+
+            this.scoreType = semIm.getScoreType();
+            this.types = new ParamType[freeParameters.size()];
+            this.rows = new int[freeParameters.size()];
+            this.columns = new int[freeParameters.size()];
+
+            // Same indexing as the mappings in SemIm, so B[rows[i]][columns[i]] is the coefficient
+            // of the edge from parent to child.
+            for (int i = 0; i < freeParameters.size(); i++) {
+                Parameter parameter = freeParameters.get(i);
+                types[i] = parameter.getType();
+                rows[i] = variableNodes.indexOf(graph.getVarNode(parameter.getNodeA()));
+                columns[i] = variableNodes.indexOf(graph.getVarNode(parameter.getNodeB()));
+            }
+
+            List<Node> measuredNodes = semIm.getMeasuredNodes();
+            this.measured = new int[measuredNodes.size()];
+
+            for (int i = 0; i < measuredNodes.size(); i++) {
+                measured[i] = variableNodes.indexOf(measuredNodes.get(i));
+            }
+
+            // Fixed parameters keep the values they have here.
+            this.edgeCoef = semIm.getEdgeCoef();
+            this.errCovar = semIm.getErrCovar();
+            this.sampleCovar = semIm.getSampleCovar();
+
+            CholeskyDecomposition cholesky = new CholeskyDecomposition(sampleCovar.getRealMatrix());
+            this.sampleCovarInverse = new TetradMatrix(cholesky.getSolver().getInverse());
+            this.logDetSample = Math.log(cholesky.getDeterminant());
+        }
+
+        /**
+         * @param x        The values of the free parameters, in the order of getFreeParameters().
+         * @param gradient Set to the gradient at x, if the function can be evaluated there.
+         * @return the value of the fitting function at x, or infinity if it can't be evaluated.
+         */
+        double evaluate(double[] x, double[] gradient) {
+            int n = edgeCoef.rows();
+            TetradMatrix b = edgeCoef.copy();
+            TetradMatrix omega = errCovar.copy();
+
+            for (int i = 0; i < x.length; i++) {
+                if (Double.isNaN(x[i]) || Double.isInfinite(x[i])) {
+                    return Double.POSITIVE_INFINITY;
+                }
+
+                if (types[i] == ParamType.COEF) {
+                    b.set(rows[i], columns[i], x[i]);
+                } else if (types[i] == ParamType.VAR) {
+                    if (x[i] <= 0) return Double.POSITIVE_INFINITY;
+                    omega.set(rows[i], rows[i], x[i]);
+                } else {
+                    omega.set(rows[i], columns[i], x[i]);
+                    omega.set(columns[i], rows[i], x[i]);
+                }
+            }
+
+            // A = (I - B')^-1.
+            TetradMatrix a;
+
+            try {
+                RealMatrix m = TetradMatrix.identity(n).minus(b.transpose()).getRealMatrix();
+                a = new TetradMatrix(new LUDecomposition(m).getSolver().getInverse());
+            } catch (Exception e) {
+                return Double.POSITIVE_INFINITY;
+            }
+
+            TetradMatrix implCovar = a.times(omega).times(a.transpose());
+            TetradMatrix sigma = implCovar.getSelection(measured, measured);
+
+            // Made exactly symmetric, as the Cholesky decomposition checks.
+            for (int i = 0; i < measured.length; i++) {
+                for (int j = 0; j < i; j++) {
+                    double s = 0.5 * (sigma.get(i, j) + sigma.get(j, i));
+                    sigma.set(i, j, s);
+                    sigma.set(j, i, s);
+                }
+            }
+            TetradMatrix w = sampleCovarInverse;
+            double f;
+            TetradMatrix g;
+
+            if (scoreType == SemIm.ScoreType.Fml) {
+                CholeskyDecomposition cholesky;
+
+                try {
+                    cholesky = new CholeskyDecomposition(sigma.getRealMatrix());
+                } catch (MathIllegalArgumentException e) {
+                    return Double.POSITIVE_INFINITY;
+                }
+
+                double logDet = 0.0;
+                RealMatrix l = cholesky.getL();
+
+                for (int i = 0; i < l.getRowDimension(); i++) {
+                    logDet += 2 * Math.log(l.getEntry(i, i));
+                }
+
+                TetradMatrix sigmaInverse = new TetradMatrix(cholesky.getSolver().getInverse());
+                TetradMatrix product = sampleCovar.times(sigmaInverse);
+                f = logDet + product.trace() - logDetSample - measured.length;
+
+                // dF/dSigma = Sigma^-1 - Sigma^-1 S Sigma^-1.
+                g = sigmaInverse.minus(sigmaInverse.times(product));
+            } else {
+                TetradMatrix product = sigma.times(w);
+                TetradMatrix diff = TetradMatrix.identity(measured.length).minus(product);
+                f = 0.5 * diff.times(diff).trace();
+
+                // dF/dSigma = W Sigma W - W, for W = S^-1.
+                g = w.times(product).minus(w);
+            }
+
+            if (Double.isNaN(f) || Double.isInfinite(f)) {
+                return Double.POSITIVE_INFINITY;
+            }
+
+            TetradMatrix gFull = new TetradMatrix(n, n);
+
+            for (int i = 0; i < measured.length; i++) {
+                for (int j = 0; j < measured.length; j++) {
+                    gFull.set(measured[i], measured[j], 0.5 * (g.get(i, j) + g.get(j, i)));
+                }
+            }
+
+            TetradMatrix gA = gFull.times(a);
+            TetradMatrix errorGradient = a.transpose().times(gA);
+            TetradMatrix coefGradient = implCovar.times(gA);
+
+            for (int i = 0; i < x.length; i++) {
+                if (types[i] == ParamType.COEF) {
+                    gradient[i] = 2 * coefGradient.get(rows[i], columns[i]);
+                } else if (types[i] == ParamType.VAR) {
+                    gradient[i] = errorGradient.get(rows[i], rows[i]);
+                } else {
+                    gradient[i] = 2 * errorGradient.get(rows[i], columns[i]);
+                }
+            }
+
+            return f;
+        }
+    }
+}
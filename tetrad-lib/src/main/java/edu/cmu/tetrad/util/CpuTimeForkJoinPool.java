@@ -0,0 +1,117 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ForkJoinPool that keeps track of the CPU time used by its worker threads, so that the
+ * CPU time of work done in the pool can be reported apart from that of other pools running
+ * at the same time.
+ * <p>
+ * Code running in a worker thread of this pool gets this pool from
+ * ForkJoinPoolInstance.getPool(), so that tasks forked by algorithms stay in the pool they
+ * were started in.
+ */
+public final class CpuTimeForkJoinPool extends ForkJoinPool {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // The live worker threads.
+    private final Set<Thread> workers = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+    // CPU time, in nanoseconds, of worker threads that have finished.
+    private final AtomicLong finishedCpuTime = new AtomicLong();
+
+    /**
+     * @param parallelism The number of worker threads.
+     */
+    public CpuTimeForkJoinPool(int parallelism) {
+        super(parallelism, new WorkerFactory(), null, false);
+    }
+
+    /**
+     * @return the CPU time, in nanoseconds, used so far by the worker threads of this pool, or
+     * -1 if thread CPU time cannot be measured.
+     */
+    public long getCpuTime() {
+        if (!isCpuTimeSupported()) return -1;
+
+        long cpuTime = finishedCpuTime.get();
+
+        for (Thread worker : workers) {
+            long time = THREADS.getThreadCpuTime(worker.getId());
+            if (time > 0) cpuTime += time;
+        }
+
+        return cpuTime;
+    }
+
+    /**
+     * @return the CPU time, in nanoseconds, used so far by the current thread, or -1 if thread
+     * CPU time cannot be measured.
+     */
+    public static long getCurrentThreadCpuTime() {
+        if (!isCpuTimeSupported()) return -1;
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    private static boolean isCpuTimeSupported() {
+        return THREADS.isThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+    }
+
+    private static class WorkerFactory implements ForkJoinWorkerThreadFactory {
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            return new Worker((CpuTimeForkJoinPool) pool);
+        }
+    }
+
+    private static class Worker extends ForkJoinWorkerThread {
+        private final CpuTimeForkJoinPool pool;
+
+        Worker(CpuTimeForkJoinPool pool) {
+            super(pool);
+            this.pool = pool;
+        }
+
+        protected void onStart() {
+            super.onStart();
+            pool.workers.add(this);
+            ForkJoinPoolInstance.getInstance().setPoolForCurrentThread(pool);
+        }
+
+        protected void onTermination(Throwable exception) {
+            long cpuTime = getCurrentThreadCpuTime();
+            pool.workers.remove(this);
+            if (cpuTime > 0) pool.finishedCpuTime.addAndGet(cpuTime);
+            super.onTermination(exception);
+        }
+    }
+}
@@ -31,6 +31,11 @@ public class ForkJoinPoolInstance {
     private static final ForkJoinPoolInstance INSTANCE = new ForkJoinPoolInstance();
     private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
+    /**
+     * A pool to be returned to the current thread in place of the shared one, if set.
+     */
+    private final ThreadLocal<ForkJoinPool> threadPool = new ThreadLocal<>();
+
     private ForkJoinPoolInstance() {
 
     }
@@ -39,8 +44,24 @@ public class ForkJoinPoolInstance {
         return INSTANCE;
     }
 
+    /**
+     * @return the pool set for the current thread, if there is one; otherwise the shared pool.
+     */
     public ForkJoinPool getPool() {
-        return pool;
+        ForkJoinPool pool = threadPool.get();
+        return pool != null ? pool : this.pool;
+    }
+
+    /**
+     * Sets the pool returned by getPool() to the current thread, or, if null, goes back to the
+     * shared pool. Lets a caller run an algorithm, and everything it forks, in a pool of its own.
+     */
+    public void setPoolForCurrentThread(ForkJoinPool pool) {
+        if (pool == null) {
+            threadPool.remove();
+        } else {
+            threadPool.set(pool);
+        }
     }
 }
 
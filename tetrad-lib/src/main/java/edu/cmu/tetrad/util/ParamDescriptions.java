@@ -100,6 +100,7 @@ public class ParamDescriptions {
         put("verbose", new ParamDescription("Yes if verbose output should be printed to standard out", false));
         put("faithfulnessAssumed", new ParamDescription("Yes if (one edge) faithfulness should be assumed", true));
         put("maxIndegree", new ParamDescription("The maximum indegree of the output graph", 5));
+        put("useDSeparationOracle", new ParamDescription("Yes if d-separation should be checked using a compiled oracle", false));
     }
 
     public static ParamDescriptions instance() {
@@ -0,0 +1,337 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+package edu.cmu.tetrad.util;
+
+/**
+ * Thread-safe, allocation-free calculation of partial correlations from a covariance matrix.
+ * <p>
+ * For indices (x, y, z1,...,zk) the covariance submatrix is gathered in the order (z1,...,zk, x, y)
+ * into a scratch buffer owned by the calling thread and Cholesky factored in place. The bottom
+ * right 2 x 2 block of the factor is the Cholesky factor of the residual covariance of x and y
+ * given z, from which the partial correlation is read off directly. No lock is taken and no
+ * matrix objects are created, so independence tests running in the ForkJoinPool scale with
+ * its parallelism.
+ * <p>
+ * If the submatrix is not positive definite, falls back to StatUtils.partialCorrelation on an
+ * explicit submatrix, so singular cases are treated exactly as before.
+ * <p>
+ * A Factor over a Covariances keeps the factor from its previous call. Searches such as FAS go
+ * through the conditioning sets for a pair in ChoiceGenerator order, in which successive sets
+ * usually differ only in their last few variables. Rows of the factor for a common prefix of z,
+ * and the entries of the x and y rows under them if x and y are the same, don't change, so only
+ * the rest of the factor is recalculated. This takes a test from O(k^3) to about O(k^2), or O(k)
+ * when only the last variable of z has changed, and gives bit for bit the same answer. A Factor
+ * should only be used by one thread, for a run of tests over which the covariances don't change,
+ * and then discarded.
+ */
+public final class PartialCorrelationKernel {
+
+    /**
+     * Random access to the entries of a covariance matrix.
+     */
+    public interface Covariances {
+        double getValue(int i, int j);
+    }
+
+    /**
+     * Per-thread scratch space for the gathered submatrix and its factor, grown as needed.
+     */
+    private static final ThreadLocal<double[]> SCRATCH = new ThreadLocal<double[]>() {
+        protected double[] initialValue() {
+            return new double[16 * 16];
+        }
+    };
+
+    private PartialCorrelationKernel() {
+    }
+
+    //=========================PUBLIC METHODS===========================//
+
+    /**
+     * @param cov     The covariance matrix.
+     * @param indices (x, y, z1,...,zk), the indices into <code>cov</code> of the variables.
+     * @param size    The number of entries of <code>indices</code> to use; must be at least 2.
+     * @return the partial correlation of x and y given z1,...,zk.
+     */
+    public static double partialCorrelation(Covariances cov, int[] indices, int size) {
+        double[] a = scratch(size);
+
+        for (int i = 0; i < size; i++) {
+            int _i = indices[position(i, size)];
+
+            for (int j = 0; j <= i; j++) {
+                a[i * size + j] = cov.getValue(_i, indices[position(j, size)]);
+            }
+        }
+
+        double r = choleskyPartialCorrelation(a, size);
+
+        if (Double.isNaN(r)) {
+            return fallback(cov, indices, size);
+        }
+
+        return r;
+    }
+
+    /**
+     * @param cov     The covariance matrix.
+     * @param indices (x, y, z1,...,zk), the indices into <code>cov</code> of the variables.
+     * @param size    The number of entries of <code>indices</code> to use; must be at least 2.
+     * @return the partial correlation of x and y given z1,...,zk.
+     */
+    public static double partialCorrelation(TetradMatrix cov, int[] indices, int size) {
+        double[] a = scratch(size);
+
+        for (int i = 0; i < size; i++) {
+            int _i = indices[position(i, size)];
+
+            for (int j = 0; j <= i; j++) {
+                a[i * size + j] = cov.get(_i, indices[position(j, size)]);
+            }
+        }
+
+        double r = choleskyPartialCorrelation(a, size);
+
+        if (Double.isNaN(r)) {
+            return StatUtils.partialCorrelationByInverse(cov.getSelection(
+                    copy(indices, size), copy(indices, size)));
+        }
+
+        return r;
+    }
+
+    /**
+     * @param submatrix A covariance submatrix over (x, y, z1,...,zk), in that order.
+     * @return the partial correlation of x and y given z1,...,zk.
+     */
+    public static double partialCorrelation(TetradMatrix submatrix) {
+        int size = submatrix.rows();
+        double[] a = scratch(size);
+
+        for (int i = 0; i < size; i++) {
+            int _i = position(i, size);
+
+            for (int j = 0; j <= i; j++) {
+                a[i * size + j] = submatrix.get(_i, position(j, size));
+            }
+        }
+
+        double r = choleskyPartialCorrelation(a, size);
+
+        if (Double.isNaN(r)) {
+            return StatUtils.partialCorrelationByInverse(submatrix);
+        }
+
+        return r;
+    }
+
+    //=========================PRIVATE METHODS===========================//
+
+    /**
+     * Maps position i of the factored order (z1,...,zk, x, y) to the position in (x, y, z1,...,zk).
+     */
+    private static int position(int i, int size) {
+        if (i < size - 2) return i + 2;
+        return i - (size - 2);
+    }
+
+    /**
+     * Factors the lower triangle of the size x size matrix in <code>a</code> in place.
+     *
+     * @return the partial correlation of the last two variables given the others, or NaN if the
+     * matrix is not positive definite.
+     */
+    private static double choleskyPartialCorrelation(double[] a, int size) {
+        for (int i = 0; i < size; i++) {
+            int rowI = i * size;
+
+            for (int j = 0; j <= i; j++) {
+                int rowJ = j * size;
+                double s = a[rowI + j];
+
+                for (int k = 0; k < j; k++) {
+                    s -= a[rowI + k] * a[rowJ + k];
+                }
+
+                if (i == j) {
+                    if (!(s > 0)) return Double.NaN;
+                    a[rowI + i] = Math.sqrt(s);
+                } else {
+                    a[rowI + j] = s / a[rowJ + j];
+                }
+            }
+        }
+
+        double b = a[(size - 1) * size + size - 2];
+        double c = a[(size - 1) * size + size - 1];
+
+        return b / Math.sqrt(b * b + c * c);
+    }
+
+    private static double fallback(Covariances cov, int[] indices, int size) {
+        TetradMatrix submatrix = new TetradMatrix(size, size);
+
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                submatrix.set(i, j, cov.getValue(indices[i], indices[j]));
+            }
+        }
+
+        return StatUtils.partialCorrelationByInverse(submatrix);
+    }
+
+    /**
+     * A Cholesky factor over a Covariances that is updated from the rows that are unchanged since
+     * the previous call.
+     */
+    public static final class Factor {
+        private final Covariances cov;
+        private double[] a = new double[16 * 16];
+        private int[] order = new int[16];
+        private int size = 0;
+
+        /**
+         * @param cov The covariance matrix; its values must not change while this is in use.
+         */
+        public Factor(Covariances cov) {
+            if (cov == null) throw new NullPointerException();
+            this.cov = cov;
+        }
+
+        /**
+         * @param indices (x, y, z1,...,zk), the indices into the covariance matrix of the variables.
+         * @param size    The number of entries of <code>indices</code> to use; must be at least 2.
+         * @return the partial correlation of x and y given z1,...,zk.
+         */
+        public double partialCorrelation(int[] indices, int size) {
+            if (size < 2) {
+                throw new IllegalArgumentException("Need at least two variables: " + size);
+            }
+
+            double r = update(indices, size);
+
+            if (Double.isNaN(r)) {
+                return fallback(cov, indices, size);
+            }
+
+            return r;
+        }
+
+        /**
+         * @return the partial correlation, or NaN if the submatrix is not positive definite.
+         */
+        private double update(int[] indices, int size) {
+            int k = size - 2;
+            int prefix = 0;
+            boolean sameXy = false;
+
+            if (size == this.size) {
+                while (prefix < k && order[prefix] == indices[prefix + 2]) prefix++;
+                sameXy = order[k] == indices[0] && order[k + 1] == indices[1];
+            } else {
+                if (a.length < size * size) a = new double[size * size];
+                if (order.length < size) order = new int[size];
+                this.size = size;
+            }
+
+            for (int i = prefix; i < k; i++) {
+                order[i] = indices[i + 2];
+            }
+
+            order[k] = indices[0];
+            order[k + 1] = indices[1];
+
+            for (int i = prefix; i < k; i++) {
+                if (!factorRow(i, 0)) return invalid();
+            }
+
+            // The entries of the x and y rows under the common prefix depend only on it and on x and y.
+            int from = sameXy ? prefix : 0;
+
+            if (!factorRow(k, from)) return invalid();
+            if (!factorRow(k + 1, from)) return invalid();
+
+            return partialCorrelation(size);
+        }
+
+        /**
+         * Calculates entries from..i of row i of the factor, assuming the rows above it and the entries
+         * before <code>from</code> are done.
+         *
+         * @return false if the matrix is not positive definite.
+         */
+        private boolean factorRow(int i, int from) {
+            int rowI = i * size;
+            int _i = order[i];
+
+            for (int j = from; j <= i; j++) {
+                int rowJ = j * size;
+                double s = cov.getValue(_i, order[j]);
+
+                for (int m = 0; m < j; m++) {
+                    s -= a[rowI + m] * a[rowJ + m];
+                }
+
+                if (i == j) {
+                    if (!(s > 0)) return false;
+                    a[rowI + i] = Math.sqrt(s);
+                } else {
+                    a[rowI + j] = s / a[rowJ + j];
+                }
+            }
+
+            return true;
+        }
+
+        private double partialCorrelation(int size) {
+            double b = a[(size - 1) * size + size - 2];
+            double c = a[(size - 1) * size + size - 1];
+            return b / Math.sqrt(b * b + c * c);
+        }
+
+        private double invalid() {
+            this.size = 0;
+            return Double.NaN;
+        }
+    }
+
+    private static double[] scratch(int size) {
+        if (size < 2) {
+            throw new IllegalArgumentException("Need at least two variables: " + size);
+        }
+
+        double[] a = SCRATCH.get();
+
+        if (a.length < size * size) {
+            a = new double[size * size];
+            SCRATCH.set(a);
+        }
+
+        return a;
+    }
+
+    private static int[] copy(int[] indices, int size) {
+        int[] copy = new int[size];
+        System.arraycopy(indices, 0, copy, 0, size);
+        return copy;
+    }
+}
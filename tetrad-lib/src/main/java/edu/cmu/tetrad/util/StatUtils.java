@@ -1729,8 +1729,17 @@ public final class StatUtils {
      * using DataUtils.submatrix().
      *
      * @return the given partial correlation.
+     * @see PartialCorrelationKernel
      */
-    public static synchronized double partialCorrelation(TetradMatrix submatrix) {
+    public static double partialCorrelation(TetradMatrix submatrix) {
+        return PartialCorrelationKernel.partialCorrelation(submatrix);
+    }
+
+    /**
+     * Calculates the partial correlation of the first two variables of the given submatrix given
+     * the rest by inverting it. Used where a Cholesky factorization is not possible.
+     */
+    static double partialCorrelationByInverse(TetradMatrix submatrix) {
 //        double cov = partialCovariance(submatrix);
 //
 //        int[] selection1 = new int[submatrix.rows()];
@@ -1783,7 +1792,7 @@ public final class StatUtils {
         selection[1] = y;
         System.arraycopy(z, 0, selection, 2, z.length);
 
-        return partialCorrelation(covariance.getSelection(selection, selection));
+        return PartialCorrelationKernel.partialCorrelation(covariance, selection, selection.length);
     }
 
     public static double logCoshScore(double[] _f) {
@@ -24,9 +24,14 @@ package edu.cmu.tetrad.test;
 import edu.cmu.tetrad.bayes.BayesIm;
 import edu.cmu.tetrad.bayes.BayesPm;
 import edu.cmu.tetrad.bayes.MlBayesIm;
+import edu.cmu.tetrad.data.DataSet;
 import edu.cmu.tetrad.graph.*;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
+import edu.cmu.tetrad.util.RandomUtil;
 import org.junit.Test;
 
+import java.util.concurrent.ForkJoinPool;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -203,6 +208,50 @@ public final class TestBayesIm {
         }
     }
 
+    /**
+     * Simulated data should be the same for a given seed whatever the number of threads, and should have about
+     * the right conditional frequencies.
+     */
+    @Test
+    public void testSimulateData() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        Graph graph = GraphConverter.convert("X1-->X2,X1-->X3,X2-->X4,X3-->X4");
+        Dag dag = new Dag(graph);
+        BayesPm bayesPm = new BayesPm(dag, 3, 3);
+        BayesIm bayesIm = new MlBayesIm(bayesPm, MlBayesIm.RANDOM);
+
+        ForkJoinPool pool = new ForkJoinPool(1);
+        ForkJoinPoolInstance.getInstance().setPoolForCurrentThread(pool);
+        DataSet data1 = bayesIm.simulateData(20000, 2938474L, false);
+        ForkJoinPoolInstance.getInstance().setPoolForCurrentThread(null);
+        pool.shutdown();
+
+        DataSet data2 = bayesIm.simulateData(20000, 2938474L, false);
+
+        for (int i = 0; i < data1.getNumRows(); i++) {
+            for (int j = 0; j < data1.getNumColumns(); j++) {
+                assertEquals(data1.getInt(i, j), data2.getInt(i, j));
+            }
+        }
+
+        int x1 = bayesIm.getNodeIndex(dag.getNode("X1"));
+        int x2 = bayesIm.getNodeIndex(dag.getNode("X2"));
+        int[] counts = new int[3];
+        int n = 0;
+
+        for (int i = 0; i < data1.getNumRows(); i++) {
+            if (data1.getInt(i, x1) == 1) {
+                counts[data1.getInt(i, x2)]++;
+                n++;
+            }
+        }
+
+        for (int k = 0; k < 3; k++) {
+            assertEquals(bayesIm.getProbability(x2, 1, k), counts[k] / (double) n, 0.03);
+        }
+    }
+
     private static boolean rowsEqual(BayesIm bayesIm, int node, int row1,
                                      int row2) {
         for (int col = 0; col < bayesIm.getNumColumns(node); col++) {
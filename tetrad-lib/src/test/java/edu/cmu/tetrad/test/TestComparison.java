@@ -0,0 +1,178 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.algcomparison.Comparison;
+import edu.cmu.tetrad.algcomparison.ResultsStore;
+import edu.cmu.tetrad.algcomparison.algorithm.Algorithms;
+import edu.cmu.tetrad.algcomparison.algorithm.oracle.pattern.Pc;
+import edu.cmu.tetrad.algcomparison.graph.RandomForward;
+import edu.cmu.tetrad.algcomparison.independence.FisherZ;
+import edu.cmu.tetrad.algcomparison.simulation.SemSimulation;
+import edu.cmu.tetrad.algcomparison.simulation.Simulations;
+import edu.cmu.tetrad.algcomparison.statistic.AdjacencyPrecision;
+import edu.cmu.tetrad.algcomparison.statistic.AdjacencyRecall;
+import edu.cmu.tetrad.algcomparison.statistic.Statistics;
+import edu.cmu.tetrad.data.ContinuousVariable;
+import edu.cmu.tetrad.data.CovarianceMatrix;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.GraphUtils;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.search.Fgs;
+import edu.cmu.tetrad.search.SemBicScore;
+import edu.cmu.tetrad.sem.SemIm;
+import edu.cmu.tetrad.sem.SemPm;
+import edu.cmu.tetrad.util.CpuTimeForkJoinPool;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
+import edu.cmu.tetrad.util.Parameters;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the algorithm comparison.
+ */
+public class TestComparison {
+
+    /**
+     * A resumable comparison that is stopped part way through and done again should give the
+     * same tables, redoing only the run that didn't finish.
+     */
+    @Test
+    public void testResume() throws IOException {
+        RandomUtil.getInstance().setSeed(492939499L);
+
+        File dir = Files.createTempDirectory("comparison").toFile();
+
+        Parameters parameters = new Parameters();
+        parameters.set("numRuns", 3);
+        parameters.set("numMeasures", 8);
+        parameters.set("avgDegree", 2);
+        parameters.set("sampleSize", 200);
+        parameters.set("alpha", 0.01);
+
+        Statistics statistics = new Statistics();
+        statistics.add(new AdjacencyPrecision());
+        statistics.add(new AdjacencyRecall());
+
+        Algorithms algorithms = new Algorithms();
+        algorithms.add(new Pc(new FisherZ()));
+
+        Simulations simulations = new Simulations();
+        simulations.add(new SemSimulation(new RandomForward()));
+
+        Comparison comparison = new Comparison();
+        comparison.setResumable(true);
+        comparison.compareFromSimulations(dir.getAbsolutePath(), simulations, algorithms, statistics, parameters);
+
+        List<String> first = readTables(new File(dir, "Comparison.txt"));
+        File runsFile = new File(new File(dir, "results"), "runs.txt");
+        assertEquals(3, new ResultsStore(new File(dir, "results")).getNumResults());
+
+        // Cut off the last record as if the comparison had been stopped while writing it.
+        List<String> lines = Files.readAllLines(runsFile.toPath(), StandardCharsets.UTF_8);
+        Files.write(runsFile.toPath(), lines.subList(0, lines.size() - 1), StandardCharsets.UTF_8);
+        assertEquals(2, new ResultsStore(new File(dir, "results")).getNumResults());
+
+        // A fresh simulation would give different data; the saved data should be used instead.
+        RandomUtil.getInstance().setSeed(1L);
+
+        comparison = new Comparison();
+        comparison.setResumable(true);
+        comparison.compareFromSimulations(dir.getAbsolutePath(), simulations, algorithms, statistics, parameters);
+
+        List<String> second = readTables(new File(dir, "Comparison.txt"));
+        assertEquals(first, second);
+        assertEquals(3, new ResultsStore(new File(dir, "results")).getNumResults());
+
+        File[] simulationDirs = new File(new File(dir, "results"), "simulations").listFiles();
+        assertTrue(simulationDirs != null && simulationDirs.length == 1);
+
+        // Without the saved data, the data is simulated again, and the runs on the old data
+        // shouldn't be used for it.
+        for (File file : simulationDirs[0].listFiles()) {
+            assertTrue(file.delete());
+        }
+
+        comparison = new Comparison();
+        comparison.setResumable(true);
+        comparison.compareFromSimulations(dir.getAbsolutePath(), simulations, algorithms, statistics, parameters);
+
+        assertEquals(6, new ResultsStore(new File(dir, "results")).getNumResults());
+    }
+
+    /**
+     * A search run in the CPU-accounting pool that comparisons time algorithms in should find the
+     * same graph as one run in the shared pool, and the pool should account for the work done in
+     * it.
+     */
+    @Test
+    public void testCpuTimePool() {
+        RandomUtil.getInstance().setSeed(1450184147770L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph dag = GraphUtils.randomGraphRandomForwardEdges(vars, 0, 20, 30, 15, 15, false, true);
+        DataSet data = new SemIm(new SemPm(dag)).simulateData(1000, false);
+
+        SemBicScore score = new SemBicScore(new CovarianceMatrix(data));
+        Graph graph1 = new Fgs(score).search();
+
+        CpuTimeForkJoinPool pool = new CpuTimeForkJoinPool(2);
+        ForkJoinPoolInstance.getInstance().setPoolForCurrentThread(pool);
+
+        try {
+            Graph graph2 = new Fgs(score).search();
+            assertEquals(graph1, graph2);
+
+            if (CpuTimeForkJoinPool.getCurrentThreadCpuTime() >= 0) {
+                assertTrue(pool.getCpuTime() > 0);
+            } else {
+                assertEquals(-1, pool.getCpuTime());
+                assertTrue(pool.getStealCount() > 0);
+            }
+        } finally {
+            ForkJoinPoolInstance.getInstance().setPoolForCurrentThread(null);
+            pool.shutdown();
+        }
+    }
+
+    // The output without the date at the top.
+    private List<String> readTables(File file) throws IOException {
+        List<String> lines = new ArrayList<>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+        return lines.subList(1, lines.size());
+    }
+}
@@ -23,14 +23,18 @@ package edu.cmu.tetrad.test;
 
 import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.search.IndTestFisherZ;
+import edu.cmu.tetrad.search.SemBicScore;
 import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.TetradMatrix;
 import org.junit.Test;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests CovarianceMatrix.
@@ -83,9 +87,229 @@ public final class TestCovarianceMatrix {
         assertEquals(-.051, c2.getValue(0, 1), 0.001);
         assertEquals(-.609, c3.getValue(0, 1), 0.001);
     }
-}
 
+    /**
+     * Tests that cached on-the-fly covariances, with and without missing values, agree with
+     * those calculated up front.
+     */
+    @Test
+    public void testOnTheFlyCache() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        List<Node> variables = new LinkedList<>();
 
+        for (int i = 0; i < 150; i++) {
+            variables.add(new ContinuousVariable("X" + i));
+        }
+
+        DataSet dataSet = new ColtDataSet(103, variables);
+
+        for (int i = 0; i < 103; i++) {
+            for (int j = 0; j < 150; j++) {
+                dataSet.setDouble(i, j, RandomUtil.getInstance().nextDouble());
+            }
+        }
 
+        dataSet.setDouble(5, 7, Double.NaN);
 
+        ICovarianceMatrix c1 = new CovarianceMatrixOnTheFly(dataSet);
+        CovarianceMatrixOnTheFly c2 = new CovarianceMatrixOnTheFly(dataSet);
+
+        // Room for only a few tiles, so some are dropped along the way.
+        c2.setMaxCacheBytes(3 * 8 * 64 * 64);
+
+        for (int k = 0; k < 2; k++) {
+            for (int i = 0; i < 150; i++) {
+                for (int j = 0; j < 150; j++) {
+                    assertEquals(c1.getValue(i, j), c2.getValue(i, j), 1e-12);
+                    assertEquals(c2.getValue(i, j), c2.getValue(j, i), 0.0);
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached covariance that is NaN should be kept like any other, not calculated again. The
+     * matrix reads the columns of a VerticalDoubleDataBox in place, so changing them afterwards
+     * shows which entries are calculated again.
+     */
+    @Test
+    public void testOnTheFlyCacheNaN() {
+        double[][] columns = columns(2, 100);
+        CovarianceMatrixOnTheFly cov = new CovarianceMatrixOnTheFly(
+                new BoxDataSet(new VerticalDoubleDataBox(columns), variables(2)));
+        cov.setMaxCacheBytes(8 * 64 * 64);
+
+        double value = columns[0][0];
+        columns[0][0] = Double.NaN;
+        assertTrue(Double.isNaN(cov.getValue(0, 1)));
+
+        columns[0][0] = value;
+        assertTrue(Double.isNaN(cov.getValue(0, 1)));
+    }
 
+    /**
+     * Once the cache is full, tiles still in use should be kept in preference to those that
+     * were allocated after them but haven't been used since.
+     */
+    @Test
+    public void testOnTheFlyCacheEviction() {
+        double[][] columns = columns(192, 100);
+        CovarianceMatrixOnTheFly cov = new CovarianceMatrixOnTheFly(
+                new BoxDataSet(new VerticalDoubleDataBox(columns), variables(192)));
+
+        // Room for two tiles, of 64 x 64 covariances each.
+        cov.setMaxCacheBytes(2 * 8 * 64 * 64);
+
+        cov.getValue(0, 1);
+        double hot = cov.getValue(64, 65);
+        double cold = cov.getValue(128, 129);
+        cov.getValue(64, 65);
+        cov.getValue(0, 64);
+
+        for (int i = 0; i < 100; i++) {
+            columns[64][i] *= 2;
+            columns[128][i] *= 2;
+        }
+
+        // The tile of (64, 65) was used again, so the one of (128, 129) was dropped instead.
+        assertEquals(hot, cov.getValue(64, 65), 0.0);
+        assertEquals(2 * cold, cov.getValue(128, 129), 1e-12);
+    }
+
+    private List<Node> variables(int numVariables) {
+        List<Node> variables = new LinkedList<>();
+
+        for (int i = 0; i < numVariables; i++) {
+            variables.add(new ContinuousVariable("X" + i));
+        }
+
+        return variables;
+    }
+
+    private double[][] columns(int numVariables, int sampleSize) {
+        RandomUtil.getInstance().setSeed(4828384835L);
+        double[][] columns = new double[numVariables][sampleSize];
+
+        for (int j = 0; j < numVariables; j++) {
+            for (int i = 0; i < sampleSize; i++) {
+                columns[j][i] = RandomUtil.getInstance().nextNormal(0, 1);
+            }
+        }
+
+        return columns;
+    }
+
+    /**
+     * Covariance matrices computed from an off-heap MappedDataBox should be the same as those
+     * computed from the same data on the heap.
+     */
+    @Test
+    public void testOffHeapBox() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        List<Node> variables = new LinkedList<>();
+
+        for (int i = 0; i < 20; i++) {
+            variables.add(new ContinuousVariable("X" + i));
+        }
+
+        DataSet dataSet = new ColtDataSet(97, variables);
+        DataSet offHeap = new BoxDataSet(MappedDataBox.allocateDirect(variables, 97), variables);
+
+        for (int i = 0; i < 97; i++) {
+            for (int j = 0; j < 20; j++) {
+                double value = RandomUtil.getInstance().nextDouble();
+                dataSet.setDouble(i, j, value);
+                offHeap.setDouble(i, j, value);
+            }
+        }
+
+        ICovarianceMatrix c1 = new CovarianceMatrix(dataSet);
+        ICovarianceMatrix c2 = new CovarianceMatrix(offHeap);
+        ICovarianceMatrix c3 = new CovarianceMatrixOnTheFly(dataSet);
+        ICovarianceMatrix c4 = new CovarianceMatrixOnTheFly(offHeap);
+
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 20; j++) {
+                assertEquals(c1.getValue(i, j), c2.getValue(i, j), 1e-12);
+                assertEquals(c3.getValue(i, j), c4.getValue(i, j), 1e-12);
+            }
+        }
+
+        // The data set itself is left alone.
+        assertEquals(dataSet.getDouble(3, 4), offHeap.getDouble(3, 4), 0.0);
+    }
+
+    /**
+     * Statistics built up from single rows, a batch, and a separately computed part merged in
+     * should give the same covariances, tests and scores as the covariance matrix of all the data.
+     */
+    @Test
+    public void testIncremental() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        List<Node> variables = new LinkedList<>();
+
+        for (int i = 0; i < 8; i++) {
+            variables.add(new ContinuousVariable("X" + i));
+        }
+
+        DataSet dataSet = new ColtDataSet(500, variables);
+
+        for (int i = 0; i < 500; i++) {
+            for (int j = 0; j < 8; j++) {
+                double value = 1000 + RandomUtil.getInstance().nextNormal(0, 1);
+                if (j > 0) value += dataSet.getDouble(i, j - 1) - 1000;
+                dataSet.setDouble(i, j, value);
+            }
+        }
+
+        IncrementalCovarianceMatrix cov = new IncrementalCovarianceMatrix(variables);
+
+        for (int i = 0; i < 50; i++) {
+            double[] row = new double[8];
+            for (int j = 0; j < 8; j++) row[j] = dataSet.getDouble(i, j);
+            cov.addRow(row);
+        }
+
+        double[][] batch = new double[200][8];
+
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < 8; j++) batch[i][j] = dataSet.getDouble(50 + i, j);
+        }
+
+        cov.addRows(batch);
+
+        int[] rest = new int[250];
+        for (int i = 0; i < 250; i++) rest[i] = 250 + i;
+        cov.merge(new IncrementalCovarianceMatrix(dataSet.subsetRows(rest)));
+
+        ICovarianceMatrix expected = new CovarianceMatrix(dataSet);
+        CovarianceMatrix snapshot = cov.snapshot();
+
+        assertEquals(500, cov.getSampleSize());
+
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                assertEquals(expected.getValue(i, j), cov.getValue(i, j), 1e-9);
+                assertEquals(cov.getValue(i, j), snapshot.getValue(i, j), 0.0);
+            }
+        }
+
+        IndTestFisherZ test1 = new IndTestFisherZ(expected, 0.05);
+        IndTestFisherZ test2 = new IndTestFisherZ(snapshot, 0.05);
+        List<Node> z = Collections.singletonList(variables.get(1));
+        test1.isIndependent(variables.get(0), variables.get(2), z);
+        test2.isIndependent(variables.get(0), variables.get(2), z);
+        assertEquals(test1.getPValue(), test2.getPValue(), 1e-9);
+
+        assertEquals(new SemBicScore(expected).localScore(3, 1, 2),
+                new SemBicScore(snapshot).localScore(3, 1, 2), 1e-6);
+
+        // The snapshot doesn't change when more rows come in.
+        cov.addRow(batch[0]);
+        assertEquals(501, cov.getSampleSize());
+        assertEquals(500, snapshot.getSampleSize());
+    }
+}
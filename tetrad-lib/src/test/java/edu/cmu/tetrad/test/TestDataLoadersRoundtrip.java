@@ -28,6 +28,7 @@ import edu.cmu.tetrad.graph.Dag;
 import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.GraphUtils;
 import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.io.TabularContinuousDataReader;
 import edu.cmu.tetrad.sem.SemIm;
 import edu.cmu.tetrad.sem.SemPm;
 import edu.cmu.tetrad.util.RandomUtil;
@@ -35,9 +36,12 @@ import org.junit.Test;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static junit.framework.TestCase.fail;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -134,9 +138,127 @@ public class TestDataLoadersRoundtrip {
             fail(e.getMessage());
         }
     }
-}
 
+    /**
+     * Reads a file large enough to be split into several chunks, with numbers in a variety of
+     * formats, and checks that every value is the same as Double.parseDouble gives.
+     */
+    @Test
+    public void testTabularContinuousReader() {
+        setUp();
+
+        try {
+            int numRows = 40000;
+            int numCols = 10;
+            String[][] values = new String[numRows][numCols];
+
+            for (int i = 0; i < numRows; i++) {
+                for (int j = 0; j < numCols; j++) {
+                    double d = RandomUtil.getInstance().nextNormal(0, 1) * Math.pow(10, (i + j) % 30 - 15);
 
+                    if (j == 1) values[i][j] = Integer.toString((int) (1000 * d));
+                    else if (j == 2) values[i][j] = String.format("%.4f", d);
+                    else if (j == 3) values[i][j] = String.format("%.17e", d);
+                    else values[i][j] = Double.toString(d);
+                }
+            }
+
+            File file = new File("target/test_data/continuous.csv");
+            Writer writer = new BufferedWriter(new FileWriter(file));
 
+            for (int j = 0; j < numCols; j++) {
+                writer.write((j > 0 ? "," : "") + "\"X" + j + "\"");
+            }
+
+            writer.write("\n");
 
+            for (int i = 0; i < numRows; i++) {
+                for (int j = 0; j < numCols; j++) {
+                    writer.write((j > 0 ? "," : "") + values[i][j]);
+                }
 
+                writer.write(i % 3 == 0 ? "\r\n" : "\n");
+            }
+
+            writer.close();
+
+            DataSet dataSet = new TabularContinuousDataReader(file.toPath(), ',').readInData(
+                    Collections.singleton("X5"));
+
+            assertEquals(numRows, dataSet.getNumRows());
+            assertEquals(numCols - 1, dataSet.getNumColumns());
+
+            for (int i = 0; i < numRows; i++) {
+                for (int j = 0, col = 0; j < numCols; j++) {
+                    if (j == 5) continue;
+                    assertEquals(Double.parseDouble(values[i][j]), dataSet.getDouble(i, col++), 0.0);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a mixed data set with missing values in the binary format, maps it back in, and
+     * checks that it is the same data; also checks that changing the loaded data set doesn't
+     * change the file.
+     */
+    @Test
+    public void testBinaryRoundtrip() {
+        setUp();
+
+        try {
+            int numRows = 131;
+            List<Node> variables = new ArrayList<>();
+            variables.add(new ContinuousVariable("X1"));
+            variables.add(new DiscreteVariable("X2", 3));
+            variables.add(new ContinuousVariable("X3"));
+            variables.add(new DiscreteVariable("X4", Arrays.asList("low", "high")));
+
+            DataSet dataSet = new BoxDataSet(new MixedDataBox(variables, numRows), variables);
+
+            for (int i = 0; i < numRows; i++) {
+                dataSet.setDouble(i, 0, RandomUtil.getInstance().nextNormal(0, 1));
+                dataSet.setInt(i, 1, i % 3);
+                dataSet.setDouble(i, 2, i % 17 == 0 ? Double.NaN : i / 7.0);
+                dataSet.setInt(i, 3, i % 13 == 0 ? DiscreteVariable.MISSING_VALUE : i % 2);
+            }
+
+            File file = new File("target/test_data/roundtrip.bin");
+            DataWriter.writeBinaryData(dataSet, file);
+
+            DataSet _dataSet = new DataReader().parseBinary(file);
+
+            assertTrue(((BoxDataSet) _dataSet).getDataBox() instanceof MappedDataBox);
+            assertEquals(variables, _dataSet.getVariables());
+            assertEquals(Arrays.asList("low", "high"),
+                    ((DiscreteVariable) _dataSet.getVariable(3)).getCategories());
+            assertEquals(numRows, _dataSet.getNumRows());
+
+            MappedDataBox box = (MappedDataBox) ((BoxDataSet) _dataSet).getDataBox();
+            assertTrue(!box.hasMissingValues(0) && !box.hasMissingValues(1));
+            assertTrue(box.hasMissingValues(2) && box.hasMissingValues(3));
+
+            for (int i = 0; i < numRows; i++) {
+                assertEquals(dataSet.getDouble(i, 0), _dataSet.getDouble(i, 0), 0.0);
+                assertEquals(dataSet.getInt(i, 1), _dataSet.getInt(i, 1));
+                assertEquals(dataSet.getDouble(i, 2), _dataSet.getDouble(i, 2), 0.0);
+                assertEquals(dataSet.getInt(i, 3), _dataSet.getInt(i, 3));
+            }
+
+            _dataSet.setDouble(5, 0, 100.0);
+            _dataSet.setInt(0, 3, 1);
+            assertEquals(100.0, _dataSet.getDouble(5, 0), 0.0);
+            assertEquals(1, _dataSet.getInt(0, 3));
+
+            DataSet dataSet2 = new DataReader().parseBinary(file);
+            assertEquals(dataSet.getDouble(5, 0), dataSet2.getDouble(5, 0), 0.0);
+            assertEquals(DiscreteVariable.MISSING_VALUE, dataSet2.getInt(0, 3));
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.bayes.*;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.graph.Dag;
+import edu.cmu.tetrad.graph.Graph;
+import edu.cmu.tetrad.graph.GraphConverter;
+import edu.cmu.tetrad.graph.NodeType;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests EmBayesEstimator.
+ */
+public final class TestEmBayesEstimator {
+
+    /**
+     * With no latents or missing values, one expectation step should give the maximum likelihood estimates.
+     */
+    @Test
+    public void testCompleteData() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        Dag dag = new Dag(GraphConverter.convert("X1-->X2,X1-->X3,X2-->X4,X3-->X4"));
+        BayesPm pm = new BayesPm(dag, 2, 3);
+        BayesIm im = new MlBayesIm(pm, MlBayesIm.RANDOM);
+        DataSet data = im.simulateData(2000, false);
+
+        EmBayesEstimator estimator = new EmBayesEstimator(pm, data);
+        assertTrue(estimator.getNumPatterns() < data.getNumRows());
+        estimator.expectationOnly();
+        BayesIm em = estimator.getEstimatedIm();
+        BayesIm ml = new MlBayesEstimator().estimate(pm, data);
+
+        for (int i = 0; i < em.getNumNodes(); i++) {
+            for (int row = 0; row < em.getNumRows(i); row++) {
+                for (int col = 0; col < em.getNumColumns(i); col++) {
+                    assertEquals(ml.getProbability(i, row, col), em.getProbability(i, row, col), 1e-10);
+                }
+            }
+        }
+    }
+
+    /**
+     * With a latent and missing values, the log likelihood should never go down, and the iteration should stop once
+     * it stops going up.
+     */
+    @Test
+    public void testLatentAndMissing() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        Graph graph = GraphConverter.convert("L-->X1,L-->X2,L-->X3,X1-->X2,X3-->X4");
+        graph.getNode("L").setNodeType(NodeType.LATENT);
+        BayesPm pm = new BayesPm(new Dag(graph), 2, 3);
+        BayesIm im = new MlBayesIm(pm, MlBayesIm.RANDOM);
+        DataSet data = im.simulateData(3000, false);
+
+        for (int i = 0; i < data.getNumRows(); i++) {
+            for (int j = 0; j < data.getNumColumns(); j++) {
+                if (RandomUtil.getInstance().nextDouble() < 0.1) {
+                    data.setInt(i, j, -99);
+                }
+            }
+        }
+
+        EmBayesEstimator estimator = new EmBayesEstimator(pm, data);
+        estimator.setLogLikelihoodTolerance(1e-6);
+        estimator.maximization(0.0);
+
+        List<Double> logLikelihoods = estimator.getLogLikelihoods();
+        int size = logLikelihoods.size();
+        assertTrue(size > 1 && size < 1000);
+
+        for (int i = 1; i < size; i++) {
+            assertTrue(logLikelihoods.get(i) >= logLikelihoods.get(i - 1) - 1e-8);
+        }
+
+        double last = logLikelihoods.get(size - 1);
+        assertTrue(Math.abs(last - logLikelihoods.get(size - 2)) <= 1e-6 * Math.abs(logLikelihoods.get(size - 2)));
+    }
+}
@@ -21,17 +21,28 @@
 
 package edu.cmu.tetrad.test;
 
+import edu.cmu.tetrad.data.ColtDataSet;
 import edu.cmu.tetrad.data.ContinuousVariable;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.data.DiscreteVariable;
 import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.GraphUtils;
 import edu.cmu.tetrad.graph.Node;
 import edu.cmu.tetrad.search.*;
+import edu.cmu.tetrad.sem.SemIm;
+import edu.cmu.tetrad.sem.SemPm;
+import edu.cmu.tetrad.util.RandomUtil;
 import org.junit.Test;
 
+import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Joseph Ramsey
@@ -58,9 +69,197 @@ public class TestFas {
 
         assertEquals(fasGraph, GraphUtils.undirectedGraph(pcGraph));
     }
-}
+    /**
+     * Sepsets written by the concurrent adjacency search should separate the pairs they are stored
+     * for, in either order, and should survive copying.
+     */
+    @Test
+    public void testSepsets() {
+        RandomUtil.getInstance().setSeed(49283838L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 60; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph graph = GraphUtils.randomGraphRandomForwardEdges(vars, 0, 90, 30, 15, 15, false, true);
+        IndependenceTest test = new IndTestDSep(graph);
+
+        FasStableConcurrent fas = new FasStableConcurrent(test);
+        Graph fasGraph = fas.search();
+        SepsetMap sepsets = fas.getSepsets();
+
+        for (int i = 0; i < vars.size(); i++) {
+            for (int j = i + 1; j < vars.size(); j++) {
+                Node x = vars.get(i);
+                Node y = vars.get(j);
+
+                if (!fasGraph.isAdjacentTo(x, y)) {
+                    List<Node> sepset = sepsets.get(x, y);
+                    assertTrue(test.isIndependent(x, y, sepset));
+                    assertEquals(sepset, sepsets.get(y, x));
+                }
+            }
+        }
+
+        SepsetMap copy = new SepsetMap(sepsets);
+        assertEquals(sepsets, copy);
+
+        copy.set(vars.get(0), vars.get(1), null);
+        copy.set(vars.get(0), vars.get(1), new ArrayList<Node>());
+        assertEquals(new ArrayList<Node>(), copy.get(vars.get(1), vars.get(0)));
+
+        SepsetMap all = new SepsetMap();
+        all.addAll(sepsets);
+        assertEquals(sepsets, all);
+    }
+
+    /**
+     * A SepsetMap should be serialized as a map from pairs of nodes to sepsets, as in earlier versions, so that
+     * saved sessions can still be read, and should read back equal to the original.
+     */
+    @Test
+    public void testSepsetsSerialization() throws Exception {
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        SepsetMap sepsets = new SepsetMap();
+        sepsets.set(vars.get(0), vars.get(1), Collections.singletonList(vars.get(2)));
+        sepsets.set(vars.get(3), vars.get(0), new ArrayList<Node>());
+        sepsets.setPValue(vars.get(0), vars.get(1), 0.25);
+
+        ObjectStreamClass streamClass = ObjectStreamClass.lookup(SepsetMap.class);
+        assertEquals(Map.class, streamClass.getField("sepsets").getType());
+        assertEquals(Map.class, streamClass.getField("pValues").getType());
+        assertEquals(Map.class, streamClass.getField("parents").getType());
+        assertEquals(Set.class, streamClass.getField("correlations").getType());
+        assertEquals(5, streamClass.getFields().length);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(sepsets);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        SepsetMap copy = (SepsetMap) in.readObject();
+
+        assertEquals(sepsets, copy);
+        assertEquals(0.25, copy.getPValue(vars.get(1), vars.get(0)), 0.0);
+        assertEquals(new ArrayList<Node>(), copy.get(vars.get(0), vars.get(3)));
+    }
+
+    /**
+     * Ranking conditioning sets by depth 0 association shouldn't change the adjacencies found, and with or without
+     * a cap on tests per edge the sepsets found should separate their pairs. Tests by depth should add up to the
+     * total.
+     */
+    @Test
+    public void testRankedConditioningSets() {
+        RandomUtil.getInstance().setSeed(38283848L);
 
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 30; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph dag = GraphUtils.randomGraph(vars, 0, 45, 10, 10, 10, false);
+        DataSet data = new SemIm(new SemPm(dag)).simulateData(1000, false);
+        IndependenceTest test = new IndTestFisherZ(data, 0.01);
+
+        Fas fas = new Fas(test);
+        Graph graph = fas.search();
+
+        Fas ranked = new Fas(test);
+        ranked.setRankConditioningSets(true);
+        assertEquals(graph, ranked.search());
+        assertEquals(fas.getNumIndependenceTests(0), ranked.getNumIndependenceTests(0));
+
+        FasStableConcurrent stable = new FasStableConcurrent(test);
+        Graph stableGraph = stable.search();
 
+        FasStableConcurrent stableRanked = new FasStableConcurrent(test);
+        stableRanked.setRankConditioningSets(true);
+        assertEquals(stableGraph, stableRanked.search());
 
+        FasStableConcurrent capped = new FasStableConcurrent(test);
+        capped.setRankConditioningSets(true);
+        capped.setMaxTestsPerEdge(2);
+        Graph cappedGraph = capped.search();
 
+        for (IFas search : new IFas[]{fas, ranked, stable, stableRanked, capped}) {
+            int total = 0;
+
+            for (int d = 0; d <= 30; d++) {
+                total += search instanceof Fas ? ((Fas) search).getNumIndependenceTests(d)
+                        : ((FasStableConcurrent) search).getNumIndependenceTests(d);
+            }
+
+            assertEquals(search.getNumIndependenceTests(), total);
+        }
+
+        for (int i = 0; i < vars.size(); i++) {
+            for (int j = i + 1; j < vars.size(); j++) {
+                Node x = data.getVariable(i);
+                Node y = data.getVariable(j);
+
+                if (!cappedGraph.isAdjacentTo(x, y)) {
+                    assertTrue(test.isIndependent(x, y, capped.getSepsets().get(x, y)));
+                }
+
+                if (!graph.isAdjacentTo(x, y)) {
+                    assertTrue(test.isIndependent(x, y, ranked.getSepsets().get(x, y)));
+                }
+            }
+        }
+    }
 
+    /**
+     * Conditioning sets should be ranked by the p values of the depth 0 tests, smallest first, whatever the test
+     * reports as its score. Here x -> z -> y are strongly associated and x -> w, y -> v weakly, so with one test per
+     * edge, x and y are separated only if z is tried first.
+     */
+    @Test
+    public void testRankedByPValue() {
+        RandomUtil.getInstance().setSeed(38283849L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (String name : new String[]{"X", "Y", "Z", "W", "V"}) {
+            vars.add(new DiscreteVariable(name, 2));
+        }
+
+        DataSet data = new ColtDataSet(1000, vars);
+
+        for (int i = 0; i < 1000; i++) {
+            int x = RandomUtil.getInstance().nextDouble() < 0.5 ? 0 : 1;
+            int z = copy(x, 0.95);
+            int y = copy(z, 0.95);
+            data.setInt(i, 0, x);
+            data.setInt(i, 1, y);
+            data.setInt(i, 2, z);
+            data.setInt(i, 3, copy(x, 0.6));
+            data.setInt(i, 4, copy(y, 0.6));
+        }
+
+        for (IndependenceTest test : new IndependenceTest[]{new IndTestGSquare(data, 0.05),
+                new IndTestChiSquare(data, 0.05)}) {
+            Fas fas = new Fas(test);
+            fas.setRankConditioningSets(true);
+            fas.setMaxTestsPerEdge(1);
+            Graph graph = fas.search();
+
+            assertTrue(!graph.isAdjacentTo(vars.get(0), vars.get(1)));
+            assertEquals(Collections.singletonList(vars.get(2)), fas.getSepsets().get(vars.get(0), vars.get(1)));
+        }
+    }
+
+    // Returns the given binary value with the given probability, and the other value otherwise.
+    private int copy(int value, double p) {
+        return RandomUtil.getInstance().nextDouble() < p ? value : 1 - value;
+    }
+}
@@ -21,12 +21,17 @@
 
 package edu.cmu.tetrad.test;
 
+import edu.cmu.tetrad.bayes.BayesIm;
+import edu.cmu.tetrad.bayes.BayesPm;
+import edu.cmu.tetrad.bayes.MlBayesIm;
 import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.*;
 import edu.cmu.tetrad.search.*;
 import edu.cmu.tetrad.sem.SemIm;
 import edu.cmu.tetrad.sem.SemPm;
 import edu.cmu.tetrad.util.ChoiceGenerator;
+import edu.cmu.tetrad.util.ForkJoinPoolInstance;
+import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.TetradLogger;
 import edu.cmu.tetrad.util.TextTable;
 import org.junit.Ignore;
@@ -35,6 +40,7 @@ import org.junit.Test;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -223,6 +229,167 @@ public class TestFci {
         search.search();
     }
 
+    /**
+     * With the possible-D-SEP step done in parallel, reusing the tests of the adjacency search, FCI
+     * should still give the true PAG when given a d-separation oracle.
+     */
+    @Test
+    public void testPossibleDsepParallel() {
+        RandomUtil.getInstance().setSeed(38283483L);
+
+        for (int t = 0; t < 3; t++) {
+            List<Node> nodes = new ArrayList<>();
+
+            for (int i = 0; i < 40; i++) {
+                nodes.add(new ContinuousVariable("X" + (i + 1)));
+            }
+
+            Dag trueGraph = new Dag(GraphUtils.randomGraph(nodes, 8, 50, 10, 10, 10, false));
+
+            Fci fci = new Fci(new IndTestDSep(trueGraph));
+            Graph pag = fci.search();
+
+            assertEquals(new DagToPag(trueGraph).convert(), pag);
+        }
+    }
+
+    /**
+     * The final orientation step, which only revisits nodes whose neighborhoods have changed, should
+     * give the same PAG as sweeping every rule over the whole graph until nothing changes.
+     */
+    @Test
+    public void testOrientWorklists() {
+        RandomUtil.getInstance().setSeed(29483848L);
+
+        for (int t = 0; t < 6; t++) {
+            List<Node> nodes = new ArrayList<>();
+
+            for (int i = 0; i < 30; i++) {
+                nodes.add(new ContinuousVariable("X" + (i + 1)));
+            }
+
+            Graph dag = GraphUtils.randomGraph(nodes, 4, 45, 10, 10, 10, false);
+            DataSet data = new SemIm(new SemPm(dag)).simulateData(500, false);
+            IndependenceTest test = new IndTestFisherZ(data, 0.01);
+
+            Fas fas = new Fas(test);
+            Graph skeleton = fas.search();
+            SepsetProducer sepsets = new SepsetsSet(fas.getSepsets(), test);
+            boolean complete = t % 2 == 0;
+
+            FciOrient orient = new FciOrient(sepsets);
+            orient.setCompleteRuleSetUsed(complete);
+            Graph pag = orient.orient(new EdgeListGraph(skeleton));
+
+            FciOrient sweeps = new FciOrient(sepsets);
+            Graph expected = new EdgeListGraph(skeleton);
+            sweeps.ruleR0(expected);
+
+            do {
+                sweeps.setChangeFlag(false);
+                sweeps.rulesR1R2cycle(expected);
+                sweeps.ruleR3(expected);
+                sweeps.ruleR4B(expected);
+            } while (sweeps.isChangeFlag());
+
+            if (complete) {
+                sweeps.ruleR5(expected);
+
+                do {
+                    sweeps.setChangeFlag(false);
+                    sweeps.ruleR6R7(expected);
+                } while (sweeps.isChangeFlag());
+
+                do {
+                    sweeps.setChangeFlag(false);
+                    sweeps.rulesR8R9R10(expected);
+                } while (sweeps.isChangeFlag());
+            }
+
+            assertEquals(expected, pag);
+        }
+    }
+
+    /**
+     * FCI given an adjacency search over a CachingIndependenceTest should use the same cache in
+     * the later steps, serial or not, and find the same PAG as FCI without it.
+     */
+    @Test
+    public void testSearchWithCachingFas() {
+        RandomUtil.getInstance().setSeed(3828384834L);
+
+        List<Node> nodes = new ArrayList<>();
+
+        for (int i = 0; i < 15; i++) {
+            nodes.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph dag = GraphUtils.randomGraph(nodes, 0, 20, 10, 10, 10, false);
+        DataSet data = new SemIm(new SemPm(dag)).simulateData(500, false);
+        Graph expected = new Fci(new IndTestFisherZ(data, 0.05)).search();
+
+        for (boolean serial : new boolean[]{false, true}) {
+            IndependenceTest test = new IndTestFisherZ(data, 0.05);
+            CachingIndependenceTest cache = new CachingIndependenceTest(test);
+            cache.setSerial(serial);
+
+            Fas fas = new Fas(cache);
+            Graph pag = new Fci(test).search(fas);
+            assertEquals(expected, pag);
+
+            // The later steps went through the cache the adjacency search filled.
+            assertTrue(cache.getNumHits() + cache.getNumMisses() > fas.getNumIndependenceTests());
+        }
+    }
+
+    /**
+     * The chi square and G square tests keep their cell counts in shared fields, so FCI should pass
+     * them their tests one at a time and find the same PAG on a pool with several threads as on a
+     * pool with one.
+     */
+    @Test
+    public void testDiscreteParallelPossibleDsep() {
+        RandomUtil.getInstance().setSeed(4928384823L);
+
+        List<Node> nodes = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            nodes.add(new DiscreteVariable("X" + (i + 1), 3));
+        }
+
+        Graph dag = GraphUtils.randomGraph(nodes, 0, 25, 10, 10, 10, false);
+        BayesIm im = new MlBayesIm(new BayesPm(dag), MlBayesIm.RANDOM);
+        DataSet data = im.simulateData(1000, false);
+
+        for (int t = 0; t < 2; t++) {
+            IndependenceTest test = t == 0 ? new IndTestChiSquare(data, 0.05)
+                    : new IndTestGSquare(data, 0.05);
+            assertTrue(new CachingIndependenceTest(test).isSerial());
+
+            Graph expected = search(test, 1);
+
+            for (int r = 0; r < 3; r++) {
+                assertEquals(expected, search(test, 4));
+            }
+        }
+    }
+
+    /**
+     * Runs FCI with the given test on a pool with the given number of threads.
+     */
+    private Graph search(IndependenceTest test, int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            ForkJoinPoolInstance.getInstance().setPoolForCurrentThread(pool);
+            // The adjacency search doesn't share its tests, so the possible-D-SEP step does its own.
+            return new Fci(test).search(new Fas(test));
+        } finally {
+            ForkJoinPoolInstance.getInstance().setPoolForCurrentThread(null);
+            pool.shutdown();
+        }
+    }
+
     /**
      * Presents the input graph to FCI and checks to make sure the output of FCI is equivalent to the given output
      * graph.
@@ -34,9 +34,11 @@ import edu.cmu.tetrad.util.TextTable;
 import edu.pitt.csb.mgm.IndTestMultinomialLogisticRegressionWald;
 import edu.pitt.csb.mgm.MGM;
 import edu.pitt.csb.mgm.MixedUtils;
+import org.apache.commons.math3.special.Gamma;
 import org.junit.Test;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
@@ -125,6 +127,155 @@ public class TestFgs {
 
     }
 
+    /**
+     * Storing local scores should not change the result of the search.
+     */
+    @Test
+    public void testCachedScores() {
+        RandomUtil.getInstance().setSeed(1450184147770L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph dag = GraphUtils.randomGraphRandomForwardEdges(vars, 0, 20, 30, 15, 15, false, true);
+        SemIm im = new SemIm(new SemPm(dag));
+        DataSet data = im.simulateData(1000, false);
+
+        SemBicScore score = new SemBicScore(new CovarianceMatrix(data));
+
+        Fgs fgs1 = new Fgs(score);
+        fgs1.setMaxCachedScores(0);
+        Graph graph1 = fgs1.search();
+
+        Fgs fgs2 = new Fgs(score);
+        fgs2.setMaxCachedScores(1000);
+        Graph graph2 = fgs2.search();
+
+        assertEquals(graph1, graph2);
+
+        CachingScore cachingScore = new CachingScore(score, 10);
+        double s1 = cachingScore.localScore(3, 1, 2);
+        double s2 = cachingScore.localScore(3, 2, 1);
+
+        assertEquals(s1, s2, 0.0);
+        assertEquals(1, cachingScore.getNumHits());
+        assertEquals(1, cachingScore.getNumMisses());
+
+        assertEquals(score.localScoreDiff(1, 3, new int[]{2}),
+                cachingScore.localScoreDiff(1, 3, new int[]{2}), 0.0);
+        assertEquals(score.localScoreDiff(1, 3, new int[]{2}),
+                cachingScore.localScoreDiff(1, 3, new int[]{2}), 0.0);
+        assertEquals(score.localScoreDiff(2, 3), cachingScore.localScoreDiff(2, 3), 0.0);
+        assertEquals(2, cachingScore.getNumHits());
+        assertEquals(3, cachingScore.getNumMisses());
+    }
+
+    /**
+     * Checks the BDeu score, which only counts observed parent configurations, against
+     * one calculated over all configurations.
+     */
+    @Test
+    public void testBDeuCounts() {
+        RandomUtil.getInstance().setSeed(1450184147770L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph dag = GraphUtils.randomGraphRandomForwardEdges(vars, 0, 10, 30, 15, 15, false, true);
+        BayesPm pm = new BayesPm(dag, 3, 5);
+        BayesIm im = new MlBayesIm(pm, MlBayesIm.RANDOM);
+        DataSet data = im.simulateData(500, false);
+
+        BDeuScore score = new BDeuScore(data);
+        score.setSamplePrior(2.0);
+
+        int[][] parentSets = {{}, {1}, {1, 2}, {1, 2, 3}, {1, 2}, {1, 2, 4, 5, 6}, {1, 2, 4}, {7}};
+
+        for (int[] parents : parentSets) {
+            assertEquals(denseBDeu(data, 0, parents, 2.0, 1.0), score.localScore(0, parents), 1e-8);
+        }
+    }
+
+    /**
+     * The counting buffers a BDeu score leaves with the threads that used it shouldn't keep the
+     * score alive once it's no longer used.
+     */
+    @Test
+    public void testBDeuCountersReleased() {
+        RandomUtil.getInstance().setSeed(1450184147771L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            vars.add(new DiscreteVariable("X" + i, 3));
+        }
+
+        Graph graph = GraphUtils.randomGraph(vars, 0, 4, 4, 4, 4, false);
+        DataSet data = new MlBayesIm(new BayesPm(graph), MlBayesIm.RANDOM).simulateData(100, false);
+
+        BDeuScore score = new BDeuScore(data);
+        score.localScore(0, new int[]{1, 2});
+        WeakReference<BDeuScore> ref = new WeakReference<>(score);
+        score = null;
+
+        for (int i = 0; i < 20 && ref.get() != null; i++) {
+            System.gc();
+        }
+
+        assertTrue(ref.get() == null);
+    }
+
+    private double denseBDeu(DataSet data, int node, int[] parents, double samplePrior, double structurePrior) {
+        int c = ((DiscreteVariable) data.getVariable(node)).getNumCategories();
+        int[] dims = new int[parents.length];
+        int r = 1;
+
+        for (int p = 0; p < parents.length; p++) {
+            dims[p] = ((DiscreteVariable) data.getVariable(parents[p])).getNumCategories();
+            r *= dims[p];
+        }
+
+        int[][] n_jk = new int[r][c];
+        int[] n_j = new int[r];
+
+        for (int i = 0; i < data.getNumRows(); i++) {
+            int rowIndex = 0;
+
+            for (int p = 0; p < parents.length; p++) {
+                rowIndex = rowIndex * dims[p] + data.getInt(i, parents[p]);
+            }
+
+            n_jk[rowIndex][data.getInt(i, node)]++;
+            n_j[rowIndex]++;
+        }
+
+        int vm = data.getNumColumns() - 1;
+        double e = structurePrior;
+        double score = parents.length * Math.log(e / vm) + (vm - parents.length) * Math.log(1.0 - e / vm);
+
+        double cellPrior = samplePrior / (c * r);
+        double rowPrior = samplePrior / r;
+
+        for (int j = 0; j < r; j++) {
+            score -= Gamma.logGamma(rowPrior + n_j[j]);
+
+            for (int k = 0; k < c; k++) {
+                score += Gamma.logGamma(cellPrior + n_jk[j][k]);
+            }
+        }
+
+        score += r * Gamma.logGamma(rowPrior);
+        score -= c * r * Gamma.logGamma(cellPrior);
+
+        return score;
+    }
+
     @Test
     public void explore2() {
         RandomUtil.getInstance().setSeed(1457220623122L);
@@ -254,6 +254,57 @@ public final class TestGraphUtils {
         assertTrue(graph.isDConnectedTo(c, a, Collections.singletonList(b)));
     }
 
+    /**
+     * The compiled oracle should agree with GraphUtils on a random DAG with some edges made
+     * bidirected, with and without cached reach sets.
+     */
+    @Test
+    public void testDsepOracle() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        Graph graph = new EdgeListGraph(GraphUtils.randomGraph(30, 0, 45, 10, 10, 10, false));
+        List<Edge> edges = new ArrayList<>(graph.getEdges());
+
+        for (int i = 0; i < 5; i++) {
+            Edge edge = edges.get(i);
+            graph.removeEdge(edge);
+            graph.addBidirectedEdge(edge.getNode1(), edge.getNode2());
+        }
+
+        DSeparationOracle oracle = new DSeparationOracle(graph);
+        DSeparationOracle cached = new DSeparationOracle(graph);
+        cached.setMaxCachedReachSets(100);
+
+        List<Node> nodes = graph.getNodes();
+
+        for (int k = 0; k < 300; k++) {
+            Node x = nodes.get(RandomUtil.getInstance().nextInt(nodes.size()));
+            List<Node> z = new ArrayList<>();
+
+            for (int j = RandomUtil.getInstance().nextInt(4); j > 0; j--) {
+                z.add(nodes.get(RandomUtil.getInstance().nextInt(nodes.size())));
+            }
+
+            for (Node y : nodes) {
+                if (y == x || z.contains(x) || z.contains(y)) continue;
+                boolean expected = GraphUtils.isDConnectedTo(x, y, z, graph);
+                assertEquals(expected, oracle.isDConnectedTo(x, y, z));
+                assertEquals(expected, cached.isDConnectedTo(x, y, z));
+            }
+        }
+
+        assertTrue(cached.getNumHits() > 0);
+
+        IndTestDSep test = new IndTestDSep(graph);
+        test.setUseOracle(true);
+        assertTrue(test.getOracle() != null);
+
+        Node x = nodes.get(0);
+        Node y = nodes.get(1);
+        List<Node> z = Collections.singletonList(nodes.get(2));
+        assertEquals(!graph.isDConnectedTo(x, y, z), test.isIndependent(x, y, z));
+    }
+
 
     public void test8() {
         int numNodes = 5;
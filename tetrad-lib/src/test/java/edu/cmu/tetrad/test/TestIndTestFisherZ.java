@@ -21,16 +21,23 @@
 
 package edu.cmu.tetrad.test;
 
+import edu.cmu.tetrad.data.ContinuousVariable;
+import edu.cmu.tetrad.data.CovarianceMatrix;
 import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.data.IncrementalCovarianceMatrix;
 import edu.cmu.tetrad.graph.*;
-import edu.cmu.tetrad.search.IndTestFisherZ;
-import edu.cmu.tetrad.search.IndependenceTest;
+import edu.cmu.tetrad.search.*;
 import edu.cmu.tetrad.sem.SemIm;
 import edu.cmu.tetrad.sem.SemPm;
-import edu.cmu.tetrad.util.RandomUtil;
+import edu.cmu.tetrad.util.*;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 
 /**
@@ -90,8 +97,150 @@ public class TestIndTestFisherZ {
 
         assertEquals(0, p1, 0.01);
         assertEquals(0, p2, 0.01);
-        assertEquals(0, p3, 0.01);
+
+        // X and Z are only dependent given the collider Y.
+        assertTrue(p3 > 0.05);
     }
-}
+    /**
+     * P values for all conditioning sets of a given size, calculated with a shared factor, should be
+     * the same as those calculated one at a time from the covariance matrix, and a test should give
+     * exactly the same answer whether or not it follows a test with a similar conditioning set.
+     */
+    @Test
+    public void testPValues() {
+        RandomUtil.getInstance().setSeed(48285934L);
+
+        List<Node> nodes = new ArrayList<>();
+
+        for (int i = 0; i < 12; i++) {
+            nodes.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph graph = GraphUtils.randomGraph(nodes, 0, 20, 10, 10, 10, false);
+        DataSet data = new SemIm(new SemPm(graph)).simulateData(1000, false);
+        List<Node> variables = data.getVariables();
+        TetradMatrix cov = new CovarianceMatrix(data).getMatrix();
+
+        IndTestFisherZ test = new IndTestFisherZ(data, 0.05);
+        Node x = variables.get(0);
+        Node y = variables.get(1);
+        List<Node> candidates = variables.subList(2, variables.size());
+
+        for (int depth = 0; depth <= 4; depth++) {
+            double[] pValues = test.getPValues(x, y, candidates, depth);
+            ChoiceGenerator cg = new ChoiceGenerator(candidates.size(), depth);
+            int[] choice;
+            int t = 0;
+
+            while ((choice = cg.next()) != null) {
+                int[] z = new int[depth];
+                for (int i = 0; i < depth; i++) z[i] = choice[i] + 2;
+
+                double r = StatUtils.partialCorrelation(cov, 0, 1, z);
+                double fisherZ = Math.sqrt(1000 - 3 - depth) * 0.5 * Math.log((1.0 + r) / (1.0 - r));
+                assertEquals(2.0 * (1.0 - ProbUtils.normalCdf(Math.abs(fisherZ))), pValues[t++], 1e-8);
+
+                List<Node> condSet = GraphUtils.asList(choice, candidates);
+                test.isIndependent(x, y, condSet);
+                double score1 = test.getScore();
+
+                test.isIndependent(variables.get(2), variables.get(3), variables.get(4));
+                test.isIndependent(x, y, condSet);
+                assertEquals(score1, test.getScore(), 0.0);
+            }
+
+            assertEquals(t, pValues.length);
+        }
+    }
+
+    /**
+     * A test over an incremental covariance matrix that is repeated after rows are added should
+     * use the new covariances, not a factor of the old ones.
+     */
+    @Test
+    public void testIncrementalRetest() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        List<Node> variables = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            variables.add(new ContinuousVariable("X" + i));
+        }
+
+        double[][] rows = new double[1000][4];
 
+        for (int i = 0; i < 1000; i++) {
+            for (int j = 0; j < 4; j++) {
+                rows[i][j] = RandomUtil.getInstance().nextNormal(0, 1);
+                if (j > 0) rows[i][j] += rows[i][j - 1];
+            }
+        }
 
+        IncrementalCovarianceMatrix cov = new IncrementalCovarianceMatrix(variables);
+        cov.addRows(Arrays.copyOfRange(rows, 0, 100));
+
+        IndTestFisherZ test = new IndTestFisherZ(cov, 0.05);
+        List<Node> z = variables.subList(2, 4);
+        Node x = variables.get(0);
+        Node y = variables.get(1);
+
+        test.isIndependent(x, y, z);
+        test.getPValues(x, y, z, 2);
+
+        cov.addRows(Arrays.copyOfRange(rows, 100, 1000));
+        test.isIndependent(x, y, z);
+        double score = test.getScore();
+        double pValue = test.getPValues(x, y, z, 2)[0];
+
+        IndTestFisherZ expected = new IndTestFisherZ(cov.snapshot(), 0.05);
+        expected.isIndependent(x, y, z);
+
+        assertEquals(expected.getScore(), score, 1e-9);
+        assertEquals(expected.getPValues(x, y, z, 2)[0], pValue, 1e-12);
+    }
+
+
+    /**
+     * Fas and FasStableConcurrent, which take the p values for each pair of variables from Fisher Z
+     * all together, should find the same adjacencies and sepsets with the same number of tests as
+     * when the tests are done one at a time.
+     */
+    @Test
+    public void testFasPValues() {
+        RandomUtil.getInstance().setSeed(48285935L);
+
+        List<Node> nodes = new ArrayList<>();
+
+        for (int i = 0; i < 30; i++) {
+            nodes.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph graph = GraphUtils.randomGraph(nodes, 0, 60, 10, 10, 10, false);
+        DataSet data = new SemIm(new SemPm(graph)).simulateData(1000, false);
+
+        IndTestFisherZ test = new IndTestFisherZ(data, 0.05);
+
+        // The wrapper hides the Fisher Z test, so its tests are done one at a time.
+        IndependenceTest oneAtATime = new CachingIndependenceTest(new IndTestFisherZ(data, 0.05));
+
+        Fas fas1 = new Fas(test);
+        Fas fas2 = new Fas(oneAtATime);
+        assertEquals(fas2.search(), fas1.search());
+        assertEquals(fas2.getNumIndependenceTests(), fas1.getNumIndependenceTests());
+        assertSepsets(fas2.getSepsets(), fas1.getSepsets(), nodes);
+
+        FasStableConcurrent fas3 = new FasStableConcurrent(test);
+        FasStableConcurrent fas4 = new FasStableConcurrent(oneAtATime);
+        assertEquals(fas4.search(), fas3.search());
+        assertEquals(fas4.getNumIndependenceTests(), fas3.getNumIndependenceTests());
+        assertSepsets(fas4.getSepsets(), fas3.getSepsets(), nodes);
+    }
+
+    private void assertSepsets(SepsetMap expected, SepsetMap sepsets, List<Node> nodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int j = i + 1; j < nodes.size(); j++) {
+                assertEquals(expected.get(nodes.get(i), nodes.get(j)), sepsets.get(nodes.get(i), nodes.get(j)));
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.data.ColtDataSet;
+import edu.cmu.tetrad.data.ContinuousVariable;
+import edu.cmu.tetrad.data.DataSet;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.search.IndTestHsic;
+import edu.cmu.tetrad.search.kernel.KernelGaussian;
+import edu.cmu.tetrad.search.kernel.KernelUtils;
+import edu.cmu.tetrad.util.RandomUtil;
+import edu.cmu.tetrad.util.TetradMatrix;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests IndTestHsic.
+ */
+public class TestIndTestHsic {
+
+    /**
+     * With either approximation of the Gram matrices and either null distribution, HSIC should find nonlinear,
+     * uncorrelated dependence, and independence of the ends of a nonlinear chain given the middle.
+     */
+    @Test
+    public void testNonlinear() {
+        RandomUtil.getInstance().setSeed(3848283L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        DataSet data = new ColtDataSet(1000, vars);
+        RandomUtil random = RandomUtil.getInstance();
+
+        for (int i = 0; i < 1000; i++) {
+            double x0 = random.nextNormal(0, 1);
+            double x1 = x0 * x0 + 0.5 * random.nextNormal(0, 1);
+            double x2 = Math.sin(2 * x1) + 0.3 * random.nextNormal(0, 1);
+            double x3 = random.nextNormal(0, 1);
+
+            data.setDouble(i, 0, x0);
+            data.setDouble(i, 1, x1);
+            data.setDouble(i, 2, x2);
+            data.setDouble(i, 3, x3);
+        }
+
+        List<Node> empty = Collections.emptyList();
+
+        for (IndTestHsic.Approximation approximation : IndTestHsic.Approximation.values()) {
+            for (IndTestHsic.NullDistribution nullDistribution : IndTestHsic.NullDistribution.values()) {
+                IndTestHsic test = new IndTestHsic(data, 0.01);
+                test.setApproximation(approximation);
+                test.setNullDistribution(nullDistribution);
+
+                assertFalse(test.isIndependent(vars.get(0), vars.get(1), empty));
+                assertTrue(test.isIndependent(vars.get(0), vars.get(3), empty));
+                assertFalse(test.isIndependent(vars.get(0), vars.get(1), Collections.singletonList(vars.get(2))));
+                assertTrue(test.isIndependent(vars.get(0), vars.get(2), Collections.singletonList(vars.get(1))));
+            }
+        }
+    }
+
+    /**
+     * With full rank factors, the statistic should be the one calculated from the explicit centered Gram matrices by
+     * empiricalHSIC, both unconditionally and given one or two variables.
+     */
+    @Test
+    public void testAgainstGramMatrices() {
+        RandomUtil.getInstance().setSeed(4828384L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        int m = 100;
+        DataSet data = new ColtDataSet(m, vars);
+        RandomUtil random = RandomUtil.getInstance();
+
+        for (int i = 0; i < m; i++) {
+            double x0 = random.nextNormal(0, 1);
+            double x1 = x0 * x0 + 0.5 * random.nextNormal(0, 1);
+            double x2 = Math.sin(2 * x1) + 0.3 * random.nextNormal(0, 1);
+            double x3 = x0 + random.nextNormal(0, 1);
+
+            data.setDouble(i, 0, x0);
+            data.setDouble(i, 1, x1);
+            data.setDouble(i, 2, x2);
+            data.setDouble(i, 3, x3);
+        }
+
+        IndTestHsic test = new IndTestHsic(data, 0.05);
+        test.setIncompleteCholesky(0);
+        test.setPerms(10);
+
+        TetradMatrix K0 = centeredGram(data, vars.subList(0, 1));
+        TetradMatrix K1 = centeredGram(data, vars.subList(1, 2));
+        TetradMatrix K2 = centeredGram(data, vars.subList(2, 3));
+        TetradMatrix K12 = centeredGram(data, vars.subList(1, 3));
+
+        test.isIndependent(vars.get(0), vars.get(2), Collections.<Node>emptyList());
+        double expected = test.empiricalHSIC(K0, K2, m);
+        assertEquals(expected, test.getHsic(), 1e-8 * Math.abs(expected));
+
+        test.isIndependent(vars.get(0), vars.get(2), vars.subList(1, 2));
+        expected = test.empiricalHSIC(K0, K2, K1, m);
+        assertEquals(expected, test.getHsic(), 1e-5 * Math.abs(expected));
+
+        test.isIndependent(vars.get(0), vars.get(3), vars.subList(1, 3));
+        expected = test.empiricalHSIC(K0, centeredGram(data, vars.subList(3, 4)), K12, m);
+        assertEquals(expected, test.getHsic(), 1e-5 * Math.abs(expected));
+    }
+
+    /**
+     * The gamma approximation to the null distribution should give p values close to those of a long permutation
+     * test, and about uniform ones for independent variables.
+     */
+    @Test
+    public void testGammaNull() {
+        RandomUtil.getInstance().setSeed(3828384L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        List<Node> empty = Collections.emptyList();
+        RandomUtil random = RandomUtil.getInstance();
+        int numRejections = 0;
+
+        for (int trial = 0; trial < 40; trial++) {
+            DataSet data = new ColtDataSet(300, vars);
+
+            for (int i = 0; i < 300; i++) {
+                double x0 = random.nextNormal(0, 1);
+                data.setDouble(i, 0, x0);
+                data.setDouble(i, 1, 0.2 * x0 * x0 + random.nextNormal(0, 1));
+                data.setDouble(i, 2, random.nextNormal(0, 1));
+            }
+
+            IndTestHsic gamma = new IndTestHsic(data, 0.05);
+            gamma.setNullDistribution(IndTestHsic.NullDistribution.GAMMA);
+
+            IndTestHsic permutation = new IndTestHsic(data, 0.05);
+            permutation.setPerms(1000);
+
+            gamma.isIndependent(vars.get(0), vars.get(1), empty);
+            permutation.isIndependent(vars.get(0), vars.get(1), empty);
+            assertEquals(permutation.getPValue(), gamma.getPValue(), 0.05);
+
+            if (!gamma.isIndependent(vars.get(0), vars.get(2), empty)) numRejections++;
+        }
+
+        assertTrue(numRejections <= 6);
+    }
+
+    private static TetradMatrix centeredGram(DataSet data, List<Node> nodes) {
+        int m = data.getNumRows();
+        TetradMatrix K = new TetradMatrix(m, m);
+
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < m; j++) {
+                K.set(i, j, 1.0);
+            }
+        }
+
+        for (Node node : nodes) {
+            int col = data.getColumn(node);
+            double[] column = new double[m];
+            for (int i = 0; i < m; i++) column[i] = data.getDouble(i, col);
+            KernelGaussian kernel = new KernelGaussian(KernelUtils.medianBandwidth(column));
+
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < m; j++) {
+                    K.set(i, j, K.get(i, j) * kernel.eval(column[i], column[j]));
+                }
+            }
+        }
+
+        // H K H, with H = I - 11'/m.
+        TetradMatrix H = new TetradMatrix(m, m);
+
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < m; j++) {
+                H.set(i, j, (i == j ? 1.0 : 0.0) - 1.0 / m);
+            }
+        }
+
+        return H.times(K).times(H);
+    }
+}
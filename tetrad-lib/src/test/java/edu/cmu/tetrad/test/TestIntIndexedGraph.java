@@ -0,0 +1,144 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.graph.*;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the functions of IntIndexedGraph through the Graph interface, against
+ * EdgeListGraph.
+ */
+public final class TestIntIndexedGraph {
+
+    @Test
+    public void testSequence1() {
+        Node x1 = new GraphNode("x1");
+        Node x2 = new GraphNode("x2");
+        Node x3 = new GraphNode("x3");
+        Node x4 = new GraphNode("x4");
+
+        Graph graph = new IntIndexedGraph();
+        graph.addNode(x1);
+        graph.addNode(x2);
+        graph.addNode(x3);
+        graph.addNode(x4);
+
+        graph.addDirectedEdge(x1, x2);
+        graph.addDirectedEdge(x2, x3);
+        graph.addDirectedEdge(x3, x4);
+
+        assertEquals(Collections.singletonList(x2), graph.getChildren(x1));
+        assertEquals(Collections.singletonList(x3), graph.getParents(x4));
+        assertTrue(graph.isDConnectedTo(x1, x3, Collections.<Node>emptyList()));
+        assertTrue(graph.isAncestorOf(x1, x4));
+        assertFalse(graph.existsDirectedCycle());
+
+        // A different edge between the same nodes isn't added.
+        assertTrue(graph.addDirectedEdge(x1, x2));
+        assertFalse(graph.addDirectedEdge(x2, x1));
+        assertEquals(3, graph.getNumEdges());
+
+        graph.setEndpoint(x4, x1, Endpoint.ARROW);
+        assertTrue(graph.existsDirectedCycle());
+
+        // Removing a node renumbers the nodes after it.
+        graph.removeNode(x2);
+        assertEquals(2, graph.getNumEdges());
+        assertEquals(Endpoint.ARROW, graph.getEndpoint(x3, x4));
+        assertEquals(1, ((IntIndexedGraph) graph).getIndex(x3));
+        assertFalse(graph.existsDirectedCycle());
+
+        assertEquals(new EdgeListGraph(graph), graph);
+        assertEquals(graph, new IntIndexedGraph(new EdgeListGraph(graph)));
+    }
+
+    /**
+     * Queries on a random graph should get the same answers as they do from EdgeListGraph.
+     */
+    @Test
+    public void testAgainstEdgeListGraph() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        Graph graph1 = new EdgeListGraph(GraphUtils.randomGraph(40, 0, 60, 10, 10, 10, false));
+        Node a = graph1.getNodes().get(0);
+        Node b = graph1.getNodes().get(1);
+        graph1.removeEdges(a, b);
+        graph1.addUndirectedEdge(a, b);
+
+        IntIndexedGraph graph2 = new IntIndexedGraph(graph1);
+
+        assertEquals(graph1, graph2);
+        assertEquals(graph1.getNumEdges(), graph2.getNumEdges());
+
+        List<Node> nodes = graph1.getNodes();
+        List<Node> z = new ArrayList<>(nodes.subList(10, 13));
+
+        for (Node x : nodes) {
+            assertEquals(new HashSet<>(graph1.getAdjacentNodes(x)), new HashSet<>(graph2.getAdjacentNodes(x)));
+            assertEquals(new HashSet<>(graph1.getParents(x)), new HashSet<>(graph2.getParents(x)));
+            assertEquals(new HashSet<>(graph1.getChildren(x)), new HashSet<>(graph2.getChildren(x)));
+            assertEquals(new HashSet<>(graph1.getEdges(x)), new HashSet<>(graph2.getEdges(x)));
+            assertEquals(new HashSet<>(graph1.getNodesInTo(x, Endpoint.ARROW)),
+                    new HashSet<>(graph2.getNodesInTo(x, Endpoint.ARROW)));
+            assertEquals(new HashSet<>(graph1.getAncestors(Collections.singletonList(x))),
+                    new HashSet<>(graph2.getAncestors(Collections.singletonList(x))));
+            assertEquals(new HashSet<>(graph1.getDescendants(Collections.singletonList(x))),
+                    new HashSet<>(graph2.getDescendants(Collections.singletonList(x))));
+
+            for (Node y : nodes) {
+                if (x == y) continue;
+                assertEquals(graph1.isAdjacentTo(x, y), graph2.isAdjacentTo(x, y));
+                assertEquals(graph1.getEndpoint(x, y), graph2.getEndpoint(x, y));
+                assertEquals(graph1.getEdge(x, y), graph2.getEdge(x, y));
+                assertEquals(graph1.isParentOf(x, y), graph2.isParentOf(x, y));
+                assertEquals(graph1.isAncestorOf(x, y), graph2.isAncestorOf(x, y));
+                assertEquals(graph1.existsSemiDirectedPathFromTo(x, Collections.singleton(y)),
+                        graph2.existsSemiDirectedPathFromTo(x, Collections.singleton(y)));
+                assertEquals(graph1.existsTrek(x, y), graph2.existsTrek(x, y));
+                assertEquals(graph1.isDConnectedTo(x, y, z), graph2.isDConnectedTo(x, y, z));
+            }
+        }
+
+        assertEquals(graph1.existsDirectedCycle(), graph2.existsDirectedCycle());
+
+        for (Edge edge : new ArrayList<>(graph1.getEdges()).subList(0, 20)) {
+            graph1.removeEdge(edge);
+            graph2.removeEdge(edge);
+        }
+
+        graph1.removeNode(nodes.get(5));
+        graph2.removeNode(nodes.get(5));
+
+        assertEquals(graph1, graph2);
+        assertEquals(graph1.getNumEdges(), graph2.getNumEdges());
+    }
+}
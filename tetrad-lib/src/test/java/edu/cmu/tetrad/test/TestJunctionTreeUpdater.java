@@ -0,0 +1,140 @@
+///////////////////////////////////////////////////////////////////////////////
+// For information as to what this class does, see the Javadoc, below.       //
+// Copyright (C) 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2005, 2006,       //
+// 2007, 2008, 2009, 2010, 2014, 2015 by Peter Spirtes, Richard Scheines, Joseph   //
+// Ramsey, and Clark Glymour.                                                //
+//                                                                           //
+// This program is free software; you can redistribute it and/or modify      //
+// it under the terms of the GNU General Public License as published by      //
+// the Free Software Foundation; either version 2 of the License, or         //
+// (at your option) any later version.                                       //
+//                                                                           //
+// This program is distributed in the hope that it will be useful,           //
+// but WITHOUT ANY WARRANTY; without even the implied warranty of            //
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the             //
+// GNU General Public License for more details.                              //
+//                                                                           //
+// You should have received a copy of the GNU General Public License         //
+// along with this program; if not, write to the Free Software               //
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA //
+///////////////////////////////////////////////////////////////////////////////
+
+
+package edu.cmu.tetrad.test;
+
+import edu.cmu.tetrad.bayes.*;
+import edu.cmu.tetrad.graph.Dag;
+import edu.cmu.tetrad.graph.GraphNode;
+import edu.cmu.tetrad.graph.GraphUtils;
+import edu.cmu.tetrad.graph.Node;
+import edu.cmu.tetrad.util.RandomUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the junction tree updater against the row summing updater.
+ */
+public final class TestJunctionTreeUpdater {
+
+    /**
+     * Marginals, joint marginals and updated conditional probabilities should be the same as those found by summing
+     * over the joint distribution, as evidence is changed from one set of variables to another.
+     */
+    @Test
+    public void testRowSumming() {
+        RandomUtil.getInstance().setSeed(2938474L);
+
+        for (int rep = 0; rep < 5; rep++) {
+            List<Node> nodes = new ArrayList<>();
+
+            for (int i = 0; i < 10; i++) {
+                nodes.add(new GraphNode("X" + i));
+            }
+
+            Dag dag = new Dag(GraphUtils.randomGraph(nodes, 0, 15, 4, 4, 4, false));
+            BayesIm bayesIm = new MlBayesIm(new BayesPm(dag, 2, 3), MlBayesIm.RANDOM);
+
+            ManipulatingBayesUpdater rowSumming = new RowSummingExactUpdater(bayesIm);
+            ManipulatingBayesUpdater junctionTree = new JunctionTreeUpdater(bayesIm);
+
+            for (int e = 0; e < 4; e++) {
+                Evidence evidence = Evidence.tautology(bayesIm);
+
+                for (int k = 0; k < 3; k++) {
+                    int node = RandomUtil.getInstance().nextInt(nodes.size());
+                    int category = RandomUtil.getInstance().nextInt(bayesIm.getNumColumns(node));
+                    evidence.getProposition().setCategory(node, category);
+                }
+
+                rowSumming.setEvidence(evidence);
+                junctionTree.setEvidence(evidence);
+
+                for (int node = 0; node < nodes.size(); node++) {
+                    for (int category = 0; category < bayesIm.getNumColumns(node); category++) {
+                        assertEquals(rowSumming.getMarginal(node, category),
+                                junctionTree.getMarginal(node, category), 1e-10);
+                    }
+                }
+
+                int[] variables = {1, 4, 8};
+                int[] values = {0, 1, 0};
+                assertEquals(rowSumming.getJointMarginal(variables, values),
+                        junctionTree.getJointMarginal(variables, values), 1e-10);
+
+                BayesIm updated1 = rowSumming.getUpdatedBayesIm();
+                BayesIm updated2 = junctionTree.getUpdatedBayesIm();
+
+                for (int node = 0; node < nodes.size(); node++) {
+                    for (int row = 0; row < updated1.getNumRows(node); row++) {
+                        for (int col = 0; col < updated1.getNumColumns(node); col++) {
+                            assertEquals(updated1.getProbability(node, row, col),
+                                    updated2.getProbability(node, row, col), 1e-10);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Manipulating a variable shouldn't change the marginals of its ancestors, while conditioning on it does.
+     */
+    @Test
+    public void testManipulation() {
+        Node x = new GraphNode("X");
+        Node y = new GraphNode("Y");
+        Node z = new GraphNode("Z");
+
+        Dag dag = new Dag();
+        dag.addNode(x);
+        dag.addNode(y);
+        dag.addNode(z);
+        dag.addDirectedEdge(x, y);
+        dag.addDirectedEdge(y, z);
+
+        RandomUtil.getInstance().setSeed(2938474L);
+        BayesIm bayesIm = new MlBayesIm(new BayesPm(dag, 2, 2), MlBayesIm.RANDOM);
+        JunctionTreeUpdater updater = new JunctionTreeUpdater(bayesIm);
+
+        int _x = bayesIm.getNodeIndex(x);
+        int _y = bayesIm.getNodeIndex(y);
+        int _z = bayesIm.getNodeIndex(z);
+        double prior = updater.getMarginal(_x, 0);
+
+        Evidence evidence = Evidence.tautology(bayesIm);
+        evidence.getProposition().setCategory(_y, 1);
+        updater.setEvidence(evidence);
+        double conditioned = updater.getMarginal(_z, 0);
+        assertEquals(bayesIm.getProbability(_z, 1, 0), conditioned, 1e-10);
+
+        evidence.setManipulated(_y, true);
+        updater.setEvidence(evidence);
+        assertEquals(prior, updater.getMarginal(_x, 0), 1e-10);
+        assertEquals(conditioned, updater.getMarginal(_z, 0), 1e-10);
+        assertEquals(0, updater.getManipulatedGraph().getParents(y).size());
+    }
+}
@@ -21,19 +21,25 @@
 
 package edu.cmu.tetrad.test;
 
+import edu.cmu.tetrad.data.CompiledKnowledge;
 import edu.cmu.tetrad.data.ContinuousVariable;
 import edu.cmu.tetrad.data.IKnowledge;
 import edu.cmu.tetrad.data.Knowledge2;
 import edu.cmu.tetrad.data.KnowledgeEdge;
+import edu.cmu.tetrad.data.KnowledgeGroup;
 import edu.cmu.tetrad.graph.Graph;
 import edu.cmu.tetrad.graph.GraphUtils;
 import edu.cmu.tetrad.graph.Node;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -164,9 +170,123 @@ public final class TestKnowledge {
             assertTrue(knowledge.isForbidden("X11", "X22"));
         }
     }
-}
 
+    /**
+     * Compiled knowledge should answer every query the same way as the knowledge it was
+     * compiled from.
+     */
+    @Test
+    public final void testCompiled() {
+        List<Node> nodes = new ArrayList<>();
+
+        for (int i = 0; i < 30; i++) {
+            nodes.add(new ContinuousVariable("X" + i));
+        }
+
+        List<String> vars = new ArrayList<>();
+        for (Node node : nodes) vars.add(node.getName());
+
+        IKnowledge knowledge = new Knowledge2(vars);
+
+        knowledge.setForbidden("X1*", "X2*");
+        knowledge.setRequired("X3", "X4");
+        knowledge.setRequired("X5", "X6");
+
+        knowledge.addToTier(0, "X7*");
+        knowledge.addToTier(1, "X8");
+        knowledge.addToTier(1, "X9");
+        knowledge.addToTier(2, "X0");
+        knowledge.setTierForbiddenWithin(1, true);
+
+        knowledge.addKnowledgeGroup(new KnowledgeGroup(KnowledgeGroup.FORBIDDEN,
+                Collections.singleton("X2"), new HashSet<>(Arrays.asList("X20", "X21", "X22"))));
+        knowledge.addKnowledgeGroup(new KnowledgeGroup(KnowledgeGroup.REQUIRED,
+                Collections.singleton("X4"), Collections.singleton("X5")));
+
+        CompiledKnowledge compiled = CompiledKnowledge.compile(knowledge, nodes);
+
+        for (String x : vars) {
+            for (String y : vars) {
+                if (x.equals(y)) continue;
+                assertEquals(knowledge.isForbidden(x, y), compiled.isForbidden(x, y));
+                assertEquals(knowledge.isRequired(x, y), compiled.isRequired(x, y));
+                assertEquals(knowledge.isForbiddenByTiers(x, y), compiled.isForbiddenByTiers(x, y));
+                assertEquals(knowledge.isForbiddenByGroups(x, y), compiled.isForbiddenByGroups(x, y));
+                assertEquals(knowledge.isRequiredByGroups(x, y), compiled.isRequiredByGroups(x, y));
+                assertEquals(knowledge.noEdgeRequired(x, y), compiled.noEdgeRequired(x, y));
+            }
+        }
+
+        assertTrue(compiled.isForbidden(nodes.get(8), nodes.get(9)));
+        assertTrue(compiled.isRequired(nodes.get(3), nodes.get(4)));
+        assertTrue(compiled == CompiledKnowledge.compile(compiled, nodes));
+
+        // Names it wasn't compiled for are passed through to the original.
+        assertEquals(knowledge.isForbidden("X1", "Y"), compiled.isForbidden("X1", "Y"));
+        assertEquals(knowledge.isForbidden("X1", "X2"),
+                CompiledKnowledge.compile(knowledge, Collections.<Node>emptyList()).isForbidden("X1", "X2"));
+    }
+
+    /**
+     * Knowledge group specs with dots in them should match the same variables in compiled
+     * knowledge as in Knowledge2, where '.' matches any character and only the knowledge's own
+     * variables are matched.
+     */
+    @Test
+    public final void testCompiledDottedGroups() {
+        List<String> vars = Arrays.asList("X.1", "X.2", "XA1", "Y1", "Y.1", "YB1");
+
+        List<Node> nodes = new ArrayList<>();
+        for (String var : vars) nodes.add(new ContinuousVariable(var));
+        nodes.add(new ContinuousVariable("XB1"));
+
+        IKnowledge knowledge = new Knowledge2(vars);
+
+        knowledge.addKnowledgeGroup(new KnowledgeGroup(KnowledgeGroup.FORBIDDEN,
+                Collections.singleton("X.1"), Collections.singleton("Y1")));
+        knowledge.addKnowledgeGroup(new KnowledgeGroup(KnowledgeGroup.REQUIRED,
+                Collections.singleton("Y.*"), Collections.singleton("X.2")));
+
+        CompiledKnowledge compiled = CompiledKnowledge.compile(knowledge, nodes);
 
+        for (String x : vars) {
+            for (String y : vars) {
+                if (x.equals(y)) continue;
+                assertEquals(knowledge.isForbiddenByGroups(x, y), compiled.isForbiddenByGroups(x, y));
+                assertEquals(knowledge.isRequiredByGroups(x, y), compiled.isRequiredByGroups(x, y));
+                assertEquals(knowledge.isForbidden(x, y), compiled.isForbidden(x, y));
+                assertEquals(knowledge.isRequired(x, y), compiled.isRequired(x, y));
+            }
+        }
+
+        assertTrue(compiled.isForbiddenByGroups("XA1", "Y1"));
+        assertTrue(compiled.isRequiredByGroups("YB1", "X.2"));
+        assertFalse(compiled.isForbidden(nodes.get(6), nodes.get(3)));
+    }
 
+    /**
+     * Compiling empty knowledge for many variables should not allocate bitsets for them, and
+     * compiling a single rule should only allocate the rows it needs.
+     */
+    @Test
+    public void testCompiledKnowledgeLarge() {
+        List<Node> nodes = new ArrayList<>();
 
+        for (int i = 0; i < 100000; i++) {
+            nodes.add(new ContinuousVariable("X" + i));
+        }
 
+        CompiledKnowledge empty = CompiledKnowledge.compile(new Knowledge2(), nodes);
+        assertTrue(empty.isEmpty());
+        assertFalse(empty.isForbidden(0, 1));
+        assertEquals(-1, empty.tierOf(5));
+        assertFalse(empty.isForbiddenByTiers("X0", "X1"));
+
+        IKnowledge knowledge = new Knowledge2();
+        knowledge.setForbidden("X0", "X99999");
+        CompiledKnowledge compiled = CompiledKnowledge.compile(knowledge, nodes);
+        assertTrue(compiled.isForbidden(0, 99999));
+        assertFalse(compiled.isForbidden(99999, 0));
+        assertFalse(compiled.isRequiredByGroups("X0", "X99999"));
+    }
+}
@@ -32,6 +32,7 @@ import edu.cmu.tetrad.util.TetradLogger;
 import edu.cmu.tetrad.util.TextTable;
 import org.junit.Test;
 
+import java.io.File;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
@@ -139,6 +140,46 @@ public class TestPc {
         assertEquals(pattern, _true);
     }
 
+    /**
+     * PC and CPC sharing a cache of test results should give the same patterns as without it, the
+     * second search should find most of its tests in the cache, and saved results should load into
+     * the cache of a later run.
+     */
+    @Test
+    public void testCachedTests() throws Exception {
+        RandomUtil.getInstance().setSeed(3828384834L);
+
+        List<Node> nodes = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            nodes.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph dag = GraphUtils.randomGraph(nodes, 0, 25, 10, 10, 10, false);
+        DataSet data = new SemIm(new SemPm(dag)).simulateData(500, false);
+
+        CachingIndependenceTest test = new CachingIndependenceTest(new IndTestFisherZ(data, 0.05));
+
+        assertEquals(new Pc(new IndTestFisherZ(data, 0.05)).search(), new Pc(test).search());
+        long misses = test.getNumMisses();
+
+        assertEquals(new Cpc(new IndTestFisherZ(data, 0.05)).search(), new Cpc(test).search());
+        assertTrue(test.getNumMisses() - misses < test.getNumHits());
+
+        File file = File.createTempFile("tests", ".cache");
+        file.deleteOnExit();
+        test.save(file);
+
+        CachingIndependenceTest warm = new CachingIndependenceTest(new IndTestFisherZ(data, 0.05));
+        assertEquals(test.size(), warm.load(file));
+        assertEquals(new Pc(test).search(), new Pc(warm).search());
+        assertEquals(0, warm.getNumMisses());
+
+        CachingIndependenceTest small = new CachingIndependenceTest(new IndTestFisherZ(data, 0.05), 10);
+        small.load(file);
+        assertEquals(10, small.size());
+    }
+
     /**
      * Presents the input graph to FCI and checks to make sure the output of FCI is equivalent to the given output
      * graph.
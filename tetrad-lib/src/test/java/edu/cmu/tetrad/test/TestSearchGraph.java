@@ -35,6 +35,7 @@ import java.util.*;
 
 import static java.lang.Math.log;
 import static java.lang.Math.pow;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -360,6 +361,55 @@ public final class TestSearchGraph {
         System.out.println();
     }
 
+    /**
+     * The Meek rules do the components of a large graph in parallel; each component should come
+     * out as it would on its own.
+     */
+    @Test
+    public void testMeekComponents() {
+        RandomUtil.getInstance().setSeed(38284L);
+
+        List<Node> vars = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            vars.add(new ContinuousVariable("X" + i));
+        }
+
+        Graph dag = GraphUtils.randomGraphRandomForwardEdges(vars, 0, 150, 10, 10, 10, false, true);
+        Graph pattern = new EdgeListGraph(dag);
+        SearchGraphUtils.basicPattern(pattern, false);
+
+        // Twelve copies of the same graph, side by side.
+        Graph graph = new EdgeListGraph();
+
+        for (int k = 0; k < 12; k++) {
+            for (Node node : vars) {
+                graph.addNode(new GraphNode(node.getName() + "." + k));
+            }
+
+            for (Edge edge : pattern.getEdges()) {
+                graph.addEdge(new Edge(graph.getNode(edge.getNode1().getName() + "." + k),
+                        graph.getNode(edge.getNode2().getName() + "." + k),
+                        edge.getEndpoint1(), edge.getEndpoint2()));
+            }
+        }
+
+        new MeekRules().orientImplied(pattern);
+        new MeekRules().orientImplied(graph);
+
+        for (int k = 0; k < 12; k++) {
+            for (Edge edge : pattern.getEdges()) {
+                Node x = graph.getNode(edge.getNode1().getName() + "." + k);
+                Node y = graph.getNode(edge.getNode2().getName() + "." + k);
+
+                assertEquals(edge.getProximalEndpoint(edge.getNode1()), graph.getEndpoint(y, x));
+                assertEquals(edge.getProximalEndpoint(edge.getNode2()), graph.getEndpoint(x, y));
+            }
+        }
+
+        assertEquals(12 * pattern.getNumEdges(), graph.getNumEdges());
+    }
+
     private static int shortestPath(Node n1, Node n2, Graph g) {
         Queue<Node> Q = new ArrayDeque<>();
         Map<Node, Node> V = new HashMap<>();
@@ -25,12 +25,16 @@ import edu.cmu.tetrad.data.*;
 import edu.cmu.tetrad.graph.*;
 import edu.cmu.tetrad.sem.*;
 import edu.cmu.tetrad.util.MatrixUtils;
+import edu.cmu.tetrad.util.RandomUtil;
 import edu.cmu.tetrad.util.TetradMatrix;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Tests the MeasurementSimulator class using diagnostics devised by Richard
  * Scheines. The diagnostics are described in the Javadocs, below.
@@ -185,6 +189,67 @@ public class TestSemEstimator {
         opt.optimize(im2);
     }
 
+    /**
+     * For a DAG without latents, L-BFGS should find the regression estimates, and for a model with latents, a
+     * correlated error and a fixed parameter it should do at least as well as Powell.
+     */
+    @Test
+    public void testOptimizerLbfgs() {
+        RandomUtil.getInstance().setSeed(4828384834L);
+
+        List<Node> nodes = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            nodes.add(new ContinuousVariable("X" + (i + 1)));
+        }
+
+        Graph graph = new Dag(GraphUtils.randomGraph(nodes, 0, 15,
+                30, 15, 15, false));
+        SemPm pm = new SemPm(graph);
+        DataSet data = new SemIm(pm).simulateData(1000, false);
+
+        SemIm im1 = new SemIm(pm);
+        im1.setDataSet(data);
+        new SemOptimizerRegression().optimize(im1);
+
+        SemIm im2 = new SemIm(pm);
+        im2.setDataSet(data);
+        new SemOptimizerLbfgs().optimize(im2);
+
+        assertEquals(im1.getScore(), im2.getScore(), 1e-8);
+
+        double[] p1 = im1.getFreeParamValues();
+        double[] p2 = im2.getFreeParamValues();
+
+        for (int i = 0; i < p1.length; i++) {
+            assertEquals(p1[i], p2[i], 1e-3);
+        }
+
+        Graph graph2 = GraphConverter.convert("L1-->X1,L1-->X2,L1-->X3,L1-->X4,L2-->X5,L2-->X6,L2-->X7,L1-->L2,X3-->X6");
+        graph2.getNode("L1").setNodeType(NodeType.LATENT);
+        graph2.getNode("L2").setNodeType(NodeType.LATENT);
+        graph2.addBidirectedEdge(graph2.getNode("X1"), graph2.getNode("X2"));
+        SemPm pm2 = new SemPm(graph2);
+        pm2.getCoefficientParameter(graph2.getNode("L1"), graph2.getNode("X1")).setFixed(true);
+        DataSet data2 = new SemIm(pm2).simulateData(1000, false);
+
+        for (SemIm.ScoreType scoreType : SemIm.ScoreType.values()) {
+            SemIm im3 = new SemIm(pm2);
+            im3.setDataSet(data2);
+            im3.setScoreType(scoreType);
+            new SemOptimizerPowell().optimize(im3);
+
+            SemIm im4 = new SemIm(pm2);
+            im4.setDataSet(data2);
+            im4.setScoreType(scoreType);
+            SemOptimizer lbfgs = new SemOptimizerLbfgs();
+            lbfgs.setNumRestarts(2);
+            lbfgs.optimize(im4);
+
+            assertTrue(im4.getScore() <= im3.getScore() + 1e-6);
+        }
+    }
+
     private ICovarianceMatrix constructCovMatrix2() {
         String[] vars = new String[]{"X1", "X2", "X3", "X4", "X5", "X6"};
 
@@ -93,6 +93,40 @@ public class TestStatUtils {
         assertEquals(sd1, sd2, 0.1);
     }
 
+    /**
+     * Checks the Cholesky-based partial correlations against those calculated from the
+     * inverse of the covariance submatrix.
+     */
+    @Test
+    public void testPartialCorrelationKernel() {
+        RandomUtil.getInstance().setSeed(30299533L);
+
+        List<Node> nodes = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            nodes.add(new ContinuousVariable("X" + (i + 1)));
+        }
+
+        Graph graph = new Dag(GraphUtils.randomGraph(nodes, 0, 10,
+                3, 3, 3, false));
+        SemIm im = new SemIm(new SemPm(graph));
+        DataSet dataSet = im.simulateData(500, false);
+        TetradMatrix cov = new CovarianceMatrix(dataSet).getMatrix();
+
+        int[][] selections = {{0, 1}, {0, 1, 2}, {3, 1, 7, 4}, {7, 6, 5, 4, 3, 2, 1, 0}};
+
+        for (int[] selection : selections) {
+            TetradMatrix inverse = cov.getSelection(selection, selection).inverse();
+            double expected = -inverse.get(0, 1) / Math.sqrt(inverse.get(0, 0) * inverse.get(1, 1));
+
+            int[] z = new int[selection.length - 2];
+            System.arraycopy(selection, 2, z, 0, z.length);
+
+            assertEquals(expected, StatUtils.partialCorrelation(cov, selection[0], selection[1], z), 1e-10);
+            assertEquals(expected, StatUtils.partialCorrelation(cov.getSelection(selection, selection)), 1e-10);
+        }
+    }
+
     @Test
     public void testRankCorr() {
         double[] a1 = new double[]{2, 2, 3};